@@ -0,0 +1,130 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+/**
+ * The implementation of {@link AttributeHolder} shared by the graph, its nodes, its views and the pipelined frames. The values are stored in a flat {@link
+ * AttributeValues}, and subclasses only decide where the value of a slot is looked up from when not set locally, through {@link #lookupAttribute(int)}. The
+ * string methods resolve the names to the slots of the {@link AttributeKey}s.
+ */
+public abstract class AbstractAttributeHolder implements AttributeHolder {
+    private final AttributeValues attributes = new AttributeValues();
+
+    /**
+     * Returns the value that the getters see for the slot, or null if there is none. By default this is only the value set on this holder.
+     *
+     * @param slot The slot of the attribute
+     * @return The value, or null
+     */
+    Object lookupAttribute(int slot) {
+        return attributes.get(slot);
+    }
+
+    AttributeValues getAttributeValues() {
+        return attributes;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        final int slot = AttributeKey.getSlot(name);
+        AttributeKey.checkType(name, slot, value);
+        attributes.set(slot, value);
+    }
+
+    @Override
+    public <T> void setAttribute(AttributeKey<T> key, T value) {
+        attributes.set(key.getSlot(), value);
+    }
+
+    public <T> T getAttribute(String name) {
+        return getAttribute(name, null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttribute(String name, T _default) {
+        final Object attribute = lookupAttribute(AttributeKey.getSlot(name));
+        if (attribute == null) {
+            if (_default == null) {
+                throw new IllegalArgumentException("Attribute \"" + name + "\" is missing or null and no default has been provided");
+            } else {
+                return _default;
+            }
+        }
+        try {
+            return (T) attribute;
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Requested attribute is not of requested type");
+        }
+    }
+
+    @Override
+    public <T> T getAttribute(AttributeKey<T> key) {
+        final Object attribute = lookupAttribute(key.getSlot());
+        if (attribute == null) {
+            final T _default = key.getDefault();
+            if (_default == null) {
+                throw new IllegalArgumentException("Attribute \"" + key.getName() + "\" is missing or null and no default has been provided");
+            }
+            return _default;
+        }
+        return key.cast(attribute);
+    }
+
+    /**
+     * Returns the value of the attribute, or its default, or null if it has neither.
+     *
+     * @param key The key of the attribute
+     * @param <T> The type of the value
+     * @return The value, the default, or null
+     */
+    public <T> T getOptionalAttribute(AttributeKey<T> key) {
+        final Object attribute = lookupAttribute(key.getSlot());
+        return attribute != null ? key.cast(attribute) : key.getDefault();
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.set(AttributeKey.getSlot(name), null);
+    }
+
+    @Override
+    public void removeAttribute(AttributeKey<?> key) {
+        attributes.set(key.getSlot(), null);
+    }
+
+    @Override
+    public void touchAttribute(String name) {
+        touchAttribute(AttributeKey.getSlot(name));
+    }
+
+    @Override
+    public void touchAttribute(AttributeKey<?> key) {
+        touchAttribute(key.getSlot());
+    }
+
+    void touchAttribute(int slot) {
+        attributes.touch(slot);
+    }
+}
@@ -24,7 +24,9 @@
 package com.flowpowered.render;
 
 /**
- *
+ * Holds attribute values, by name or by {@link AttributeKey}. Nodes are only updated again when an attribute they read is set to a different value, or is
+ * touched. Values modified in place, such as a moved camera or a collection of models with a new element, must be set again to a new value or touched with
+ * {@link #touchAttribute(AttributeKey)}, otherwise the change isn't seen by the nodes' updates.
  */
 public interface AttributeHolder {
     void setAttribute(String name, Object value);
@@ -32,4 +34,24 @@ public interface AttributeHolder {
     <T> T getAttribute(String name, T _default);
 
     void removeAttribute(String name);
+
+    <T> void setAttribute(AttributeKey<T> key, T value);
+
+    <T> T getAttribute(AttributeKey<T> key);
+
+    void removeAttribute(AttributeKey<?> key);
+
+    /**
+     * Marks the attribute as changed without setting it again, for a value modified in place. The nodes that read it are updated again.
+     *
+     * @param name The name of the attribute
+     */
+    void touchAttribute(String name);
+
+    /**
+     * Marks the attribute as changed without setting it again, for a value modified in place. The nodes that read it are updated again.
+     *
+     * @param key The key of the attribute
+     */
+    void touchAttribute(AttributeKey<?> key);
 }
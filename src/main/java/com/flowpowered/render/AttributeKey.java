@@ -0,0 +1,151 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A typed key for an attribute, with an optional default value. Each attribute name is interned to an integer slot, which indexes the flat attribute arrays of
+ * the graph and its nodes, so lookups don't need hashing, casting or allocating a default. Keys with the same name share the same slot, and thus the same
+ * value, but can declare different defaults. The string attribute methods resolve names to the same slots. Looking up the slot and type of a known name
+ * doesn't lock, only allocating a new slot or declaring its type does.
+ *
+ * @param <T> The type of the attribute value
+ */
+public final class AttributeKey<T> {
+    private static final ConcurrentMap<String, Integer> SLOTS = new ConcurrentHashMap<>();
+    // Guards the allocation of new slots and the writes to the types, lookups of existing slots and types don't lock
+    private static final Object LOCK = new Object();
+    // The types of the slots, null if not declared yet. Copied on write, so readers can use the array without locking
+    private static volatile Class<?>[] types = new Class<?>[16];
+    private static int slotCount = 0;
+    private final String name;
+    private final int slot;
+    private final Class<T> type;
+    private final T defaultValue;
+
+    private AttributeKey(String name, int slot, Class<T> type, T defaultValue) {
+        this.name = name;
+        this.slot = slot;
+        this.type = type;
+        this.defaultValue = defaultValue;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public T getDefault() {
+        return defaultValue;
+    }
+
+    T cast(Object value) {
+        try {
+            return type.cast(value);
+        } catch (ClassCastException ex) {
+            throw new IllegalArgumentException("Attribute \"" + name + "\" is of type " + value.getClass().getCanonicalName() + ", expected " + type.getCanonicalName());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public static <T> AttributeKey<T> create(String name, Class<T> type) {
+        return create(name, type, null);
+    }
+
+    public static <T> AttributeKey<T> create(String name, Class<T> type, T defaultValue) {
+        if (defaultValue != null && !type.isInstance(defaultValue)) {
+            throw new IllegalArgumentException("Default value for attribute \"" + name + "\" is not of type " + type.getCanonicalName());
+        }
+        final int slot = getSlot(name);
+        final Class<?> registered = types[slot];
+        if (registered == null) {
+            synchronized (LOCK) {
+                final Class<?> declared = types[slot];
+                if (declared == null) {
+                    final Class<?>[] newTypes = types.clone();
+                    newTypes[slot] = type;
+                    types = newTypes;
+                } else if (declared != type) {
+                    throw new IllegalArgumentException("Attribute \"" + name + "\" is already of type " + declared.getCanonicalName());
+                }
+            }
+        } else if (registered != type) {
+            throw new IllegalArgumentException("Attribute \"" + name + "\" is already of type " + registered.getCanonicalName());
+        }
+        return new AttributeKey<>(name, slot, type, defaultValue);
+    }
+
+    static int getSlot(String name) {
+        final Integer slot = SLOTS.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (LOCK) {
+            // Another thread might have allocated it first
+            final Integer allocated = SLOTS.get(name);
+            if (allocated != null) {
+                return allocated;
+            }
+            final int newSlot = slotCount++;
+            if (newSlot >= types.length) {
+                types = Arrays.copyOf(types, types.length * 2);
+            }
+            // The types array is large enough before the slot is published
+            SLOTS.put(name, newSlot);
+            return newSlot;
+        }
+    }
+
+    /**
+     * Returns the type declared for the slot by a key, or null if none has been created for it yet.
+     *
+     * @param slot The slot
+     * @return The type of the slot, or null
+     */
+    static Class<?> getType(int slot) {
+        final Class<?>[] current = types;
+        return slot < current.length ? current[slot] : null;
+    }
+
+    static void checkType(String name, int slot, Object value) {
+        final Class<?> type = types[slot];
+        if (type != null && value != null && !type.isInstance(value)) {
+            throw new IllegalArgumentException("Attribute \"" + name + "\" must be of type " + type.getCanonicalName());
+        }
+    }
+}
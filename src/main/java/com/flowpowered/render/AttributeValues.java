@@ -0,0 +1,90 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+
+/**
+ * Attribute values stored in a flat array, indexed by the slots of the {@link AttributeKey}s. Each slot also has a version, which is incremented on every
+ * write, so that readers can tell when a value has changed.
+ */
+class AttributeValues {
+    private Object[] values = new Object[16];
+    private long[] versions = new long[16];
+
+    Object get(int slot) {
+        return slot < values.length ? values[slot] : null;
+    }
+
+    int getLength() {
+        return values.length;
+    }
+
+    long getVersion(int slot) {
+        return slot < versions.length ? versions[slot] : 0;
+    }
+
+    void set(int slot, Object value) {
+        if (slot >= values.length) {
+            final int length = Math.max(slot + 1, values.length * 2);
+            values = Arrays.copyOf(values, length);
+            versions = Arrays.copyOf(versions, length);
+        }
+        values[slot] = value;
+        versions[slot]++;
+    }
+
+    /**
+     * Increments the version of the slot without changing its value, for values modified in place.
+     *
+     * @param slot The slot to touch
+     */
+    void touch(int slot) {
+        set(slot, get(slot));
+    }
+
+    /**
+     * Sets the values of this store to those of the other, only writing, and thus incrementing the versions of, the slots whose value differs.
+     *
+     * @param other The values to copy
+     */
+    void copyFrom(AttributeValues other) {
+        final int length = Math.max(values.length, other.values.length);
+        for (int slot = 0; slot < length; slot++) {
+            final Object value = other.get(slot);
+            if (value != get(slot)) {
+                set(slot, value);
+            }
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                values[i] = null;
+                versions[i]++;
+            }
+        }
+    }
+}
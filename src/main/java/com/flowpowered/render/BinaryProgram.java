@@ -0,0 +1,322 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.lwjgl.opengl.ARBGetProgramBinary;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.OpenGLException;
+
+import com.flowpowered.math.matrix.Matrix2f;
+import com.flowpowered.math.matrix.Matrix3f;
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector2f;
+import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.math.vector.Vector4f;
+
+import com.flowpowered.caustic.api.GLVersioned.GLVersion;
+import com.flowpowered.caustic.api.gl.Program;
+import com.flowpowered.caustic.api.gl.Shader;
+import com.flowpowered.caustic.api.util.CausticUtil;
+
+/**
+ * A program loaded from a binary saved by the driver, which skips compiling and linking the shaders. The texture layouts, normally taken from the shaders,
+ * are given by the shader sources instead. Shaders can still be attached and linked as with any other program, which replaces the binary. Used by the
+ * {@link ProgramCache}.
+ * <p/>
+ * The uniforms are uploaded here rather than by a caustic program around the loaded one: caustic's programs create their own program object, and only find
+ * their uniforms when linking, which would replace the binary.
+ */
+class BinaryProgram extends Program {
+    private final boolean core;
+    private int id;
+    private final List<Shader> shaders = new ArrayList<>();
+    private final Map<String, Integer> uniforms = new HashMap<>();
+    // Sampler names by texture unit
+    private final Map<Integer, String> samplers = new HashMap<>();
+    private FloatBuffer floats = CausticUtil.createFloatBuffer(16);
+
+    /**
+     * Creates a new binary program.
+     *
+     * @param textureLayouts The texture units of the samplers, by name
+     * @param core Whether to use the OpenGL 4.1 entry points, or those of ARB_get_program_binary
+     */
+    BinaryProgram(Map<String, Integer> textureLayouts, boolean core) {
+        this.core = core;
+        for (Entry<String, Integer> entry : textureLayouts.entrySet()) {
+            samplers.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    @Override
+    public void create() {
+        checkNotCreated();
+        id = GL20.glCreateProgram();
+        super.create();
+    }
+
+    @Override
+    public void destroy() {
+        checkCreated();
+        GL20.glDeleteProgram(id);
+        id = 0;
+        uniforms.clear();
+        shaders.clear();
+        super.destroy();
+    }
+
+    /**
+     * Loads the binary, returning false if the driver rejected it, such as after an update.
+     *
+     * @param format The format of the binary
+     * @param binary The binary
+     * @return Whether or not the binary was loaded
+     */
+    boolean load(int format, ByteBuffer binary) {
+        checkCreated();
+        if (core) {
+            GL41.glProgramBinary(id, format, binary);
+        } else {
+            ARBGetProgramBinary.glProgramBinary(id, format, binary);
+        }
+        // A format the driver doesn't support anymore is an invalid enum, and a binary it rejects only fails the link status
+        final int error = GL11.glGetError();
+        if (error == GL11.GL_INVALID_ENUM) {
+            return false;
+        }
+        if (error != GL11.GL_NO_ERROR) {
+            throw new OpenGLException(error);
+        }
+        if (GL20.glGetProgrami(id, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+            return false;
+        }
+        findUniforms();
+        return true;
+    }
+
+    private void findUniforms() {
+        uniforms.clear();
+        final int uniformCount = GL20.glGetProgrami(id, GL20.GL_ACTIVE_UNIFORMS);
+        final int maxLength = GL20.glGetProgrami(id, GL20.GL_ACTIVE_UNIFORM_MAX_LENGTH);
+        for (int i = 0; i < uniformCount; i++) {
+            String name = GL20.glGetActiveUniform(id, i, maxLength);
+            // Arrays are reported as their first element
+            if (name.endsWith("[0]")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            uniforms.put(name, GL20.glGetUniformLocation(id, name));
+        }
+    }
+
+    @Override
+    public void attachShader(Shader shader) {
+        checkCreated();
+        GL20.glAttachShader(id, shader.getID());
+        shaders.add(shader);
+        // The layouts of the shaders take precedence over those given by the sources
+        for (Entry<String, Integer> entry : shader.getTextureLayouts().entrySet()) {
+            samplers.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    @Override
+    public void detachShader(Shader shader) {
+        checkCreated();
+        GL20.glDetachShader(id, shader.getID());
+        shaders.remove(shader);
+    }
+
+    @Override
+    public void link() {
+        checkCreated();
+        // Relinking from the attached shaders replaces the loaded binary
+        GL20.glLinkProgram(id);
+        if (GL20.glGetProgrami(id, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+            throw new IllegalStateException("Program could not be linked\n" + GL20.glGetProgramInfoLog(id, 1000));
+        }
+        findUniforms();
+    }
+
+    @Override
+    public void use() {
+        checkCreated();
+        GL20.glUseProgram(id);
+    }
+
+    @Override
+    public void bindSampler(int unit) {
+        final String name = samplers.get(unit);
+        if (name != null) {
+            setUniform(name, unit);
+        }
+    }
+
+    @Override
+    public void setUniform(String name, boolean b) {
+        setUniform(name, b ? 1 : 0);
+    }
+
+    @Override
+    public void setUniform(String name, int i) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniform1i(location, i);
+        }
+    }
+
+    @Override
+    public void setUniform(String name, float f) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniform1f(location, f);
+        }
+    }
+
+    @Override
+    public void setUniform(String name, float[] fs) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniform1(location, toBuffer(fs));
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Vector2f v) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniform2f(location, v.getX(), v.getY());
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Vector2f[] vs) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            final float[] fs = new float[vs.length * 2];
+            for (int i = 0; i < vs.length; i++) {
+                fs[i * 2] = vs[i].getX();
+                fs[i * 2 + 1] = vs[i].getY();
+            }
+            GL20.glUniform2(location, toBuffer(fs));
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Vector3f v) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniform3f(location, v.getX(), v.getY(), v.getZ());
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Vector3f[] vs) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            final float[] fs = new float[vs.length * 3];
+            for (int i = 0; i < vs.length; i++) {
+                fs[i * 3] = vs[i].getX();
+                fs[i * 3 + 1] = vs[i].getY();
+                fs[i * 3 + 2] = vs[i].getZ();
+            }
+            GL20.glUniform3(location, toBuffer(fs));
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Vector4f v) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniform4f(location, v.getX(), v.getY(), v.getZ(), v.getW());
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Matrix2f m) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniformMatrix2(location, false, toBuffer(m.toArray(true)));
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Matrix3f m) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniformMatrix3(location, false, toBuffer(m.toArray(true)));
+        }
+    }
+
+    @Override
+    public void setUniform(String name, Matrix4f m) {
+        final Integer location = uniforms.get(name);
+        if (location != null) {
+            GL20.glUniformMatrix4(location, false, toBuffer(m.toArray(true)));
+        }
+    }
+
+    private FloatBuffer toBuffer(float[] fs) {
+        if (floats.capacity() < fs.length) {
+            floats = CausticUtil.createFloatBuffer(fs.length);
+        }
+        floats.clear();
+        floats.put(fs);
+        floats.flip();
+        return floats;
+    }
+
+    @Override
+    public Collection<Shader> getShaders() {
+        return Collections.unmodifiableList(shaders);
+    }
+
+    @Override
+    public Set<String> getUniformNames() {
+        return Collections.unmodifiableSet(uniforms.keySet());
+    }
+
+    @Override
+    public int getID() {
+        return id;
+    }
+
+    @Override
+    public GLVersion getGLVersion() {
+        // The extension only needs the program objects of OpenGL 2.0
+        return core ? GLVersion.GL41 : GLVersion.GL20;
+    }
+}
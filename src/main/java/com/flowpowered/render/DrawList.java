@@ -0,0 +1,355 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector3f;
+
+import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.Material;
+import com.flowpowered.caustic.api.model.Model;
+
+/**
+ * Orders models to reduce the GL state changes between draws. Each model gets a 64 bit key made from its program, material, vertex array and view depth,
+ * and the keys are radix sorted. The layout of the key depends on the pass, see {@link Layout}.
+ * <p/>
+ * The list returned by {@link #build(Collection, Camera)} is reused by the next build, and the numbers of state changes are those of the last build.
+ */
+public class DrawList {
+    private static final int PROGRAM_BITS = 10;
+    private static final int MATERIAL_BITS = 16;
+    private static final int VERTEX_ARRAY_BITS = 18;
+    private static final int DEPTH_BITS = 20;
+    private static final int COARSE_DEPTH_BITS = 10;
+    private static final int DEPTH_ONLY_VERTEX_ARRAY_BITS = 24;
+    private final Layout layout;
+    private final Map<Object, Integer> programIDs = new IdentityHashMap<>();
+    private final Map<Object, Integer> materialIDs = new IdentityHashMap<>();
+    private final Map<Object, Integer> vertexArrayIDs = new IdentityHashMap<>();
+    private long[] keys = new long[64];
+    private long[] keysBuffer = new long[64];
+    private int[] indices = new int[64];
+    private int[] indicesBuffer = new int[64];
+    private Model[] models = new Model[64];
+    private Model[] sortedModels = new Model[64];
+    private int count = 0;
+    private final List<Model> sortedList = new AbstractList<Model>() {
+        @Override
+        public Model get(int index) {
+            if (index >= count) {
+                throw new IndexOutOfBoundsException(index + " >= " + count);
+            }
+            return sortedModels[index];
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    };
+    private int programChanges = 0;
+    private int materialChanges = 0;
+    private int vertexArrayChanges = 0;
+    private int avoidedProgramChanges = 0;
+    private int avoidedMaterialChanges = 0;
+    private int avoidedVertexArrayChanges = 0;
+
+    public DrawList(Layout layout) {
+        this.layout = layout;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Sorts the models for the camera. The returned list is a view that is updated by the next build.
+     *
+     * @param models The models to sort
+     * @param camera The camera they are rendered with
+     * @return The sorted models
+     */
+    public List<Model> build(Collection<Model> models, Camera camera) {
+        final int size = models.size();
+        ensureCapacity(size);
+        count = 0;
+        for (Model model : models) {
+            this.models[count++] = model;
+        }
+        // Only the depth row of the view matrix is needed
+        final Matrix4f view = camera.getViewMatrix();
+        final float m20 = view.get(2, 0), m21 = view.get(2, 1), m22 = view.get(2, 2), m23 = view.get(2, 3);
+        for (int i = 0; i < count; i++) {
+            final Model model = this.models[i];
+            final Material material = model.getMaterial();
+            final Vector3f position = model.getPosition();
+            // The camera looks toward negative z in view space
+            final float depth = -(m20 * position.getX() + m21 * position.getY() + m22 * position.getZ() + m23);
+            final int vertexArray = getID(vertexArrayIDs, model.getVertexArray(), layout == Layout.OPAQUE ? VERTEX_ARRAY_BITS : DEPTH_ONLY_VERTEX_ARRAY_BITS);
+            if (layout == Layout.OPAQUE) {
+                keys[i] = opaqueKey(getID(programIDs, material.getProgram(), PROGRAM_BITS), getID(materialIDs, material, MATERIAL_BITS), vertexArray, depth);
+            } else {
+                keys[i] = depthOnlyKey(vertexArray, depth);
+            }
+            indices[i] = i;
+        }
+        sort(keys, indices, keysBuffer, indicesBuffer, count);
+        for (int i = 0; i < count; i++) {
+            sortedModels[i] = this.models[indices[i]];
+        }
+        countStateChanges();
+        // Don't retain the models until the next build
+        Arrays.fill(this.models, 0, count, null);
+        return sortedList;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= keys.length) {
+            return;
+        }
+        final int capacity = Math.max(size, keys.length * 2);
+        keys = new long[capacity];
+        keysBuffer = new long[capacity];
+        indices = new int[capacity];
+        indicesBuffer = new int[capacity];
+        models = new Model[capacity];
+        sortedModels = new Model[capacity];
+    }
+
+    private void countStateChanges() {
+        programChanges = materialChanges = vertexArrayChanges = 0;
+        int unsortedProgramChanges = 0, unsortedMaterialChanges = 0, unsortedVertexArrayChanges = 0;
+        Object program = null, vertexArray = null, unsortedProgram = null, unsortedVertexArray = null;
+        Material material = null, unsortedMaterial = null;
+        for (int i = 0; i < count; i++) {
+            Model model = sortedModels[i];
+            if (model.getMaterial() != material) {
+                material = model.getMaterial();
+                materialChanges++;
+                if (material.getProgram() != program) {
+                    program = material.getProgram();
+                    programChanges++;
+                }
+            }
+            if (model.getVertexArray() != vertexArray) {
+                vertexArray = model.getVertexArray();
+                vertexArrayChanges++;
+            }
+            model = models[i];
+            if (model.getMaterial() != unsortedMaterial) {
+                unsortedMaterial = model.getMaterial();
+                unsortedMaterialChanges++;
+                if (unsortedMaterial.getProgram() != unsortedProgram) {
+                    unsortedProgram = unsortedMaterial.getProgram();
+                    unsortedProgramChanges++;
+                }
+            }
+            if (model.getVertexArray() != unsortedVertexArray) {
+                unsortedVertexArray = model.getVertexArray();
+                unsortedVertexArrayChanges++;
+            }
+        }
+        avoidedProgramChanges = unsortedProgramChanges - programChanges;
+        avoidedMaterialChanges = unsortedMaterialChanges - materialChanges;
+        avoidedVertexArrayChanges = unsortedVertexArrayChanges - vertexArrayChanges;
+    }
+
+    /**
+     * Returns the number of models in the last build.
+     *
+     * @return The number of models
+     */
+    public int getModelCount() {
+        return count;
+    }
+
+    public int getProgramChanges() {
+        return programChanges;
+    }
+
+    public int getMaterialChanges() {
+        return materialChanges;
+    }
+
+    public int getVertexArrayChanges() {
+        return vertexArrayChanges;
+    }
+
+    /**
+     * Returns the number of program changes avoided by the last build, compared to the order of the collection.
+     *
+     * @return The number of avoided program changes
+     */
+    public int getAvoidedProgramChanges() {
+        return avoidedProgramChanges;
+    }
+
+    /**
+     * Returns the number of material changes avoided by the last build, compared to the order of the collection.
+     *
+     * @return The number of avoided material changes
+     */
+    public int getAvoidedMaterialChanges() {
+        return avoidedMaterialChanges;
+    }
+
+    /**
+     * Returns the number of vertex array changes avoided by the last build, compared to the order of the collection.
+     *
+     * @return The number of avoided vertex array changes
+     */
+    public int getAvoidedVertexArrayChanges() {
+        return avoidedVertexArrayChanges;
+    }
+
+    private static int getID(Map<Object, Integer> ids, Object object, int bits) {
+        Integer id = ids.get(object);
+        if (id == null) {
+            // Start over when running out of IDs, this only affects the order until the IDs are all assigned again
+            if (ids.size() == 1 << bits) {
+                ids.clear();
+            }
+            id = ids.size();
+            ids.put(object, id);
+        }
+        return id;
+    }
+
+    /**
+     * Quantizes a depth to the given number of bits, keeping the order. The quantization is logarithmic, so it is finer closer to the camera. Negative depths
+     * are clamped to zero.
+     *
+     * @param depth The depth to quantize
+     * @param bits The number of bits, at most 31
+     * @return The quantized depth
+     */
+    static int quantizeDepth(float depth, int bits) {
+        // The bits of positive floats are in the same order as the values
+        return depth > 0 ? Float.floatToIntBits(depth) >>> 31 - bits : 0;
+    }
+
+    /**
+     * Creates a key that groups by program, then material, then vertex array, and draws each group front to back.
+     *
+     * @param program The program ID
+     * @param material The material ID
+     * @param vertexArray The vertex array ID
+     * @param depth The view depth
+     * @return The key
+     */
+    static long opaqueKey(int program, int material, int vertexArray, float depth) {
+        long key = program;
+        key = key << MATERIAL_BITS | material;
+        key = key << VERTEX_ARRAY_BITS | vertexArray;
+        return key << DEPTH_BITS | quantizeDepth(depth, DEPTH_BITS);
+    }
+
+    /**
+     * Creates a key that draws front to back for early depth rejection, grouping by vertex array within coarse depth ranges. There is a single material in
+     * depth only passes.
+     *
+     * @param vertexArray The vertex array ID
+     * @param depth The view depth
+     * @return The key
+     */
+    static long depthOnlyKey(int vertexArray, float depth) {
+        long key = quantizeDepth(depth, COARSE_DEPTH_BITS);
+        key = key << DEPTH_ONLY_VERTEX_ARRAY_BITS | vertexArray;
+        return key << DEPTH_BITS | quantizeDepth(depth, DEPTH_BITS);
+    }
+
+    /**
+     * Sorts the keys as unsigned values, and the indices with them, using a least significant digit radix sort on bytes. Bytes which are the same for all
+     * keys are skipped. The sort is stable.
+     *
+     * @param keys The keys to sort
+     * @param indices The indices to sort with the keys
+     * @param keysBuffer A buffer at least as large as the keys
+     * @param indicesBuffer A buffer at least as large as the indices
+     * @param count The number of keys to sort
+     */
+    static void sort(long[] keys, int[] indices, long[] keysBuffer, int[] indicesBuffer, int count) {
+        // Count all the digits in a single pass
+        final int[][] counts = new int[8][256];
+        for (int i = 0; i < count; i++) {
+            final long key = keys[i];
+            for (int digit = 0; digit < 8; digit++) {
+                counts[digit][(int) (key >>> (digit << 3)) & 0xff]++;
+            }
+        }
+        long[] sourceKeys = keys, targetKeys = keysBuffer;
+        int[] sourceIndices = indices, targetIndices = indicesBuffer;
+        for (int digit = 0; digit < 8; digit++) {
+            final int[] digitCounts = counts[digit];
+            final int shift = digit << 3;
+            if (count == 0 || digitCounts[(int) (sourceKeys[0] >>> shift) & 0xff] == count) {
+                continue;
+            }
+            // Convert the counts to offsets
+            int offset = 0;
+            for (int i = 0; i < 256; i++) {
+                final int digitCount = digitCounts[i];
+                digitCounts[i] = offset;
+                offset += digitCount;
+            }
+            for (int i = 0; i < count; i++) {
+                final long key = sourceKeys[i];
+                final int target = digitCounts[(int) (key >>> shift) & 0xff]++;
+                targetKeys[target] = key;
+                targetIndices[target] = sourceIndices[i];
+            }
+            final long[] swapKeys = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = swapKeys;
+            final int[] swapIndices = sourceIndices;
+            sourceIndices = targetIndices;
+            targetIndices = swapIndices;
+        }
+        if (sourceKeys != keys) {
+            System.arraycopy(sourceKeys, 0, keys, 0, count);
+            System.arraycopy(sourceIndices, 0, indices, 0, count);
+        }
+    }
+
+    /**
+     * The layouts of the sort keys, from the most to the least significant bits.
+     */
+    public static enum Layout {
+        /**
+         * Program, material, vertex array, then depth, for passes with full materials.
+         */
+        OPAQUE,
+        /**
+         * Coarse depth, vertex array, then depth, for depth only passes.
+         */
+        DEPTH_ONLY
+    }
+}
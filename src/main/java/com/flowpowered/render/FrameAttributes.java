@@ -0,0 +1,86 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+/**
+ * The attributes of a frame as seen by a node for a view, read by {@link GraphNode#prepareFrame(FrameAttributes, Object)}. They resolve like those read
+ * during the render: the attributes of the node first, then those of the view, then those of the graph. The values of the view and graph are those of the frame
+ * being prepared, which with a {@link FramePipeline} can be ahead of the frame being rendered. They are read only.
+ */
+public final class FrameAttributes extends AbstractAttributeHolder {
+    private final GraphNode node;
+    private final View view;
+    private final AttributeValues viewValues;
+    private final AttributeValues graphValues;
+
+    FrameAttributes(GraphNode node, View view, AttributeValues viewValues, AttributeValues graphValues) {
+        this.node = node;
+        this.view = view;
+        this.viewValues = viewValues;
+        this.graphValues = graphValues;
+    }
+
+    /**
+     * Returns the view the frame is prepared for, or null if the graph has no views.
+     *
+     * @return The view
+     */
+    public View getView() {
+        return view;
+    }
+
+    @Override
+    Object lookupAttribute(int slot) {
+        Object attribute = node.getAttributeValues().get(slot);
+        if (attribute == null && viewValues != null) {
+            attribute = viewValues.get(slot);
+        }
+        return attribute != null ? attribute : graphValues.get(slot);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        throw new UnsupportedOperationException("Frame attributes are read only");
+    }
+
+    @Override
+    public <T> void setAttribute(AttributeKey<T> key, T value) {
+        throw new UnsupportedOperationException("Frame attributes are read only");
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        throw new UnsupportedOperationException("Frame attributes are read only");
+    }
+
+    @Override
+    public void removeAttribute(AttributeKey<?> key) {
+        throw new UnsupportedOperationException("Frame attributes are read only");
+    }
+
+    @Override
+    void touchAttribute(int slot) {
+        throw new UnsupportedOperationException("Frame attributes are read only");
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import com.flowpowered.caustic.api.Camera;
+
+/**
+ * Renders a graph with the frames prepared by another thread, so that the simulation can prepare the next frames while the current one is being rendered.
+ * <p/>
+ * A frame holds a snapshot of the attributes of the graph and its views. The simulation thread obtains a frame with {@link #beginFrame()}, which starts as a
+ * copy of the last submitted one, sets the attributes that changed, such as the camera and the model collections, then submits it with {@link
+ * #submit(Frame)}. The rendering thread calls {@link #renderNext()}, which installs the attributes of the next frame on the graph and its views, writing only
+ * the ones that changed so that the other nodes aren't updated, then updates and renders the graph.
+ * <p/>
+ * On submission, the values set or touched on the frame are copied for the rendering thread: cameras, lights, and collections, of which only the lights are
+ * copied deeply, so that the simulation can keep modifying its own in place. Models and other values are shared, and must be replaced rather than modified
+ * while they are being rendered. The frame data of the nodes, see {@link GraphNode#prepareFrame(FrameAttributes, Object)}, is then prepared from the copies on
+ * the prepare pool of the graph, or on the submitting thread without one, while the previous frames are being rendered. The node updates themselves, {@link
+ * GraphNode#prepare()} included, still run on the rendering thread when the frame is rendered, as the nodes apply them to the state used by their renders.
+ * <p/>
+ * The depth is the number of frames that can be submitted ahead of the one being rendered. Submitting blocks when it is reached, which bounds the latency.
+ * Frames are recycled, so a frame must not be used after being submitted. Attributes touched on a frame are touched on the graph when it is rendered. While the
+ * pipeline is used, the attributes of the graph and of the views should only be set through the frames, and those of the nodes not at all.
+ */
+public class FramePipeline {
+    private static final int REPORT_SAMPLES = 60;
+    private final RenderGraph graph;
+    private final int depth;
+    private final BlockingQueue<Frame> pendingFrames;
+    private final BlockingQueue<Frame> freeFrames;
+    // Only used by the simulation thread
+    private Frame lastSubmitted;
+    private final Statistics statistics = new Statistics();
+
+    public FramePipeline(RenderGraph graph, int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Depth must be greater than zero");
+        }
+        this.graph = graph;
+        this.depth = depth;
+        pendingFrames = new ArrayBlockingQueue<>(depth);
+        // One frame being prepared, the pending ones, and one being rendered
+        freeFrames = new ArrayBlockingQueue<>(depth + 2);
+        for (int i = 0; i < depth + 2; i++) {
+            freeFrames.add(new Frame());
+        }
+        // Start from the current attributes, copied as if they had all been set on a submitted frame
+        lastSubmitted = new Frame();
+        lastSubmitted.getAttributeValues().copyFrom(graph.getAttributeValues());
+        markAll(lastSubmitted.getAttributeValues(), lastSubmitted.written);
+        for (View view : graph.getViews()) {
+            final ViewFrame viewFrame = lastSubmitted.getViewFrame(view);
+            viewFrame.values.copyFrom(view.getAttributeValues());
+            markAll(viewFrame.values, viewFrame.written);
+        }
+        lastSubmitted.snapshot(lastSubmitted);
+    }
+
+    public RenderGraph getGraph() {
+        return graph;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of frames submitted but not yet rendered.
+     *
+     * @return The number of pending frames
+     */
+    public int getPendingFrames() {
+        return pendingFrames.size();
+    }
+
+    /**
+     * Returns a frame to prepare, on the simulation thread. It starts with the attributes of the last submitted frame.
+     *
+     * @return The frame to prepare
+     * @throws InterruptedException If interrupted while waiting for a free frame
+     */
+    public Frame beginFrame() throws InterruptedException {
+        final Frame frame = freeFrames.take();
+        if (frame != lastSubmitted) {
+            frame.copyFrom(lastSubmitted);
+        }
+        return frame;
+    }
+
+    /**
+     * Submits the frame for rendering, on the simulation thread. The values set on the frame are copied, and the frame data of the nodes is prepared in the
+     * background on the prepare pool of the graph, or on this thread without one. Blocks while the pipeline is full.
+     *
+     * @param frame The frame to submit
+     * @throws InterruptedException If interrupted while waiting for the pipeline
+     */
+    public void submit(Frame frame) throws InterruptedException {
+        frame.snapshot(lastSubmitted);
+        final ForkJoinPool pool = graph.getPreparePool();
+        final FramePrepareTask task = new FramePrepareTask(graph, frame);
+        if (pool != null) {
+            pool.execute(task);
+        } else {
+            // Failures are thrown when the frame is rendered
+            task.quietlyInvoke();
+        }
+        frame.prepareTask = task;
+        final long start = System.nanoTime();
+        frame.submitTime = start;
+        pendingFrames.put(frame);
+        statistics.addSubmitWait(System.nanoTime() - start);
+        lastSubmitted = frame;
+    }
+
+    /**
+     * Renders the next submitted frame, on the rendering thread. Blocks until one is available.
+     *
+     * @throws InterruptedException If interrupted while waiting for a frame
+     */
+    public void renderNext() throws InterruptedException {
+        final long start = System.nanoTime();
+        final Frame frame = pendingFrames.take();
+        render(frame, start);
+    }
+
+    /**
+     * Renders the next submitted frame, on the rendering thread, waiting at most the given time for one.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return Whether or not a frame was rendered
+     * @throws InterruptedException If interrupted while waiting for a frame
+     */
+    public boolean renderNext(long timeout, TimeUnit unit) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Frame frame = pendingFrames.poll(timeout, unit);
+        if (frame == null) {
+            return false;
+        }
+        render(frame, start);
+        return true;
+    }
+
+    private void render(Frame frame, long waitStart) {
+        final long renderStart = System.nanoTime();
+        try {
+            // Usually done while the previous frame was being rendered
+            frame.prepareTask.join();
+            graph.copyAttributesFrom(frame.renderValues);
+            for (Entry<View, ViewFrame> entry : frame.viewFrames.entrySet()) {
+                entry.getKey().copyAttributesFrom(entry.getValue().renderValues);
+            }
+            for (int slot = frame.touched.nextSetBit(0); slot >= 0; slot = frame.touched.nextSetBit(slot + 1)) {
+                graph.touchAttribute(slot);
+            }
+            graph.updateAll();
+            graph.render(frame.preparedFrames);
+        } finally {
+            final long end = System.nanoTime();
+            statistics.addFrame(renderStart - waitStart, end - renderStart, end - frame.submitTime, end);
+            frame.touched.clear();
+            frame.prepareTask = null;
+            freeFrames.add(frame);
+        }
+    }
+
+    /**
+     * Returns a report of the latency and throughput over the last frames.
+     *
+     * @return The report
+     */
+    public Report getReport() {
+        return statistics.getReport(pendingFrames.size());
+    }
+
+    private static void markAll(AttributeValues values, BitSet slots) {
+        for (int slot = values.getLength() - 1; slot >= 0; slot--) {
+            if (values.get(slot) != null) {
+                slots.set(slot);
+            }
+        }
+    }
+
+    /**
+     * Copies a value set on a frame, for the rendering thread. Cameras and lights are copied, as are collections, with their lights, as long as the copy is
+     * still of the type declared for the slot. Other values are returned as is.
+     *
+     * @param slot The slot of the value
+     * @param value The value to copy
+     * @return The copy, or the value itself
+     */
+    static Object copyValue(int slot, Object value) {
+        final Object copy;
+        if (value instanceof Collection<?>) {
+            final Collection<?> collection = (Collection<?>) value;
+            final Collection<Object> copies = value instanceof Set<?> ? new LinkedHashSet<>(collection.size() * 2) : new ArrayList<>(collection.size());
+            for (Object element : collection) {
+                copies.add(copyElement(element));
+            }
+            copy = copies;
+        } else {
+            copy = copyElement(value);
+        }
+        final Class<?> type = AttributeKey.getType(slot);
+        return type == null || type.isInstance(copy) ? copy : value;
+    }
+
+    private static Object copyElement(Object value) {
+        if (value instanceof Camera) {
+            final Camera camera = (Camera) value;
+            final Camera copy = new Camera(camera.getProjectionMatrix());
+            copy.setPosition(camera.getPosition());
+            copy.setRotation(camera.getRotation());
+            return copy;
+        }
+        if (value instanceof Light) {
+            return new Light((Light) value);
+        }
+        return value;
+    }
+
+    /**
+     * The attributes of the graph and its views for a frame.
+     */
+    public static class Frame extends AbstractAttributeHolder {
+        private final Map<View, ViewFrame> viewFrames = new IdentityHashMap<>();
+        // The slots set, removed or touched on this frame since it was last submitted, copied on submission
+        private final BitSet written = new BitSet();
+        // The slots touched on this frame, touched again on the graph when rendered
+        private final BitSet touched = new BitSet();
+        // The copies of the values for the rendering thread, made on submission
+        private final AttributeValues renderValues = new AttributeValues();
+        // The frame data of the nodes by view, prepared from the copies, and reused by the next preparation once rendered
+        private final Map<View, Map<GraphNode, Object>> preparedFrames = new IdentityHashMap<>();
+        private FramePrepareTask prepareTask;
+        private long submitTime;
+
+        private Frame() {
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            super.setAttribute(name, value);
+            written.set(AttributeKey.getSlot(name));
+        }
+
+        @Override
+        public <T> void setAttribute(AttributeKey<T> key, T value) {
+            super.setAttribute(key, value);
+            written.set(key.getSlot());
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            super.removeAttribute(name);
+            written.set(AttributeKey.getSlot(name));
+        }
+
+        @Override
+        public void removeAttribute(AttributeKey<?> key) {
+            super.removeAttribute(key);
+            written.set(key.getSlot());
+        }
+
+        @Override
+        void touchAttribute(int slot) {
+            super.touchAttribute(slot);
+            written.set(slot);
+            touched.set(slot);
+        }
+
+        /**
+         * Sets an attribute of the view for this frame.
+         *
+         * @param view The view
+         * @param key The key of the attribute
+         * @param value The value, or null to remove it
+         * @param <T> The type of the value
+         */
+        public <T> void setViewAttribute(View view, AttributeKey<T> key, T value) {
+            final ViewFrame viewFrame = getViewFrame(view);
+            viewFrame.values.set(key.getSlot(), value);
+            viewFrame.written.set(key.getSlot());
+        }
+
+        /**
+         * Returns an attribute of the view for this frame, or null if the view doesn't override it.
+         *
+         * @param view The view
+         * @param key The key of the attribute
+         * @param <T> The type of the value
+         * @return The value, or null
+         */
+        public <T> T getViewAttribute(View view, AttributeKey<T> key) {
+            final ViewFrame viewFrame = viewFrames.get(view);
+            final Object value = viewFrame != null ? viewFrame.values.get(key.getSlot()) : null;
+            return value != null ? key.cast(value) : null;
+        }
+
+        /**
+         * Stops setting the attributes of the view from this frame and the next ones, such as after removing the view from the graph.
+         *
+         * @param view The view
+         */
+        public void removeView(View view) {
+            viewFrames.remove(view);
+        }
+
+        private ViewFrame getViewFrame(View view) {
+            ViewFrame viewFrame = viewFrames.get(view);
+            if (viewFrame == null) {
+                viewFrame = new ViewFrame();
+                viewFrames.put(view, viewFrame);
+            }
+            return viewFrame;
+        }
+
+        private void copyFrom(Frame other) {
+            getAttributeValues().copyFrom(other.getAttributeValues());
+            // Drop the views that the other frame doesn't set anymore
+            for (Iterator<View> iterator = viewFrames.keySet().iterator(); iterator.hasNext(); ) {
+                if (!other.viewFrames.containsKey(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+            for (Entry<View, ViewFrame> entry : other.viewFrames.entrySet()) {
+                getViewFrame(entry.getKey()).values.copyFrom(entry.getValue().values);
+            }
+        }
+
+        // Makes the copies for the rendering thread: those of the last submitted frame, except for the slots written on this one
+        private void snapshot(Frame last) {
+            snapshot(getAttributeValues(), written, last.renderValues, renderValues);
+            for (Entry<View, ViewFrame> entry : viewFrames.entrySet()) {
+                final ViewFrame viewFrame = entry.getValue();
+                final ViewFrame lastViewFrame = last.viewFrames.get(entry.getKey());
+                snapshot(viewFrame.values, viewFrame.written, lastViewFrame != null ? lastViewFrame.renderValues : null, viewFrame.renderValues);
+            }
+        }
+
+        private static void snapshot(AttributeValues values, BitSet written, AttributeValues lastRenderValues, AttributeValues renderValues) {
+            if (lastRenderValues == null) {
+                // A new view, copy everything
+                markAll(values, written);
+                renderValues.clear();
+            } else if (lastRenderValues != renderValues) {
+                renderValues.copyFrom(lastRenderValues);
+            }
+            for (int slot = written.nextSetBit(0); slot >= 0; slot = written.nextSetBit(slot + 1)) {
+                renderValues.set(slot, copyValue(slot, values.get(slot)));
+            }
+            written.clear();
+        }
+    }
+
+    private static class ViewFrame {
+        // The values set by the simulation, and their copies for the rendering thread
+        private final AttributeValues values = new AttributeValues();
+        private final BitSet written = new BitSet();
+        private final AttributeValues renderValues = new AttributeValues();
+    }
+
+    private static class FramePrepareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final RenderGraph graph;
+        private final Frame frame;
+
+        private FramePrepareTask(RenderGraph graph, Frame frame) {
+            this.graph = graph;
+            this.frame = frame;
+        }
+
+        @Override
+        protected void compute() {
+            final Map<View, AttributeValues> viewValues = new IdentityHashMap<>();
+            for (Entry<View, ViewFrame> entry : frame.viewFrames.entrySet()) {
+                viewValues.put(entry.getKey(), entry.getValue().renderValues);
+            }
+            graph.prepareFrames(frame.renderValues, viewValues, frame.preparedFrames);
+        }
+    }
+
+    /**
+     * Averages over the last frames, in nanoseconds.
+     */
+    public static class Report {
+        private final int pendingFrames;
+        private final double latency;
+        private final double frameTime;
+        private final double renderTime;
+        private final double renderWait;
+        private final double submitWait;
+
+        private Report(int pendingFrames, double latency, double frameTime, double renderTime, double renderWait, double submitWait) {
+            this.pendingFrames = pendingFrames;
+            this.latency = latency;
+            this.frameTime = frameTime;
+            this.renderTime = renderTime;
+            this.renderWait = renderWait;
+            this.submitWait = submitWait;
+        }
+
+        public int getPendingFrames() {
+            return pendingFrames;
+        }
+
+        /**
+         * Returns the average time from the submission of a frame to the end of its rendering.
+         *
+         * @return The average latency
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        /**
+         * Returns the average time between the ends of two consecutive frames.
+         *
+         * @return The average frame time
+         */
+        public double getFrameTime() {
+            return frameTime;
+        }
+
+        /**
+         * Returns the number of frames rendered per second, from the average frame time.
+         *
+         * @return The throughput
+         */
+        public double getThroughput() {
+            return frameTime > 0 ? TimeUnit.SECONDS.toNanos(1) / frameTime : 0;
+        }
+
+        /**
+         * Returns the average time taken to update and render a frame, on the rendering thread.
+         *
+         * @return The average render time
+         */
+        public double getRenderTime() {
+            return renderTime;
+        }
+
+        /**
+         * Returns the average time the rendering thread waited for a frame. When high, the simulation is the bottleneck.
+         *
+         * @return The average render wait
+         */
+        public double getRenderWait() {
+            return renderWait;
+        }
+
+        /**
+         * Returns the average time the simulation thread waited for the pipeline to accept a frame. When high, the rendering is the bottleneck.
+         *
+         * @return The average submit wait
+         */
+        public double getSubmitWait() {
+            return submitWait;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{pendingFrames=" + pendingFrames + ", latency=" + latency + ", frameTime=" + frameTime + ", throughput=" + getThroughput()
+                    + ", renderTime=" + renderTime + ", renderWait=" + renderWait + ", submitWait=" + submitWait + '}';
+        }
+    }
+
+    private static class Statistics {
+        private final long[] latencies = new long[REPORT_SAMPLES];
+        private final long[] frameTimes = new long[REPORT_SAMPLES];
+        private final long[] renderTimes = new long[REPORT_SAMPLES];
+        private final long[] renderWaits = new long[REPORT_SAMPLES];
+        private final long[] submitWaits = new long[REPORT_SAMPLES];
+        private int frameCount = 0;
+        private int submitCount = 0;
+        private long lastFrameEnd = -1;
+
+        private synchronized void addSubmitWait(long wait) {
+            submitWaits[submitCount++ % REPORT_SAMPLES] = wait;
+        }
+
+        private synchronized void addFrame(long renderWait, long renderTime, long latency, long end) {
+            final int index = frameCount % REPORT_SAMPLES;
+            renderWaits[index] = renderWait;
+            renderTimes[index] = renderTime;
+            latencies[index] = latency;
+            // The first frame has no previous one to measure from
+            frameTimes[index] = lastFrameEnd >= 0 ? end - lastFrameEnd : renderWait + renderTime;
+            lastFrameEnd = end;
+            frameCount++;
+        }
+
+        private synchronized Report getReport(int pendingFrames) {
+            final int frames = Math.min(frameCount, REPORT_SAMPLES);
+            final int submits = Math.min(submitCount, REPORT_SAMPLES);
+            return new Report(pendingFrames, average(latencies, frames), average(frameTimes, frames), average(renderTimes, frames),
+                    average(renderWaits, frames), average(submitWaits, submits));
+        }
+
+        private static double average(long[] samples, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += samples[i];
+            }
+            return (double) sum / count;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * A timer using OpenGL 3.3 timestamp queries, which measure when the commands are executed by the GPU. Query objects are reused once released. Requires the
+ * OpenGL context to be current.
+ */
+public class GLTimer implements RenderProfiler.Timer {
+    private int[] queries = new int[64];
+    private int queryCount = 0;
+    private int[] freeQueries = new int[64];
+    private int freeCount = 0;
+
+    /**
+     * Returns true if the current OpenGL context supports timestamp queries.
+     *
+     * @return Whether or not timestamp queries are supported
+     */
+    public static boolean isSupported() {
+        try {
+            final ContextCapabilities capabilities = GLContext.getCapabilities();
+            return capabilities != null && capabilities.OpenGL33;
+        } catch (RuntimeException | LinkageError ex) {
+            // No current context, or LWJGL isn't used
+            return false;
+        }
+    }
+
+    @Override
+    public int timestamp() {
+        final int query;
+        if (freeCount > 0) {
+            query = freeQueries[--freeCount];
+        } else {
+            query = GL15.glGenQueries();
+            if (queryCount == queries.length) {
+                queries = Arrays.copyOf(queries, queryCount * 2);
+                freeQueries = Arrays.copyOf(freeQueries, queryCount * 2);
+            }
+            queries[queryCount++] = query;
+        }
+        GL33.glQueryCounter(query, GL33.GL_TIMESTAMP);
+        return query;
+    }
+
+    @Override
+    public boolean isAvailable(int handle) {
+        return GL15.glGetQueryObjecti(handle, GL15.GL_QUERY_RESULT_AVAILABLE) == GL11.GL_TRUE;
+    }
+
+    @Override
+    public long getTime(int handle) {
+        return GL33.glGetQueryObjectui64(handle, GL15.GL_QUERY_RESULT);
+    }
+
+    @Override
+    public void release(int handle) {
+        freeQueries[freeCount++] = handle;
+    }
+
+    @Override
+    public void destroy() {
+        for (int i = 0; i < queryCount; i++) {
+            GL15.glDeleteQueries(queries[i]);
+        }
+        queryCount = 0;
+        freeCount = 0;
+    }
+}
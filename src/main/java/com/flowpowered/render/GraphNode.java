@@ -27,83 +27,301 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
+import com.flowpowered.math.vector.Vector2i;
+
 import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
+import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
 
 /**
  *
  */
-public abstract class GraphNode implements AttributeHolder {
+public abstract class GraphNode extends AbstractAttributeHolder {
     protected final RenderGraph graph;
     protected final String name;
-    private final Map<String, Object> attributes = new HashMap<>();
-    private final Map<String, Method> inputs = new HashMap<>();
-    private final Map<String, Method> outputs = new HashMap<>();
+    private final NodePorts ports;
     private final Map<String, GraphNode> inputNodes = new HashMap<>();
     private final Map<String, GraphNode> outputNodes = new HashMap<>();
+    private final Map<String, String> inputSources = new HashMap<>();
+    // One entry per connection, a node can be connected more than once to the same parent
+    private final List<GraphNode> dependents = new ArrayList<>();
+    private final Map<String, RenderTarget> outputTargets = new HashMap<>();
+    // Managed by the graph's scheduler
+    int stage = -1;
+    // The attribute slots read by the last update, the values they had and their node and graph versions at the time
+    private int[] dependencies = new int[8];
+    private Object[] dependencyValues = new Object[8];
+    private long[] dependencyVersions = new long[8];
+    private int dependencyCount;
+    private boolean recordingDependencies;
+    private boolean invalid = true;
+    // The view attribute versions last seen and the node state, by view, with a null key when the graph has no views
+    private final Map<View, ViewData> viewData = new HashMap<>();
 
     protected GraphNode(RenderGraph graph, String name) {
         this.graph = graph;
         this.name = name;
-        findInputsAndOutputs();
+        ports = NodePorts.get(getClass());
+    }
+
+    /**
+     * Prepares the update of the node, on any thread, possibly in parallel with the other nodes. This should only do CPU work: reading the attributes and
+     * computing the new state of the node, such as uniform values and texture data. Changes to the OpenGL state, such as uploading texture data, should be
+     * left to {@link #apply()}. The attributes of the graph and views must not be modified during this call.
+     * <p/>
+     * With a prepare pool, this runs on a pool thread while the other nodes of the stage are prepared, and while the nodes of the earlier stages are applied
+     * on the rendering thread. It may read the attributes and the connected inputs, and write the fields of this node that are only used by this method and
+     * {@link #apply()}, which always runs after it. It must not use OpenGL, the render target pool or the view state, nor read or write the fields of the
+     * other nodes. This only runs again when an attribute read by
+     * the last update has changed, so values derived from state that is usually modified in place, such as the projection of the camera, belong in {@link
+     * #render()} instead.
+     */
+    protected void prepare() {
     }
 
-    public abstract void update();
+    /**
+     * Applies the changes prepared by {@link #prepare()}, on the rendering thread. The nodes of the later stages may still be being prepared, so this must not
+     * modify the attributes either.
+     */
+    protected void apply() {
+    }
+
+    /**
+     * Updates the node on the rendering thread, after {@link #apply()}. For nodes that don't split their update in {@link #prepare()} and {@link #apply()}.
+     */
+    public void update() {
+    }
+
+    /**
+     * Prepares the per frame work of the node for a view, on any thread, before each render: the CPU work that depends on values that change every frame,
+     * such as culling and sorting the models for the camera, or binning the lights. Unlike {@link #prepare()}, this runs for every frame and every view the
+     * node is rendered for, and the result is given back to {@link #render()} by {@link #getFrameData()}.
+     * <p/>
+     * The attributes must be read from the given ones, which are those of the frame being prepared. With a {@link FramePipeline}, this runs for the next frame
+     * while the current one is being rendered, so it must not use OpenGL, the render target pool or the view state, nor read or write the fields of the node.
+     * The data of a frame is only reused, as the previous data, once that frame has been rendered, so it can hold reusable buffers.
+     *
+     * @param attributes The attributes of the frame, for the view
+     * @param previous Data returned by an earlier call for the view, which isn't in use anymore and can be reused, or null
+     * @return The frame data, or null
+     */
+    protected Object prepareFrame(FrameAttributes attributes, Object previous) {
+        return null;
+    }
 
     protected abstract void render();
 
     protected abstract void destroy();
 
-    public String getName() {
-        return name;
+    /**
+     * Creates the state the node keeps for each view, such as the history of temporal effects or the per frame lists, or null if it has none. It is created
+     * when first needed for a view, see {@link #getViewState()}.
+     *
+     * @return The new view state, or null
+     */
+    protected Object createViewState() {
+        return null;
     }
 
-    @Override
-    public void setAttribute(String name, Object value) {
-        attributes.put(name, value);
+    /**
+     * Destroys a state created by {@link #createViewState()}, when its view is removed or when the node is removed from the graph.
+     *
+     * @param state The state to destroy
+     */
+    protected void destroyViewState(Object state) {
     }
 
-    public <T> T getAttribute(String name) {
-        return getAttribute(name, null);
+    /**
+     * Returns the state of the node for the view being rendered, or for the graph if it has no views, creating it with {@link #createViewState()} on first
+     * use.
+     *
+     * @param <S> The type of the state
+     * @return The view state
+     */
+    @SuppressWarnings("unchecked")
+    protected <S> S getViewState() {
+        final ViewData data = getViewData(graph.getCurrentView());
+        if (data.state == null) {
+            data.state = createViewState();
+        }
+        return (S) data.state;
     }
 
-    @Override
+    /**
+     * Returns the data prepared by {@link #prepareFrame(FrameAttributes, Object)} for the frame and view being rendered.
+     *
+     * @param <D> The type of the data
+     * @return The frame data, or null
+     */
     @SuppressWarnings("unchecked")
-    public <T> T getAttribute(String name, T _default) {
-        Object attribute = attributes.get(name);
-        if (attribute == null) {
-            attribute = graph.getAttributeRaw(name);
-        }
-        if (attribute == null) {
-            if (_default == null) {
-                throw new IllegalArgumentException("Attribute \"" + name + "\" is missing or null and no default has been provided");
-            } else {
-                return _default;
-            }
+    protected <D> D getFrameData() {
+        return (D) getViewData(graph.getCurrentView()).frameData;
+    }
+
+    boolean preparesFrames() {
+        return ports.preparesFrames();
+    }
+
+    // The data last prepared for the view by the graph itself, as opposed to the frames of a pipeline, which reuse their own
+    Object getLiveFrameData(View view) {
+        return getViewData(view).liveFrameData;
+    }
+
+    void setFrameData(View view, Object frameData, boolean live) {
+        final ViewData data = getViewData(view);
+        data.frameData = frameData;
+        if (live) {
+            data.liveFrameData = frameData;
+        }
+    }
+
+    /**
+     * Starts an update if this node was invalidated, or if any of the attributes it read during its last update has been written since, either on the node,
+     * the view or the graph, or resolves to a different value for the view being rendered. Views that share the attribute values therefore don't update the
+     * node again. The attributes read until {@link #finishUpdate()} are recorded as the dependencies for the next check. Attribute values modified in place,
+     * without being set again, aren't detected: touch them with {@link AttributeHolder#touchAttribute(AttributeKey)}, or use {@link #invalidate()}.
+     *
+     * @return Whether or not the node needs to be updated
+     */
+    boolean beginUpdate() {
+        final ViewData data = getViewData(graph.getCurrentView());
+        // Always check all the dependencies, to record the view versions seen
+        final boolean changed = dependenciesChanged(data);
+        if (!invalid && !changed) {
+            return false;
         }
+        // Stays invalid if the update fails
+        invalid = true;
+        dependencyCount = 0;
+        recordingDependencies = true;
+        return true;
+    }
+
+    void finishUpdate() {
         try {
-            return (T) attribute;
-        } catch (ClassCastException e) {
-            throw new IllegalArgumentException("Requested attribute is not of requested type");
+            apply();
+            update();
+        } finally {
+            recordingDependencies = false;
+        }
+        invalid = false;
+    }
+
+    /**
+     * Forces the node to be updated on the next call to {@link RenderGraph#updateAll()}.
+     */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    void removeViewState(View view) {
+        final ViewData data = viewData.remove(view);
+        if (data != null && data.state != null) {
+            destroyViewState(data.state);
+        }
+    }
+
+    void destroyViewStates() {
+        for (ViewData data : viewData.values()) {
+            if (data.state != null) {
+                destroyViewState(data.state);
+            }
+        }
+        viewData.clear();
+    }
+
+    private ViewData getViewData(View view) {
+        ViewData data = viewData.get(view);
+        if (data == null) {
+            data = new ViewData();
+            viewData.put(view, data);
+        }
+        return data;
+    }
+
+    private boolean dependenciesChanged(ViewData data) {
+        final View view = graph.getCurrentView();
+        boolean changed = false;
+        for (int i = 0; i < dependencyCount; i++) {
+            final int slot = dependencies[i];
+            if (getAttributeVersion(slot) != dependencyVersions[i] || resolveAttribute(slot) != dependencyValues[i]) {
+                changed = true;
+            }
+            if (view != null && data.seeViewVersion(slot, view.getAttributeVersion(slot))) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private long getAttributeVersion(int slot) {
+        // Both versions only increase, so a write to either changes the sum
+        return getAttributeValues().getVersion(slot) + graph.getAttributeVersion(slot);
+    }
+
+    private void recordDependency(int slot, Object value) {
+        for (int i = 0; i < dependencyCount; i++) {
+            if (dependencies[i] == slot) {
+                return;
+            }
+        }
+        if (dependencyCount == dependencies.length) {
+            dependencies = Arrays.copyOf(dependencies, dependencyCount * 2);
+            dependencyValues = Arrays.copyOf(dependencyValues, dependencyCount * 2);
+            dependencyVersions = Arrays.copyOf(dependencyVersions, dependencyCount * 2);
         }
+        dependencies[dependencyCount] = slot;
+        dependencyValues[dependencyCount] = value;
+        dependencyVersions[dependencyCount] = getAttributeVersion(slot);
+        dependencyCount++;
+        final View view = graph.getCurrentView();
+        if (view != null) {
+            getViewData(view).seeViewVersion(slot, view.getAttributeVersion(slot));
+        }
+    }
+
+    private Object resolveAttribute(int slot) {
+        final Object attribute = getAttributeValues().get(slot);
+        return attribute != null ? attribute : graph.getAttributeRaw(slot);
     }
 
     @Override
-    public void removeAttribute(String name) {
-        attributes.remove(name);
+    Object lookupAttribute(int slot) {
+        final Object attribute = resolveAttribute(slot);
+        if (recordingDependencies) {
+            recordDependency(slot, attribute);
+        }
+        return attribute;
+    }
+
+    public String getName() {
+        return name;
     }
 
     public Set<String> getInputs() {
-        return Collections.unmodifiableSet(inputs.keySet());
+        return ports.getInputs().keySet();
     }
 
     public Set<String> getOutputs() {
-        return Collections.unmodifiableSet(outputs.keySet());
+        return ports.getOutputs().keySet();
+    }
+
+    public Port getInputPort(String name) {
+        return ports.getInput(name);
+    }
+
+    public Port getOutputPort(String name) {
+        return ports.getOutput(name);
     }
 
     public Map<String, GraphNode> getConnectedInputs() {
@@ -114,48 +332,161 @@ public abstract class GraphNode implements AttributeHolder {
         return Collections.unmodifiableMap(outputNodes);
     }
 
+    List<GraphNode> getDependents() {
+        return Collections.unmodifiableList(dependents);
+    }
+
+    /**
+     * Connects the input to an output of the parent node, replacing any previous connection. The node is invalidated, so that it is updated for its new
+     * inputs.
+     *
+     * @param input The name of the input to connect
+     * @param output The name of the output of the parent
+     * @param parent The parent node
+     */
     public void connect(String input, String output, GraphNode parent) {
-        setInput(input, parent.getOutput(output));
+        graph.connect(this, input, output, parent);
+    }
+
+    /**
+     * Disconnects the input from its parent node. The node keeps the last texture that was set on the input until it is connected again. The node is
+     * invalidated, so that it is updated for its remaining inputs.
+     *
+     * @param input The name of the input to disconnect
+     */
+    public void disconnect(String input) {
+        graph.disconnect(this, input);
+    }
+
+    GraphNode link(String input, String output, GraphNode parent) {
+        final Port inputPort = ports.getInput(input);
+        if (inputPort == null) {
+            throw new IllegalArgumentException("Node \"" + name + "\" has no input named \"" + input + "\"");
+        }
+        final Port outputPort = parent.ports.getOutput(output);
+        if (outputPort == null) {
+            throw new IllegalArgumentException("Node \"" + parent.name + "\" has no output named \"" + output + "\"");
+        }
+        if (!inputPort.accepts(outputPort)) {
+            throw new IllegalArgumentException("Output \"" + output + "\" of node \"" + parent.name + "\" has format " + outputPort.getFormats()
+                    + ", but input \"" + input + "\" of node \"" + name + "\" expects " + inputPort.getFormats());
+        }
+        setInput(inputPort, parent.getOutput(outputPort));
+        final GraphNode previous = unlink(input);
         inputNodes.put(input, parent);
+        inputSources.put(input, output);
         parent.outputNodes.put(output, this);
+        parent.dependents.add(this);
+        // The update can depend on which inputs are connected
+        invalid = true;
+        return previous;
+    }
+
+    GraphNode unlink(String input) {
+        final GraphNode parent = inputNodes.remove(input);
+        if (parent == null) {
+            return null;
+        }
+        final String output = inputSources.remove(input);
+        if (parent.outputNodes.get(output) == this) {
+            parent.outputNodes.remove(output);
+        }
+        parent.dependents.remove(this);
+        invalid = true;
+        return parent;
     }
 
-    private void setInput(String name, Object input) {
+    /**
+     * Acquires a render target from the graph's pool to use as an output. The target is released after the last stage containing a dependent of this node has
+     * been rendered. If there are none, or if this node is a sink of the view being rendered, the output is a result of the rendering: it is kept by the view
+     * being rendered until it is rendered again, or released at the end of the frame if there are no views. If the texture differs from the one acquired for the output during the last render, the
+     * dependents are given the new one.
+     *
+     * @param output The name of the output
+     * @param format The format of the output texture
+     * @param size The size of the output texture
+     * @return The render target for the output
+     */
+    protected RenderTarget acquireOutputTarget(String output, InternalFormat format, Vector2i size) {
+        return acquireOutputTarget(output, format, size, FilterMode.LINEAR);
+    }
+
+    /**
+     * Acquires a render target from the graph's pool to use as an output, with the given filter, such as nearest for packed data that mustn't be interpolated.
+     * See {@link #acquireOutputTarget(String, InternalFormat, Vector2i)}.
+     *
+     * @param output The name of the output
+     * @param format The format of the output texture
+     * @param size The size of the output texture
+     * @param filter The filter of the output texture
+     * @return The render target for the output
+     */
+    protected RenderTarget acquireOutputTarget(String output, InternalFormat format, Vector2i size, FilterMode filter) {
+        final RenderTargetPool pool = graph.getRenderTargetPool();
+        final RenderTarget target = pool.acquire(format, size.getX(), size.getY(), filter);
+        int lastStage = dependents.isEmpty() ? Integer.MAX_VALUE : stage;
+        for (GraphNode dependent : dependents) {
+            lastStage = Math.max(lastStage, dependent.stage);
+        }
+        final View view = graph.getCurrentView();
+        if (view != null && (lastStage == Integer.MAX_VALUE || view.isSink(this))) {
+            view.retainOutput(this, output, target);
+        } else {
+            pool.releaseAfterStage(target, lastStage);
+        }
+        if (outputTargets.put(output, target) != target) {
+            for (GraphNode dependent : dependents) {
+                dependent.refreshInputs(this, output, target.getTexture());
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Gives the current texture of the output to the dependents connected to it. This is for outputs that pass on an input, which can change from one view
+     * to the next.
+     *
+     * @param output The name of the output
+     */
+    protected void refreshOutput(String output) {
+        final Texture texture = getOutput(ports.getOutput(output));
+        for (GraphNode dependent : dependents) {
+            dependent.refreshInputs(this, output, texture);
+        }
+    }
+
+    /**
+     * Returns the texture of the render target last acquired for the output, or the black dummy if there is none yet.
+     *
+     * @param output The name of the output
+     * @return The texture for the output
+     */
+    protected Texture getOutputTargetTexture(String output) {
+        final RenderTarget target = outputTargets.get(output);
+        return target != null ? target.getTexture() : graph.getBlackDummy();
+    }
+
+    private void refreshInputs(GraphNode parent, String output, Texture texture) {
+        for (Entry<String, GraphNode> input : inputNodes.entrySet()) {
+            if (input.getValue() == parent && output.equals(inputSources.get(input.getKey()))) {
+                setInput(ports.getInput(input.getKey()), texture);
+            }
+        }
+    }
+
+    private void setInput(Port input, Texture texture) {
         try {
-            inputs.get(name).invoke(this, input);
-        } catch (Exception ex) {
-            throw new RuntimeException("Failed to set node input", ex);
+            input.getAccessor().invokeExact(this, texture);
+        } catch (Throwable t) {
+            throw new RuntimeException("Failed to set node input", t);
         }
     }
 
-    private Object getOutput(String name) {
+    private Texture getOutput(Port output) {
         try {
-            return outputs.get(name).invoke(this);
-        } catch (Exception ex) {
-            throw new RuntimeException("Failed to get node output", ex);
-        }
-    }
-
-    private void findInputsAndOutputs() {
-        for (Method method : getClass().getMethods()) {
-            method.setAccessible(true);
-            final Input inputAnnotation = method.getAnnotation(Input.class);
-            final Output outputAnnotation = method.getAnnotation(Output.class);
-            if (inputAnnotation != null) {
-                if (outputAnnotation != null) {
-                    throw new IllegalStateException("Input and output annotations cannot be both present");
-                }
-                final Class<?>[] parameterTypes = method.getParameterTypes();
-                if (parameterTypes.length != 1 || !Texture.class.isAssignableFrom(parameterTypes[0])) {
-                    throw new IllegalStateException("Output method must have one argument of type " + Texture.class.getCanonicalName());
-                }
-                inputs.put(inputAnnotation.value(), method);
-            } else if (outputAnnotation != null) {
-                if (!Texture.class.isAssignableFrom(method.getReturnType())) {
-                    throw new IllegalStateException("Input method must have return type " + Texture.class.getCanonicalName());
-                }
-                outputs.put(outputAnnotation.value(), method);
-            }
+            return (Texture) output.getAccessor().invokeExact(this);
+        } catch (Throwable t) {
+            throw new RuntimeException("Failed to get node output", t);
         }
     }
 
@@ -164,15 +495,45 @@ public abstract class GraphNode implements AttributeHolder {
         return name;
     }
 
+    private static class ViewData {
+        // The versions of the view's attributes last seen by the node, by slot, -1 if never seen
+        private long[] viewVersions = new long[0];
+        private Object state;
+        private Object frameData;
+        private Object liveFrameData;
+
+        // Records the version of the view attribute, returning true if it differs from the one last seen
+        private boolean seeViewVersion(int slot, long version) {
+            if (slot >= viewVersions.length) {
+                final int length = viewVersions.length;
+                viewVersions = Arrays.copyOf(viewVersions, Math.max(slot + 1, length * 2));
+                Arrays.fill(viewVersions, length, viewVersions.length, -1);
+            }
+            final long seen = viewVersions[slot];
+            viewVersions[slot] = version;
+            return seen >= 0 && seen != version;
+        }
+    }
+
     @Retention(RetentionPolicy.RUNTIME)
     @Target({ElementType.METHOD})
     public static @interface Input {
         String value();
+
+        /**
+         * The texture formats accepted by the input, checked when connecting. Empty to accept any.
+         */
+        Format[] format() default {};
     }
 
     @Retention(RetentionPolicy.RUNTIME)
     @Target({ElementType.METHOD})
     public static @interface Output {
         String value();
+
+        /**
+         * The texture formats the output can have, checked when connecting. Empty if unknown.
+         */
+        Format[] format() default {};
     }
 }
@@ -0,0 +1,563 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Assigns the nodes of a render graph to stages, so that every node is rendered after all of its inputs. The stage number of a node is the length of the
+ * longest path from it to a node without inputs.
+ * <p/>
+ * The first {@link #build()} schedules the whole graph using Kahn's algorithm, in time linear to the number of nodes and connections. After that, adding,
+ * removing, connecting and disconnecting nodes updates the schedule incrementally, propagating the stage change through the dependents and stopping at
+ * those whose stage stays the same. A dependent reached through several changed inputs can be visited, and moved, once for each of them, so this is
+ * only bounded by the number of connections downstream of the change, not by the number of nodes whose stage changes. Cycles and inputs connected to
+ * nodes outside of the graph are reported with an exception instead of being left out of the schedule.
+ * <p/>
+ * When sinks are set, only the nodes that the sinks depend on, directly or not, are active. The others are skipped when updating and rendering. Views can
+ * pick their own sinks, with their active nodes kept in an {@link ActiveNodes}.
+ */
+class GraphScheduler {
+    private static final int UNSCHEDULED = -1;
+    private final Map<String, GraphNode> nodes = new HashMap<>();
+    private final List<Stage> stages = new ArrayList<>();
+    private boolean built = false;
+    private final Set<GraphNode> sinks = new HashSet<>();
+    private final List<GraphNode> activeNodes = new ArrayList<>();
+    private boolean activeNodesDirty = true;
+    // Incremented on every change that can change the active nodes, for the active nodes of the views
+    private int version = 0;
+
+    void addNode(GraphNode node) {
+        final String name = node.getName();
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("A node named \"" + name + "\" is already in the graph");
+        }
+        if (built) {
+            checkInputs(node);
+        }
+        nodes.put(name, node);
+        markDirty();
+        if (built) {
+            // Nodes outside of the graph can't be connected to nodes in a built graph, so only the inputs have to be considered
+            schedule(node, computeStage(node));
+        }
+    }
+
+    void removeNode(GraphNode node) {
+        if (!contains(node)) {
+            throw new IllegalArgumentException("Node \"" + node.getName() + "\" is not in the graph");
+        }
+        // Disconnect the dependents first, they need to be rescheduled
+        final Set<GraphNode> dependents = new HashSet<>(node.getDependents());
+        for (GraphNode dependent : dependents) {
+            for (Entry<String, GraphNode> input : new ArrayList<>(dependent.getConnectedInputs().entrySet())) {
+                if (input.getValue() == node) {
+                    dependent.unlink(input.getKey());
+                }
+            }
+        }
+        for (String input : new ArrayList<>(node.getConnectedInputs().keySet())) {
+            node.unlink(input);
+        }
+        nodes.remove(node.getName());
+        sinks.remove(node);
+        markDirty();
+        if (node.stage != UNSCHEDULED) {
+            stages.get(node.stage).removeNode(node);
+            node.stage = UNSCHEDULED;
+        }
+        if (built) {
+            for (GraphNode dependent : dependents) {
+                if (contains(dependent)) {
+                    reschedule(dependent);
+                }
+            }
+            trimStages();
+        }
+    }
+
+    void connect(GraphNode node, String input, String output, GraphNode parent) {
+        final boolean scheduled = built && contains(node);
+        if (scheduled) {
+            if (!contains(parent)) {
+                throw new IllegalStateException(describeMissingInput(node, input, parent));
+            }
+            checkForCycle(node, parent);
+        }
+        node.link(input, output, parent);
+        markDirty();
+        if (scheduled) {
+            reschedule(node);
+            trimStages();
+        }
+    }
+
+    void disconnect(GraphNode node, String input) {
+        if (node.unlink(input) == null) {
+            return;
+        }
+        markDirty();
+        if (built && contains(node)) {
+            reschedule(node);
+            trimStages();
+        }
+    }
+
+    void build() {
+        built = false;
+        markDirty();
+        clearStages();
+        // Count the number of connected inputs for each node, and find the nodes without any to start from
+        final Map<GraphNode, Integer> pendingInputs = new HashMap<>();
+        final Deque<GraphNode> ready = new ArrayDeque<>();
+        for (GraphNode node : nodes.values()) {
+            checkInputs(node);
+            checkDependents(node);
+            final int inputCount = node.getConnectedInputs().size();
+            if (inputCount == 0) {
+                ready.add(node);
+            } else {
+                pendingInputs.put(node, inputCount);
+            }
+        }
+        // Schedule the nodes once all their inputs have been, each one stage after the last of its inputs
+        for (GraphNode node : ready) {
+            node.stage = 0;
+        }
+        int scheduledCount = 0;
+        while (!ready.isEmpty()) {
+            final GraphNode node = ready.poll();
+            scheduleAt(node, node.stage);
+            scheduledCount++;
+            for (GraphNode dependent : node.getDependents()) {
+                dependent.stage = Math.max(dependent.stage, node.stage + 1);
+                final int remaining = pendingInputs.get(dependent) - 1;
+                if (remaining == 0) {
+                    pendingInputs.remove(dependent);
+                    ready.add(dependent);
+                } else {
+                    pendingInputs.put(dependent, remaining);
+                }
+            }
+        }
+        // Any node left over is part of or depends on a cycle
+        if (scheduledCount < nodes.size()) {
+            final List<GraphNode> cycle = findCycle(pendingInputs.keySet());
+            clearStages();
+            throw new IllegalStateException("Render graph contains a cycle: " + describeCycle(cycle));
+        }
+        built = true;
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    boolean contains(GraphNode node) {
+        return nodes.get(node.getName()) == node;
+    }
+
+    GraphNode getNode(String name) {
+        return nodes.get(name);
+    }
+
+    Collection<GraphNode> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    int getStage(GraphNode node) {
+        return node.stage;
+    }
+
+    void addSink(GraphNode node) {
+        if (!contains(node)) {
+            throw new IllegalArgumentException("Node \"" + node.getName() + "\" is not in the graph");
+        }
+        sinks.add(node);
+        markDirty();
+    }
+
+    void removeSink(GraphNode node) {
+        if (sinks.remove(node)) {
+            markDirty();
+        }
+    }
+
+    Set<GraphNode> getSinks() {
+        return Collections.unmodifiableSet(sinks);
+    }
+
+    /**
+     * Returns the nodes that need to be updated and rendered: those that the sinks depend on, or all of them if there are no sinks.
+     *
+     * @return The active nodes
+     */
+    List<GraphNode> getActiveNodes() {
+        updateActiveNodes();
+        return Collections.unmodifiableList(activeNodes);
+    }
+
+    /**
+     * Finds the active nodes again if the graph changed since the last time, and sorts them into their stages.
+     */
+    void updateActiveNodes() {
+        if (!activeNodesDirty) {
+            return;
+        }
+        activeNodesDirty = false;
+        activeNodes.clear();
+        collectActiveNodes(sinks, activeNodes);
+        for (Stage stage : stages) {
+            stage.activeNodes.clear();
+        }
+        for (GraphNode node : activeNodes) {
+            if (node.stage != UNSCHEDULED) {
+                stages.get(node.stage).activeNodes.add(node);
+            }
+        }
+    }
+
+    /**
+     * Finds the nodes that the sinks of the active nodes depend on again if the graph or the sinks changed since the last time, and sorts them into their
+     * stages. Used for the views that pick their own sinks.
+     *
+     * @param active The active nodes to update
+     */
+    void updateActiveNodes(ActiveNodes active) {
+        if (active.version == version) {
+            return;
+        }
+        active.version = version;
+        active.nodes.clear();
+        collectActiveNodes(active.sinks, active.nodes);
+        active.stageNodes.clear();
+        for (int i = 0; i < stages.size(); i++) {
+            active.stageNodes.add(new ArrayList<GraphNode>());
+        }
+        for (GraphNode node : active.nodes) {
+            if (node.stage != UNSCHEDULED) {
+                active.stageNodes.get(node.stage).add(node);
+            }
+        }
+    }
+
+    private void collectActiveNodes(Set<GraphNode> sinks, List<GraphNode> active) {
+        if (sinks.isEmpty()) {
+            active.addAll(nodes.values());
+            return;
+        }
+        // Walk back from the sinks through the inputs
+        final Set<GraphNode> visited = new HashSet<>();
+        final Deque<GraphNode> toVisit = new ArrayDeque<>();
+        for (GraphNode sink : sinks) {
+            // The sinks of the views can outlive their nodes
+            if (contains(sink) && visited.add(sink)) {
+                toVisit.add(sink);
+            }
+        }
+        while (!toVisit.isEmpty()) {
+            final GraphNode node = toVisit.poll();
+            active.add(node);
+            for (GraphNode input : node.getConnectedInputs().values()) {
+                if (visited.add(input)) {
+                    toVisit.add(input);
+                }
+            }
+        }
+    }
+
+    private void markDirty() {
+        activeNodesDirty = true;
+        version++;
+    }
+
+    void clear() {
+        clearStages();
+        nodes.clear();
+        sinks.clear();
+        activeNodes.clear();
+        markDirty();
+        built = false;
+    }
+
+    private void clearStages() {
+        for (GraphNode node : nodes.values()) {
+            node.stage = UNSCHEDULED;
+        }
+        stages.clear();
+    }
+
+    private void checkInputs(GraphNode node) {
+        for (Entry<String, GraphNode> input : node.getConnectedInputs().entrySet()) {
+            if (!contains(input.getValue())) {
+                throw new IllegalStateException(describeMissingInput(node, input.getKey(), input.getValue()));
+            }
+        }
+    }
+
+    private void checkDependents(GraphNode node) {
+        for (GraphNode dependent : node.getDependents()) {
+            if (!contains(dependent)) {
+                throw new IllegalStateException(describeMissingDependent(node, dependent));
+            }
+        }
+    }
+
+    private void checkForCycle(GraphNode node, GraphNode parent) {
+        // The connection creates a cycle if the parent already depends on the node
+        final Map<GraphNode, GraphNode> visitedFrom = new HashMap<>();
+        final Deque<GraphNode> toVisit = new ArrayDeque<>();
+        visitedFrom.put(node, null);
+        toVisit.add(node);
+        while (!toVisit.isEmpty()) {
+            final GraphNode current = toVisit.poll();
+            if (current == parent) {
+                final List<GraphNode> cycle = new ArrayList<>();
+                for (GraphNode step = parent; step != null; step = visitedFrom.get(step)) {
+                    cycle.add(step);
+                }
+                Collections.reverse(cycle);
+                cycle.add(node);
+                throw new IllegalStateException("Connecting \"" + parent.getName() + "\" to \"" + node.getName() + "\" would create a cycle: " + describeCycle(cycle));
+            }
+            for (GraphNode dependent : current.getDependents()) {
+                if (!visitedFrom.containsKey(dependent)) {
+                    visitedFrom.put(dependent, current);
+                    toVisit.add(dependent);
+                }
+            }
+        }
+    }
+
+    private void reschedule(GraphNode node) {
+        // Propagate the stage change through the dependents, stopping at those that keep the same stage. A dependent is not marked as visited, since
+        // it must be computed again when another of its inputs moves later on
+        final Deque<GraphNode> toUpdate = new ArrayDeque<>();
+        toUpdate.add(node);
+        while (!toUpdate.isEmpty()) {
+            final GraphNode current = toUpdate.poll();
+            // Dependents outside of the graph are scheduled when they are added
+            if (!contains(current)) {
+                continue;
+            }
+            final int stage = computeStage(current);
+            if (stage == current.stage) {
+                continue;
+            }
+            schedule(current, stage);
+            toUpdate.addAll(current.getDependents());
+        }
+    }
+
+    private int computeStage(GraphNode node) {
+        int stage = 0;
+        for (GraphNode input : node.getConnectedInputs().values()) {
+            stage = Math.max(stage, input.stage + 1);
+        }
+        return stage;
+    }
+
+    private void schedule(GraphNode node, int stage) {
+        if (node.stage != UNSCHEDULED) {
+            stages.get(node.stage).removeNode(node);
+        }
+        scheduleAt(node, stage);
+    }
+
+    private void scheduleAt(GraphNode node, int stage) {
+        while (stages.size() <= stage) {
+            stages.add(new Stage(stages.size()));
+        }
+        stages.get(stage).addNode(node);
+        node.stage = stage;
+    }
+
+    private void trimStages() {
+        // A node can only be in a stage if its inputs are in the previous one, so empty stages are always at the end
+        for (int i = stages.size() - 1; i >= 0 && stages.get(i).getNodes().isEmpty(); i--) {
+            stages.remove(i);
+        }
+    }
+
+    private static List<GraphNode> findCycle(Collection<GraphNode> unscheduled) {
+        // Every unscheduled node has an unscheduled input, so walking up the inputs must eventually loop
+        final List<GraphNode> path = new ArrayList<>();
+        final Map<GraphNode, Integer> positions = new HashMap<>();
+        GraphNode current = unscheduled.iterator().next();
+        while (!positions.containsKey(current)) {
+            positions.put(current, path.size());
+            path.add(current);
+            for (GraphNode input : current.getConnectedInputs().values()) {
+                if (unscheduled.contains(input)) {
+                    current = input;
+                    break;
+                }
+            }
+        }
+        final List<GraphNode> cycle = new ArrayList<>(path.subList(positions.get(current), path.size()));
+        // Walking the inputs gives the reverse of the rendering order
+        Collections.reverse(cycle);
+        cycle.add(cycle.get(0));
+        return cycle;
+    }
+
+    private static String describeCycle(List<GraphNode> cycle) {
+        final StringBuilder builder = new StringBuilder();
+        for (GraphNode node : cycle) {
+            if (builder.length() > 0) {
+                builder.append(" -> ");
+            }
+            builder.append('"').append(node.getName()).append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String describeMissingInput(GraphNode node, String input, GraphNode parent) {
+        return "Input \"" + input + "\" of node \"" + node.getName() + "\" is connected to node \"" + parent.getName() + "\", which is not in the graph";
+    }
+
+    private static String describeMissingDependent(GraphNode node, GraphNode dependent) {
+        for (Entry<String, GraphNode> input : dependent.getConnectedInputs().entrySet()) {
+            if (input.getValue() == node) {
+                return "Node \"" + node.getName() + "\" is connected to input \"" + input.getKey() + "\" of node \"" + dependent.getName()
+                        + "\", which is not in the graph";
+            }
+        }
+        return "Node \"" + node.getName() + "\" is connected to node \"" + dependent.getName() + "\", which is not in the graph";
+    }
+
+    static class Stage {
+        private final Set<GraphNode> nodes = new HashSet<>();
+        private final List<GraphNode> activeNodes = new ArrayList<>();
+        private final int number;
+
+        private Stage(int number) {
+            this.number = number;
+        }
+
+        private void addNode(GraphNode node) {
+            nodes.add(node);
+        }
+
+        private void removeNode(GraphNode node) {
+            nodes.remove(node);
+        }
+
+        Set<GraphNode> getNodes() {
+            return Collections.unmodifiableSet(nodes);
+        }
+
+        List<GraphNode> getActiveNodes() {
+            return Collections.unmodifiableList(activeNodes);
+        }
+
+        void render() {
+            render(activeNodes);
+        }
+
+        void render(RenderProfiler profiler) {
+            render(activeNodes, profiler);
+        }
+
+        void render(List<GraphNode> nodes) {
+            for (GraphNode node : nodes) {
+                node.render();
+            }
+        }
+
+        void render(List<GraphNode> nodes, RenderProfiler profiler) {
+            if (nodes.isEmpty()) {
+                return;
+            }
+            profiler.beginStage(number);
+            for (GraphNode node : nodes) {
+                node.render();
+                profiler.endNode(node.getName());
+            }
+            profiler.endStage();
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return "Stage " + number + nodes;
+        }
+    }
+
+    /**
+     * The nodes that a set of sinks depend on, sorted by stage, for a view that picks its own sinks. Updated by {@link #updateActiveNodes(ActiveNodes)}.
+     */
+    static class ActiveNodes {
+        private final Set<GraphNode> sinks = new HashSet<>();
+        private final List<GraphNode> nodes = new ArrayList<>();
+        private final List<List<GraphNode>> stageNodes = new ArrayList<>();
+        private int version = -1;
+
+        void addSink(GraphNode node) {
+            if (sinks.add(node)) {
+                version = -1;
+            }
+        }
+
+        void removeSink(GraphNode node) {
+            if (sinks.remove(node)) {
+                version = -1;
+            }
+        }
+
+        Set<GraphNode> getSinks() {
+            return Collections.unmodifiableSet(sinks);
+        }
+
+        boolean isEmpty() {
+            return sinks.isEmpty();
+        }
+
+        List<GraphNode> getNodes() {
+            return Collections.unmodifiableList(nodes);
+        }
+
+        List<GraphNode> getStageNodes(int stage) {
+            return stage < stageNodes.size() ? stageNodes.get(stage) : Collections.<GraphNode>emptyList();
+        }
+    }
+}
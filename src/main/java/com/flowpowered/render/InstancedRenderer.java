@@ -0,0 +1,362 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+
+import com.flowpowered.math.matrix.Matrix4f;
+
+import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.Material;
+import com.flowpowered.caustic.api.data.Uniform;
+import com.flowpowered.caustic.api.gl.Program;
+import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.VertexArray;
+import com.flowpowered.caustic.api.gl.VertexArray.DrawingMode;
+import com.flowpowered.caustic.api.model.Model;
+import com.flowpowered.caustic.api.util.CausticUtil;
+
+/**
+ * Draws the consecutive models that share a vertex array and a material with a single instanced call. The model matrices are streamed to a buffer and read
+ * by the instanced variant of the material's program as a per instance attribute, see {@link RenderGraph#getInstancedProgram(Program)}. Sort the models with
+ * a {@link DrawList} first so that those models are consecutive.
+ * <p/>
+ * The instanced programs take the model matrix as a mat4 attribute at locations 4 to 7, after those of the vertex data. Only the material uniforms are
+ * uploaded, so models with uniforms of their own other than the model matrix are never batched with others when the material is kept.
+ * <p/>
+ * The vertex arrays are drawn with the 32 bit indices caustic always uploads. Caustic doesn't expose the drawing mode and index range set on a vertex array,
+ * so those other than triangles drawn with all their indices must be declared with {@link #setDrawRange(VertexArray, DrawingMode, int, int)}. The index
+ * counts are read from the index buffers once per frame, so data replaced between frames is picked up, call {@link #clearIndexCount(VertexArray)} after
+ * replacing it during a frame. Requires OpenGL 3.3, the context to be current, and LWJGL.
+ */
+public class InstancedRenderer {
+    /**
+     * The location of the first column of the model matrix attribute.
+     */
+    public static final int MODEL_MATRIX_LOCATION = 4;
+    private static final int MATRIX_SIZE = 16;
+    private static final String MODEL_MATRIX_UNIFORM = "modelMatrix";
+    private final RenderGraph graph;
+    private final boolean supported;
+    private int minInstances = 4;
+    private int buffer = 0;
+    private FloatBuffer matrices = CausticUtil.createFloatBuffer(MATRIX_SIZE * 64);
+    // The draw ranges declared for the vertex arrays, by vertex array, which are compared by identity
+    private static final Map<VertexArray, DrawRange> DRAW_RANGES = Collections.synchronizedMap(new WeakHashMap<VertexArray, DrawRange>());
+    private final Map<VertexArray, Integer> indexCounts = new IdentityHashMap<>();
+    // The frame of the graph during which the index counts were read
+    private long indexCountsFrame = -1;
+    private int drawCalls = 0;
+    private int instancedModels = 0;
+
+    public InstancedRenderer(RenderGraph graph) {
+        this.graph = graph;
+        supported = isSupported();
+    }
+
+    /**
+     * Returns true if the current OpenGL context supports instanced arrays.
+     *
+     * @return Whether or not instancing is supported
+     */
+    public static boolean isSupported() {
+        try {
+            final ContextCapabilities capabilities = GLContext.getCapabilities();
+            return capabilities != null && capabilities.OpenGL33;
+        } catch (RuntimeException | LinkageError ex) {
+            // No current context, or LWJGL isn't used
+            return false;
+        }
+    }
+
+    /**
+     * Declares how the vertex array is drawn, as set on it with {@link VertexArray#setDrawingMode(DrawingMode)}, {@link VertexArray#setIndicesOffset(int)}
+     * and {@link VertexArray#setIndicesCount(int)}, so that the instanced draws do the same. Vertex arrays without a declared range are drawn as triangles,
+     * with all their indices.
+     *
+     * @param vertexArray The vertex array
+     * @param mode The drawing mode
+     * @param offset The index of the first index to draw
+     * @param count The number of indices to draw, or -1 for all those after the offset
+     */
+    public static void setDrawRange(VertexArray vertexArray, DrawingMode mode, int offset, int count) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
+        DRAW_RANGES.put(vertexArray, new DrawRange(mode, offset, count));
+    }
+
+    /**
+     * Removes the draw range declared for the vertex array, which is then drawn as triangles with all its indices.
+     *
+     * @param vertexArray The vertex array
+     */
+    public static void clearDrawRange(VertexArray vertexArray) {
+        DRAW_RANGES.remove(vertexArray);
+    }
+
+    /**
+     * Sets the minimum number of models in a batch for it to be instanced. Smaller batches are drawn one model at a time.
+     *
+     * @param minInstances The minimum number of instances
+     */
+    public void setMinInstances(int minInstances) {
+        if (minInstances < 1) {
+            throw new IllegalArgumentException("Minimum instances must be at least one");
+        }
+        this.minInstances = minInstances;
+    }
+
+    public int getMinInstances() {
+        return minInstances;
+    }
+
+    /**
+     * Returns the end of the batch starting at the given index, the index of the first model that doesn't share its vertex array, and material if required.
+     * When the material is kept, a model with uniforms of its own is alone in its batch, see {@link #hasOwnUniforms(Model)}.
+     *
+     * @param models The models
+     * @param from The index of the first model of the batch
+     * @param sameMaterial Whether or not the models must also share their material, false when the material is replaced, such as in depth only passes
+     * @return The end of the batch, exclusive
+     */
+    public int findBatchEnd(List<Model> models, int from, boolean sameMaterial) {
+        final Model first = models.get(from);
+        if (sameMaterial && hasOwnUniforms(first)) {
+            return from + 1;
+        }
+        final VertexArray vertexArray = first.getVertexArray();
+        final Material material = first.getMaterial();
+        final int size = models.size();
+        int end = from + 1;
+        while (end < size) {
+            final Model model = models.get(end);
+            if (model.getVertexArray() != vertexArray || sameMaterial && (model.getMaterial() != material || hasOwnUniforms(model))) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Returns true if the model has uniforms of its own other than the model matrix. Instanced draws only upload the material uniforms, so these models must
+     * be drawn one at a time when their material is used.
+     *
+     * @param model The model
+     * @return Whether or not the model has uniforms of its own
+     */
+    public static boolean hasOwnUniforms(Model model) {
+        for (Uniform uniform : model.getUniforms()) {
+            if (!MODEL_MATRIX_UNIFORM.equals(uniform.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the program to draw a batch of the given size with, or null if it should be drawn one model at a time instead.
+     *
+     * @param material The material of the batch
+     * @param size The number of models in the batch
+     * @return The instanced program, or null
+     */
+    public Program getBatchProgram(Material material, int size) {
+        if (!supported || size < minInstances) {
+            return null;
+        }
+        return graph.getInstancedProgram(material.getProgram());
+    }
+
+    /**
+     * Draws the models in the given range with a single instanced call, using the material and the instanced program.
+     *
+     * @param models The models
+     * @param from The index of the first model, inclusive
+     * @param to The index of the last model, exclusive
+     * @param material The material to bind
+     * @param program The instanced variant of the material's program
+     * @param camera The camera to render with
+     */
+    public void render(List<Model> models, int from, int to, Material material, Program program, Camera camera) {
+        render(models, from, to, material, program, camera, 1);
+    }
+
+    /**
+     * Draws the models in the given range with a single instanced call, each model being drawn the given number of times. The copies of a model are
+     * consecutive instances, so the program can select the copy with the instance index modulo the number of copies, such as to draw each model into
+     * several shadow cascades.
+     *
+     * @param models The models
+     * @param from The index of the first model, inclusive
+     * @param to The index of the last model, exclusive
+     * @param material The material to bind
+     * @param program The instanced variant of the material's program
+     * @param camera The camera to render with
+     * @param copies The number of times to draw each model
+     */
+    public void render(List<Model> models, int from, int to, Material material, Program program, Camera camera, int copies) {
+        final int count = to - from;
+        // Bind the material with the instanced program
+        program.use();
+        for (Entry<Integer, Texture> entry : material.getTextures().entrySet()) {
+            final int unit = entry.getKey();
+            entry.getValue().bind(unit);
+            program.bindSampler(unit);
+        }
+        material.getUniforms().upload(program);
+        program.setUniform("projectionMatrix", camera.getProjectionMatrix());
+        program.setUniform("viewMatrix", camera.getViewMatrix());
+        // Stream the model matrices, in column major order
+        if (matrices.capacity() < count * MATRIX_SIZE) {
+            matrices = CausticUtil.createFloatBuffer(Math.max(count, matrices.capacity() / MATRIX_SIZE * 2) * MATRIX_SIZE);
+        }
+        matrices.clear();
+        for (int i = from; i < to; i++) {
+            final Matrix4f matrix = models.get(i).getMatrix();
+            for (int column = 0; column < 4; column++) {
+                matrices.put(matrix.get(0, column)).put(matrix.get(1, column)).put(matrix.get(2, column)).put(matrix.get(3, column));
+            }
+        }
+        matrices.flip();
+        if (buffer == 0) {
+            buffer = GL15.glGenBuffers();
+        }
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+        // Orphan the previous contents so the driver doesn't wait for the draws that use them
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, matrices, GL15.GL_STREAM_DRAW);
+        // The attribute state belongs to the vertex array, so set it up for the draw and remove it after
+        final VertexArray vertexArray = models.get(from).getVertexArray();
+        GL30.glBindVertexArray(vertexArray.getID());
+        for (int column = 0; column < 4; column++) {
+            final int location = MODEL_MATRIX_LOCATION + column;
+            GL20.glEnableVertexAttribArray(location);
+            GL20.glVertexAttribPointer(location, 4, GL11.GL_FLOAT, false, MATRIX_SIZE * 4, column * 16);
+            GL33.glVertexAttribDivisor(location, copies);
+        }
+        // Draw the same indices as the vertex array would, which caustic always uploads as unsigned ints
+        final int indexCount = getIndexCount(vertexArray);
+        final DrawRange range = DRAW_RANGES.get(vertexArray);
+        if (range == null) {
+            GL31.glDrawElementsInstanced(GL11.GL_TRIANGLES, indexCount, GL11.GL_UNSIGNED_INT, 0, count * copies);
+        } else {
+            final int offset = Math.min(range.offset, indexCount);
+            final int drawCount = range.count < 0 ? indexCount - offset : Math.min(range.count, indexCount - offset);
+            GL31.glDrawElementsInstanced(range.mode.getGLConstant(), drawCount, GL11.GL_UNSIGNED_INT, offset * 4L, count * copies);
+        }
+        for (int column = 0; column < 4; column++) {
+            final int location = MODEL_MATRIX_LOCATION + column;
+            GL33.glVertexAttribDivisor(location, 0);
+            GL20.glDisableVertexAttribArray(location);
+        }
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        drawCalls++;
+        instancedModels += count;
+    }
+
+    private int getIndexCount(VertexArray vertexArray) {
+        // Read again on each frame, as the data of the vertex array can be replaced
+        final long frame = graph.getFrameNumber();
+        if (frame != indexCountsFrame) {
+            indexCounts.clear();
+            indexCountsFrame = frame;
+        }
+        // The vertex array doesn't expose its index count, so read the size of its index buffer, while it's bound
+        Integer indexCount = indexCounts.get(vertexArray);
+        if (indexCount == null) {
+            indexCount = GL15.glGetBufferParameteri(GL15.GL_ELEMENT_ARRAY_BUFFER, GL15.GL_BUFFER_SIZE) / 4;
+            indexCounts.put(vertexArray, indexCount);
+        }
+        return indexCount;
+    }
+
+    /**
+     * Forgets the index count read for the vertex array, after its data was replaced during the frame.
+     *
+     * @param vertexArray The vertex array
+     */
+    public void clearIndexCount(VertexArray vertexArray) {
+        indexCounts.remove(vertexArray);
+    }
+
+    /**
+     * Returns the number of instanced draw calls since the last reset.
+     *
+     * @return The number of draw calls
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * Returns the number of models drawn by instanced calls since the last reset.
+     *
+     * @return The number of instanced models
+     */
+    public int getInstancedModels() {
+        return instancedModels;
+    }
+
+    public void resetCounts() {
+        drawCalls = 0;
+        instancedModels = 0;
+    }
+
+    public void destroy() {
+        indexCounts.clear();
+        if (buffer != 0) {
+            GL15.glDeleteBuffers(buffer);
+            buffer = 0;
+        }
+    }
+
+    private static class DrawRange {
+        private final DrawingMode mode;
+        private final int offset;
+        private final int count;
+
+        private DrawRange(DrawingMode mode, int offset, int count) {
+            this.mode = mode;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import com.flowpowered.math.vector.Vector3f;
+
+/**
+ * A point or spot light, shaded by the lighting node when added to its light list. The light fades to nothing at its radius, and a spot light's cone is
+ * given by the angle between its direction and its edges. Positions and directions are in world space.
+ */
+public class Light {
+    private Vector3f position;
+    private Vector3f direction;
+    private Vector3f color;
+    private float radius;
+    private float coneAngle;
+    private float coneCosine;
+
+    private Light(Vector3f position, Vector3f direction, Vector3f color, float radius, float coneAngle) {
+        setPosition(position);
+        setDirection(direction);
+        setColor(color);
+        setRadius(radius);
+        setConeAngle(coneAngle);
+    }
+
+    // Copies the light, for the snapshots of the frame pipeline
+    Light(Light light) {
+        this(light.position, light.direction, light.color, light.radius, light.coneAngle);
+    }
+
+    public Vector3f getPosition() {
+        return position;
+    }
+
+    public void setPosition(Vector3f position) {
+        this.position = position;
+    }
+
+    public Vector3f getDirection() {
+        return direction;
+    }
+
+    public void setDirection(Vector3f direction) {
+        this.direction = direction.normalize();
+    }
+
+    public Vector3f getColor() {
+        return color;
+    }
+
+    /**
+     * Sets the color of the light, which can be brighter than one.
+     *
+     * @param color The color
+     */
+    public void setColor(Vector3f color) {
+        this.color = color;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    public void setRadius(float radius) {
+        if (radius <= 0) {
+            throw new IllegalArgumentException("Radius must be greater than zero");
+        }
+        this.radius = radius;
+    }
+
+    public float getConeAngle() {
+        return coneAngle;
+    }
+
+    /**
+     * Sets the angle between the direction and the edges of the cone, in degrees. Angles of 180 and above light all directions, like a point light.
+     *
+     * @param coneAngle The cone angle
+     */
+    public void setConeAngle(float coneAngle) {
+        if (coneAngle <= 0) {
+            throw new IllegalArgumentException("Cone angle must be greater than zero");
+        }
+        this.coneAngle = coneAngle;
+        coneCosine = coneAngle >= 180 ? -1 : (float) Math.cos(Math.toRadians(coneAngle));
+    }
+
+    /**
+     * Returns the cosine of the cone angle, -1 for point lights.
+     *
+     * @return The cosine of the cone angle
+     */
+    public float getConeCosine() {
+        return coneCosine;
+    }
+
+    public boolean isSpot() {
+        return coneAngle < 180;
+    }
+
+    /**
+     * Creates a new point light.
+     *
+     * @param position The position
+     * @param color The color
+     * @param radius The radius
+     * @return The light
+     */
+    public static Light createPoint(Vector3f position, Vector3f color, float radius) {
+        return new Light(position, Vector3f.FORWARD, color, radius, 180);
+    }
+
+    /**
+     * Creates a new spot light.
+     *
+     * @param position The position
+     * @param direction The direction
+     * @param color The color
+     * @param radius The radius, the length of the cone
+     * @param coneAngle The angle between the direction and the edges of the cone, in degrees
+     * @return The light
+     */
+    public static Light createSpot(Vector3f position, Vector3f direction, Vector3f color, float radius, float coneAngle) {
+        return new Light(position, direction, color, radius, coneAngle);
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector2f;
+import com.flowpowered.math.vector.Vector3f;
+
+import com.flowpowered.caustic.api.Camera;
+
+/**
+ * Bins lights into the clusters of a view frustum, so that each pixel only shades the lights of its cluster. The frustum is split into tiles on screen, and
+ * into slices in depth, which are exponentially thicker so that the clusters stay about cubic. The lights are bound by a sphere, which is tighter than the
+ * radius for narrow spot lights, and added to all the clusters that the bounding box of its projection overlaps.
+ * <p/>
+ * The results are primitive arrays, ready to be uploaded: the light data, the offset and count of each cluster's range of light indices, and the indices
+ * themselves. The lights are transformed, then the slices filled, by the threads of a pool when set.
+ */
+public class LightClusterer {
+    /**
+     * The number of floats per light in the light data: the view space position and radius, the color and cone cosine, then the view space direction and a
+     * zero.
+     */
+    public static final int LIGHT_SIZE = 12;
+    private static final int BOUNDS_SIZE = 6;
+    private static final int MIN_LIGHTS_PER_TASK = 256;
+    // Each slice task goes through all the lights, so there shouldn't be too many of them
+    private static final int MIN_SLICES_PER_TASK = 4;
+    private static final float SQRT_HALF = (float) Math.sqrt(0.5);
+    private final int tilesX;
+    private final int tilesY;
+    private final int slices;
+    // The offset and count of the light indices of each cluster, the clusters are ordered by slice, then row, then column
+    private final int[] clusters;
+    private float[] lightData = new float[LIGHT_SIZE * 64];
+    // The cluster bounds of each light, inclusive: minimum and maximum column, row, then slice, the slices are empty for culled lights
+    private int[] lightBounds = new int[BOUNDS_SIZE * 64];
+    private int[] lightIndices = new int[1024];
+    private int lightCount = 0;
+    private int indexCount = 0;
+    private List<Light> lights;
+    // The view matrix of the last update, in row major order
+    private final float[] view = new float[16];
+    private float near;
+    private float far;
+    private float scaleX;
+    private float scaleY;
+    private float offsetX;
+    private float offsetY;
+    private float sliceScale;
+    private ForkJoinPool pool;
+
+    /**
+     * Creates a new light clusterer with 16 by 8 tiles and 24 slices.
+     */
+    public LightClusterer() {
+        this(16, 8, 24);
+    }
+
+    /**
+     * Creates a new light clusterer.
+     *
+     * @param tilesX The number of tiles horizontally
+     * @param tilesY The number of tiles vertically
+     * @param slices The number of depth slices
+     */
+    public LightClusterer(int tilesX, int tilesY, int slices) {
+        if (tilesX <= 0 || tilesY <= 0 || slices <= 0) {
+            throw new IllegalArgumentException("Tile and slice counts must be greater than zero");
+        }
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.slices = slices;
+        clusters = new int[tilesX * tilesY * slices * 2];
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public int getClusterCount() {
+        return tilesX * tilesY * slices;
+    }
+
+    /**
+     * Sets the pool used to bin large numbers of lights in parallel, such as the {@link RenderGraph#getPreparePool()}. Null bins on the calling thread.
+     *
+     * @param pool The pool to use, or null
+     */
+    public synchronized void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Bins the lights into the clusters of the camera's frustum.
+     *
+     * @param camera The camera to bin for
+     * @param lights The lights
+     */
+    public void cluster(Camera camera, List<Light> lights) {
+        cluster(camera.getViewMatrix(), camera.getProjectionMatrix(), lights);
+    }
+
+    /**
+     * Bins the lights into the clusters of the frustum, replacing the previous results. The projection must be a perspective one.
+     *
+     * @param viewMatrix The view matrix
+     * @param projectionMatrix The perspective projection matrix
+     * @param lights The lights, a list with fast random access
+     */
+    public synchronized void cluster(Matrix4f viewMatrix, Matrix4f projectionMatrix, List<Light> lights) {
+        if (projectionMatrix.get(3, 2) != -1) {
+            throw new IllegalArgumentException("Projection must be a perspective one");
+        }
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                view[row * 4 + column] = viewMatrix.get(row, column);
+            }
+        }
+        final Vector2f planes = RenderUtil.getPlanes(projectionMatrix);
+        near = planes.getX();
+        far = planes.getY();
+        scaleX = projectionMatrix.get(0, 0);
+        scaleY = projectionMatrix.get(1, 1);
+        offsetX = -projectionMatrix.get(0, 2);
+        offsetY = -projectionMatrix.get(1, 2);
+        sliceScale = (float) (slices / Math.log(far / near));
+        lightCount = lights.size();
+        if (lightData.length < lightCount * LIGHT_SIZE) {
+            final int capacity = Math.max(lightCount, lightData.length / LIGHT_SIZE * 2);
+            lightData = new float[capacity * LIGHT_SIZE];
+            lightBounds = new int[capacity * BOUNDS_SIZE];
+        }
+        this.lights = lights;
+        final boolean parallel = pool != null && lightCount >= MIN_LIGHTS_PER_TASK * 2;
+        if (parallel) {
+            run(new TransformTask(0, lightCount));
+        } else {
+            transform(0, lightCount);
+        }
+        this.lights = null;
+        // Count the lights of each cluster, then place the ranges one after the other, and fill them
+        if (parallel) {
+            run(new SliceTask(0, slices, false));
+        } else {
+            bin(0, slices, false);
+        }
+        indexCount = 0;
+        for (int i = 0; i < clusters.length; i += 2) {
+            clusters[i] = indexCount;
+            indexCount += clusters[i + 1];
+        }
+        if (lightIndices.length < indexCount) {
+            lightIndices = new int[Math.max(indexCount, lightIndices.length * 2)];
+        }
+        if (parallel) {
+            run(new SliceTask(0, slices, true));
+        } else {
+            bin(0, slices, true);
+        }
+    }
+
+    private void run(RecursiveAction task) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            // Already on a pool thread, such as when preparing nodes in parallel
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    private void transform(int from, int to) {
+        for (int i = from; i < to; i++) {
+            final Light light = lights.get(i);
+            final Vector3f position = light.getPosition();
+            final Vector3f direction = light.getDirection();
+            final Vector3f color = light.getColor();
+            final float radius = light.getRadius();
+            final float coneCosine = light.getConeCosine();
+            final float px = position.getX(), py = position.getY(), pz = position.getZ();
+            final float dx = direction.getX(), dy = direction.getY(), dz = direction.getZ();
+            final float x = view[0] * px + view[1] * py + view[2] * pz + view[3];
+            final float y = view[4] * px + view[5] * py + view[6] * pz + view[7];
+            final float z = view[8] * px + view[9] * py + view[10] * pz + view[11];
+            final float directionX = view[0] * dx + view[1] * dy + view[2] * dz;
+            final float directionY = view[4] * dx + view[5] * dy + view[6] * dz;
+            final float directionZ = view[8] * dx + view[9] * dy + view[10] * dz;
+            final int data = i * LIGHT_SIZE;
+            lightData[data] = x;
+            lightData[data + 1] = y;
+            lightData[data + 2] = z;
+            lightData[data + 3] = radius;
+            lightData[data + 4] = color.getX();
+            lightData[data + 5] = color.getY();
+            lightData[data + 6] = color.getZ();
+            lightData[data + 7] = coneCosine;
+            lightData[data + 8] = directionX;
+            lightData[data + 9] = directionY;
+            lightData[data + 10] = directionZ;
+            lightData[data + 11] = 0;
+            // Bound the cone of spot lights narrower than a half sphere by a smaller sphere along the direction
+            float offset = 0;
+            float boundingRadius = radius;
+            if (coneCosine >= SQRT_HALF) {
+                boundingRadius = radius / (2 * coneCosine);
+                offset = boundingRadius;
+            } else if (coneCosine > 0) {
+                offset = radius * coneCosine;
+                boundingRadius = radius * (float) Math.sqrt(1 - coneCosine * coneCosine);
+            }
+            computeBounds(i * BOUNDS_SIZE, x + directionX * offset, y + directionY * offset, -(z + directionZ * offset), boundingRadius);
+        }
+    }
+
+    private void computeBounds(int index, float x, float y, float depth, float radius) {
+        final float minDepth = Math.max(depth - radius, near);
+        final float maxDepth = Math.min(depth + radius, far);
+        // The projection of a coordinate is monotonic in depth, so the extremes of the box are at its nearest or farthest depth
+        final float minX = Math.min((x - radius) / minDepth, (x - radius) / maxDepth) * scaleX + offsetX;
+        final float maxX = Math.max((x + radius) / minDepth, (x + radius) / maxDepth) * scaleX + offsetX;
+        final float minY = Math.min((y - radius) / minDepth, (y - radius) / maxDepth) * scaleY + offsetY;
+        final float maxY = Math.max((y + radius) / minDepth, (y + radius) / maxDepth) * scaleY + offsetY;
+        if (minDepth > maxDepth || minX > 1 || maxX < -1 || minY > 1 || maxY < -1) {
+            lightBounds[index + 4] = 1;
+            lightBounds[index + 5] = 0;
+            return;
+        }
+        lightBounds[index] = toTile(minX, tilesX);
+        lightBounds[index + 1] = toTile(maxX, tilesX);
+        lightBounds[index + 2] = toTile(minY, tilesY);
+        lightBounds[index + 3] = toTile(maxY, tilesY);
+        lightBounds[index + 4] = toSlice(minDepth);
+        lightBounds[index + 5] = toSlice(maxDepth);
+    }
+
+    private static int toTile(float ndc, int tiles) {
+        return Math.max(0, Math.min((int) Math.floor((ndc + 1) / 2 * tiles), tiles - 1));
+    }
+
+    private int toSlice(float depth) {
+        return Math.max(0, Math.min((int) Math.floor(Math.log(depth / near) * sliceScale), slices - 1));
+    }
+
+    private void bin(int fromSlice, int toSlice, boolean fill) {
+        final int clustersPerSlice = tilesX * tilesY;
+        for (int i = fromSlice * clustersPerSlice * 2 + 1; i < toSlice * clustersPerSlice * 2; i += 2) {
+            clusters[i] = 0;
+        }
+        // When filling, the counts are rebuilt as the cursors in each range, so the indices are in the order of the lights
+        for (int light = 0; light < lightCount; light++) {
+            final int bounds = light * BOUNDS_SIZE;
+            final int minSlice = Math.max(lightBounds[bounds + 4], fromSlice);
+            final int maxSlice = Math.min(lightBounds[bounds + 5], toSlice - 1);
+            for (int slice = minSlice; slice <= maxSlice; slice++) {
+                for (int row = lightBounds[bounds + 2]; row <= lightBounds[bounds + 3]; row++) {
+                    int cluster = ((slice * tilesY + row) * tilesX + lightBounds[bounds]) * 2;
+                    for (int column = lightBounds[bounds]; column <= lightBounds[bounds + 1]; column++, cluster += 2) {
+                        if (fill) {
+                            lightIndices[clusters[cluster] + clusters[cluster + 1]] = light;
+                        }
+                        clusters[cluster + 1]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lights of the last update.
+     *
+     * @return The number of lights
+     */
+    public synchronized int getLightCount() {
+        return lightCount;
+    }
+
+    /**
+     * Returns the light data of the last update, {@link #LIGHT_SIZE} floats per light, in the order of the lights. The array is reused and can be longer than
+     * needed.
+     *
+     * @return The light data
+     */
+    public synchronized float[] getLightData() {
+        return lightData;
+    }
+
+    /**
+     * Returns the offset and count of the light indices of each cluster, ordered by slice, then row from the bottom, then column from the left. The array is
+     * reused.
+     *
+     * @return The cluster ranges
+     */
+    public synchronized int[] getClusters() {
+        return clusters;
+    }
+
+    /**
+     * Returns the number of light indices of the last update, the sum of the cluster counts.
+     *
+     * @return The number of light indices
+     */
+    public synchronized int getLightIndexCount() {
+        return indexCount;
+    }
+
+    /**
+     * Returns the light indices of each cluster, one range after the other. The array is reused and can be longer than needed.
+     *
+     * @return The light indices
+     */
+    public synchronized int[] getLightIndices() {
+        return lightIndices;
+    }
+
+    /**
+     * Returns the index of the cluster containing a point, or -1 if it's outside of the frustum of the last update. Uses the same slicing as the shader.
+     *
+     * @param ndcX The normalized device x coordinate, from -1 to 1
+     * @param ndcY The normalized device y coordinate, from -1 to 1
+     * @param depth The distance along the view direction, from near to far
+     * @return The cluster index
+     */
+    public synchronized int getClusterIndex(float ndcX, float ndcY, float depth) {
+        if (ndcX < -1 || ndcX > 1 || ndcY < -1 || ndcY > 1 || depth < near || depth > far) {
+            return -1;
+        }
+        return (toSlice(depth) * tilesY + toTile(ndcY, tilesY)) * tilesX + toTile(ndcX, tilesX);
+    }
+
+    /**
+     * Returns the factor for the logarithm of the depth over the near plane that gives the slice index, for the shader.
+     *
+     * @return The slice scale
+     */
+    public synchronized float getSliceScale() {
+        return sliceScale;
+    }
+
+    public synchronized float getNear() {
+        return near;
+    }
+
+    private class TransformTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final int from;
+        private final int to;
+
+        private TransformTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < MIN_LIGHTS_PER_TASK * 2) {
+                transform(from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new TransformTask(from, middle), new TransformTask(middle, to));
+        }
+    }
+
+    private class SliceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final int from;
+        private final int to;
+        private final boolean fill;
+
+        private SliceTask(int from, int to, boolean fill) {
+            this.from = from;
+            this.to = to;
+            this.fill = fill;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < MIN_SLICES_PER_TASK * 2) {
+                bin(from, to, fill);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new SliceTask(from, middle, fill), new SliceTask(middle, to, fill));
+        }
+    }
+}
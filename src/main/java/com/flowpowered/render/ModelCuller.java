@@ -0,0 +1,281 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.flowpowered.commons.ViewFrustum;
+import com.flowpowered.math.vector.Vector3f;
+
+import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.model.Model;
+
+/**
+ * Culls models against the frustum of a camera, using a world space axis aligned bounding box for each. The boxes are stored as arrays of coordinates, which
+ * are split between the threads of a pool when there are enough of them.
+ * <p/>
+ * The nodes using this culler cull when each frame is prepared, for each view, so the bounds and the camera can be changed in place. With a {@link
+ * FramePipeline}, that happens on the prepare pool while the previous frame is rendered. The culls are synchronized, so the views and frames that share a
+ * culler cull one after the other, each with the bounds set when it runs.
+ */
+public class ModelCuller {
+    private static final int MIN_MODELS_PER_TASK = 8192;
+    private final Map<Model, Integer> indices = new IdentityHashMap<>();
+    private Model[] models = new Model[64];
+    private float[] minX = new float[64];
+    private float[] minY = new float[64];
+    private float[] minZ = new float[64];
+    private float[] maxX = new float[64];
+    private float[] maxY = new float[64];
+    private float[] maxZ = new float[64];
+    private boolean[] visible = new boolean[64];
+    private boolean[] occluded = new boolean[64];
+    private int count = 0;
+    private final ViewFrustum frustum = new ViewFrustum();
+    private ForkJoinPool pool;
+    private OcclusionCuller occlusionCuller;
+    private int visibleCount = 0;
+    private int culledCount = 0;
+    private int occludedCount = 0;
+
+    /**
+     * Adds a model, or updates its bounds if it was already added.
+     *
+     * @param model The model to add
+     * @param min The minimum corner of the bounding box, in world space
+     * @param max The maximum corner of the bounding box, in world space
+     */
+    public synchronized void add(Model model, Vector3f min, Vector3f max) {
+        final Integer index = indices.get(model);
+        if (index != null) {
+            setBounds(index, min, max);
+            return;
+        }
+        if (count == models.length) {
+            final int capacity = count * 2;
+            models = Arrays.copyOf(models, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            minZ = Arrays.copyOf(minZ, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            maxZ = Arrays.copyOf(maxZ, capacity);
+            visible = new boolean[capacity];
+            occluded = new boolean[capacity];
+        }
+        models[count] = model;
+        setBounds(count, min, max);
+        indices.put(model, count);
+        count++;
+    }
+
+    /**
+     * Sets the bounds of a model, after it moved.
+     *
+     * @param model The model
+     * @param min The minimum corner of the bounding box, in world space
+     * @param max The maximum corner of the bounding box, in world space
+     * @throws IllegalArgumentException If the model hasn't been added
+     */
+    public synchronized void setBounds(Model model, Vector3f min, Vector3f max) {
+        final Integer index = indices.get(model);
+        if (index == null) {
+            throw new IllegalArgumentException("Model hasn't been added");
+        }
+        setBounds(index, min, max);
+    }
+
+    private void setBounds(int index, Vector3f min, Vector3f max) {
+        minX[index] = min.getX();
+        minY[index] = min.getY();
+        minZ[index] = min.getZ();
+        maxX[index] = max.getX();
+        maxY[index] = max.getY();
+        maxZ[index] = max.getZ();
+    }
+
+    /**
+     * Removes a model. The last model takes its place, so the order of the visible models may change.
+     *
+     * @param model The model to remove
+     * @return Whether or not the model had been added
+     */
+    public synchronized boolean remove(Model model) {
+        final Integer index = indices.remove(model);
+        if (index == null) {
+            return false;
+        }
+        final int last = --count;
+        if (index != last) {
+            final Model moved = models[last];
+            models[index] = moved;
+            minX[index] = minX[last];
+            minY[index] = minY[last];
+            minZ[index] = minZ[last];
+            maxX[index] = maxX[last];
+            maxY[index] = maxY[last];
+            maxZ[index] = maxZ[last];
+            indices.put(moved, index);
+        }
+        models[last] = null;
+        return true;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(models, 0, count, null);
+        indices.clear();
+        count = 0;
+        visibleCount = 0;
+        culledCount = 0;
+        occludedCount = 0;
+    }
+
+    public synchronized int getModelCount() {
+        return count;
+    }
+
+    /**
+     * Sets the pool used to cull large numbers of models in parallel, such as the {@link RenderGraph#getPreparePool()}. Null culls on the calling thread.
+     *
+     * @param pool The pool to use, or null
+     */
+    public synchronized void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Culls the models outside of the camera's frustum, and replaces the contents of the list by the visible ones, in the order they were added.
+     *
+     * @param camera The camera to cull for
+     * @param visibleModels The list in which to place the visible models
+     * @return The number of visible models
+     */
+    public synchronized int cull(Camera camera, List<Model> visibleModels) {
+        return cull(camera, visibleModels, null);
+    }
+
+    /**
+     * Culls the models outside of the camera's frustum, and those hidden behind the occluders of the occlusion culler, which are rendered for the camera first.
+     * Replaces the contents of the list by the visible models, in the order they were added.
+     *
+     * @param camera The camera to cull for
+     * @param visibleModels The list in which to place the visible models
+     * @param occlusionCuller The occlusion culler, or null to only cull against the frustum
+     * @return The number of visible models
+     */
+    public synchronized int cull(Camera camera, List<Model> visibleModels, OcclusionCuller occlusionCuller) {
+        frustum.update(camera.getProjectionMatrix(), camera.getViewMatrix());
+        if (occlusionCuller != null) {
+            occlusionCuller.render(camera);
+        }
+        this.occlusionCuller = occlusionCuller;
+        if (pool == null || count < MIN_MODELS_PER_TASK * 2) {
+            cull(0, count);
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            // Already on a pool thread, such as when preparing nodes in parallel
+            new CullTask(0, count).invoke();
+        } else {
+            pool.invoke(new CullTask(0, count));
+        }
+        this.occlusionCuller = null;
+        visibleModels.clear();
+        occludedCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (visible[i]) {
+                visibleModels.add(models[i]);
+            } else if (occluded[i]) {
+                occludedCount++;
+            }
+        }
+        visibleCount = visibleModels.size();
+        culledCount = count - visibleCount;
+        return visibleCount;
+    }
+
+    private void cull(int from, int to) {
+        for (int i = from; i < to; i++) {
+            final boolean inFrustum = frustum.intersectsCuboid(minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]);
+            occluded[i] = inFrustum && occlusionCuller != null && !occlusionCuller.isVisible(minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]);
+            visible[i] = inFrustum && !occluded[i];
+        }
+    }
+
+    /**
+     * Returns the number of models that were visible during the last cull.
+     *
+     * @return The number of visible models
+     */
+    public synchronized int getVisibleCount() {
+        return visibleCount;
+    }
+
+    /**
+     * Returns the number of models that were culled during the last cull, including the occluded ones.
+     *
+     * @return The number of culled models
+     */
+    public synchronized int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * Returns the number of models inside of the frustum that were hidden by the occluders during the last cull, zero without an occlusion culler.
+     *
+     * @return The number of occluded models
+     */
+    public synchronized int getOccludedCount() {
+        return occludedCount;
+    }
+
+    private class CullTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final int from;
+        private final int to;
+
+        private CullTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < MIN_MODELS_PER_TASK * 2) {
+                cull(from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new CullTask(from, middle), new CullTask(middle, to));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.flowpowered.render.GraphNode.Input;
+import com.flowpowered.render.GraphNode.Output;
+
+import com.flowpowered.caustic.api.gl.Texture;
+
+/**
+ * The ports of a node class, and whether it prepares frames. They are found from the annotated methods once per class, then shared by all the instances.
+ */
+final class NodePorts {
+    private static final ClassValue<NodePorts> PORTS = new ClassValue<NodePorts>() {
+        @Override
+        protected NodePorts computeValue(Class<?> type) {
+            return new NodePorts(type);
+        }
+    };
+    private static final MethodType INPUT_TYPE = MethodType.methodType(void.class, GraphNode.class, Texture.class);
+    private static final MethodType OUTPUT_TYPE = MethodType.methodType(Texture.class, GraphNode.class);
+    private final Map<String, Port> inputs = new HashMap<>();
+    private final Map<String, Port> outputs = new HashMap<>();
+    // Whether the class overrides the frame preparation, so that it can be skipped for the others
+    private final boolean preparesFrames;
+
+    private NodePorts(Class<?> type) {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Method method : type.getMethods()) {
+            if (method.isBridge()) {
+                continue;
+            }
+            final Input inputAnnotation = method.getAnnotation(Input.class);
+            final Output outputAnnotation = method.getAnnotation(Output.class);
+            if (inputAnnotation != null) {
+                if (outputAnnotation != null) {
+                    throw new IllegalStateException("Input and output annotations cannot be both present");
+                }
+                final Class<?>[] parameterTypes = method.getParameterTypes();
+                if (parameterTypes.length != 1 || !Texture.class.isAssignableFrom(parameterTypes[0])) {
+                    throw new IllegalStateException("Input method must have one argument of type " + Texture.class.getCanonicalName());
+                }
+                final String name = inputAnnotation.value();
+                inputs.put(name, new Port(name, true, inputAnnotation.format(), unreflect(lookup, method, INPUT_TYPE)));
+            } else if (outputAnnotation != null) {
+                if (method.getParameterTypes().length != 0 || !Texture.class.isAssignableFrom(method.getReturnType())) {
+                    throw new IllegalStateException("Output method must have no arguments and return type " + Texture.class.getCanonicalName());
+                }
+                final String name = outputAnnotation.value();
+                outputs.put(name, new Port(name, false, outputAnnotation.format(), unreflect(lookup, method, OUTPUT_TYPE)));
+            }
+        }
+        preparesFrames = overridesPrepareFrame(type);
+    }
+
+    private static boolean overridesPrepareFrame(Class<?> type) {
+        for (Class<?> current = type; current != null && current != GraphNode.class; current = current.getSuperclass()) {
+            try {
+                current.getDeclaredMethod("prepareFrame", FrameAttributes.class, Object.class);
+                return true;
+            } catch (NoSuchMethodException ex) {
+                // Look in the superclass
+            }
+        }
+        return false;
+    }
+
+    Map<String, Port> getInputs() {
+        return Collections.unmodifiableMap(inputs);
+    }
+
+    Map<String, Port> getOutputs() {
+        return Collections.unmodifiableMap(outputs);
+    }
+
+    boolean preparesFrames() {
+        return preparesFrames;
+    }
+
+    Port getInput(String name) {
+        return inputs.get(name);
+    }
+
+    Port getOutput(String name) {
+        return outputs.get(name);
+    }
+
+    static NodePorts get(Class<? extends GraphNode> type) {
+        return PORTS.get(type);
+    }
+
+    private static MethodHandle unreflect(MethodHandles.Lookup lookup, Method method, MethodType type) {
+        // Node classes aren't necessarily public, even if their port methods are
+        method.setAccessible(true);
+        try {
+            return lookup.unreflect(method).asType(type);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Cannot access port method " + method, ex);
+        }
+    }
+}
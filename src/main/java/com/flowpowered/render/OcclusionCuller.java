@@ -0,0 +1,418 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.flowpowered.math.matrix.Matrix4f;
+
+import com.flowpowered.caustic.api.Camera;
+
+/**
+ * Rasterizes occluder meshes into a low resolution depth buffer on the CPU, then tests bounding boxes against it. The buffer is split in square tiles which are
+ * rasterized in parallel by a pool when set. Each tile also keeps the farthest depth it holds, so that most boxes are rejected without reading the pixels.
+ * <p/>
+ * The occluders should be a few large and simple meshes, such as the walls of buildings, in world space. The pixels are covered when their center is, and the
+ * triangles crossing the camera plane are skipped. Use with a {@link ModelCuller}, which only tests the models inside of the frustum. Depths are those of the
+ * OpenGL depth buffer, from 0 on the near plane to 1 on the far one. The boxes can be tested from several threads once the occluders are rendered.
+ */
+public class OcclusionCuller {
+    /**
+     * The width and height of the tiles, in pixels.
+     */
+    public static final int TILE_SIZE = 16;
+    private static final int MIN_TILES_PER_TASK = 4;
+    // The vertices with a smaller clip space w are too close to the camera plane to project
+    private static final float MIN_W = 1e-5f;
+    // How far outside of the edges a pixel center can be and still be covered, in pixels, so that those on an edge shared by two triangles aren't missed
+    private static final double EDGE_TOLERANCE = 1e-4;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final float[] depths;
+    private final float[] tileMaxDepths;
+    private final List<float[]> occluderPositions = new ArrayList<>();
+    private final List<int[]> occluderIndices = new ArrayList<>();
+    // The view projection matrix of the last render, in row major order
+    private final float[] matrix = new float[16];
+    // The occluder vertices of the last render, as screen space x, y and depth, then clip space w
+    private float[] vertices = new float[0];
+    // The vertex indices of the triangles in front of the camera, and the triangles overlapping each tile
+    private int[] triangles = new int[0];
+    private int triangleCount = 0;
+    private final int[][] tileTriangles;
+    private final int[] tileTriangleCounts;
+    private ForkJoinPool pool;
+    private boolean rendered = false;
+
+    /**
+     * Creates a new occlusion culler with a depth buffer of the given size. A fraction of the output size, such as 256 by 128, is usually enough.
+     *
+     * @param width The width of the depth buffer
+     * @param height The height of the depth buffer
+     */
+    public OcclusionCuller(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Width and height must be greater than zero");
+        }
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        depths = new float[width * height];
+        tileMaxDepths = new float[tilesX * tilesY];
+        tileTriangles = new int[tilesX * tilesY][16];
+        tileTriangleCounts = new int[tilesX * tilesY];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Adds an occluder mesh, drawn on the next render.
+     *
+     * @param positions The vertex positions in world space, three coordinates per vertex
+     * @param indices The vertex indices, three per triangle
+     */
+    public synchronized void addOccluder(float[] positions, int[] indices) {
+        if (positions.length % 3 != 0) {
+            throw new IllegalArgumentException("Positions must have three coordinates per vertex");
+        }
+        if (indices.length % 3 != 0) {
+            throw new IllegalArgumentException("Indices must have three vertices per triangle");
+        }
+        final int vertexCount = positions.length / 3;
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                throw new IllegalArgumentException("Index " + index + " is out of bounds for " + vertexCount + " vertices");
+            }
+        }
+        occluderPositions.add(positions);
+        occluderIndices.add(indices);
+    }
+
+    public synchronized void clearOccluders() {
+        occluderPositions.clear();
+        occluderIndices.clear();
+    }
+
+    public synchronized int getOccluderCount() {
+        return occluderPositions.size();
+    }
+
+    /**
+     * Sets the pool used to rasterize the tiles in parallel, such as the {@link RenderGraph#getPreparePool()}. Null rasterizes on the calling thread.
+     *
+     * @param pool The pool to use, or null
+     */
+    public synchronized void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Renders the occluders as seen by the camera.
+     *
+     * @param camera The camera to render for
+     */
+    public void render(Camera camera) {
+        render(camera.getProjectionMatrix().mul(camera.getViewMatrix()));
+    }
+
+    /**
+     * Renders the occluders with the view projection matrix, replacing the contents of the depth buffer.
+     *
+     * @param viewProjection The product of the projection and view matrices
+     */
+    public synchronized void render(Matrix4f viewProjection) {
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                matrix[row * 4 + column] = viewProjection.get(row, column);
+            }
+        }
+        transformOccluders();
+        binTriangles();
+        final int tileCount = tilesX * tilesY;
+        if (pool == null || tileCount < MIN_TILES_PER_TASK * 2) {
+            rasterize(0, tileCount);
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            // Already on a pool thread, such as when preparing nodes in parallel
+            new RasterizeTask(0, tileCount).invoke();
+        } else {
+            pool.invoke(new RasterizeTask(0, tileCount));
+        }
+        rendered = true;
+    }
+
+    private void transformOccluders() {
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (int i = 0; i < occluderPositions.size(); i++) {
+            vertexCount += occluderPositions.get(i).length / 3;
+            indexCount += occluderIndices.get(i).length;
+        }
+        if (vertices.length < vertexCount * 4) {
+            vertices = new float[vertexCount * 4];
+        }
+        if (triangles.length < indexCount) {
+            triangles = new int[indexCount];
+        }
+        triangleCount = 0;
+        int firstVertex = 0;
+        for (int i = 0; i < occluderPositions.size(); i++) {
+            final float[] positions = occluderPositions.get(i);
+            for (int p = 0, v = firstVertex * 4; p < positions.length; p += 3, v += 4) {
+                final float x = positions[p], y = positions[p + 1], z = positions[p + 2];
+                final float w = matrix[12] * x + matrix[13] * y + matrix[14] * z + matrix[15];
+                vertices[v + 3] = w;
+                if (w > MIN_W) {
+                    vertices[v] = toScreenX((matrix[0] * x + matrix[1] * y + matrix[2] * z + matrix[3]) / w);
+                    vertices[v + 1] = toScreenY((matrix[4] * x + matrix[5] * y + matrix[6] * z + matrix[7]) / w);
+                    vertices[v + 2] = toDepth((matrix[8] * x + matrix[9] * y + matrix[10] * z + matrix[11]) / w);
+                }
+            }
+            // Keep the triangles with all their vertices in front of the camera
+            final int[] indices = occluderIndices.get(i);
+            for (int t = 0; t < indices.length; t += 3) {
+                final int a = firstVertex + indices[t], b = firstVertex + indices[t + 1], c = firstVertex + indices[t + 2];
+                if (vertices[a * 4 + 3] > MIN_W && vertices[b * 4 + 3] > MIN_W && vertices[c * 4 + 3] > MIN_W) {
+                    final int offset = triangleCount * 3;
+                    triangles[offset] = a;
+                    triangles[offset + 1] = b;
+                    triangles[offset + 2] = c;
+                    triangleCount++;
+                }
+            }
+            firstVertex += positions.length / 3;
+        }
+    }
+
+    private void binTriangles() {
+        Arrays.fill(tileTriangleCounts, 0);
+        for (int t = 0; t < triangleCount; t++) {
+            final int a = triangles[t * 3] * 4, b = triangles[t * 3 + 1] * 4, c = triangles[t * 3 + 2] * 4;
+            final int x0 = Math.max((int) Math.floor(min(vertices[a], vertices[b], vertices[c])), 0);
+            final int y0 = Math.max((int) Math.floor(min(vertices[a + 1], vertices[b + 1], vertices[c + 1])), 0);
+            final int x1 = Math.min((int) Math.ceil(max(vertices[a], vertices[b], vertices[c])), width - 1);
+            final int y1 = Math.min((int) Math.ceil(max(vertices[a + 1], vertices[b + 1], vertices[c + 1])), height - 1);
+            if (x0 > x1 || y0 > y1) {
+                continue;
+            }
+            for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ty++) {
+                for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; tx++) {
+                    final int tile = ty * tilesX + tx;
+                    final int count = tileTriangleCounts[tile];
+                    if (count == tileTriangles[tile].length) {
+                        tileTriangles[tile] = Arrays.copyOf(tileTriangles[tile], count * 2);
+                    }
+                    tileTriangles[tile][count] = t;
+                    tileTriangleCounts[tile] = count + 1;
+                }
+            }
+        }
+    }
+
+    private void rasterize(int fromTile, int toTile) {
+        for (int tile = fromTile; tile < toTile; tile++) {
+            final int x0 = tile % tilesX * TILE_SIZE, y0 = tile / tilesX * TILE_SIZE;
+            final int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(depths, y * width + x0, y * width + x1, 1);
+            }
+            final int[] tileTriangles = this.tileTriangles[tile];
+            for (int i = 0, count = tileTriangleCounts[tile]; i < count; i++) {
+                rasterizeTriangle(tileTriangles[i], x0, y0, x1, y1);
+            }
+            float maxDepth = 0;
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0, index = y * width + x0; x < x1; x++, index++) {
+                    maxDepth = Math.max(maxDepth, depths[index]);
+                }
+            }
+            tileMaxDepths[tile] = maxDepth;
+        }
+    }
+
+    private void rasterizeTriangle(int triangle, int tileX0, int tileY0, int tileX1, int tileY1) {
+        final int a = triangles[triangle * 3] * 4;
+        int b = triangles[triangle * 3 + 1] * 4;
+        int c = triangles[triangle * 3 + 2] * 4;
+        float area = (vertices[b] - vertices[a]) * (vertices[c + 1] - vertices[a + 1]) - (vertices[b + 1] - vertices[a + 1]) * (vertices[c] - vertices[a]);
+        if (area == 0) {
+            return;
+        }
+        // Make the winding counter-clockwise, so that the inside is to the left of each edge
+        if (area < 0) {
+            final int swap = b;
+            b = c;
+            c = swap;
+            area = -area;
+        }
+        final double ax = vertices[a], ay = vertices[a + 1], az = vertices[a + 2];
+        final double bx = vertices[b], by = vertices[b + 1], bz = vertices[b + 2];
+        final double cx = vertices[c], cy = vertices[c + 1], cz = vertices[c + 2];
+        final int x0 = Math.max((int) Math.floor(min(vertices[a], vertices[b], vertices[c])), tileX0);
+        final int x1 = Math.min((int) Math.ceil(max(vertices[a], vertices[b], vertices[c])), tileX1 - 1);
+        final int y0 = Math.max((int) Math.floor(min(vertices[a + 1], vertices[b + 1], vertices[c + 1])), tileY0);
+        final int y1 = Math.min((int) Math.ceil(max(vertices[a + 1], vertices[b + 1], vertices[c + 1])), tileY1 - 1);
+        // The edge functions are the distances to the edges scaled by their lengths, so the tolerances are too
+        final double minA = -EDGE_TOLERANCE * Math.sqrt((cx - bx) * (cx - bx) + (cy - by) * (cy - by));
+        final double minB = -EDGE_TOLERANCE * Math.sqrt((ax - cx) * (ax - cx) + (ay - cy) * (ay - cy));
+        final double minC = -EDGE_TOLERANCE * Math.sqrt((bx - ax) * (bx - ax) + (by - ay) * (by - ay));
+        // The edge functions, each weighting the opposite vertex, are stepped from one pixel center to the next
+        final double startX = x0 + 0.5;
+        final double inverseArea = 1 / (double) area;
+        for (int y = y0; y <= y1; y++) {
+            final double pointY = y + 0.5;
+            double wa = (cx - bx) * (pointY - by) - (cy - by) * (startX - bx);
+            double wb = (ax - cx) * (pointY - cy) - (ay - cy) * (startX - cx);
+            double wc = (bx - ax) * (pointY - ay) - (by - ay) * (startX - ax);
+            for (int x = x0, index = y * width + x0; x <= x1; x++, index++) {
+                if (wa >= minA && wb >= minB && wc >= minC) {
+                    final float depth = (float) ((wa * az + wb * bz + wc * cz) * inverseArea);
+                    if (depth < depths[index]) {
+                        depths[index] = depth;
+                    }
+                }
+                wa -= cy - by;
+                wb -= ay - cy;
+                wc -= by - ay;
+            }
+        }
+    }
+
+    /**
+     * Returns true if any part of the box could be seen past the occluders of the last render. The boxes crossing the camera plane or outside of the screen are
+     * visible, as are all boxes before the first render.
+     *
+     * @param minX The minimum x coordinate of the box, in world space
+     * @param minY The minimum y coordinate of the box, in world space
+     * @param minZ The minimum z coordinate of the box, in world space
+     * @param maxX The maximum x coordinate of the box, in world space
+     * @param maxY The maximum y coordinate of the box, in world space
+     * @param maxZ The maximum z coordinate of the box, in world space
+     * @return Whether or not the box is visible
+     */
+    public boolean isVisible(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        if (!rendered) {
+            return true;
+        }
+        // Find the screen rectangle covered by the box, and its nearest depth
+        float screenMinX = Float.POSITIVE_INFINITY, screenMinY = Float.POSITIVE_INFINITY;
+        float screenMaxX = Float.NEGATIVE_INFINITY, screenMaxY = Float.NEGATIVE_INFINITY;
+        float nearestDepth = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < 8; i++) {
+            final float x = (i & 1) == 0 ? minX : maxX, y = (i & 2) == 0 ? minY : maxY, z = (i & 4) == 0 ? minZ : maxZ;
+            final float w = matrix[12] * x + matrix[13] * y + matrix[14] * z + matrix[15];
+            if (w <= MIN_W) {
+                return true;
+            }
+            final float screenX = toScreenX((matrix[0] * x + matrix[1] * y + matrix[2] * z + matrix[3]) / w);
+            final float screenY = toScreenY((matrix[4] * x + matrix[5] * y + matrix[6] * z + matrix[7]) / w);
+            screenMinX = Math.min(screenMinX, screenX);
+            screenMinY = Math.min(screenMinY, screenY);
+            screenMaxX = Math.max(screenMaxX, screenX);
+            screenMaxY = Math.max(screenMaxY, screenY);
+            nearestDepth = Math.min(nearestDepth, toDepth((matrix[8] * x + matrix[9] * y + matrix[10] * z + matrix[11]) / w));
+        }
+        final int x0 = Math.max((int) Math.floor(screenMinX), 0), y0 = Math.max((int) Math.floor(screenMinY), 0);
+        final int x1 = Math.min((int) Math.floor(screenMaxX), width - 1), y1 = Math.min((int) Math.floor(screenMaxY), height - 1);
+        if (x0 > x1 || y0 > y1) {
+            return true;
+        }
+        for (int ty = y0 / TILE_SIZE; ty <= y1 / TILE_SIZE; ty++) {
+            for (int tx = x0 / TILE_SIZE; tx <= x1 / TILE_SIZE; tx++) {
+                // All of the tile is in front of the box, no need to test its pixels
+                if (tileMaxDepths[ty * tilesX + tx] < nearestDepth) {
+                    continue;
+                }
+                final int pixelX0 = Math.max(tx * TILE_SIZE, x0), pixelX1 = Math.min(tx * TILE_SIZE + TILE_SIZE - 1, x1);
+                final int pixelY0 = Math.max(ty * TILE_SIZE, y0), pixelY1 = Math.min(ty * TILE_SIZE + TILE_SIZE - 1, y1);
+                for (int y = pixelY0; y <= pixelY1; y++) {
+                    for (int x = pixelX0, index = y * width + pixelX0; x <= pixelX1; x++, index++) {
+                        if (depths[index] >= nearestDepth) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private float toScreenX(float ndcX) {
+        return (ndcX * 0.5f + 0.5f) * width;
+    }
+
+    private float toScreenY(float ndcY) {
+        return (ndcY * 0.5f + 0.5f) * height;
+    }
+
+    private static float toDepth(float ndcZ) {
+        return ndcZ * 0.5f + 0.5f;
+    }
+
+    private static float min(float a, float b, float c) {
+        return Math.min(a, Math.min(b, c));
+    }
+
+    private static float max(float a, float b, float c) {
+        return Math.max(a, Math.max(b, c));
+    }
+
+    private class RasterizeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final int from;
+        private final int to;
+
+        private RasterizeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < MIN_TILES_PER_TASK * 2) {
+                rasterize(from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new RasterizeTask(from, middle), new RasterizeTask(middle, to));
+        }
+    }
+}
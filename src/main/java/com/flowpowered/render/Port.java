@@ -0,0 +1,95 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.flowpowered.caustic.api.gl.Texture.Format;
+
+/**
+ * An input or output of a node class, described by its {@link GraphNode.Input} or {@link GraphNode.Output} annotation.
+ */
+public final class Port {
+    private final String name;
+    private final boolean input;
+    private final Set<Format> formats;
+    // (GraphNode, Texture)void for inputs, (GraphNode)Texture for outputs
+    private final MethodHandle accessor;
+
+    Port(String name, boolean input, Format[] formats, MethodHandle accessor) {
+        this.name = name;
+        this.input = input;
+        this.formats = formats.length == 0 ? Collections.<Format>emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(Arrays.asList(formats)));
+        this.accessor = accessor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isInput() {
+        return input;
+    }
+
+    /**
+     * Returns the texture formats accepted by the input, or produced by the output. An empty set means that any format is possible.
+     *
+     * @return The texture formats
+     */
+    public Set<Format> getFormats() {
+        return formats;
+    }
+
+    /**
+     * Returns true if this input can be connected to the output, which is the case if either doesn't declare any formats, or if they have at least one in
+     * common.
+     *
+     * @param output The output to check
+     * @return Whether or not the output can be connected to this input
+     */
+    public boolean accepts(Port output) {
+        if (formats.isEmpty() || output.formats.isEmpty()) {
+            return true;
+        }
+        for (Format format : output.formats) {
+            if (formats.contains(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    MethodHandle getAccessor() {
+        return accessor;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
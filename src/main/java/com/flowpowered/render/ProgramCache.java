@@ -0,0 +1,344 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.ARBGetProgramBinary;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLContext;
+
+import com.flowpowered.caustic.api.data.ShaderSource;
+import com.flowpowered.caustic.api.gl.Program;
+import com.flowpowered.caustic.api.util.CausticUtil;
+
+/**
+ * Saves the binaries of the linked programs in a directory, to load them instead of compiling the shaders the next time. The entries are keyed by a hash of
+ * the shader sources and of the driver identification, so a driver update or changed sources cause misses. Entries rejected by the driver are deleted, and
+ * the program is compiled from the sources instead. Requires OpenGL 4.1 or ARB_get_program_binary, and LWJGL. The extension's entry points are used when the
+ * context isn't 4.1.
+ */
+public class ProgramCache {
+    private static final int ENTRY_MAGIC = 0x464c5042;
+    private final Path directory;
+    private String driver;
+    // Null until the first use, which needs a current context
+    private Boolean core;
+    private int hits = 0;
+    private int misses = 0;
+    private int rejected = 0;
+    private long timeSaved = 0;
+
+    /**
+     * Creates a new cache for the directory, which is created if needed.
+     *
+     * @param directory The directory to store the binaries in
+     * @throws IOException If the directory can't be created
+     */
+    public ProgramCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns true if the current OpenGL context can save and load program binaries.
+     *
+     * @return Whether or not program binaries are supported
+     */
+    public static boolean isSupported() {
+        try {
+            final ContextCapabilities capabilities = GLContext.getCapabilities();
+            return capabilities != null && (capabilities.OpenGL41 || capabilities.GL_ARB_get_program_binary)
+                    && GL11.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+        } catch (RuntimeException | LinkageError ex) {
+            // No current context, or LWJGL isn't used
+            return false;
+        }
+    }
+
+    /**
+     * Loads the program for the sources from the cache. Counts as a miss if there is no entry, or if the driver rejected it.
+     *
+     * @param vertexSource The vertex shader source
+     * @param fragmentSource The fragment shader source
+     * @return The loaded program, or null
+     */
+    Program load(String vertexSource, String fragmentSource) {
+        final Path file = getFile(vertexSource, fragmentSource);
+        if (!Files.isRegularFile(file)) {
+            misses++;
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Entry entry;
+        try (InputStream input = Files.newInputStream(file)) {
+            entry = readEntry(input);
+        } catch (IOException ex) {
+            // Corrupted or truncated, such as after a crash during writing
+            deleteEntry(file);
+            misses++;
+            return null;
+        }
+        final Map<String, Integer> textureLayouts = new HashMap<>();
+        textureLayouts.putAll(new ShaderSource(vertexSource).getTextureLayouts());
+        textureLayouts.putAll(new ShaderSource(fragmentSource).getTextureLayouts());
+        final BinaryProgram program = new BinaryProgram(textureLayouts, isCore());
+        program.create();
+        final ByteBuffer binary = CausticUtil.createByteBuffer(entry.binary.length);
+        binary.put(entry.binary).flip();
+        if (!program.load(entry.format, binary)) {
+            program.destroy();
+            deleteEntry(file);
+            rejected++;
+            misses++;
+            return null;
+        }
+        hits++;
+        timeSaved += entry.compileTime - (System.nanoTime() - start);
+        return program;
+    }
+
+    /**
+     * Prepares a program to be saved once linked. Call after creating it and before linking it.
+     *
+     * @param program The program to prepare
+     */
+    void prepare(Program program) {
+        if (isCore()) {
+            GL41.glProgramParameteri(program.getID(), GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+        } else {
+            ARBGetProgramBinary.glProgramParameteri(program.getID(), ARBGetProgramBinary.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+        }
+    }
+
+    /**
+     * Saves the binary of the linked program. Failures to write are ignored, the program will be compiled again next time.
+     *
+     * @param vertexSource The vertex shader source
+     * @param fragmentSource The fragment shader source
+     * @param program The linked program
+     * @param compileTime The time it took to compile and link the program, in nanoseconds
+     */
+    void store(String vertexSource, String fragmentSource, Program program, long compileTime) {
+        final int length = GL20.glGetProgrami(program.getID(), GL41.GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return;
+        }
+        final IntBuffer lengthBuffer = CausticUtil.createIntBuffer(1);
+        final IntBuffer formatBuffer = CausticUtil.createIntBuffer(1);
+        final ByteBuffer binaryBuffer = CausticUtil.createByteBuffer(length);
+        if (isCore()) {
+            GL41.glGetProgramBinary(program.getID(), lengthBuffer, formatBuffer, binaryBuffer);
+        } else {
+            ARBGetProgramBinary.glGetProgramBinary(program.getID(), lengthBuffer, formatBuffer, binaryBuffer);
+        }
+        final byte[] binary = new byte[lengthBuffer.get(0)];
+        binaryBuffer.get(binary);
+        writeEntryFile(directory, getFile(vertexSource, fragmentSource), new Entry(formatBuffer.get(0), binary, compileTime));
+    }
+
+    private boolean isCore() {
+        if (core == null) {
+            final ContextCapabilities capabilities = GLContext.getCapabilities();
+            core = capabilities != null && capabilities.OpenGL41;
+        }
+        return core;
+    }
+
+    private Path getFile(String vertexSource, String fragmentSource) {
+        if (driver == null) {
+            driver = GL11.glGetString(GL11.GL_VENDOR) + '\n' + GL11.glGetString(GL11.GL_RENDERER) + '\n' + GL11.glGetString(GL11.GL_VERSION);
+        }
+        return directory.resolve(computeKey(driver, vertexSource, fragmentSource) + ".bin");
+    }
+
+    private static void deleteEntry(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Deletes all the entries.
+     *
+     * @throws IOException If an entry can't be deleted
+     */
+    public void clear() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.bin")) {
+            for (Path entry : entries) {
+                Files.delete(entry);
+            }
+        }
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of programs compiled from their sources, including those for which the entry was rejected.
+     *
+     * @return The number of misses
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries rejected by the driver, usually after a driver update that kept the same identification.
+     *
+     * @return The number of rejected entries
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    public float getHitRate() {
+        final int total = hits + misses;
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /**
+     * Returns the time saved by the hits, from the compile time saved with each entry minus the time it took to load it, in nanoseconds.
+     *
+     * @return The time saved
+     */
+    public long getTimeSaved() {
+        return timeSaved;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCache{directory=" + directory + ", hits=" + hits + ", misses=" + misses + ", rejected=" + rejected
+                + ", timeSaved=" + timeSaved / 1000000 + "ms}";
+    }
+
+    static String computeKey(String driver, String vertexSource, String fragmentSource) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Required to be supported by all Java platforms
+            throw new IllegalStateException(ex);
+        }
+        // Separate the parts so that moving text from one to the other changes the key
+        digest.update(driver.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(vertexSource.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(fragmentSource.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    static void writeEntry(OutputStream output, Entry entry) throws IOException {
+        final DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(ENTRY_MAGIC);
+        data.writeLong(entry.compileTime);
+        data.writeInt(entry.format);
+        data.writeInt(entry.binary.length);
+        data.write(entry.binary);
+        data.flush();
+    }
+
+    /**
+     * Writes the entry to the file, through a temporary file in the directory so that other processes never read a partial entry. Failures are ignored, and
+     * leave neither the temporary file nor a partial entry behind.
+     *
+     * @param directory The directory of the cache
+     * @param file The file of the entry
+     * @param entry The entry to write
+     */
+    static void writeEntryFile(Path directory, Path file, Entry entry) {
+        final Path temporary;
+        try {
+            temporary = Files.createTempFile(directory, "program", ".tmp");
+        } catch (IOException ignored) {
+            return;
+        }
+        try {
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                writeEntry(output, entry);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignored) {
+        } finally {
+            // Only left over if the write or the move failed
+            deleteEntry(temporary);
+        }
+    }
+
+    static Entry readEntry(InputStream input) throws IOException {
+        final DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != ENTRY_MAGIC) {
+            throw new IOException("Not a program cache entry");
+        }
+        final long compileTime = data.readLong();
+        final int format = data.readInt();
+        final int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("Negative binary length");
+        }
+        final byte[] binary = new byte[length];
+        data.readFully(binary);
+        return new Entry(format, binary, compileTime);
+    }
+
+    static class Entry {
+        final int format;
+        final byte[] binary;
+        final long compileTime;
+
+        Entry(int format, byte[] binary, long compileTime) {
+            this.format = format;
+            this.binary = binary;
+            this.compileTime = compileTime;
+        }
+    }
+}
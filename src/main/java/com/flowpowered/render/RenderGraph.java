@@ -23,16 +23,29 @@
  */
 package com.flowpowered.render;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.flowpowered.math.vector.Vector2f;
+import com.flowpowered.render.GraphScheduler.ActiveNodes;
+import com.flowpowered.render.GraphScheduler.Stage;
 
 import com.flowpowered.caustic.api.Creatable;
 import com.flowpowered.caustic.api.data.ShaderSource;
@@ -51,14 +64,41 @@ import com.flowpowered.caustic.api.util.MeshGenerator;
  *
  */
 public class RenderGraph extends Creatable implements AttributeHolder {
+    private static final Comparator<GraphNode> STAGE_ORDER = new Comparator<GraphNode>() {
+        @Override
+        public int compare(GraphNode first, GraphNode second) {
+            return Integer.compare(first.stage, second.stage);
+        }
+    };
+    // The lines including a shared snippet in a shader source
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile("^#include \"([^\"]+)\"[ \t]*$", Pattern.MULTILINE);
     private final Context context;
     private final String shaderSrcDir;
     private final Map<String, Program> programs = new HashMap<>();
+    // The defines of each loaded program, by program
+    private final Map<Program, Map<String, String>> programDefines = new IdentityHashMap<>();
+    // Null values for the programs without an instanced variant
+    private final Map<Program, Program> instancedPrograms = new IdentityHashMap<>();
     private final VertexArray screen;
     private final Texture whiteDummy, blackDummy;
-    private final Map<String, GraphNode> nodes = new HashMap<>();
-    private final SortedSet<Stage> stages = new TreeSet<>();
-    private final Map<String, Object> attributes = new HashMap<>();
+    private final GraphScheduler scheduler = new GraphScheduler();
+    private final RenderTargetPool renderTargets;
+    // The graph already extends Creatable, so the attribute methods delegate to a holder that looks the values up through the current view
+    private final AbstractAttributeHolder attributes = new AbstractAttributeHolder() {
+        @Override
+        Object lookupAttribute(int slot) {
+            return getAttributeRaw(slot);
+        }
+    };
+    private final List<View> views = new ArrayList<>();
+    private View currentView;
+    private ForkJoinPool preparePool;
+    private RenderProfiler profiler;
+    private ProgramCache programCache;
+    private int updatedNodeCount;
+    private long frameNumber;
+    // The active nodes of each view during the last render, with a null view when the graph has none, read by the frame pipeline from another thread
+    private volatile Map<View, List<GraphNode>> lastActiveNodes = Collections.emptyMap();
 
     public RenderGraph(Context context, String shaderSrcDir) {
         this.context = context;
@@ -66,6 +106,20 @@ public class RenderGraph extends Creatable implements AttributeHolder {
         screen = context.newVertexArray();
         whiteDummy = context.newTexture();
         blackDummy = context.newTexture();
+        renderTargets = new RenderTargetPool(context);
+    }
+
+    /**
+     * Creates a graph without a context, for testing the scheduling and the updates of nodes that don't use OpenGL. The graph can't be created, and doesn't
+     * update the display when rendering.
+     */
+    RenderGraph() {
+        context = null;
+        shaderSrcDir = null;
+        screen = null;
+        whiteDummy = null;
+        blackDummy = null;
+        renderTargets = new RenderTargetPool(null);
     }
 
     @Override
@@ -102,11 +156,13 @@ public class RenderGraph extends Creatable implements AttributeHolder {
     public void destroy() {
         checkCreated();
         screen.destroy();
-        for (GraphNode node : nodes.values()) {
+        for (GraphNode node : scheduler.getNodes()) {
+            node.destroyViewStates();
             node.destroy();
         }
-        nodes.clear();
-        stages.clear();
+        scheduler.clear();
+        views.clear();
+        renderTargets.destroy();
         for (Program program : programs.values()) {
             for (Shader shader : program.getShaders()) {
                 shader.destroy();
@@ -114,96 +170,469 @@ public class RenderGraph extends Creatable implements AttributeHolder {
             program.destroy();
         }
         programs.clear();
-        attributes.clear();
+        programDefines.clear();
+        instancedPrograms.clear();
+        attributes.getAttributeValues().clear();
         super.destroy();
     }
 
+    /**
+     * Updates the active nodes for which an attribute they depend on has changed since their last update, or which have been invalidated. The updates are
+     * prepared in parallel if a prepare pool is set, one task per stage, and applied on this thread in the order of their stages, as soon as the nodes of the
+     * stage are prepared. When the graph has views, the nodes are
+     * updated for each view by {@link #render()} instead, and this does nothing.
+     */
     public void updateAll() {
-        for (GraphNode node : nodes.values()) {
-            node.update();
+        if (!views.isEmpty()) {
+            return;
         }
+        updatedNodeCount = updateNodes(scheduler.getActiveNodes());
     }
 
+    private int updateNodes(List<GraphNode> activeNodes) {
+        final List<GraphNode> outdated = new ArrayList<>();
+        for (GraphNode node : activeNodes) {
+            if (node.beginUpdate()) {
+                outdated.add(node);
+            }
+        }
+        // Apply in stage order, the active nodes are found walking back from the sinks
+        Collections.sort(outdated, STAGE_ORDER);
+        if (preparePool == null || outdated.size() <= 1) {
+            for (GraphNode node : outdated) {
+                node.prepare();
+                node.finishUpdate();
+            }
+            return outdated.size();
+        }
+        // Prepare each stage in its own task, so that the first stages are applied on this thread while the next ones are still being prepared
+        final List<PrepareTask> tasks = new ArrayList<>();
+        for (int from = 0, to; from < outdated.size(); from = to) {
+            final int stage = outdated.get(from).stage;
+            to = from + 1;
+            while (to < outdated.size() && outdated.get(to).stage == stage) {
+                to++;
+            }
+            final PrepareTask task = new PrepareTask(outdated, from, to);
+            preparePool.execute(task);
+            tasks.add(task);
+        }
+        int applied = 0;
+        try {
+            for (; applied < tasks.size(); applied++) {
+                final PrepareTask task = tasks.get(applied);
+                task.join();
+                for (int i = task.from; i < task.to; i++) {
+                    outdated.get(i).finishUpdate();
+                }
+            }
+        } finally {
+            // Don't leave tasks running on the nodes after a failure
+            for (int i = applied + 1; i < tasks.size(); i++) {
+                tasks.get(i).quietlyJoin();
+            }
+        }
+        return outdated.size();
+    }
+
+    /**
+     * Returns the number of nodes that were updated by the last call to {@link #updateAll()}, or during the last call to {@link #render()}, summed over all
+     * the views, if the graph has any.
+     *
+     * @return The number of updated nodes
+     */
+    public int getUpdatedNodeCount() {
+        return updatedNodeCount;
+    }
+
+    /**
+     * Schedules the nodes in stages so that each is rendered after its inputs. Once built, changes to the graph are scheduled as they are made, so this
+     * doesn't need to be called again.
+     *
+     * @throws IllegalStateException If the graph contains a cycle, or if a node is connected to another that isn't part of the graph
+     */
     public void build() {
-        stages.clear();
-        final Set<GraphNode> toBuild = new HashSet<>(nodes.values());
-        final Set<GraphNode> previous = new HashSet<>();
-        int i = 0;
-        Stage current = new Stage(i++);
-        while (true) {
-            for (Iterator<GraphNode> iterator = toBuild.iterator(); iterator.hasNext(); ) {
-                final GraphNode node = iterator.next();
-                if (previous.containsAll(node.getConnectedInputs().values())) {
-                    current.addNode(node);
-                    iterator.remove();
+        scheduler.build();
+    }
+
+    /**
+     * Renders the active nodes. If the graph has views, the nodes are updated then rendered once for each, in the order the views were added. A view that
+     * picks its own sinks only updates and renders the nodes they depend on. Otherwise nodes that render to the screen do so for every view, so the one to
+     * display should be added last, or the other views should pick sinks that don't render to the screen. The frame data of the nodes is prepared after their
+     * update and before their render, in parallel on the prepare pool if set, see {@link GraphNode#prepareFrame(FrameAttributes, Object)}.
+     */
+    public void render() {
+        render(null);
+    }
+
+    /**
+     * Renders the active nodes with the frame data already prepared for some of them, by view, with a null view when the graph has none. The frame data of
+     * the other nodes is prepared before rendering.
+     *
+     * @param preparedFrames The prepared frame data of the nodes, by view, or null
+     */
+    void render(Map<View, Map<GraphNode, Object>> preparedFrames) {
+        frameNumber++;
+        scheduler.updateActiveNodes();
+        if (profiler != null) {
+            profiler.beginFrame();
+        }
+        final Map<View, List<GraphNode>> activeNodesByView = new IdentityHashMap<>();
+        if (views.isEmpty()) {
+            final List<GraphNode> nodes = scheduler.getActiveNodes();
+            prepareFrames(nodes, null, preparedFrames != null ? preparedFrames.get(null) : null);
+            activeNodesByView.put(null, new ArrayList<>(nodes));
+            renderStages(null);
+        } else {
+            int updated = 0;
+            for (View view : views) {
+                currentView = view;
+                view.releaseOutputs();
+                final ActiveNodes activeNodes = view.getActiveNodes();
+                final List<GraphNode> nodes;
+                if (activeNodes != null) {
+                    scheduler.updateActiveNodes(activeNodes);
+                    nodes = activeNodes.getNodes();
+                } else {
+                    nodes = scheduler.getActiveNodes();
                 }
+                updated += updateNodes(nodes);
+                prepareFrames(nodes, view, preparedFrames != null ? preparedFrames.get(view) : null);
+                activeNodesByView.put(view, new ArrayList<>(nodes));
+                renderStages(activeNodes);
             }
-            if (current.getNodes().isEmpty()) {
-                return;
+            currentView = null;
+            updatedNodeCount = updated;
+        }
+        lastActiveNodes = activeNodesByView;
+        if (profiler != null) {
+            profiler.endFrame();
+        }
+        renderTargets.endFrame();
+        if (context != null) {
+            context.updateDisplay();
+        }
+    }
+
+    private void prepareFrames(List<GraphNode> activeNodes, View view, Map<GraphNode, Object> preparedFrames) {
+        final List<GraphNode> nodes = new ArrayList<>();
+        for (GraphNode node : activeNodes) {
+            if (!node.preparesFrames()) {
+                continue;
             }
-            previous.addAll(current.getNodes());
-            stages.add(current);
-            if (toBuild.isEmpty()) {
-                break;
+            if (preparedFrames != null && preparedFrames.containsKey(node)) {
+                node.setFrameData(view, preparedFrames.get(node), false);
+            } else {
+                nodes.add(node);
             }
-            current = new Stage(i++);
+        }
+        if (nodes.isEmpty()) {
+            return;
+        }
+        final List<View> nodeViews = Collections.nCopies(nodes.size(), view);
+        final Map<View, AttributeValues> viewValues = Collections.singletonMap(view, view != null ? view.getAttributeValues() : null);
+        final Object[] previous = new Object[nodes.size()];
+        for (int i = 0; i < previous.length; i++) {
+            previous[i] = nodes.get(i).getLiveFrameData(view);
+        }
+        final Object[] frameData = prepareFrames(nodes, nodeViews, attributes.getAttributeValues(), viewValues, previous);
+        for (int i = 0; i < frameData.length; i++) {
+            nodes.get(i).setFrameData(view, frameData[i], true);
         }
     }
 
-    public void render() {
-        for (Stage stage : stages) {
-            stage.render();
+    private Object[] prepareFrames(List<GraphNode> nodes, List<View> nodeViews, AttributeValues graphValues, Map<View, AttributeValues> viewValues,
+                                   Object[] previous) {
+        final Object[] frameData = new Object[nodes.size()];
+        if (nodes.isEmpty()) {
+            return frameData;
+        }
+        final FramePrepareTask task = new FramePrepareTask(nodes, nodeViews, graphValues, viewValues, previous, frameData, 0, nodes.size());
+        final ForkJoinPool pool = preparePool;
+        if (pool == null || nodes.size() <= 1) {
+            task.compute();
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
         }
-        context.updateDisplay();
+        return frameData;
+    }
+
+    /**
+     * Prepares the frame data of the nodes that were active during the last render, for each view, from the given attribute values instead of those of the
+     * graph and its views, on the calling thread or in parallel on the prepare pool. Used by the {@link FramePipeline} to prepare a frame while the previous one
+     * is being rendered. The data is read from the map as the previous data of each node, then replaced by the new data, and the entries of the nodes and
+     * views that weren't rendered last are removed.
+     *
+     * @param graphValues The attributes of the graph for the frame
+     * @param viewValues The attributes of the views for the frame, a view without any uses its current ones
+     * @param frames The frame data of the nodes, by view, with a null view when the graph has none
+     */
+    void prepareFrames(AttributeValues graphValues, Map<View, AttributeValues> viewValues, Map<View, Map<GraphNode, Object>> frames) {
+        final Map<View, List<GraphNode>> activeNodesByView = lastActiveNodes;
+        final List<GraphNode> nodes = new ArrayList<>();
+        final List<View> nodeViews = new ArrayList<>();
+        final Map<View, AttributeValues> allViewValues = new IdentityHashMap<>();
+        for (Entry<View, List<GraphNode>> entry : activeNodesByView.entrySet()) {
+            final View view = entry.getKey();
+            for (GraphNode node : entry.getValue()) {
+                if (node.preparesFrames()) {
+                    nodes.add(node);
+                    nodeViews.add(view);
+                }
+            }
+            final AttributeValues values = viewValues.get(view);
+            allViewValues.put(view, values != null || view == null ? values : view.getAttributeValues());
+        }
+        final Object[] previous = new Object[nodes.size()];
+        for (int i = 0; i < previous.length; i++) {
+            final Map<GraphNode, Object> viewFrames = frames.get(nodeViews.get(i));
+            previous[i] = viewFrames != null ? viewFrames.get(nodes.get(i)) : null;
+        }
+        final Object[] frameData = prepareFrames(nodes, nodeViews, graphValues, allViewValues, previous);
+        frames.clear();
+        for (int i = 0; i < frameData.length; i++) {
+            Map<GraphNode, Object> viewFrames = frames.get(nodeViews.get(i));
+            if (viewFrames == null) {
+                viewFrames = new IdentityHashMap<>();
+                frames.put(nodeViews.get(i), viewFrames);
+            }
+            viewFrames.put(nodes.get(i), frameData[i]);
+        }
+    }
+
+    private void renderStages(ActiveNodes activeNodes) {
+        for (Stage stage : scheduler.getStages()) {
+            // The active nodes of the graph, unless the view picks its own sinks
+            final List<GraphNode> nodes = activeNodes != null ? activeNodes.getStageNodes(stage.getNumber()) : stage.getActiveNodes();
+            if (profiler != null) {
+                stage.render(nodes, profiler);
+            } else {
+                stage.render(nodes);
+            }
+            renderTargets.endStage(stage.getNumber());
+        }
+    }
+
+    /**
+     * Sets the pool used to prepare the updates of the nodes in parallel, or null to prepare them on the rendering thread. The nodes are then applied on the
+     * rendering thread, in the order of their stages. The pool isn't shut down with the graph.
+     *
+     * @param preparePool The pool for preparing the node updates, or null
+     * @see GraphNode#prepare()
+     */
+    public void setPreparePool(ForkJoinPool preparePool) {
+        this.preparePool = preparePool;
+    }
+
+    public ForkJoinPool getPreparePool() {
+        return preparePool;
+    }
+
+    /**
+     * Sets the profiler used to time the rendering of the nodes and stages, or null to disable profiling. The profiler isn't destroyed with the graph.
+     *
+     * @param profiler The profiler, or null
+     */
+    public void setProfiler(RenderProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public RenderProfiler getProfiler() {
+        return profiler;
+    }
+
+    public void addView(View view) {
+        if (view.getGraph() != this) {
+            throw new IllegalArgumentException("View \"" + view.getName() + "\" belongs to another graph");
+        }
+        if (getView(view.getName()) != null) {
+            throw new IllegalArgumentException("A view named \"" + view.getName() + "\" already exists");
+        }
+        views.add(view);
+    }
+
+    /**
+     * Removes the view, releasing the outputs kept from its last render and destroying the state the nodes kept for it.
+     *
+     * @param name The name of the view to remove
+     */
+    public void removeView(String name) {
+        final View view = getView(name);
+        if (view == null) {
+            throw new IllegalArgumentException("No view named \"" + name + "\"");
+        }
+        views.remove(view);
+        view.releaseOutputs();
+        for (GraphNode node : scheduler.getNodes()) {
+            node.removeViewState(view);
+        }
+    }
+
+    public View getView(String name) {
+        for (View view : views) {
+            if (view.getName().equals(name)) {
+                return view;
+            }
+        }
+        return null;
+    }
+
+    public List<View> getViews() {
+        return Collections.unmodifiableList(views);
+    }
+
+    /**
+     * Returns the view being rendered, or null if the graph has no views or isn't rendering.
+     *
+     * @return The current view
+     */
+    public View getCurrentView() {
+        return currentView;
     }
 
     public void addNode(GraphNode node) {
-        nodes.put(node.getName(), node);
+        scheduler.addNode(node);
+    }
+
+    /**
+     * Removes the node from the graph, disconnecting it from its inputs and dependents, then destroys it.
+     *
+     * @param name The name of the node to remove
+     */
+    public void removeNode(String name) {
+        final GraphNode node = getExistingNode(name);
+        scheduler.removeNode(node);
+        for (View view : views) {
+            view.removeSink(node);
+        }
+        node.destroyViewStates();
+        node.destroy();
+    }
+
+    /**
+     * Marks the node as a sink of the graph: a node whose outputs are the result of the rendering. Once at least one sink is set, only the sinks and the nodes
+     * they depend on, directly or not, are updated and rendered. The other nodes cost nothing per frame, and since nodes size their textures on update, they
+     * don't allocate any until they are needed by a sink.
+     *
+     * @param name The name of the sink node
+     */
+    public void addSink(String name) {
+        scheduler.addSink(getExistingNode(name));
+    }
+
+    public void removeSink(String name) {
+        scheduler.removeSink(getExistingNode(name));
+    }
+
+    void connect(GraphNode node, String input, String output, GraphNode parent) {
+        scheduler.connect(node, input, output, parent);
+    }
+
+    void disconnect(GraphNode node, String input) {
+        scheduler.disconnect(node, input);
     }
 
     @SuppressWarnings("unchecked")
     public <N extends GraphNode> N getNode(String name) {
         try {
-            return (N) nodes.get(name);
+            return (N) scheduler.getNode(name);
         } catch (ClassCastException e) {
             throw new IllegalArgumentException("Requested node is not of requested type");
         }
     }
 
+    private GraphNode getExistingNode(String name) {
+        final GraphNode node = scheduler.getNode(name);
+        if (node == null) {
+            throw new IllegalArgumentException("No node named \"" + name + "\" in the graph");
+        }
+        return node;
+    }
+
     @Override
     public void setAttribute(String name, Object value) {
-        attributes.put(name, value);
+        attributes.setAttribute(name, value);
+    }
+
+    @Override
+    public <T> void setAttribute(AttributeKey<T> key, T value) {
+        attributes.setAttribute(key, value);
     }
 
     protected Object getAttributeRaw(String name) {
-        return attributes.get(name);
+        return getAttributeRaw(AttributeKey.getSlot(name));
+    }
+
+    Object getAttributeRaw(int slot) {
+        // The attributes of the view being rendered override those of the graph
+        if (currentView != null) {
+            final Object attribute = currentView.getAttributeRaw(slot);
+            if (attribute != null) {
+                return attribute;
+            }
+        }
+        return attributes.getAttributeValues().get(slot);
+    }
+
+    AttributeValues getAttributeValues() {
+        return attributes.getAttributeValues();
+    }
+
+    void copyAttributesFrom(AttributeValues values) {
+        attributes.getAttributeValues().copyFrom(values);
+    }
+
+    long getAttributeVersion(int slot) {
+        return attributes.getAttributeValues().getVersion(slot);
     }
 
     public <T> T getAttribute(String name) {
-        return getAttribute(name, null);
+        return attributes.getAttribute(name);
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public <T> T getAttribute(String name, T _default) {
-        final Object attribute = getAttributeRaw(name);
-        if (attribute == null) {
-            if (_default == null) {
-                throw new IllegalArgumentException("Attribute \"" + name + "\" is missing or null and no default has been provided");
-            } else {
-                return _default;
-            }
-        }
-        try {
-            return (T) attribute;
-        } catch (ClassCastException e) {
-            throw new IllegalArgumentException("Requested attribute is not of requested type");
-        }
+        return attributes.getAttribute(name, _default);
+    }
+
+    @Override
+    public <T> T getAttribute(AttributeKey<T> key) {
+        return attributes.getAttribute(key);
     }
 
     @Override
     public void removeAttribute(String name) {
-        attributes.remove(name);
+        attributes.removeAttribute(name);
+    }
+
+    @Override
+    public void removeAttribute(AttributeKey<?> key) {
+        attributes.removeAttribute(key);
+    }
+
+    @Override
+    public void touchAttribute(String name) {
+        attributes.touchAttribute(name);
+    }
+
+    @Override
+    public void touchAttribute(AttributeKey<?> key) {
+        attributes.touchAttribute(key);
+    }
+
+    void touchAttribute(int slot) {
+        attributes.touchAttribute(slot);
+    }
+
+    /**
+     * Returns the number of the frame being rendered, or of the last one, incremented by each call to {@link #render()}.
+     *
+     * @return The frame number
+     */
+    long getFrameNumber() {
+        return frameNumber;
     }
 
     public Context getContext() {
@@ -214,6 +643,10 @@ public class RenderGraph extends Creatable implements AttributeHolder {
         return screen;
     }
 
+    public RenderTargetPool getRenderTargetPool() {
+        return renderTargets;
+    }
+
     public Texture getWhiteDummy() {
         return whiteDummy;
     }
@@ -222,62 +655,260 @@ public class RenderGraph extends Creatable implements AttributeHolder {
         return blackDummy;
     }
 
+    /**
+     * Returns true if the sources of the program are in this graph's shader directory, as some programs are only available for some GLSL versions.
+     *
+     * @param name The name of the program
+     * @return Whether or not the program can be loaded
+     */
+    public boolean hasProgram(String name) {
+        return programs.containsKey(name) || getClass().getResource(shaderSrcDir + '/' + name + ".vert") != null;
+    }
+
     public Program getProgram(String name) {
-        final Program program = programs.get(name);
+        return getProgram(name, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Returns a permutation of the program, with the defines inserted in the shader sources after the version directive, and the shared snippets they
+     * include. Each permutation is compiled once, then cached under the name and the defines.
+     *
+     * @param name The name of the program
+     * @param defines The values of the defines, by name
+     * @return The program permutation
+     */
+    public Program getProgram(String name, Map<String, String> defines) {
+        final String permutation = getPermutationName(name, defines);
+        final Program program = programs.get(permutation);
         if (program == null) {
-            return loadProgram(name);
+            return loadProgram(name, defines, permutation);
         }
         return program;
     }
 
-    private Program loadProgram(String name) {
+    /**
+     * Returns the instanced variant of a program loaded by this graph, if any. It is the program with the same name followed by "Instanced", and the same
+     * defines for permutations, which takes the model matrix as a per instance attribute instead of a uniform. See {@link InstancedRenderer}.
+     *
+     * @param program The program loaded by this graph
+     * @return The instanced variant, or null if there is none
+     */
+    public Program getInstancedProgram(Program program) {
+        if (instancedPrograms.containsKey(program)) {
+            return instancedPrograms.get(program);
+        }
+        String name = null;
+        for (Entry<String, Program> entry : programs.entrySet()) {
+            if (entry.getValue() == program) {
+                // Permutations are named after the program, followed by their defines
+                final String permutation = entry.getKey();
+                final int defines = permutation.indexOf('[');
+                name = (defines < 0 ? permutation : permutation.substring(0, defines)) + "Instanced";
+                break;
+            }
+        }
+        final Program instanced;
+        if (name != null && hasProgram(name)) {
+            instanced = getProgram(name, programDefines.get(program));
+        } else {
+            instanced = null;
+        }
+        instancedPrograms.put(program, instanced);
+        return instanced;
+    }
+
+    /**
+     * Sets the cache for the program binaries, used when loading the programs that haven't been loaded yet, if the context supports it. Null compiles all
+     * programs from their sources.
+     *
+     * @param programCache The program cache, or null
+     */
+    public void setProgramCache(ProgramCache programCache) {
+        this.programCache = programCache;
+    }
+
+    public ProgramCache getProgramCache() {
+        return programCache;
+    }
+
+    private Program loadProgram(String name, Map<String, String> defines, String permutation) {
         final String shaderPath = shaderSrcDir + '/' + name;
+        final String vertexSource = insertDefines(insertIncludes(readShaderSource(shaderPath + ".vert"), shaderSrcDir), defines);
+        final String fragmentSource = insertDefines(insertIncludes(readShaderSource(shaderPath + ".frag"), shaderSrcDir), defines);
+        if (programCache == null || !ProgramCache.isSupported()) {
+            final Program program = compileProgram(new ShaderSource(vertexSource), new ShaderSource(fragmentSource), null);
+            programs.put(permutation, program);
+            programDefines.put(program, new HashMap<>(defines));
+            return program;
+        }
+        Program program = programCache.load(vertexSource, fragmentSource);
+        if (program == null) {
+            final long start = System.nanoTime();
+            program = compileProgram(new ShaderSource(vertexSource), new ShaderSource(fragmentSource), programCache);
+            programCache.store(vertexSource, fragmentSource, program, System.nanoTime() - start);
+        }
+        programs.put(permutation, program);
+        programDefines.put(program, new HashMap<>(defines));
+        return program;
+    }
+
+    static String getPermutationName(String name, Map<String, String> defines) {
+        if (defines.isEmpty()) {
+            return name;
+        }
+        // Sort the defines so that the name doesn't depend on the map's order
+        final StringBuilder permutation = new StringBuilder(name).append('[');
+        for (Entry<String, String> define : new TreeMap<>(defines).entrySet()) {
+            if (permutation.charAt(permutation.length() - 1) != '[') {
+                permutation.append(',');
+            }
+            permutation.append(define.getKey()).append('=').append(define.getValue());
+        }
+        return permutation.append(']').toString();
+    }
+
+    static String insertDefines(String source, Map<String, String> defines) {
+        if (defines.isEmpty()) {
+            return source;
+        }
+        final StringBuilder lines = new StringBuilder();
+        for (Entry<String, String> define : new TreeMap<>(defines).entrySet()) {
+            lines.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
+        }
+        // The version directive must come first, so insert after it if present
+        final int version = source.indexOf("#version");
+        if (version < 0) {
+            return lines.append(source).toString();
+        }
+        final int lineEnd = source.indexOf('\n', version);
+        if (lineEnd < 0) {
+            return source + '\n' + lines;
+        }
+        return source.substring(0, lineEnd + 1) + lines + source.substring(lineEnd + 1);
+    }
+
+    /**
+     * Replaces the include directives of the shader source, lines of the form {@code #include "name"}, by the source of the named snippet. It is looked up in
+     * the shader directory, then in its parent for the snippets shared by all GLSL versions, such as the decoding of the geometry buffer for its layout. The
+     * defines are inserted after, so they apply to the snippets too.
+     *
+     * @param source The shader source
+     * @param shaderSrcDir The shader directory
+     * @return The source with the snippets included
+     */
+    static String insertIncludes(String source, String shaderSrcDir) {
+        final Matcher include = INCLUDE_PATTERN.matcher(source);
+        if (!include.find()) {
+            return source;
+        }
+        final StringBuffer included = new StringBuffer();
+        do {
+            final String name = include.group(1);
+            String path = shaderSrcDir + '/' + name;
+            if (RenderGraph.class.getResource(path) == null) {
+                path = shaderSrcDir.substring(0, shaderSrcDir.lastIndexOf('/') + 1) + name;
+            }
+            include.appendReplacement(included, Matcher.quoteReplacement(readShaderSource(path)));
+        } while (include.find());
+        return include.appendTail(included).toString();
+    }
+
+    private Program compileProgram(ShaderSource vertexSource, ShaderSource fragmentSource, ProgramCache cache) {
         final Shader vertex = context.newShader();
         vertex.create();
-        vertex.setSource(new ShaderSource(getClass().getResourceAsStream(shaderPath + ".vert")));
+        vertex.setSource(vertexSource);
         vertex.compile();
         final Shader fragment = context.newShader();
         fragment.create();
-        fragment.setSource(new ShaderSource(getClass().getResourceAsStream(shaderPath + ".frag")));
+        fragment.setSource(fragmentSource);
         fragment.compile();
         final Program program = context.newProgram();
         program.create();
+        if (cache != null) {
+            cache.prepare(program);
+        }
         program.attachShader(vertex);
         program.attachShader(fragment);
         program.link();
-        programs.put(name, program);
         return program;
     }
 
-    private static class Stage implements Comparable<Stage> {
-        private final Set<GraphNode> nodes = new HashSet<>();
-        private final int number;
-
-        private Stage(int number) {
-            this.number = number;
+    private static String readShaderSource(String path) {
+        try (InputStream input = RenderGraph.class.getResourceAsStream(path)) {
+            if (input == null) {
+                throw new IllegalArgumentException("Shader source not found: " + path);
+            }
+            final ByteArrayOutputStream source = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                source.write(buffer, 0, read);
+            }
+            return new String(source.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not read shader source: " + path, ex);
         }
+    }
 
-        private void addNode(GraphNode node) {
-            nodes.add(node);
-        }
+    private static class FramePrepareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final List<GraphNode> nodes;
+        private final List<View> nodeViews;
+        private final AttributeValues graphValues;
+        private final Map<View, AttributeValues> viewValues;
+        private final Object[] previous;
+        private final Object[] frameData;
+        private final int from;
+        private final int to;
 
-        public Set<GraphNode> getNodes() {
-            return nodes;
+        private FramePrepareTask(List<GraphNode> nodes, List<View> nodeViews, AttributeValues graphValues, Map<View, AttributeValues> viewValues,
+                                 Object[] previous, Object[] frameData, int from, int to) {
+            this.nodes = nodes;
+            this.nodeViews = nodeViews;
+            this.graphValues = graphValues;
+            this.viewValues = viewValues;
+            this.previous = previous;
+            this.frameData = frameData;
+            this.from = from;
+            this.to = to;
         }
 
-        private void render() {
-            for (GraphNode node : nodes) {
-                node.render();
+        @Override
+        protected void compute() {
+            if (to - from == 1 || getPool() == null) {
+                for (int i = from; i < to; i++) {
+                    final GraphNode node = nodes.get(i);
+                    final View view = nodeViews.get(i);
+                    frameData[i] = node.prepareFrame(new FrameAttributes(node, view, viewValues.get(view), graphValues), previous[i]);
+                }
+                return;
             }
+            final int middle = (from + to) / 2;
+            invokeAll(new FramePrepareTask(nodes, nodeViews, graphValues, viewValues, previous, frameData, from, middle),
+                    new FramePrepareTask(nodes, nodeViews, graphValues, viewValues, previous, frameData, middle, to));
         }
+    }
+
+    private static class PrepareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final List<GraphNode> nodes;
+        private final int from;
+        private final int to;
 
-        private int getNumber() {
-            return number;
+        private PrepareTask(List<GraphNode> nodes, int from, int to) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
         }
 
         @Override
-        public int compareTo(Stage o) {
-            return number - o.getNumber();
+        protected void compute() {
+            if (to - from == 1) {
+                nodes.get(from).prepare();
+                return;
+            }
+            final int middle = (from + to) / 2;
+            invokeAll(new PrepareTask(nodes, from, middle), new PrepareTask(nodes, middle, to));
         }
     }
 }
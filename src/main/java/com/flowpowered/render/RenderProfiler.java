@@ -0,0 +1,537 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Measures the time taken to render each node and each stage of a graph. A timestamp is recorded before each stage and after each node, so a node is timed
+ * from the end of the previous node to its own end, and a stage from its start to the end of its last node. When a graph has several views, the times of a
+ * frame are summed over the views.
+ * <p/>
+ * The timestamps are read asynchronously: a frame is only sampled once all of its timestamps are available, which for GPU timers is usually a few frames
+ * later. Frames whose timestamps are still unavailable after {@link #getMaxPendingFrames()} frames are dropped instead of stalling the rendering. The last
+ * {@link #getSampleCount()} samples of each node and stage are kept, and summarized in a {@link Snapshot} which is published to the listeners every {@link
+ * #getPublishInterval()} sampled frames.
+ * <p/>
+ * Enable by setting the profiler on the graph, see {@link RenderGraph#setProfiler(RenderProfiler)}.
+ */
+public class RenderProfiler {
+    private final Timer timer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Deque<FrameRecord> pendingFrames = new ArrayDeque<>();
+    private final Map<String, Samples> nodeSamples = new HashMap<>();
+    private final Map<Integer, Samples> stageSamples = new HashMap<>();
+    private final Samples frameSamples;
+    private final int sampleCount;
+    private int maxPendingFrames = 5;
+    private int publishInterval = 60;
+    private FrameRecord currentFrame;
+    private int stageStart;
+    private int stageNumber;
+    private long sampledFrames = 0;
+    private long droppedFrames = 0;
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.<String, Timing>emptyMap(), Collections.<Integer, Timing>emptyMap(), new Timing(new long[0]));
+
+    /**
+     * Creates a new profiler using the timer, keeping the given number of samples for each node and stage.
+     *
+     * @param timer The timer to record the timestamps with
+     * @param sampleCount The number of samples to keep
+     */
+    public RenderProfiler(Timer timer, int sampleCount) {
+        if (sampleCount <= 0) {
+            throw new IllegalArgumentException("Sample count must be greater than zero");
+        }
+        this.timer = timer;
+        this.sampleCount = sampleCount;
+        frameSamples = new Samples(sampleCount);
+    }
+
+    /**
+     * Creates a new profiler keeping 120 samples, using GPU timer queries if they are supported by the current OpenGL context, else the CPU clock.
+     *
+     * @return The new profiler
+     */
+    public static RenderProfiler create() {
+        return new RenderProfiler(GLTimer.isSupported() ? new GLTimer() : new CPUTimer(), 120);
+    }
+
+    public Timer getTimer() {
+        return timer;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getMaxPendingFrames() {
+        return maxPendingFrames;
+    }
+
+    public void setMaxPendingFrames(int maxPendingFrames) {
+        if (maxPendingFrames <= 0) {
+            throw new IllegalArgumentException("Max pending frames must be greater than zero");
+        }
+        this.maxPendingFrames = maxPendingFrames;
+    }
+
+    public int getPublishInterval() {
+        return publishInterval;
+    }
+
+    public void setPublishInterval(int publishInterval) {
+        if (publishInterval <= 0) {
+            throw new IllegalArgumentException("Publish interval must be greater than zero");
+        }
+        this.publishInterval = publishInterval;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the last published snapshot. This can be called from any thread.
+     *
+     * @return The last snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public long getSampledFrames() {
+        return sampledFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    void beginFrame() {
+        if (currentFrame != null) {
+            throw new IllegalStateException("Frame has already begun");
+        }
+        currentFrame = new FrameRecord();
+    }
+
+    void beginStage(int number) {
+        stageNumber = number;
+        stageStart = currentFrame.timestamp(timer);
+    }
+
+    void endNode(String name) {
+        final int end = currentFrame.timestamp(timer);
+        currentFrame.spans.add(new Span(name, end - 1, end));
+    }
+
+    void endStage() {
+        currentFrame.spans.add(new Span(stageNumber, stageStart, currentFrame.stampCount - 1));
+    }
+
+    void endFrame() {
+        if (currentFrame == null) {
+            throw new IllegalStateException("Frame hasn't begun");
+        }
+        if (currentFrame.stampCount > 0) {
+            pendingFrames.addLast(currentFrame);
+        }
+        currentFrame = null;
+        // Sample the frames in order, as soon as all their timestamps are available
+        while (!pendingFrames.isEmpty() && pendingFrames.peekFirst().isAvailable(timer)) {
+            final FrameRecord frame = pendingFrames.pollFirst();
+            sample(frame);
+            frame.release(timer);
+        }
+        // Don't wait any longer for frames that are too old
+        while (pendingFrames.size() > maxPendingFrames) {
+            pendingFrames.pollFirst().release(timer);
+            droppedFrames++;
+        }
+    }
+
+    private void sample(FrameRecord frame) {
+        final Map<String, Long> nodeTimes = new HashMap<>();
+        final Map<Integer, Long> stageTimes = new HashMap<>();
+        for (Span span : frame.spans) {
+            final long time = frame.getTime(timer, span.end) - frame.getTime(timer, span.start);
+            if (span.node != null) {
+                add(nodeTimes, span.node, time);
+            } else {
+                add(stageTimes, span.stage, time);
+            }
+        }
+        for (Entry<String, Long> entry : nodeTimes.entrySet()) {
+            getSamples(nodeSamples, entry.getKey()).add(entry.getValue());
+        }
+        for (Entry<Integer, Long> entry : stageTimes.entrySet()) {
+            getSamples(stageSamples, entry.getKey()).add(entry.getValue());
+        }
+        frameSamples.add(frame.getTime(timer, frame.stampCount - 1) - frame.getTime(timer, 0));
+        if (++sampledFrames % publishInterval == 0) {
+            publish();
+        }
+    }
+
+    private <K> Samples getSamples(Map<K, Samples> samples, K key) {
+        Samples keySamples = samples.get(key);
+        if (keySamples == null) {
+            keySamples = new Samples(sampleCount);
+            samples.put(key, keySamples);
+        }
+        return keySamples;
+    }
+
+    private void publish() {
+        final Map<String, Timing> nodes = new HashMap<>();
+        for (Entry<String, Samples> entry : nodeSamples.entrySet()) {
+            nodes.put(entry.getKey(), entry.getValue().toTiming());
+        }
+        final Map<Integer, Timing> stages = new HashMap<>();
+        for (Entry<Integer, Samples> entry : stageSamples.entrySet()) {
+            stages.put(entry.getKey(), entry.getValue().toTiming());
+        }
+        final Snapshot published = new Snapshot(sampledFrames, nodes, stages, frameSamples.toTiming());
+        snapshot = published;
+        for (Listener listener : listeners) {
+            listener.onSnapshot(published);
+        }
+    }
+
+    /**
+     * Clears the samples and the pending frames, without publishing.
+     */
+    public void reset() {
+        for (FrameRecord frame : pendingFrames) {
+            frame.release(timer);
+        }
+        pendingFrames.clear();
+        nodeSamples.clear();
+        stageSamples.clear();
+        frameSamples.clear();
+        sampledFrames = 0;
+        droppedFrames = 0;
+    }
+
+    /**
+     * Releases the pending frames and destroys the timer.
+     */
+    public void destroy() {
+        reset();
+        timer.destroy();
+    }
+
+    private static <K> void add(Map<K, Long> times, K key, long time) {
+        final Long previous = times.get(key);
+        times.put(key, previous != null ? previous + time : time);
+    }
+
+    /**
+     * A source of timestamps. Timestamps are recorded in the order the rendering commands are issued, and may only become available later.
+     */
+    public static interface Timer {
+        /**
+         * Records a timestamp.
+         *
+         * @return The handle of the timestamp
+         */
+        int timestamp();
+
+        boolean isAvailable(int handle);
+
+        /**
+         * Returns the timestamp in nanoseconds. Only valid once available.
+         *
+         * @param handle The handle of the timestamp
+         * @return The time in nanoseconds
+         */
+        long getTime(int handle);
+
+        void release(int handle);
+
+        void destroy();
+    }
+
+    /**
+     * A timer using the CPU clock, for when GPU timer queries aren't available. Since it measures when the commands are issued, not when they are executed,
+     * the times are only indicative for a driver that queues commands.
+     */
+    public static class CPUTimer implements Timer {
+        private long[] times = new long[64];
+        private int[] freeHandles = new int[64];
+        private int freeCount = 0;
+        private int handleCount = 0;
+
+        @Override
+        public int timestamp() {
+            final int handle;
+            if (freeCount > 0) {
+                handle = freeHandles[--freeCount];
+            } else {
+                if (handleCount == times.length) {
+                    times = Arrays.copyOf(times, handleCount * 2);
+                    freeHandles = Arrays.copyOf(freeHandles, handleCount * 2);
+                }
+                handle = handleCount++;
+            }
+            times[handle] = System.nanoTime();
+            return handle;
+        }
+
+        @Override
+        public boolean isAvailable(int handle) {
+            return true;
+        }
+
+        @Override
+        public long getTime(int handle) {
+            return times[handle];
+        }
+
+        @Override
+        public void release(int handle) {
+            freeHandles[freeCount++] = handle;
+        }
+
+        @Override
+        public void destroy() {
+            freeCount = 0;
+            handleCount = 0;
+        }
+    }
+
+    public static interface Listener {
+        /**
+         * Called from the rendering thread when a new snapshot is published.
+         *
+         * @param snapshot The new snapshot
+         */
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    /**
+     * The timings of the nodes and stages over the last samples, in nanoseconds.
+     */
+    public static class Snapshot {
+        private final long sampledFrames;
+        private final Map<String, Timing> nodes;
+        private final Map<Integer, Timing> stages;
+        private final Timing frame;
+
+        private Snapshot(long sampledFrames, Map<String, Timing> nodes, Map<Integer, Timing> stages, Timing frame) {
+            this.sampledFrames = sampledFrames;
+            this.nodes = Collections.unmodifiableMap(nodes);
+            this.stages = Collections.unmodifiableMap(stages);
+            this.frame = frame;
+        }
+
+        /**
+         * Returns the number of frames sampled since the profiler was created or reset, when this snapshot was taken.
+         *
+         * @return The number of sampled frames
+         */
+        public long getSampledFrames() {
+            return sampledFrames;
+        }
+
+        public Map<String, Timing> getNodeTimings() {
+            return nodes;
+        }
+
+        public Timing getNodeTiming(String node) {
+            return nodes.get(node);
+        }
+
+        public Map<Integer, Timing> getStageTimings() {
+            return stages;
+        }
+
+        public Timing getStageTiming(int stage) {
+            return stages.get(stage);
+        }
+
+        /**
+         * Returns the timing of the whole frame, from the start of the first stage to the end of the last node.
+         *
+         * @return The frame timing
+         */
+        public Timing getFrameTiming() {
+            return frame;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{sampledFrames=" + sampledFrames + ", frame=" + frame + ", nodes=" + nodes + ", stages=" + stages + '}';
+        }
+    }
+
+    /**
+     * A summary of the samples of a node or stage, in nanoseconds.
+     */
+    public static class Timing {
+        private final long[] sorted;
+        private final double average;
+
+        private Timing(long[] sorted) {
+            this.sorted = sorted;
+            long sum = 0;
+            for (long sample : sorted) {
+                sum += sample;
+            }
+            average = sorted.length > 0 ? (double) sum / sorted.length : 0;
+        }
+
+        public int getSampleCount() {
+            return sorted.length;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+
+        public long getMin() {
+            return sorted.length > 0 ? sorted[0] : 0;
+        }
+
+        public long getMax() {
+            return sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+        }
+
+        /**
+         * Returns the sample at the given percentile, using the nearest rank.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The sample at the percentile
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(rank - 1, 0)];
+        }
+
+        public long getMedian() {
+            return getPercentile(50);
+        }
+
+        @Override
+        public String toString() {
+            return "Timing{average=" + average + ", median=" + getMedian() + ", 95th=" + getPercentile(95) + ", max=" + getMax() + '}';
+        }
+    }
+
+    private static class Samples {
+        private final long[] samples;
+        private int count = 0;
+        private int next = 0;
+
+        private Samples(int size) {
+            samples = new long[size];
+        }
+
+        private void add(long sample) {
+            samples[next] = sample;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        private void clear() {
+            count = 0;
+            next = 0;
+        }
+
+        private Timing toTiming() {
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return new Timing(sorted);
+        }
+    }
+
+    private static class FrameRecord {
+        private int[] stamps = new int[32];
+        private int stampCount = 0;
+        private final List<Span> spans = new ArrayList<>();
+
+        private int timestamp(Timer timer) {
+            if (stampCount == stamps.length) {
+                stamps = Arrays.copyOf(stamps, stampCount * 2);
+            }
+            stamps[stampCount] = timer.timestamp();
+            return stampCount++;
+        }
+
+        private long getTime(Timer timer, int index) {
+            return timer.getTime(stamps[index]);
+        }
+
+        private boolean isAvailable(Timer timer) {
+            // Timestamps become available in order, so the last one is the last to be
+            return timer.isAvailable(stamps[stampCount - 1]);
+        }
+
+        private void release(Timer timer) {
+            for (int i = 0; i < stampCount; i++) {
+                timer.release(stamps[i]);
+            }
+        }
+    }
+
+    private static class Span {
+        private final String node;
+        private final int stage;
+        private final int start;
+        private final int end;
+
+        private Span(String node, int start, int end) {
+            this.node = node;
+            stage = -1;
+            this.start = start;
+            this.end = end;
+        }
+
+        private Span(int stage, int start, int end) {
+            node = null;
+            this.stage = stage;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
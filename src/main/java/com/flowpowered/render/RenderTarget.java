@@ -0,0 +1,130 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import com.flowpowered.caustic.api.Action;
+import com.flowpowered.caustic.api.gl.Context;
+import com.flowpowered.caustic.api.gl.FrameBuffer;
+import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
+
+/**
+ * A texture and a frame buffer it is attached to, handed out by a {@link RenderTargetPool}.
+ */
+public class RenderTarget {
+    private final Texture texture;
+    private final FrameBuffer frameBuffer;
+    private final InternalFormat format;
+    private final int width;
+    private final int height;
+    private final FilterMode filter;
+    long lastUsedFrame;
+
+    RenderTarget(Texture texture, FrameBuffer frameBuffer, InternalFormat format, int width, int height, FilterMode filter) {
+        this.texture = texture;
+        this.frameBuffer = frameBuffer;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.filter = filter;
+    }
+
+    public Texture getTexture() {
+        return texture;
+    }
+
+    public FrameBuffer getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    public InternalFormat getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public FilterMode getFilter() {
+        return filter;
+    }
+
+    public long getByteSize() {
+        return getByteSize(format, width, height);
+    }
+
+    void destroy() {
+        frameBuffer.destroy();
+        texture.destroy();
+    }
+
+    static long getByteSize(InternalFormat format, int width, int height) {
+        return (long) format.getBytesPerPixel() * width * height;
+    }
+
+    /**
+     * Binds the frame buffer of a render target, which can be changed between pipeline runs.
+     */
+    public static class BindRenderTargetAction extends Action {
+        private RenderTarget target;
+
+        public BindRenderTargetAction(RenderTarget target) {
+            this.target = target;
+        }
+
+        public void setTarget(RenderTarget target) {
+            this.target = target;
+        }
+
+        @Override
+        public void execute(Context context) {
+            target.getFrameBuffer().bind();
+        }
+    }
+
+    /**
+     * Unbinds the frame buffer of a render target, which can be changed between pipeline runs.
+     */
+    public static class UnbindRenderTargetAction extends Action {
+        private RenderTarget target;
+
+        public UnbindRenderTargetAction(RenderTarget target) {
+            this.target = target;
+        }
+
+        public void setTarget(RenderTarget target) {
+            this.target = target;
+        }
+
+        @Override
+        public void execute(Context context) {
+            target.getFrameBuffer().unbind();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.flowpowered.caustic.api.gl.Context;
+import com.flowpowered.caustic.api.gl.FrameBuffer;
+import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
+import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
+import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
+import com.flowpowered.caustic.api.gl.Texture.WrapMode;
+
+/**
+ * A pool of transient render targets, shared by all the nodes of a graph. Targets are keyed by format, size and filter, and are reused as soon as they are
+ * released.
+ * <p/>
+ * Targets used only during the rendering of a node should be released at the end of {@link GraphNode#render()}, so that the next node can reuse the memory.
+ * Targets used as outputs are released by the pool itself once the last stage that contains a dependent of the node has been rendered (see {@link
+ * GraphNode#acquireOutputTarget(String, InternalFormat, com.flowpowered.math.vector.Vector2i)}), except for the outputs without dependents, which are kept by
+ * the {@link View} being rendered. Since the stages are rendered in the same order every frame, the same targets are handed out for the same uses from one
+ * frame to the next.
+ * <p/>
+ * Released targets that weren't used during a frame are destroyed at the end of it, which frees the memory of old sizes after a resize.
+ */
+public class RenderTargetPool {
+    private final Context context;
+    private final Map<TargetKey, Deque<RenderTarget>> freeTargets = new HashMap<>();
+    private final List<RenderTarget> targets = new ArrayList<>();
+    private final List<List<RenderTarget>> pendingReleases = new ArrayList<>();
+    private final List<RenderTarget> frameReleases = new ArrayList<>();
+    private long frame = 0;
+    private long allocatedBytes = 0;
+    private long frameRequestedBytes = 0;
+    private long requestedBytes = 0;
+
+    public RenderTargetPool(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Acquires a linearly filtered target of the given format and size, reusing a released one if possible.
+     *
+     * @param format The format of the texture
+     * @param width The width of the texture
+     * @param height The height of the texture
+     * @return The render target
+     */
+    public RenderTarget acquire(InternalFormat format, int width, int height) {
+        return acquire(format, width, height, FilterMode.LINEAR);
+    }
+
+    /**
+     * Acquires a target of the given format, size and filter, reusing a released one if possible. The filter is used for both minification and
+     * magnification, and is set again on reuse, so that changes made by the previous user don't leak to the next.
+     *
+     * @param format The format of the texture
+     * @param width The width of the texture
+     * @param height The height of the texture
+     * @param filter The filter of the texture
+     * @return The render target
+     */
+    public RenderTarget acquire(InternalFormat format, int width, int height, FilterMode filter) {
+        frameRequestedBytes += RenderTarget.getByteSize(format, width, height);
+        final Deque<RenderTarget> free = freeTargets.get(new TargetKey(format, width, height, filter));
+        RenderTarget target = free != null ? free.pollLast() : null;
+        if (target == null) {
+            target = createTarget(format, width, height, filter);
+        } else {
+            target.getTexture().setFilters(filter, filter);
+        }
+        target.lastUsedFrame = frame;
+        return target;
+    }
+
+    /**
+     * Releases the target, making it available for reuse.
+     *
+     * @param target The target to release
+     */
+    public void release(RenderTarget target) {
+        final TargetKey key = new TargetKey(target.getFormat(), target.getWidth(), target.getHeight(), target.getFilter());
+        Deque<RenderTarget> free = freeTargets.get(key);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            freeTargets.put(key, free);
+        }
+        free.addLast(target);
+    }
+
+    /**
+     * Releases the target once the given stage has been rendered. Targets scheduled for release after a stage that isn't rendered this frame are released at
+     * the end of the frame.
+     *
+     * @param target The target to release
+     * @param stage The number of the last stage that uses the target
+     */
+    public void releaseAfterStage(RenderTarget target, int stage) {
+        if (stage < 0 || stage == Integer.MAX_VALUE) {
+            frameReleases.add(target);
+            return;
+        }
+        while (pendingReleases.size() <= stage) {
+            pendingReleases.add(new ArrayList<RenderTarget>());
+        }
+        pendingReleases.get(stage).add(target);
+    }
+
+    void endStage(int stage) {
+        if (stage >= pendingReleases.size()) {
+            return;
+        }
+        final List<RenderTarget> toRelease = pendingReleases.get(stage);
+        for (RenderTarget target : toRelease) {
+            release(target);
+        }
+        toRelease.clear();
+    }
+
+    void endFrame() {
+        for (List<RenderTarget> toRelease : pendingReleases) {
+            for (RenderTarget target : toRelease) {
+                release(target);
+            }
+            toRelease.clear();
+        }
+        for (RenderTarget target : frameReleases) {
+            release(target);
+        }
+        frameReleases.clear();
+        // Destroy the free targets that weren't used during the frame, the others are still held by a view
+        for (Deque<RenderTarget> free : freeTargets.values()) {
+            for (Iterator<RenderTarget> iterator = free.iterator(); iterator.hasNext(); ) {
+                final RenderTarget target = iterator.next();
+                if (target.lastUsedFrame < frame) {
+                    allocatedBytes -= target.getByteSize();
+                    target.destroy();
+                    targets.remove(target);
+                    iterator.remove();
+                }
+            }
+        }
+        requestedBytes = frameRequestedBytes;
+        frameRequestedBytes = 0;
+        frame++;
+    }
+
+    /**
+     * Returns the memory that the targets acquired during the last frame would have used if each use had its own texture, in bytes.
+     *
+     * @return The memory required without aliasing
+     */
+    public long getRequestedBytes() {
+        return requestedBytes;
+    }
+
+    /**
+     * Returns the memory actually used by the textures of the pool, in bytes.
+     *
+     * @return The memory allocated by the pool
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public int getTargetCount() {
+        return targets.size();
+    }
+
+    void destroy() {
+        for (RenderTarget target : targets) {
+            target.destroy();
+        }
+        targets.clear();
+        freeTargets.clear();
+        pendingReleases.clear();
+        frameReleases.clear();
+        allocatedBytes = 0;
+    }
+
+    private RenderTarget createTarget(InternalFormat format, int width, int height, FilterMode filter) {
+        final Texture texture = context.newTexture();
+        texture.create();
+        texture.setFormat(format);
+        texture.setFilters(filter, filter);
+        texture.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
+        texture.setImageData(null, width, height);
+        final FrameBuffer frameBuffer = context.newFrameBuffer();
+        frameBuffer.create();
+        frameBuffer.attach(format.getFormat() == Format.DEPTH ? AttachmentPoint.DEPTH : AttachmentPoint.COLOR0, texture);
+        final RenderTarget target = new RenderTarget(texture, frameBuffer, format, width, height, filter);
+        targets.add(target);
+        allocatedBytes += target.getByteSize();
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderTargetPool{targets=" + targets.size() + ", requestedBytes=" + requestedBytes + ", allocatedBytes=" + allocatedBytes + '}';
+    }
+
+    private static class TargetKey {
+        private final InternalFormat format;
+        private final int width;
+        private final int height;
+        private final FilterMode filter;
+
+        private TargetKey(InternalFormat format, int width, int height, FilterMode filter) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TargetKey)) {
+                return false;
+            }
+            final TargetKey targetKey = (TargetKey) o;
+            return width == targetKey.width && height == targetKey.height && format == targetKey.format && filter == targetKey.filter;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = format.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + filter.hashCode();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.List;
+
+import com.flowpowered.math.vector.Vector2i;
+
+import com.flowpowered.caustic.api.util.Rectangle;
+
+/**
+ * Packs shadow maps of different sizes into the regions of a single texture. The regions are placed left to right in rows, in the order of the sizes, with a
+ * one texel gutter between them so that filtering at their edges doesn't read the neighbouring regions. The row width that gives the smallest texture is
+ * used.
+ */
+public class ShadowAtlas {
+    private static final int GUTTER = 1;
+    // The x, y, width and height of each region
+    private int[] regions = new int[0];
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * Packs the regions for the sizes, replacing the previous ones.
+     *
+     * @param sizes The size of each region
+     * @param maxSize The maximum width and height of the texture
+     * @throws IllegalArgumentException If there are no sizes, a size isn't positive, or the regions don't fit in the maximum size
+     */
+    public void pack(List<Vector2i> sizes, int maxSize) {
+        final int count = sizes.size();
+        if (count <= 0) {
+            throw new IllegalArgumentException("At least one region is required");
+        }
+        int maxWidth = 0;
+        for (Vector2i size : sizes) {
+            if (size.getX() <= 0 || size.getY() <= 0) {
+                throw new IllegalArgumentException("Region sizes must be positive");
+            }
+            maxWidth = Math.max(maxWidth, size.getX());
+        }
+        final int[] candidate = new int[count * 4];
+        int bestArea = -1;
+        int bestSide = 0;
+        // Try each number of columns, the row width being enough for that many of the widest region, preferring the wider textures on ties
+        for (int columns = 1; columns <= count; columns++) {
+            final Vector2i packed = packRows(sizes, columns * (maxWidth + GUTTER) - GUTTER, candidate);
+            final int side = Math.max(packed.getX(), packed.getY());
+            if (side > maxSize) {
+                continue;
+            }
+            final int area = packed.getX() * packed.getY();
+            if (bestArea < 0 || area < bestArea || area == bestArea && side <= bestSide) {
+                bestArea = area;
+                bestSide = side;
+                regions = candidate.clone();
+                width = packed.getX();
+                height = packed.getY();
+            }
+        }
+        if (bestArea < 0) {
+            throw new IllegalArgumentException("The regions don't fit in a texture of size " + maxSize);
+        }
+    }
+
+    private static Vector2i packRows(List<Vector2i> sizes, int rowWidth, int[] regions) {
+        int x = 0;
+        int y = 0;
+        int rowHeight = 0;
+        int width = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            final Vector2i size = sizes.get(i);
+            // Start a new row when this one is full
+            if (x > 0 && x + size.getX() > rowWidth) {
+                x = 0;
+                y += rowHeight + GUTTER;
+                rowHeight = 0;
+            }
+            regions[i * 4] = x;
+            regions[i * 4 + 1] = y;
+            regions[i * 4 + 2] = size.getX();
+            regions[i * 4 + 3] = size.getY();
+            width = Math.max(width, x + size.getX());
+            rowHeight = Math.max(rowHeight, size.getY());
+            x += size.getX() + GUTTER;
+        }
+        return new Vector2i(width, y + rowHeight);
+    }
+
+    /**
+     * Returns the number of regions packed by the last call to {@link #pack(List, int)}.
+     *
+     * @return The number of regions
+     */
+    public int getRegionCount() {
+        return regions.length / 4;
+    }
+
+    /**
+     * Returns the region of the texture for the size at the index, in texels.
+     *
+     * @param index The index of the region
+     * @return The region
+     */
+    public Rectangle getRegion(int index) {
+        return new Rectangle(regions[index * 4], regions[index * 4 + 1], regions[index * 4 + 2], regions[index * 4 + 3]);
+    }
+
+    /**
+     * Returns the size of the texture that holds all the regions.
+     *
+     * @return The texture size
+     */
+    public Vector2i getSize() {
+        return new Vector2i(width, height);
+    }
+}
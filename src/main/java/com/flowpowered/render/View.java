@@ -0,0 +1,176 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.flowpowered.caustic.api.gl.Texture;
+
+import com.flowpowered.render.GraphScheduler.ActiveNodes;
+
+/**
+ * A view of the scene rendered by a graph, such as the main view, a minimap or a monitor. Every view is rendered by the same nodes, with the programs,
+ * meshes and textures of the nodes shared between them. The attributes of a view, usually the camera, the output size and the models, override those of the
+ * graph while the view is rendered. Attributes set on the nodes themselves still take precedence.
+ * <p/>
+ * A view can pick its own sinks, such as a minimap that only needs the lit scene and not the screen node. Only the nodes that they depend on are then updated
+ * and rendered for the view, instead of the active nodes of the graph.
+ * <p/>
+ * The outputs of the sinks of the view, and of the nodes without dependents, are the results of the view. They are kept until the view is rendered again, and
+ * can be obtained with {@link #getOutput(String, String)}.
+ */
+public class View extends AbstractAttributeHolder {
+    private final RenderGraph graph;
+    private final String name;
+    private final Map<GraphNode, Map<String, RenderTarget>> outputs = new HashMap<>();
+    private final ActiveNodes activeNodes = new ActiveNodes();
+
+    public View(RenderGraph graph, String name) {
+        this.graph = graph;
+        this.name = name;
+    }
+
+    public RenderGraph getGraph() {
+        return graph;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    Object getAttributeRaw(int slot) {
+        return getAttributeValues().get(slot);
+    }
+
+    @Override
+    Object lookupAttribute(int slot) {
+        final Object attribute = getAttributeRaw(slot);
+        return attribute != null ? attribute : graph.getAttributeRaw(slot);
+    }
+
+    void copyAttributesFrom(AttributeValues values) {
+        getAttributeValues().copyFrom(values);
+    }
+
+    long getAttributeVersion(int slot) {
+        return getAttributeValues().getVersion(slot);
+    }
+
+    /**
+     * Marks the node as a sink of this view. Once at least one sink is set, only the sinks and the nodes they depend on, directly or not, are updated and
+     * rendered for this view, whatever the sinks of the graph.
+     *
+     * @param node The name of the sink node
+     */
+    public void addSink(String node) {
+        activeNodes.addSink(getExistingNode(node));
+    }
+
+    public void removeSink(String node) {
+        activeNodes.removeSink(getExistingNode(node));
+    }
+
+    /**
+     * Returns the names of the sinks of this view, empty if it renders the active nodes of the graph.
+     *
+     * @return The names of the sinks
+     */
+    public Set<String> getSinks() {
+        final Set<String> sinks = new HashSet<>();
+        for (GraphNode sink : activeNodes.getSinks()) {
+            sinks.add(sink.getName());
+        }
+        return sinks;
+    }
+
+    boolean isSink(GraphNode node) {
+        return activeNodes.getSinks().contains(node);
+    }
+
+    void removeSink(GraphNode node) {
+        activeNodes.removeSink(node);
+    }
+
+    /**
+     * Returns the nodes picked by the sinks of this view, or null if it has none.
+     *
+     * @return The active nodes of the view, or null
+     */
+    ActiveNodes getActiveNodes() {
+        return activeNodes.isEmpty() ? null : activeNodes;
+    }
+
+    private GraphNode getExistingNode(String name) {
+        final GraphNode node = graph.getNode(name);
+        if (node == null) {
+            throw new IllegalArgumentException("No node named \"" + name + "\"");
+        }
+        return node;
+    }
+
+    /**
+     * Returns the texture of the output of the node from the last time this view was rendered, or the black dummy if there is none. Only the outputs of the
+     * sinks of the view and of the nodes without dependents are kept. The texture is only valid until the view is rendered again.
+     *
+     * @param node The name of the node
+     * @param output The name of the output
+     * @return The texture of the output
+     */
+    public Texture getOutput(String node, String output) {
+        final GraphNode graphNode = getExistingNode(node);
+        final Map<String, RenderTarget> nodeOutputs = outputs.get(graphNode);
+        final RenderTarget target = nodeOutputs != null ? nodeOutputs.get(output) : null;
+        return target != null ? target.getTexture() : graph.getBlackDummy();
+    }
+
+    void retainOutput(GraphNode node, String output, RenderTarget target) {
+        Map<String, RenderTarget> nodeOutputs = outputs.get(node);
+        if (nodeOutputs == null) {
+            nodeOutputs = new HashMap<>();
+            outputs.put(node, nodeOutputs);
+        }
+        final RenderTarget previous = nodeOutputs.put(output, target);
+        if (previous != null && previous != target) {
+            graph.getRenderTargetPool().release(previous);
+        }
+    }
+
+    void releaseOutputs() {
+        final RenderTargetPool pool = graph.getRenderTargetPool();
+        for (Map<String, RenderTarget> nodeOutputs : outputs.values()) {
+            for (RenderTarget target : nodeOutputs.values()) {
+                pool.release(target);
+            }
+        }
+        outputs.clear();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
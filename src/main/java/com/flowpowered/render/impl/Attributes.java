@@ -0,0 +1,71 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.render.AttributeKey;
+import com.flowpowered.render.Light;
+import com.flowpowered.render.ModelCuller;
+import com.flowpowered.render.OcclusionCuller;
+
+import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.model.Model;
+
+/**
+ * Keys for the attributes shared by the nodes, usually set on the graph.
+ */
+public final class Attributes {
+    public static final AttributeKey<Camera> CAMERA = AttributeKey.create("camera", Camera.class);
+    public static final AttributeKey<Vector2i> OUTPUT_SIZE = AttributeKey.create("outputSize", Vector2i.class);
+    public static final AttributeKey<Vector3f> LIGHT_DIRECTION = AttributeKey.create("lightDirection", Vector3f.class, LightingNode.DEFAULT_LIGHT_DIRECTION);
+    public static final AttributeKey<Collection<Model>> MODELS = createModelsKey("models");
+    public static final AttributeKey<Collection<Model>> TRANSPARENT_MODELS = createModelsKey("transparentModels");
+    public static final AttributeKey<Collection<Model>> GUI_MODELS = createModelsKey("guiModels");
+    // The point and spot lights shaded along with the directional one, binned into clusters when each frame is prepared, so the lights and the list can be
+    // changed in place
+    @SuppressWarnings("unchecked")
+    public static final AttributeKey<List<Light>> LIGHTS = AttributeKey.create("lights", (Class<List<Light>>) (Class<?>) List.class, Collections.<Light>emptyList());
+    // The layout of the normals and materials written by the models and read by the following nodes
+    public static final AttributeKey<GBufferLayout> GBUFFER_LAYOUT = AttributeKey.create("gBufferLayout", GBufferLayout.class, GBufferLayout.STANDARD);
+    // Whether or not to draw the models that share a vertex array and material with a single instanced call, when supported
+    public static final AttributeKey<Boolean> INSTANCING = AttributeKey.create("instancing", Boolean.class, true);
+    // When set, the models are taken from the culler instead, and only the visible ones are rendered
+    public static final AttributeKey<ModelCuller> MODEL_CULLER = AttributeKey.create("modelCuller", ModelCuller.class);
+    public static final AttributeKey<ModelCuller> TRANSPARENT_MODEL_CULLER = AttributeKey.create("transparentModelCuller", ModelCuller.class);
+    // When set along with the model culler, the models hidden behind its occluders aren't rendered either
+    public static final AttributeKey<OcclusionCuller> OCCLUSION_CULLER = AttributeKey.create("occlusionCuller", OcclusionCuller.class);
+
+    private Attributes() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AttributeKey<Collection<Model>> createModelsKey(String name) {
+        return AttributeKey.create(name, (Class<Collection<Model>>) (Class<?>) Collection.class, Collections.<Model>emptyList());
+    }
+}
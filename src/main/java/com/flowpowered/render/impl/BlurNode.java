@@ -23,29 +23,37 @@
  */
 package com.flowpowered.render.impl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.render.AttributeKey;
 import com.flowpowered.render.GraphNode;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.RenderTarget;
+import com.flowpowered.render.RenderTarget.BindRenderTargetAction;
+import com.flowpowered.render.RenderTarget.UnbindRenderTargetAction;
+import com.flowpowered.render.RenderTargetPool;
+import com.flowpowered.render.RenderUtil;
 
 import com.flowpowered.caustic.api.Material;
 import com.flowpowered.caustic.api.Pipeline;
 import com.flowpowered.caustic.api.Pipeline.PipelineBuilder;
 import com.flowpowered.caustic.api.data.Uniform.BooleanUniform;
 import com.flowpowered.caustic.api.data.Uniform.FloatArrayUniform;
+import com.flowpowered.caustic.api.data.Uniform.FloatUniform;
 import com.flowpowered.caustic.api.data.Uniform.IntUniform;
 import com.flowpowered.caustic.api.data.Uniform.Vector2Uniform;
 import com.flowpowered.caustic.api.data.UniformHolder;
-import com.flowpowered.caustic.api.gl.Context;
-import com.flowpowered.caustic.api.gl.FrameBuffer;
-import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
 import com.flowpowered.caustic.api.gl.Program;
 import com.flowpowered.caustic.api.gl.Texture;
-import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
 import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
-import com.flowpowered.caustic.api.gl.Texture.WrapMode;
 import com.flowpowered.caustic.api.model.Model;
 import com.flowpowered.caustic.api.util.Rectangle;
 
@@ -66,32 +74,40 @@ public class BlurNode extends GraphNode {
             return 1;
         }
     };
-    private final FrameBuffer horizontalFrameBuffer;
-    private final FrameBuffer verticalFrameBuffer;
-    private final Texture intermediateTexture;
-    private final Texture colorsOutput;
+    public static final AttributeKey<KernelGenerator> KERNEL_GENERATOR = AttributeKey.create("kernelGenerator", KernelGenerator.class, GAUSSIAN_KERNEL);
+    public static final AttributeKey<Integer> KERNEL_SIZE = AttributeKey.create("kernelSize", Integer.class, 11);
+    public static final AttributeKey<InternalFormat> OUTPUT_FORMAT = AttributeKey.create("outputFormat", InternalFormat.class, InternalFormat.RGBA8);
+    public static final AttributeKey<Float> DEPTH_SHARPNESS = AttributeKey.create("depthSharpness", Float.class, 32f);
+    public static final AttributeKey<Boolean> PYRAMID = AttributeKey.create("pyramid", Boolean.class, false);
     private final Material horizontalMaterial;
+    private final Material verticalMaterial;
+    private final BindRenderTargetAction bindIntermediate = new BindRenderTargetAction(null);
+    private final BindRenderTargetAction bindOutput = new BindRenderTargetAction(null);
+    private final UnbindRenderTargetAction unbindOutput = new UnbindRenderTargetAction(null);
     private final Pipeline pipeline;
     private final Rectangle outputSize = new Rectangle();
+    private InternalFormat outputFormat;
     private final IntUniform halfKernelSizeUniform = new IntUniform("kernelSize", 0);
     private final FloatArrayUniform kernelUniform = new FloatArrayUniform("kernel", new float[]{});
     private final FloatArrayUniform offsetsUniform = new FloatArrayUniform("offsets", new float[]{});
     private final Vector2Uniform resolutionUniform = new Vector2Uniform("resolution", Vector2f.ONE);
+    private final Vector2Uniform projectionUniform = new Vector2Uniform("projection", Vector2f.ZERO);
+    private final FloatUniform depthSharpnessUniform = new FloatUniform("depthSharpness", 32);
+    // The blur is bilateral when the depths are connected, and also weighted by the normals when those are too
+    private boolean bilateral = false;
+    private boolean bilateralNormals = false;
+    private Map<String, String> programDefines = Collections.emptyMap();
+    private final Program downsampleProgram;
+    private final Program upsampleProgram;
+    private Texture colors;
+    // The levels of the pyramid mode, from the largest to the smallest, the output excluded
+    private final List<PyramidLevel> pyramidLevels = new ArrayList<>();
+    private Pipeline pyramidPipeline;
+    private boolean pyramid = false;
 
     public BlurNode(RenderGraph graph, String name) {
         super(graph, name);
         final Program blurProgram = graph.getProgram("blur");
-        final Context context = graph.getContext();
-        // Create the intermediate texture
-        intermediateTexture = context.newTexture();
-        intermediateTexture.create();
-        intermediateTexture.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        intermediateTexture.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
-        // Create the colors texture
-        colorsOutput = context.newTexture();
-        colorsOutput.create();
-        colorsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        colorsOutput.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
         // Create the horizontal material
         horizontalMaterial = new Material(blurProgram);
         UniformHolder uniforms = horizontalMaterial.getUniforms();
@@ -99,40 +115,40 @@ public class BlurNode extends GraphNode {
         uniforms.add(halfKernelSizeUniform);
         uniforms.add(kernelUniform);
         uniforms.add(resolutionUniform);
+        uniforms.add(projectionUniform);
+        uniforms.add(depthSharpnessUniform);
         uniforms.add(new BooleanUniform("direction", false));
         // Create the vertical material
-        final Material verticalMaterial = new Material(blurProgram);
-        verticalMaterial.addTexture(0, intermediateTexture);
+        verticalMaterial = new Material(blurProgram);
         uniforms = verticalMaterial.getUniforms();
         uniforms.add(offsetsUniform);
         uniforms.add(halfKernelSizeUniform);
         uniforms.add(kernelUniform);
         uniforms.add(resolutionUniform);
+        uniforms.add(projectionUniform);
+        uniforms.add(depthSharpnessUniform);
         uniforms.add(new BooleanUniform("direction", true));
         // Create the horizontal screen model
         final Model horizontalModel = new Model(graph.getScreen(), horizontalMaterial);
         // Create the vertical screen model
         final Model verticalModel = new Model(graph.getScreen(), verticalMaterial);
-        // Create the frame buffer
-        horizontalFrameBuffer = context.newFrameBuffer();
-        horizontalFrameBuffer.create();
-        horizontalFrameBuffer.attach(AttachmentPoint.COLOR0, intermediateTexture);
-        // Create the vertical frame buffer
-        verticalFrameBuffer = context.newFrameBuffer();
-        verticalFrameBuffer.create();
-        verticalFrameBuffer.attach(AttachmentPoint.COLOR0, colorsOutput);
-        // Create the pipeline
+        // Create the pipeline, the render targets are taken from the pool on each render
         pipeline = new PipelineBuilder()
                 .useViewPort(outputSize)
-                .bindFrameBuffer(horizontalFrameBuffer).renderModels(Arrays.asList(horizontalModel))
-                .bindFrameBuffer(verticalFrameBuffer).renderModels(Arrays.asList(verticalModel))
-                .unbindFrameBuffer(verticalFrameBuffer).build();
+                .doAction(bindIntermediate).renderModels(Arrays.asList(horizontalModel))
+                .doAction(bindOutput).renderModels(Arrays.asList(verticalModel))
+                .doAction(unbindOutput).build();
+        // Get the pyramid programs, the pipeline is built once the depth is known
+        downsampleProgram = graph.getProgram("blurDownsample");
+        upsampleProgram = graph.getProgram("blurUpsample");
     }
 
     @Override
-    public void update() {
-        updateKernel(getAttribute("kernelGenerator", GAUSSIAN_KERNEL), getAttribute("kernelSize", 11));
-        updateOutput(getAttribute("outputFormat", InternalFormat.RGBA8), this.<Vector2i>getAttribute("outputSize"));
+    protected void prepare() {
+        updateKernel(getAttribute(KERNEL_GENERATOR), getAttribute(KERNEL_SIZE));
+        updateOutput(getAttribute(OUTPUT_FORMAT), getAttribute(Attributes.OUTPUT_SIZE));
+        updateBilateral();
+        updatePyramid(getAttribute(PYRAMID), getAttribute(KERNEL_SIZE));
     }
 
     private void updateKernel(KernelGenerator kernelGenerator, int kernelSize) {
@@ -170,42 +186,188 @@ public class BlurNode extends GraphNode {
     }
 
     private void updateOutput(InternalFormat format, Vector2i size) {
-        if (format == colorsOutput.getInternalFormat() && size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
+        if (format == outputFormat && size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
             return;
         }
-        intermediateTexture.setFormat(format);
-        colorsOutput.setFormat(format);
-        intermediateTexture.setImageData(null, size.getX(), size.getY());
-        colorsOutput.setImageData(null, size.getX(), size.getY());
+        outputFormat = format;
         outputSize.setSize(size);
         resolutionUniform.set(size.toFloat());
     }
 
+    private void updateBilateral() {
+        final Map<String, GraphNode> inputs = getConnectedInputs();
+        bilateral = inputs.containsKey("depths");
+        bilateralNormals = bilateral && inputs.containsKey("normals");
+        if (!bilateral) {
+            return;
+        }
+        projectionUniform.set(RenderUtil.computeProjection(RenderUtil.getPlanes(getAttribute(Attributes.CAMERA))));
+        depthSharpnessUniform.set(getAttribute(DEPTH_SHARPNESS));
+    }
+
+    private void updatePyramid(boolean pyramid, int kernelSize) {
+        this.pyramid = pyramid;
+        if (!pyramid) {
+            return;
+        }
+        final int depth = getPyramidDepth(kernelSize, outputSize.getSize());
+        if (depth != pyramidLevels.size()) {
+            buildPyramid(depth);
+        }
+        // Each level is half the size of the previous one, rounded up
+        Vector2i size = outputSize.getSize();
+        for (PyramidLevel level : pyramidLevels) {
+            level.downsampleTexelSize.set(new Vector2f(0.5f / size.getX(), 0.5f / size.getY()));
+            size = new Vector2i((size.getX() + 1) / 2, (size.getY() + 1) / 2);
+            level.size.setSize(size);
+            level.upsampleTexelSize.set(new Vector2f(0.5f / size.getX(), 0.5f / size.getY()));
+        }
+    }
+
+    private void buildPyramid(int depth) {
+        pyramidLevels.clear();
+        for (int i = 0; i < depth; i++) {
+            pyramidLevels.add(new PyramidLevel());
+        }
+        // Downsample into each level, then upsample back from the smallest, into the output for the last pass
+        final PipelineBuilder builder = new PipelineBuilder();
+        for (PyramidLevel level : pyramidLevels) {
+            builder.useViewPort(level.size).doAction(level.bind).renderModels(Arrays.asList(new Model(graph.getScreen(), level.downsample)));
+        }
+        for (int i = depth - 1; i > 0; i--) {
+            final PyramidLevel previous = pyramidLevels.get(i - 1);
+            builder.useViewPort(previous.size).doAction(previous.bind).renderModels(Arrays.asList(new Model(graph.getScreen(), pyramidLevels.get(i).upsample)));
+        }
+        builder.useViewPort(outputSize).doAction(bindOutput).renderModels(Arrays.asList(new Model(graph.getScreen(), pyramidLevels.get(0).upsample)));
+        pyramidPipeline = builder.doAction(unbindOutput).build();
+    }
+
+    @Override
+    protected void apply() {
+        // Use the program variant with a constant kernel size, so that its loops can be unrolled, and the bilateral weights if needed
+        final Map<String, String> defines = new HashMap<>();
+        defines.put("KERNEL_SIZE", Integer.toString(halfKernelSizeUniform.get()));
+        if (bilateral) {
+            defines.put("BILATERAL", "1");
+        }
+        if (bilateralNormals) {
+            defines.put("BILATERAL_NORMALS", "1");
+            defines.putAll(getAttribute(Attributes.GBUFFER_LAYOUT).getDefines());
+        }
+        if (!defines.equals(programDefines)) {
+            final Program program = graph.getProgram("blur", defines);
+            horizontalMaterial.setProgram(program);
+            verticalMaterial.setProgram(program);
+            programDefines = defines;
+        }
+    }
+
     @Override
     protected void render() {
+        if (pyramid) {
+            renderPyramid();
+            return;
+        }
+        // The intermediate target is only needed during this node's render, the output until the dependents are rendered
+        final RenderTargetPool pool = graph.getRenderTargetPool();
+        final RenderTarget intermediate = pool.acquire(outputFormat, outputSize.getWidth(), outputSize.getHeight());
+        final RenderTarget output = acquireOutputTarget("colors", outputFormat, outputSize.getSize());
+        verticalMaterial.addTexture(0, intermediate.getTexture());
+        bindIntermediate.setTarget(intermediate);
+        bindOutput.setTarget(output);
+        unbindOutput.setTarget(output);
         pipeline.run(graph.getContext());
+        pool.release(intermediate);
+    }
+
+    private void renderPyramid() {
+        // The levels are only needed during this node's render, each is upsampled into once its downsampled contents have been read
+        final RenderTargetPool pool = graph.getRenderTargetPool();
+        Texture source = colors;
+        for (PyramidLevel level : pyramidLevels) {
+            level.target = pool.acquire(outputFormat, level.size.getWidth(), level.size.getHeight());
+            level.bind.setTarget(level.target);
+            level.downsample.addTexture(0, source);
+            source = level.target.getTexture();
+            level.upsample.addTexture(0, source);
+        }
+        final RenderTarget output = acquireOutputTarget("colors", outputFormat, outputSize.getSize());
+        bindOutput.setTarget(output);
+        unbindOutput.setTarget(output);
+        pyramidPipeline.run(graph.getContext());
+        for (PyramidLevel level : pyramidLevels) {
+            pool.release(level.target);
+            level.target = null;
+        }
+    }
+
+    /**
+     * Returns the number of levels used by the pyramid mode for the kernel size. Each level about doubles the radius of the blur, and the smallest level is
+     * kept at least one pixel wide.
+     *
+     * @param kernelSize The kernel size
+     * @param size The output size
+     * @return The pyramid depth
+     */
+    private static int getPyramidDepth(int kernelSize, Vector2i size) {
+        final int radius = (kernelSize - 1) / 2;
+        int depth = 1;
+        while (2 << depth < radius) {
+            depth++;
+        }
+        final int minSize = Math.min(size.getX(), size.getY());
+        while (depth > 1 && minSize >> depth < 1) {
+            depth--;
+        }
+        return depth;
     }
 
     @Override
     protected void destroy() {
-        horizontalFrameBuffer.destroy();
-        verticalFrameBuffer.destroy();
-        intermediateTexture.destroy();
-        colorsOutput.destroy();
     }
 
     @Input("colors")
     public void setColorsInput(Texture texture) {
         texture.checkCreated();
+        colors = texture;
         horizontalMaterial.addTexture(0, texture);
     }
 
+    @Input(value = "depths", format = Format.DEPTH)
+    public void setDepthsInput(Texture texture) {
+        texture.checkCreated();
+        horizontalMaterial.addTexture(1, texture);
+        verticalMaterial.addTexture(1, texture);
+    }
+
+    @Input("normals")
+    public void setNormalsInput(Texture texture) {
+        texture.checkCreated();
+        horizontalMaterial.addTexture(2, texture);
+        verticalMaterial.addTexture(2, texture);
+    }
+
     @Output("colors")
     public Texture getColorsOutput() {
-        return colorsOutput;
+        return getOutputTargetTexture("colors");
     }
 
     public static interface KernelGenerator {
         public float getWeight(float x, float radius);
     }
+
+    private class PyramidLevel {
+        private final Rectangle size = new Rectangle();
+        private final BindRenderTargetAction bind = new BindRenderTargetAction(null);
+        private final Material downsample = new Material(downsampleProgram);
+        private final Vector2Uniform downsampleTexelSize = new Vector2Uniform("halfTexelSize", Vector2f.ONE);
+        private final Material upsample = new Material(upsampleProgram);
+        private final Vector2Uniform upsampleTexelSize = new Vector2Uniform("halfTexelSize", Vector2f.ONE);
+        private RenderTarget target;
+
+        private PyramidLevel() {
+            downsample.getUniforms().add(downsampleTexelSize);
+            upsample.getUniforms().add(upsampleTexelSize);
+        }
+    }
 }
@@ -23,7 +23,17 @@
  */
 package com.flowpowered.render.impl;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GLContext;
 
 import com.flowpowered.math.imaginary.Quaternionf;
 import com.flowpowered.math.matrix.Matrix3f;
@@ -31,170 +41,280 @@ import com.flowpowered.math.matrix.Matrix4f;
 import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector2i;
 import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.render.AttributeKey;
+import com.flowpowered.render.InstancedRenderer;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.ShadowAtlas;
 
 import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.Material;
+import com.flowpowered.caustic.api.Pipeline;
 import com.flowpowered.caustic.api.Pipeline.PipelineBuilder;
-import com.flowpowered.caustic.api.data.Uniform.Matrix4Uniform;
-import com.flowpowered.caustic.api.data.Uniform.Vector2Uniform;
+import com.flowpowered.caustic.api.data.Uniform.FloatArrayUniform;
+import com.flowpowered.caustic.api.data.Uniform.IntUniform;
+import com.flowpowered.caustic.api.data.Uniform.Vector2ArrayUniform;
+import com.flowpowered.caustic.api.data.Uniform.Vector3ArrayUniform;
 import com.flowpowered.caustic.api.data.UniformHolder;
 import com.flowpowered.caustic.api.gl.Context;
-import com.flowpowered.caustic.api.gl.FrameBuffer;
-import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
-import com.flowpowered.caustic.api.gl.Texture;
-import com.flowpowered.caustic.api.gl.Texture.CompareMode;
-import com.flowpowered.caustic.api.gl.Texture.FilterMode;
-import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
-import com.flowpowered.caustic.api.gl.Texture.WrapMode;
+import com.flowpowered.caustic.api.gl.Program;
 import com.flowpowered.caustic.api.model.Model;
+import com.flowpowered.caustic.api.util.Rectangle;
 
+/**
+ * Shadow mapping with the view frustum split into cascades, each with its own light camera. The cascades are regions of a single depth texture, packed by a
+ * {@link ShadowAtlas}. With OpenGL 3.3 the casters are drawn once for all cascades, each model being instanced into every cascade, otherwise the cascades are
+ * drawn one after the other.
+ */
 public class CascadedShadowMappingNode extends ShadowMappingNode {
-    private final Texture lightDepthsTexture2;
-    private final Texture lightDepthsTexture3;
-    private final FrameBuffer depthFrameBuffer2;
-    private final FrameBuffer depthFrameBuffer3;
-    private final Matrix4Uniform lightViewMatrixUniform2 = new Matrix4Uniform("lightViewMatrix2", new Matrix4f());
-    private final Matrix4Uniform lightViewMatrixUniform3 = new Matrix4Uniform("lightViewMatrix3", new Matrix4f());
-    private final Matrix4Uniform lightProjectionMatrixUniform2 = new Matrix4Uniform("lightProjectionMatrix2", new Matrix4f());
-    private final Matrix4Uniform lightProjectionMatrixUniform3 = new Matrix4Uniform("lightProjectionMatrix3", new Matrix4f());
-    private final Vector2Uniform slicesUniform = new Vector2Uniform("slices", Vector2f.ZERO);
-    private final Camera camera2 = Camera.createOrthographic(50, -50, 50, -50, -50, 50);
-    private final Camera camera3 = Camera.createOrthographic(50, -50, 50, -50, -50, 50);
+    public static final int MAX_CASCADES = 8;
+    public static final AttributeKey<Integer> CASCADE_COUNT = AttributeKey.create("cascadeCount", Integer.class, 3);
+    // The size of each cascade in the shadow map, from the nearest, or empty for all of them to be the shadow map size
+    @SuppressWarnings("unchecked")
+    public static final AttributeKey<List<Vector2i>> CASCADE_SIZES = AttributeKey.create("cascadeSizes", (Class<List<Vector2i>>) (Class<?>) List.class,
+            Collections.<Vector2i>emptyList());
+    // The weight of the logarithmic split over the uniform one
+    private static final float SPLIT_CORRECTION = 0.7f;
+    private static final int CLIP_DISTANCES = 4;
+    private final IntUniform cascadeCountUniform = new IntUniform("cascadeCount", 0);
+    private final FloatArrayUniform slicesUniform = new FloatArrayUniform("slices", new float[]{});
+    // The transforms from the light view to the clip space of each cascade, which only differ by a scale and an offset
+    private final Vector3ArrayUniform cascadeScalesUniform = new Vector3ArrayUniform("cascadeScales", new Vector3f[]{});
+    private final Vector3ArrayUniform cascadeOffsetsUniform = new Vector3ArrayUniform("cascadeOffsets", new Vector3f[]{});
+    // The regions of the cascades in the shadow map, in texture coordinates
+    private final Vector2ArrayUniform regionScalesUniform = new Vector2ArrayUniform("cascadeRegionScales", new Vector2f[]{});
+    private final Vector2ArrayUniform regionOffsetsUniform = new Vector2ArrayUniform("cascadeRegionOffsets", new Vector2f[]{});
+    private final ShadowAtlas atlas = new ShadowAtlas();
+    // The maximum size of the atlas, queried when first packed, or 0 before that
+    private int maxAtlasSize = 0;
+    private final List<Camera> cameras = new ArrayList<>();
+    // The light camera and region of each cascade, kept when the count changes so that the pipelines referencing them stay valid
+    private final Camera[] cascadeCameras = new Camera[MAX_CASCADES];
+    private final Rectangle[] cascadeRegions = new Rectangle[MAX_CASCADES];
+    private final Model model;
+    // Whether or not the casters are drawn into all the cascades at once
+    private final boolean layered;
+    private final Material cascadesMaterial;
+    private final RenderCascadesAction renderCascadesAction;
+    // Used instead when not layered, one for each cascade
+    private final List<RenderShadowModelsAction> cascadeActions = new ArrayList<>();
+    // The pipelines when not layered, by cascade count minus one, built on first use
+    private final Pipeline[] cascadePipelines = new Pipeline[MAX_CASCADES];
+    private Collection<Model> models;
+    private List<Vector2i> cascadeSizes = Collections.emptyList();
+    // Prepared by prepare(), applied by apply()
+    private int preparedCascadeCount;
+    private List<Vector2i> preparedCascadeSizes;
 
     public CascadedShadowMappingNode(RenderGraph graph, String name) {
         // Initialize a nornal shadow mapping node, but not the pipeline
         super(graph, name, "cascadedShadow");
-        final Context context = graph.getContext();
-        // Create second light depth texture
-        lightDepthsTexture2 = context.newTexture();
-        lightDepthsTexture2.create();
-        lightDepthsTexture2.setFormat(InternalFormat.DEPTH_COMPONENT16);
-        lightDepthsTexture2.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        lightDepthsTexture2.setWraps(WrapMode.CLAMP_TO_BORDER, WrapMode.CLAMP_TO_BORDER);
-        lightDepthsTexture2.setCompareMode(CompareMode.LESS);
-        // Create third light depth texture
-        lightDepthsTexture3 = context.newTexture();
-        lightDepthsTexture3.create();
-        lightDepthsTexture3.setFormat(InternalFormat.DEPTH_COMPONENT16);
-        lightDepthsTexture3.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        lightDepthsTexture3.setWraps(WrapMode.CLAMP_TO_BORDER, WrapMode.CLAMP_TO_BORDER);
-        lightDepthsTexture3.setCompareMode(CompareMode.LESS);
-        // Create the second depth frame buffer
-        depthFrameBuffer2 = context.newFrameBuffer();
-        depthFrameBuffer2.create();
-        depthFrameBuffer2.attach(AttachmentPoint.DEPTH, lightDepthsTexture2);
-        // Create the third depth frame buffer
-        depthFrameBuffer3 = context.newFrameBuffer();
-        depthFrameBuffer3.create();
-        depthFrameBuffer3.attach(AttachmentPoint.DEPTH, lightDepthsTexture3);
         // Update the material
-        material.addTexture(3, lightDepthsTexture2);
-        material.addTexture(4, lightDepthsTexture3);
-        material.addTexture(5, noiseTexture);
-        final UniformHolder uniforms = material.getUniforms();
-        uniforms.add(lightViewMatrixUniform2);
-        uniforms.add(lightViewMatrixUniform3);
-        uniforms.add(lightProjectionMatrixUniform2);
-        uniforms.add(lightProjectionMatrixUniform3);
+        UniformHolder uniforms = material.getUniforms();
+        uniforms.add(cascadeCountUniform);
         uniforms.add(slicesUniform);
+        uniforms.add(cascadeScalesUniform);
+        uniforms.add(cascadeOffsetsUniform);
+        uniforms.add(regionScalesUniform);
+        uniforms.add(regionOffsetsUniform);
         // Create the screen model
-        final Model model = new Model(graph.getScreen(), material);
-        // Create the pipeline
-        pipeline = new PipelineBuilder()
-                .useViewPort(shadowMapSize)
-                .useCamera(camera).bindFrameBuffer(depthFrameBuffer).clearBuffer().doAction(renderModelsAction)
-                .useCamera(camera2).bindFrameBuffer(depthFrameBuffer2).clearBuffer().doAction(renderModelsAction)
-                .useCamera(camera3).bindFrameBuffer(depthFrameBuffer3).clearBuffer().doAction(renderModelsAction)
-                .useViewPort(outputSize)
-                .bindFrameBuffer(frameBuffer).renderModels(Arrays.asList(model))
-                .unbindFrameBuffer(frameBuffer).build();
+        model = new Model(graph.getScreen(), material);
+        for (int i = 0; i < MAX_CASCADES; i++) {
+            cascadeCameras[i] = Camera.createOrthographic(50, -50, 50, -50, -50, 50);
+            cascadeRegions[i] = new Rectangle();
+        }
+        layered = InstancedRenderer.isSupported() && CascadeGL.supportsClipDistances() && graph.hasProgram("cascadeDepths");
+        if (layered) {
+            // Create the material to draw the casters into the cascades with
+            cascadesMaterial = new Material(graph.getProgram("cascadeDepths"));
+            uniforms = cascadesMaterial.getUniforms();
+            uniforms.add(lightViewMatrixUniform);
+            uniforms.add(cascadeCountUniform);
+            uniforms.add(cascadeScalesUniform);
+            uniforms.add(cascadeOffsetsUniform);
+            uniforms.add(regionScalesUniform);
+            uniforms.add(regionOffsetsUniform);
+            renderCascadesAction = new RenderCascadesAction();
+            // Create the pipeline, the casters are sorted and culled for the light camera that includes all the cascades
+            pipeline = new PipelineBuilder()
+                    .useViewPort(shadowMapSize).useCamera(camera).bindFrameBuffer(depthFrameBuffer).clearBuffer().doAction(renderCascadesAction)
+                    .useViewPort(outputSize).doAction(bindShadows).renderModels(Arrays.asList(model))
+                    .doAction(unbindShadows).build();
+        } else {
+            cascadesMaterial = null;
+            renderCascadesAction = null;
+        }
+    }
+
+    @Override
+    protected void prepare() {
+        super.prepare();
+        final int cascadeCount = getAttribute(CASCADE_COUNT);
+        if (cascadeCount < 1 || cascadeCount > MAX_CASCADES) {
+            throw new IllegalArgumentException("Cascade count must be between 1 and " + MAX_CASCADES);
+        }
+        final List<Vector2i> cascadeSizes = getAttribute(CASCADE_SIZES);
+        if (!cascadeSizes.isEmpty() && cascadeSizes.size() != cascadeCount) {
+            throw new IllegalArgumentException("Expected " + cascadeCount + " cascade sizes, got " + cascadeSizes.size());
+        }
+        preparedCascadeCount = cascadeCount;
+        preparedCascadeSizes = cascadeSizes;
     }
 
     @Override
     protected void updateShadowMapSize(Vector2i size) {
-        if (size.getX() == shadowMapSize.getWidth() && size.getY() == shadowMapSize.getHeight()) {
+        final List<Vector2i> sizes = preparedCascadeSizes.isEmpty() ? Collections.nCopies(preparedCascadeCount, size) : preparedCascadeSizes;
+        if (sizes.equals(cascadeSizes)) {
+            return;
+        }
+        if (maxAtlasSize == 0) {
+            maxAtlasSize = CascadeGL.getMaxTextureSize();
+        }
+        atlas.pack(sizes, maxAtlasSize);
+        cascadeSizes = new ArrayList<>(sizes);
+        final Vector2i atlasSize = atlas.getSize();
+        shadowMapSize.setSize(atlasSize);
+        lightDepthsTexture.setImageData(null, atlasSize.getX(), atlasSize.getY());
+        updateCascades(sizes.size());
+    }
+
+    private void updateCascades(int count) {
+        // Update the regions of the cascades
+        final Vector2f atlasSize = atlas.getSize().toFloat();
+        final Vector2f[] regionScales = new Vector2f[count];
+        final Vector2f[] regionOffsets = new Vector2f[count];
+        for (int i = 0; i < count; i++) {
+            final Rectangle region = atlas.getRegion(i);
+            cascadeRegions[i].setPosition(region.getPosition());
+            cascadeRegions[i].setSize(region.getSize());
+            regionScales[i] = new Vector2f(region.getWidth() / atlasSize.getX(), region.getHeight() / atlasSize.getY());
+            regionOffsets[i] = new Vector2f(region.getX() / atlasSize.getX(), region.getY() / atlasSize.getY());
+        }
+        regionScalesUniform.set(regionScales);
+        regionOffsetsUniform.set(regionOffsets);
+        cascadeCountUniform.set(count);
+        // Add or remove the light cameras
+        while (cameras.size() < count) {
+            cameras.add(cascadeCameras[cameras.size()]);
+        }
+        while (cameras.size() > count) {
+            cameras.remove(cameras.size() - 1);
+        }
+        if (!layered) {
+            pipeline = getCascadePipeline(count);
+        }
+    }
+
+    private Pipeline getCascadePipeline(int count) {
+        // The regions and cameras are updated in place, so the pipeline only depends on the count
+        Pipeline cascadePipeline = cascadePipelines[count - 1];
+        if (cascadePipeline != null) {
+            return cascadePipeline;
+        }
+        while (cascadeActions.size() < count) {
+            cascadeActions.add(new RenderShadowModelsAction(models));
+        }
+        // Clear the whole shadow map, then draw each cascade in its region
+        final PipelineBuilder builder = new PipelineBuilder().useViewPort(shadowMapSize).bindFrameBuffer(depthFrameBuffer).clearBuffer();
+        for (int i = 0; i < count; i++) {
+            builder.useViewPort(cascadeRegions[i]).useCamera(cascadeCameras[i]).doAction(cascadeActions.get(i));
+        }
+        cascadePipeline = builder
+                .useViewPort(outputSize).doAction(bindShadows).renderModels(Arrays.asList(model))
+                .doAction(unbindShadows).build();
+        cascadePipelines[count - 1] = cascadePipeline;
+        return cascadePipeline;
+    }
+
+    @Override
+    protected void putProgramDefines(Map<String, String> defines) {
+        // Use the program variant with a constant cascade count, so that its loop can be unrolled
+        defines.put("CASCADE_COUNT", Integer.toString(cameras.size()));
+    }
+
+    @Override
+    protected void updateModels(Collection<Model> models) {
+        this.models = models;
+        if (layered) {
+            renderCascadesAction.setModels(models);
+        }
+        for (RenderShadowModelsAction action : cascadeActions) {
+            action.setModels(models);
+        }
+    }
+
+    @Override
+    protected void cullCasters() {
+        if (casterCuller == null) {
+            return;
+        }
+        if (layered) {
+            renderCascadesAction.cullModels(casterCuller, camera);
             return;
         }
-        shadowMapSize.setSize(size);
-        lightDepthsTexture.setImageData(null, size.getX(), size.getY());
-        lightDepthsTexture2.setImageData(null, size.getX(), size.getY());
-        lightDepthsTexture3.setImageData(null, size.getX(), size.getY());
+        // The actions of the cascades beyond the count aren't in the current pipeline
+        for (int i = 0; i < cameras.size(); i++) {
+            cascadeActions.get(i).cullModels(casterCuller, cameras.get(i));
+        }
     }
 
     @Override
     protected void updateLightDirection(Vector3f direction, Camera camera) {
-        // Update the camera frustum
-        frustum.update(camera.getProjectionMatrix(), camera.getViewMatrix());
-        // Set the direction uniform
-        lightDirectionUniform.set(direction);
-        // Calculate the camera rotation from the direction and set
+        // Fit the light camera to the whole view frustum, its view is shared by the cascades
+        super.updateLightDirection(direction, camera);
+        // Calculate the camera rotation from the direction
         final Quaternionf rotation = Quaternionf.fromRotationTo(Vector3f.FORWARD.negate(), direction);
         // Calculate the transformation from the camera bounds rotation to the identity rotation (its axis aligned space)
         final Matrix3f axisAlignTransform = Matrix3f.createRotation(rotation).invert();
-        // Calculate the points of the box to completely include inside the camera bounds
-        // Transform those points to the axis aligned space of the camera bounds
+        // Transform the points of the frustum to the axis aligned space of the camera bounds
         final Vector3f position = frustum.getPosition();
         final Vector3f[] vertices = frustum.getVertices();
         for (int i = 0; i < 8; i++) {
             vertices[i] = axisAlignTransform.transform(vertices[i].sub(position));
         }
-        // Clone the vertices for first and third slices
-        final Vector3f[] slice1Vertices = vertices.clone();
-        final Vector3f[] slice3Vertices = vertices.clone();
-        // Compute the slices
         final float near = frustum.getNearPlane();
         final float far = frustum.getFarPlane();
-        float slice1 = computeSlice(1, 3, 0.7f, near, far);
-        float slice2 = computeSlice(2, 3, 0.7f, near, far);
-        // Update the slices uniform
-        slicesUniform.set(new Vector2f(slice1, slice2));
-        // Normalize the slices
-        slice1 /= far;
-        slice2 /= far;
-        // Rescale the vertices for the first slice
-        slice1Vertices[1] = slice1Vertices[1].sub(slice1Vertices[0]).mul(slice1).add(slice1Vertices[0]);
-        slice1Vertices[3] = slice1Vertices[3].sub(slice1Vertices[2]).mul(slice1).add(slice1Vertices[2]);
-        slice1Vertices[5] = slice1Vertices[5].sub(slice1Vertices[4]).mul(slice1).add(slice1Vertices[4]);
-        slice1Vertices[7] = slice1Vertices[7].sub(slice1Vertices[6]).mul(slice1).add(slice1Vertices[6]);
-        // Calculate the new camera bounds so that the box is fully included in those bounds
-        fitFrustum(this.camera, position, rotation, slice1Vertices);
-        // Rescale the vertices for the third slice
-        slice3Vertices[0] = slice3Vertices[0].sub(slice3Vertices[1]).mul(1 - slice2).add(slice3Vertices[1]);
-        slice3Vertices[2] = slice3Vertices[2].sub(slice3Vertices[3]).mul(1 - slice2).add(slice3Vertices[3]);
-        slice3Vertices[4] = slice3Vertices[4].sub(slice3Vertices[5]).mul(1 - slice2).add(slice3Vertices[5]);
-        slice3Vertices[6] = slice3Vertices[6].sub(slice3Vertices[7]).mul(1 - slice2).add(slice3Vertices[7]);
-        // Calculate the new camera bounds so that the box is fully included in those bounds
-        fitFrustum(camera3, position, rotation, slice3Vertices);
-        // The vertices for the second slice are a combination of slice 1 and 3, between the two
-        vertices[0] = slice1Vertices[1];
-        vertices[1] = slice3Vertices[0];
-        vertices[2] = slice1Vertices[3];
-        vertices[3] = slice3Vertices[2];
-        vertices[4] = slice1Vertices[5];
-        vertices[5] = slice3Vertices[4];
-        vertices[6] = slice1Vertices[7];
-        vertices[7] = slice3Vertices[6];
-        // Calculate the new camera bounds so that the box is fully included in those bounds
-        fitFrustum(camera2, position, rotation, vertices);
+        final Matrix4f inverseLightViewMatrix = this.camera.getViewMatrix().invert();
+        final int count = cameras.size();
+        final float[] slices = new float[count];
+        final Vector3f[] scales = new Vector3f[count];
+        final Vector3f[] offsets = new Vector3f[count];
+        final Vector3f[] sliceVertices = new Vector3f[8];
+        float sliceStart = 0;
+        for (int i = 0; i < count; i++) {
+            // Compute the slice, the last one ends at the far plane
+            slices[i] = i < count - 1 ? computeSlice(i + 1, count, SPLIT_CORRECTION, near, far) : far;
+            final float sliceEnd = slices[i] / far;
+            // Rescale the vertices for the slice, the even ones are on the near plane, the odd ones on the far plane
+            for (int j = 0; j < 8; j += 2) {
+                final Vector3f edge = vertices[j + 1].sub(vertices[j]);
+                sliceVertices[j] = edge.mul(sliceStart).add(vertices[j]);
+                sliceVertices[j + 1] = edge.mul(sliceEnd).add(vertices[j]);
+            }
+            // Calculate the new camera bounds so that the box is fully included in those bounds
+            final Camera cascadeCamera = cameras.get(i);
+            fitFrustum(cascadeCamera, position, rotation, sliceVertices, casterDistance);
+            // The cameras share the rotation, so from the light view to the cascade clip space is a scale and an offset
+            final Matrix4f transform = cascadeCamera.getProjectionMatrix().mul(cascadeCamera.getViewMatrix()).mul(inverseLightViewMatrix);
+            scales[i] = new Vector3f(transform.get(0, 0), transform.get(1, 1), transform.get(2, 2));
+            offsets[i] = new Vector3f(transform.get(0, 3), transform.get(1, 3), transform.get(2, 3));
+            sliceStart = sliceEnd;
+        }
         // Update the uniforms for the new light cameras
-        lightViewMatrixUniform.set(this.camera.getViewMatrix());
-        lightViewMatrixUniform2.set(camera2.getViewMatrix());
-        lightViewMatrixUniform3.set(camera3.getViewMatrix());
-        lightProjectionMatrixUniform.set(this.camera.getProjectionMatrix());
-        lightProjectionMatrixUniform2.set(camera2.getProjectionMatrix());
-        lightProjectionMatrixUniform3.set(camera3.getProjectionMatrix());
+        slicesUniform.set(slices);
+        cascadeScalesUniform.set(scales);
+        cascadeOffsetsUniform.set(offsets);
     }
 
-    @Override
-    protected void destroy() {
-        lightDepthsTexture2.destroy();
-        lightDepthsTexture3.destroy();
-        depthFrameBuffer2.destroy();
-        depthFrameBuffer3.destroy();
-        super.destroy();
+    /**
+     * Returns true if the casters are drawn into all the cascades with a single pass, instancing each model once per cascade. This requires OpenGL 3.3.
+     *
+     * @return Whether or not the cascades are drawn at once
+     */
+    public boolean isLayered() {
+        return layered;
     }
 
-    private static void fitFrustum(Camera camera, Vector3f position, Quaternionf rotation, Vector3f[] frustum) {
+    private static void fitFrustum(Camera camera, Vector3f position, Quaternionf rotation, Vector3f[] frustum, float casterDistance) {
         // Calculate the new camera bounds so that the box is fully included in those bounds
         final Vector3f low = frustum[0].min(frustum[1]).min(frustum[2]).min(frustum[3])
                 .min(frustum[4]).min(frustum[5]).min(frustum[6]).min(frustum[7]);
@@ -209,11 +329,91 @@ public class CascadedShadowMappingNode extends ShadowMappingNode {
         camera.setPosition(position);
         // Update the camera rotation
         camera.setRotation(rotation);
-        // Update the camera size
-        camera.setProjection(Matrix4f.createOrthographic(size.getX(), -size.getX(), size.getY(), -size.getY(), -size.getZ(), size.getZ()));
+        // Update the camera size, extending the near plane toward the light to include the casters outside of the slice
+        camera.setProjection(Matrix4f.createOrthographic(size.getX(), -size.getX(), size.getY(), -size.getY(), -size.getZ() - casterDistance, size.getZ()));
     }
 
     private static float computeSlice(int index, int total, float correction, float near, float far) {
         return (float) (correction * near * Math.pow(far / near, index / (float) total) + (1 - correction) * (near + (index / (float) total) * (far - near)));
     }
+
+    private class RenderCascadesAction extends RenderShadowModelsAction {
+        private RenderCascadesAction() {
+            super(null);
+        }
+
+        @Override
+        public void execute(Context context) {
+            final Program program = cascadesMaterial.getProgram();
+            final Camera camera = context.getCamera();
+            final List<Model> sortedModels = sortModels(camera);
+            final int count = cameras.size();
+            // Each copy of a model is clipped to the region of its cascade
+            CascadeGL.setClipDistances(CLIP_DISTANCES, true);
+            final int size = sortedModels.size();
+            for (int i = 0; i < size; ) {
+                // The material is the same for all models, so only the vertex array needs to be shared for instancing
+                final int end = instancing ? instancer.findBatchEnd(sortedModels, i, false) : i + 1;
+                instancer.render(sortedModels, i, end, cascadesMaterial, program, camera, count);
+                i = end;
+            }
+            CascadeGL.setClipDistances(CLIP_DISTANCES, false);
+        }
+    }
+
+    /**
+     * The OpenGL calls of the node that caustic doesn't expose, made directly through LWJGL and checked against the capabilities of the current context. The
+     * clip distances clip each instanced copy of a caster to the region of its cascade.
+     */
+    private static final class CascadeGL {
+        private CascadeGL() {
+        }
+
+        /**
+         * Returns true if the current OpenGL context has at least {@link #CLIP_DISTANCES} clip distances.
+         *
+         * @return Whether or not the clip distances can be used
+         */
+        private static boolean supportsClipDistances() {
+            try {
+                final ContextCapabilities capabilities = GLContext.getCapabilities();
+                return capabilities != null && capabilities.OpenGL30 && GL11.glGetInteger(GL30.GL_MAX_CLIP_DISTANCES) >= CLIP_DISTANCES;
+            } catch (RuntimeException | LinkageError ex) {
+                // No current context, or LWJGL isn't used
+                return false;
+            }
+        }
+
+        /**
+         * Enables or disables the first clip distances.
+         *
+         * @param count The number of clip distances
+         * @param enabled Whether to enable or disable them
+         */
+        private static void setClipDistances(int count, boolean enabled) {
+            for (int i = 0; i < count; i++) {
+                if (enabled) {
+                    GL11.glEnable(GL30.GL_CLIP_DISTANCE0 + i);
+                } else {
+                    GL11.glDisable(GL30.GL_CLIP_DISTANCE0 + i);
+                }
+            }
+        }
+
+        /**
+         * Returns the maximum texture size of the current OpenGL context, or {@link Integer#MAX_VALUE} if it can't be queried, in which case the atlas isn't
+         * limited.
+         *
+         * @return The maximum width and height of a texture
+         */
+        private static int getMaxTextureSize() {
+            try {
+                final ContextCapabilities capabilities = GLContext.getCapabilities();
+                return capabilities != null ? GL11.glGetInteger(GL11.GL_MAX_TEXTURE_SIZE) : Integer.MAX_VALUE;
+            } catch (RuntimeException | LinkageError ex) {
+                // No current context, or LWJGL isn't used
+                return Integer.MAX_VALUE;
+            }
+        }
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render.impl;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GLContext;
+
+import com.flowpowered.math.vector.Vector2f;
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.render.GraphNode;
+import com.flowpowered.render.RenderGraph;
+
+import com.flowpowered.caustic.api.Action;
+import com.flowpowered.caustic.api.Material;
+import com.flowpowered.caustic.api.Pipeline;
+import com.flowpowered.caustic.api.Pipeline.PipelineBuilder;
+import com.flowpowered.caustic.api.data.Uniform.Vector2Uniform;
+import com.flowpowered.caustic.api.gl.Context;
+import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.Texture.Format;
+import com.flowpowered.caustic.api.model.Model;
+import com.flowpowered.caustic.api.util.Rectangle;
+
+/**
+ * Builds a pyramid of the minimum and maximum depths from the depths input, one level per mipmap of the output texture. The first level has the size of the
+ * input, and each next one half of the previous, down to a single texel. The minimum is in the red component, the maximum in the green one. Requires OpenGL
+ * 3.0 and LWJGL, to render to the individual levels.
+ */
+public class DepthPyramidNode extends GraphNode {
+    private final Model firstLevelModel;
+    private final Model model;
+    private final Vector2Uniform previousSizeUniform = new Vector2Uniform("previousSize", Vector2f.ONE);
+    private final Rectangle outputSize = new Rectangle();
+    // The pyramid of the view being rendered
+    private Pyramid pyramid;
+
+    public DepthPyramidNode(RenderGraph graph, String name) {
+        super(graph, name);
+        final ContextCapabilities capabilities = GLContext.getCapabilities();
+        if (capabilities == null || !capabilities.OpenGL30) {
+            throw new IllegalStateException("The depth pyramid requires OpenGL 3.0");
+        }
+        // Create the material that copies the depths into the first level
+        final Material firstLevelMaterial = new Material(graph.getProgram("depthPyramid", Collections.singletonMap("FIRST_LEVEL", "1")));
+        firstLevelModel = new Model(graph.getScreen(), firstLevelMaterial);
+        // Create the material that reduces each level into the next, the previous level is the only one sampled
+        final Material material = new Material(graph.getProgram("depthPyramid"));
+        material.getUniforms().add(previousSizeUniform);
+        model = new Model(graph.getScreen(), material);
+    }
+
+    @Override
+    protected Object createViewState() {
+        return new Pyramid();
+    }
+
+    @Override
+    protected void destroyViewState(Object state) {
+        ((Pyramid) state).destroy();
+    }
+
+    @Override
+    protected void prepare() {
+        updateOutputSize(getAttribute(Attributes.OUTPUT_SIZE));
+    }
+
+    private void updateOutputSize(Vector2i size) {
+        if (size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
+            return;
+        }
+        outputSize.setSize(size);
+    }
+
+    @Override
+    protected void render() {
+        // Each view has its own pyramid, so that views of different sizes don't reallocate a shared one
+        final Pyramid viewPyramid = getViewState();
+        viewPyramid.resize(outputSize.getSize());
+        if (viewPyramid != pyramid) {
+            pyramid = viewPyramid;
+            model.getMaterial().addTexture(0, pyramid.texture);
+            refreshOutput("depths");
+        }
+        pyramid.pipeline.run(graph.getContext());
+    }
+
+    @Override
+    protected void destroy() {
+        // The pyramids are destroyed with the view states
+        pyramid = null;
+    }
+
+    /**
+     * Returns the number of levels in the pyramid for the given size, down to a single texel.
+     *
+     * @param width The width of the first level
+     * @param height The height of the first level
+     * @return The number of levels
+     */
+    public static int getLevelCount(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(Math.max(width, height), 1));
+    }
+
+    /**
+     * Returns the size of a level of the pyramid, following the OpenGL mipmap sizes.
+     *
+     * @param size The size of the first level
+     * @param level The level
+     * @return The size of the level
+     */
+    public static Vector2i getLevelSize(Vector2i size, int level) {
+        return new Vector2i(Math.max(size.getX() >> level, 1), Math.max(size.getY() >> level, 1));
+    }
+
+    /**
+     * Returns the number of texels of the previous level that are reduced into a texel of the next one, along an axis, as done by the reduction shader. The
+     * footprint starts at twice the texel coordinate and is 2 texels wide, except for the last texel of an odd sized level, which also folds in the last
+     * column or row, and for a level of size 1, which is copied.
+     *
+     * @param texel The coordinate of the texel in the next level
+     * @param previousSize The size of the previous level along the axis
+     * @return The number of texels of the previous level reduced into the texel
+     */
+    public static int getFootprintSize(int texel, int previousSize) {
+        final int start = texel * 2;
+        if (start + 3 == previousSize) {
+            return 3;
+        }
+        // Reads past the edge are clamped to the texels already in the footprint
+        return Math.min(2, previousSize - start);
+    }
+
+    private void setLevelRange(int base, int max) {
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_BASE_LEVEL, base);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, max);
+    }
+
+    @Input(value = "depths", format = Format.DEPTH)
+    public void setDepthsInput(Texture texture) {
+        texture.checkCreated();
+        firstLevelModel.getMaterial().addTexture(0, texture);
+    }
+
+    @Output(value = "depths", format = Format.RG)
+    public Texture getDepthsOutput() {
+        return pyramid != null ? pyramid.texture : graph.getBlackDummy();
+    }
+
+    // The mipmapped texture of a view and the frame buffers of its levels, allocated on the first render and reallocated when the size changes
+    private class Pyramid {
+        private final Rectangle size = new Rectangle();
+        private Texture texture;
+        private int[] frameBuffers = new int[0];
+        private Pipeline pipeline;
+
+        private void resize(Vector2i newSize) {
+            if (texture != null && size.getWidth() == newSize.getX() && size.getHeight() == newSize.getY()) {
+                return;
+            }
+            if (texture == null) {
+                texture = graph.getContext().newTexture();
+                texture.create();
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.getID());
+                GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST_MIPMAP_NEAREST);
+                GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+                GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+                GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+            }
+            // Reallocate the levels, the frame buffers and pipeline depend on them
+            size.setSize(newSize);
+            destroyFrameBuffers();
+            final int levels = getLevelCount(size.getWidth(), size.getHeight());
+            GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.getID());
+            for (int i = 0; i < levels; i++) {
+                final Vector2i levelSize = getLevelSize(size.getSize(), i);
+                GL11.glTexImage2D(GL11.GL_TEXTURE_2D, i, GL30.GL_RG32F, levelSize.getX(), levelSize.getY(), 0, GL30.GL_RG, GL11.GL_FLOAT, (FloatBuffer) null);
+            }
+            setLevelRange(0, levels - 1);
+            GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+            // Create a frame buffer per level, and a pipeline that renders them in order
+            frameBuffers = new int[levels];
+            final PipelineBuilder builder = new PipelineBuilder();
+            for (int i = 0; i < levels; i++) {
+                frameBuffers[i] = GL30.glGenFramebuffers();
+                GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, frameBuffers[i]);
+                GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, texture.getID(), i);
+                final Rectangle levelSize = new Rectangle();
+                levelSize.setSize(getLevelSize(size.getSize(), i));
+                builder.useViewPort(levelSize).doAction(new BindLevelAction(this, i)).renderModels(Arrays.asList(i == 0 ? firstLevelModel : model));
+            }
+            GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+            pipeline = builder.doAction(new UnbindLevelsAction(this)).build();
+        }
+
+        private void destroyFrameBuffers() {
+            for (int frameBuffer : frameBuffers) {
+                GL30.glDeleteFramebuffers(frameBuffer);
+            }
+            frameBuffers = new int[0];
+        }
+
+        private void destroy() {
+            destroyFrameBuffers();
+            if (texture != null) {
+                texture.destroy();
+            }
+        }
+    }
+
+    private class BindLevelAction extends Action {
+        private final Pyramid pyramid;
+        private final int level;
+
+        private BindLevelAction(Pyramid pyramid, int level) {
+            this.pyramid = pyramid;
+            this.level = level;
+        }
+
+        @Override
+        public void execute(Context context) {
+            GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, pyramid.frameBuffers[level]);
+            if (level > 0) {
+                // Restrict the texture to the previous level, so that it's the one sampled, and isn't the one rendered to
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, pyramid.texture.getID());
+                setLevelRange(level - 1, level - 1);
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+                previousSizeUniform.set(getLevelSize(pyramid.size.getSize(), level - 1).toFloat());
+            }
+        }
+    }
+
+    private class UnbindLevelsAction extends Action {
+        private final Pyramid pyramid;
+
+        private UnbindLevelsAction(Pyramid pyramid) {
+            this.pyramid = pyramid;
+        }
+
+        @Override
+        public void execute(Context context) {
+            GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+            // Expose all the levels again
+            GL11.glBindTexture(GL11.GL_TEXTURE_2D, pyramid.texture.getID());
+            setLevelRange(0, pyramid.frameBuffers.length - 1);
+            GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+        }
+    }
+}
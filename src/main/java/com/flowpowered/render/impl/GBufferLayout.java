@@ -0,0 +1,55 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render.impl;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The layouts of the geometry buffer written by the {@link RenderModelsNode}, set for the whole graph with {@link Attributes#GBUFFER_LAYOUT}, as the nodes
+ * reading the normals and materials decode them according to it.
+ */
+public enum GBufferLayout {
+    /**
+     * Colors, normals, vertex normals and materials in four RGBA8 targets, 16 bytes per pixel before the depths.
+     */
+    STANDARD,
+    /**
+     * Colors in an RGBA8 target, then the normals, vertex normals and materials packed in an RGBA16 one, 12 bytes per pixel before the depths. The normals
+     * are octahedron encoded at 16 bits per component, the vertex normals at 7, and the material components are kept to 4 bits each. The "normals",
+     * "vertexNormals" and "materials" outputs are all the packed target, which is sampled without filtering. The models must be rendered with the
+     * permutations of their programs for the layout, see {@link #getDefines()}.
+     */
+    COMPACT;
+
+    /**
+     * Returns the defines of the program permutations for this layout, for the models and the nodes reading the normals or materials. The shaders of the
+     * nodes decode them with the shared "gbuffer.glsl" snippet, which these defines select the decoding of, see {@link com.flowpowered.render.RenderGraph}.
+     *
+     * @return The defines for the layout
+     */
+    public Map<String, String> getDefines() {
+        return this == COMPACT ? Collections.singletonMap("COMPACT_GBUFFER", "1") : Collections.<String, String>emptyMap();
+    }
+}
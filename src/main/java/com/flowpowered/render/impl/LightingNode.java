@@ -23,14 +23,35 @@
  */
 package com.flowpowered.render.impl;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GLContext;
 
 import com.flowpowered.math.TrigMath;
 import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector2i;
 import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.render.FrameAttributes;
 import com.flowpowered.render.GraphNode;
+import com.flowpowered.render.Light;
+import com.flowpowered.render.LightClusterer;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.RenderTarget;
+import com.flowpowered.render.RenderTarget.BindRenderTargetAction;
+import com.flowpowered.render.RenderTarget.UnbindRenderTargetAction;
 import com.flowpowered.render.RenderUtil;
 
 import com.flowpowered.caustic.api.Camera;
@@ -39,46 +60,52 @@ import com.flowpowered.caustic.api.Pipeline;
 import com.flowpowered.caustic.api.Pipeline.PipelineBuilder;
 import com.flowpowered.caustic.api.data.Uniform.FloatUniform;
 import com.flowpowered.caustic.api.data.Uniform.Matrix4Uniform;
+import com.flowpowered.caustic.api.data.Uniform.Vector2Uniform;
 import com.flowpowered.caustic.api.data.Uniform.Vector3Uniform;
 import com.flowpowered.caustic.api.data.UniformHolder;
-import com.flowpowered.caustic.api.gl.Context;
-import com.flowpowered.caustic.api.gl.FrameBuffer;
-import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
+import com.flowpowered.caustic.api.gl.Program;
 import com.flowpowered.caustic.api.gl.Texture;
-import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
 import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
-import com.flowpowered.caustic.api.gl.Texture.WrapMode;
 import com.flowpowered.caustic.api.model.Model;
+import com.flowpowered.caustic.api.util.CausticUtil;
 import com.flowpowered.caustic.api.util.Rectangle;
 
 /**
- *
+ * Shades the directional light, and the point and spot lights of the {@link Attributes#LIGHTS} when set. Those are binned into the clusters of the view
+ * frustum on the CPU, and only the lights of each pixel's cluster are shaded. The clusters are uploaded to buffer textures, which requires OpenGL 3.1 and
+ * LWJGL.
  */
 public class LightingNode extends GraphNode {
     public static Vector3f DEFAULT_LIGHT_DIRECTION = Vector3f.ONE.negate().normalize();
-    private final FrameBuffer frameBuffer;
-    private final Texture colorsOutput;
+    private static final int CLUSTER_TEXTURE_UNIT = 6;
     private final Material material;
+    private final BindRenderTargetAction bindOutput = new BindRenderTargetAction(null);
+    private final UnbindRenderTargetAction unbindOutput = new UnbindRenderTargetAction(null);
     private final Pipeline pipeline;
     private final Rectangle outputSize = new Rectangle();
     private final Matrix4Uniform viewMatrixUniform = new Matrix4Uniform("viewMatrix", Matrix4f.IDENTITY);
     private final FloatUniform aspectRatioUniform = new FloatUniform("aspectRatio", 1);
     private final FloatUniform tanHalfFOVUniform = new FloatUniform("tanHalfFOV", 1);
     private final Vector3Uniform lightDirectionUniform = new Vector3Uniform("lightDirection", DEFAULT_LIGHT_DIRECTION);
+    private final Vector2Uniform projectionUniform = new Vector2Uniform("projection", Vector2f.ZERO);
+    private final Vector3Uniform clusterCountsUniform = new Vector3Uniform("clusterCounts", Vector3f.ONE);
+    private final FloatUniform sliceScaleUniform = new FloatUniform("sliceScale", 1);
+    private final FloatUniform sliceBiasUniform = new FloatUniform("sliceBias", 0);
+    // The clusterer of the last render with lights, each frame bins with its own
+    private LightClusterer clusterer = new LightClusterer();
+    private boolean clustered = false;
+    private GBufferLayout layout;
+    private Map<String, String> programDefines = Collections.emptyMap();
+    // The buffers and their textures for the light data, cluster ranges and light indices, created with the first lights
+    private final int[] clusterBuffers = new int[3];
+    private final int[] clusterTextures = new int[3];
+    private FloatBuffer lightData = CausticUtil.createFloatBuffer(LightClusterer.LIGHT_SIZE * 64);
+    private final IntBuffer clusters = CausticUtil.createIntBuffer(clusterer.getClusterCount() * 2);
+    private IntBuffer lightIndices = CausticUtil.createIntBuffer(1024);
 
     public LightingNode(RenderGraph graph, String name) {
         super(graph, name);
-        final Context context = graph.getContext();
-        // Create the colors texture
-        colorsOutput = context.newTexture();
-        colorsOutput.create();
-        colorsOutput.setFormat(InternalFormat.RGBA8);
-        colorsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        colorsOutput.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
-        // Create the frame buffer
-        frameBuffer = context.newFrameBuffer();
-        frameBuffer.create();
-        frameBuffer.attach(AttachmentPoint.COLOR0, colorsOutput);
         // Create the material
         material = new Material(graph.getProgram("lighting"));
         final UniformHolder uniforms = material.getUniforms();
@@ -86,47 +113,182 @@ public class LightingNode extends GraphNode {
         uniforms.add(aspectRatioUniform);
         uniforms.add(tanHalfFOVUniform);
         uniforms.add(lightDirectionUniform);
+        uniforms.add(projectionUniform);
+        uniforms.add(clusterCountsUniform);
+        uniforms.add(sliceScaleUniform);
+        uniforms.add(sliceBiasUniform);
+        clusterCountsUniform.set(new Vector3f(clusterer.getTilesX(), clusterer.getTilesY(), clusterer.getSlices()));
         // Create the screen model
         final Model model = new Model(graph.getScreen(), material);
         // Create the pipeline
-        pipeline = new PipelineBuilder().useViewPort(outputSize).bindFrameBuffer(frameBuffer).renderModels(Arrays.asList(model)).unbindFrameBuffer(frameBuffer).build();
+        pipeline = new PipelineBuilder().useViewPort(outputSize).doAction(bindOutput).renderModels(Arrays.asList(model)).doAction(unbindOutput).build();
     }
 
     @Override
-    public void update() {
-        updateCamera(this.<Camera>getAttribute("camera"));
-        updateOutputSize(this.<Vector2i>getAttribute("outputSize"));
+    protected void prepare() {
+        updateOutputSize(getAttribute(Attributes.OUTPUT_SIZE));
+        layout = getAttribute(Attributes.GBUFFER_LAYOUT);
     }
 
     private void updateCamera(Camera camera) {
         tanHalfFOVUniform.set(TrigMath.tan(RenderUtil.getFieldOfView(camera) / 2));
+        projectionUniform.set(RenderUtil.computeProjection(RenderUtil.getPlanes(camera)));
     }
 
     private void updateOutputSize(Vector2i size) {
-        if (size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
-            return;
-        }
         outputSize.setSize(size);
-        colorsOutput.setImageData(null, size.getX(), size.getY());
+    }
+
+    @Override
+    protected void apply() {
+        updateProgram(clustered);
+    }
+
+    private void updateProgram(boolean clustered) {
+        this.clustered = clustered;
+        if (clustered && clusterBuffers[0] == 0) {
+            createClusterBuffers();
+        }
+        // Use the program variant for the clustered lights if any, and for the G-buffer layout
+        final Map<String, String> defines = new HashMap<>(layout.getDefines());
+        if (clustered) {
+            defines.put("CLUSTERED", "1");
+        }
+        if (!defines.equals(programDefines)) {
+            material.setProgram(graph.getProgram("lighting", defines));
+            programDefines = defines;
+        }
+    }
+
+    private void createClusterBuffers() {
+        final ContextCapabilities capabilities = GLContext.getCapabilities();
+        if (capabilities == null || !capabilities.OpenGL31) {
+            throw new IllegalStateException("Clustered lighting requires OpenGL 3.1");
+        }
+        final int[] formats = {GL30.GL_RGBA32F, GL30.GL_RG32UI, GL30.GL_R32UI};
+        for (int i = 0; i < 3; i++) {
+            clusterBuffers[i] = GL15.glGenBuffers();
+            GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, clusterBuffers[i]);
+            GL15.glBufferData(GL31.GL_TEXTURE_BUFFER, 0, GL15.GL_STREAM_DRAW);
+            clusterTextures[i] = GL11.glGenTextures();
+            GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, clusterTextures[i]);
+            GL31.glTexBuffer(GL31.GL_TEXTURE_BUFFER, formats[i], clusterBuffers[i]);
+        }
+        GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, 0);
+        GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, 0);
+    }
+
+    @Override
+    protected Object prepareFrame(FrameAttributes attributes, Object previous) {
+        final FrameLights frame = previous != null ? (FrameLights) previous : new FrameLights();
+        frame.camera = attributes.getAttribute(Attributes.CAMERA);
+        // Bin for every frame, as the lights can be moved in place, and for the camera of each view
+        final List<Light> lights = attributes.getAttribute(Attributes.LIGHTS);
+        frame.clustered = !lights.isEmpty();
+        if (frame.clustered) {
+            frame.clusterer.setPool(graph.getPreparePool());
+            frame.clusterer.cluster(frame.camera, lights);
+        }
+        return frame;
     }
 
     @Override
     protected void render() {
+        final FrameLights frame = getFrameData();
         final Texture depths = material.getTexture(2);
         aspectRatioUniform.set((float) depths.getWidth() / depths.getHeight());
-        updateLightDirection(getAttribute("lightDirection", DEFAULT_LIGHT_DIRECTION));
-        viewMatrixUniform.set(this.<Camera>getAttribute("camera").getViewMatrix());
+        updateLightDirection(getAttribute(Attributes.LIGHT_DIRECTION));
+        // The projection can be modified in place, so it is read on every render rather than when the camera is set
+        final Camera camera = frame.camera;
+        updateCamera(camera);
+        viewMatrixUniform.set(camera.getViewMatrix());
+        final RenderTarget output = acquireOutputTarget("colors", InternalFormat.RGBA8, outputSize.getSize());
+        bindOutput.setTarget(output);
+        unbindOutput.setTarget(output);
+        // Lights can be added to the list in place, so the program variant follows the frame
+        if (frame.clustered != clustered) {
+            updateProgram(frame.clustered);
+        }
+        if (clustered) {
+            clusterer = frame.clusterer;
+            sliceScaleUniform.set(clusterer.getSliceScale());
+            sliceBiasUniform.set((float) -Math.log(clusterer.getNear()) * clusterer.getSliceScale());
+            uploadClusters();
+        }
         pipeline.run(graph.getContext());
+        if (clustered) {
+            unbindClusters();
+        }
+    }
+
+    private void uploadClusters() {
+        // Stream the results of the binning, the textures follow their buffers
+        final int lightCount = clusterer.getLightCount();
+        if (lightData.capacity() < lightCount * LightClusterer.LIGHT_SIZE) {
+            lightData = CausticUtil.createFloatBuffer(Math.max(lightCount, lightData.capacity() / LightClusterer.LIGHT_SIZE * 2) * LightClusterer.LIGHT_SIZE);
+        }
+        lightData.clear();
+        lightData.put(clusterer.getLightData(), 0, lightCount * LightClusterer.LIGHT_SIZE).flip();
+        clusters.clear();
+        clusters.put(clusterer.getClusters()).flip();
+        final int indexCount = clusterer.getLightIndexCount();
+        if (lightIndices.capacity() < indexCount) {
+            lightIndices = CausticUtil.createIntBuffer(Math.max(indexCount, lightIndices.capacity() * 2));
+        }
+        lightIndices.clear();
+        lightIndices.put(clusterer.getLightIndices(), 0, indexCount).flip();
+        // Orphan the previous contents so the driver doesn't wait for the draws that use them
+        GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, clusterBuffers[0]);
+        GL15.glBufferData(GL31.GL_TEXTURE_BUFFER, lightData, GL15.GL_STREAM_DRAW);
+        GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, clusterBuffers[1]);
+        GL15.glBufferData(GL31.GL_TEXTURE_BUFFER, clusters, GL15.GL_STREAM_DRAW);
+        GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, clusterBuffers[2]);
+        GL15.glBufferData(GL31.GL_TEXTURE_BUFFER, lightIndices, GL15.GL_STREAM_DRAW);
+        GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, 0);
+        // The buffer textures aren't part of the material, so bind them on the units after its textures
+        final Program program = material.getProgram();
+        program.use();
+        for (int i = 0; i < 3; i++) {
+            final int unit = CLUSTER_TEXTURE_UNIT + i;
+            GL13.glActiveTexture(GL13.GL_TEXTURE0 + unit);
+            GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, clusterTextures[i]);
+            program.bindSampler(unit);
+        }
+    }
+
+    private void unbindClusters() {
+        // Don't leave the buffer textures bound on units that other nodes may use
+        for (int i = 0; i < 3; i++) {
+            GL13.glActiveTexture(GL13.GL_TEXTURE0 + CLUSTER_TEXTURE_UNIT + i);
+            GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, 0);
+        }
+        GL13.glActiveTexture(GL13.GL_TEXTURE0);
     }
 
     private void updateLightDirection(Vector3f lightDirection) {
         lightDirectionUniform.set(lightDirection);
     }
 
+    /**
+     * Returns the clusterer of the lights, for its results of the last render with lights. When the frames are prepared ahead, with a {@link
+     * com.flowpowered.render.FramePipeline}, it can already hold those of a later frame.
+     *
+     * @return The light clusterer
+     */
+    public LightClusterer getLightClusterer() {
+        return clusterer;
+    }
+
     @Override
     protected void destroy() {
-        frameBuffer.destroy();
-        colorsOutput.destroy();
+        if (clusterBuffers[0] != 0) {
+            for (int i = 0; i < 3; i++) {
+                GL11.glDeleteTextures(clusterTextures[i]);
+                GL15.glDeleteBuffers(clusterBuffers[i]);
+                clusterTextures[i] = 0;
+                clusterBuffers[i] = 0;
+            }
+        }
     }
 
     @Input("colors")
@@ -141,7 +303,7 @@ public class LightingNode extends GraphNode {
         material.addTexture(1, texture);
     }
 
-    @Input("depths")
+    @Input(value = "depths", format = Format.DEPTH)
     public void setDepthsInput(Texture texture) {
         texture.checkCreated();
         material.addTexture(2, texture);
@@ -153,20 +315,26 @@ public class LightingNode extends GraphNode {
         material.addTexture(3, texture);
     }
 
-    @Input("occlusions")
+    @Input(value = "occlusions", format = Format.RED)
     public void setOcclusionsInput(Texture texture) {
         texture.checkCreated();
         material.addTexture(4, texture);
     }
 
-    @Input("shadows")
+    @Input(value = "shadows", format = Format.RED)
     public void setShadowsInput(Texture texture) {
         texture.checkCreated();
         material.addTexture(5, texture);
     }
 
-    @Output("colors")
+    @Output(value = "colors", format = Format.RGBA)
     public Texture getColorsOutput() {
-        return colorsOutput;
+        return getOutputTargetTexture("colors");
+    }
+
+    private static class FrameLights {
+        private final LightClusterer clusterer = new LightClusterer();
+        private Camera camera;
+        private boolean clustered;
     }
 }
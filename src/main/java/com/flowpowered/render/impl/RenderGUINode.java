@@ -25,7 +25,6 @@ package com.flowpowered.render.impl;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 
 import com.flowpowered.math.vector.Vector2i;
 import com.flowpowered.render.GraphNode;
@@ -59,10 +58,9 @@ public class RenderGUINode extends GraphNode {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public void update() {
-        updateModels(getAttribute("guiModels", (Collection<Model>) Collections.EMPTY_LIST));
-        updateOutputSize(this.<Vector2i>getAttribute("outputSize"));
+    protected void prepare() {
+        updateModels(getAttribute(Attributes.GUI_MODELS));
+        updateOutputSize(getAttribute(Attributes.OUTPUT_SIZE));
     }
 
     private void updateModels(Collection<Model> models) {
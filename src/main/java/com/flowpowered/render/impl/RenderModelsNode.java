@@ -23,25 +23,38 @@
  */
 package com.flowpowered.render.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.render.AttributeKey;
+import com.flowpowered.render.DrawList;
+import com.flowpowered.render.DrawList.Layout;
+import com.flowpowered.render.FrameAttributes;
 import com.flowpowered.render.GraphNode;
+import com.flowpowered.render.InstancedRenderer;
+import com.flowpowered.render.ModelCuller;
+import com.flowpowered.render.OcclusionCuller;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.RenderTarget;
 
+import com.flowpowered.caustic.api.Action;
 import com.flowpowered.caustic.api.Action.RenderModelsAction;
 import com.flowpowered.caustic.api.Action.SetCameraAction;
 import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.Material;
 import com.flowpowered.caustic.api.Pipeline;
 import com.flowpowered.caustic.api.Pipeline.PipelineBuilder;
 import com.flowpowered.caustic.api.gl.Context;
 import com.flowpowered.caustic.api.gl.FrameBuffer;
 import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
+import com.flowpowered.caustic.api.gl.Program;
 import com.flowpowered.caustic.api.gl.Texture;
 import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
 import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
-import com.flowpowered.caustic.api.gl.Texture.WrapMode;
 import com.flowpowered.caustic.api.model.Model;
 import com.flowpowered.caustic.api.util.Rectangle;
 
@@ -49,126 +62,274 @@ import com.flowpowered.caustic.api.util.Rectangle;
  *
  */
 public class RenderModelsNode extends GraphNode {
+    // One of the depth formats, 16, 24 or 32 bits
+    public static final AttributeKey<InternalFormat> DEPTH_FORMAT = AttributeKey.create("depthFormat", InternalFormat.class, InternalFormat.DEPTH_COMPONENT32);
     private final FrameBuffer frameBuffer;
-    private final Texture colorsOutput;
-    private final Texture normalsOutput;
-    private final Texture depthsOutput;
-    private final Texture vertexNormalsOutput;
-    private final Texture materialsOutput;
-    private final RenderModelsAction renderModels = new RenderModelsAction(null);
+    // The textures last attached to the frame buffer, in the order of the attachment points below
+    private final Texture[] attachedOutputs = new Texture[5];
+    private final RenderBatchedModelsAction renderModels = new RenderBatchedModelsAction();
+    private final InstancedRenderer instancer;
+    private boolean instancing;
     private final SetCameraAction setCamera = new SetCameraAction(null);
+    // The draw list of the last render
+    private DrawList drawList = new DrawList(Layout.OPAQUE);
+    private int visibleModelCount = 0;
+    private int culledModelCount = 0;
+    private int occludedModelCount = 0;
     private final Rectangle outputSize = new Rectangle();
+    private GBufferLayout layout;
+    private GBufferLayout attachedLayout;
+    private InternalFormat depthFormat;
     private final Pipeline pipeline;
 
     public RenderModelsNode(RenderGraph graph, String name) {
         super(graph, name);
-        final Context context = graph.getContext();
-        // Create the colors texture
-        colorsOutput = context.newTexture();
-        colorsOutput.create();
-        colorsOutput.setFormat(InternalFormat.RGBA8);
-        colorsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        colorsOutput.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
-        // Create the normals texture
-        normalsOutput = context.newTexture();
-        normalsOutput.create();
-        normalsOutput.setFormat(InternalFormat.RGBA8);
-        normalsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        // Create the depths texture
-        depthsOutput = context.newTexture();
-        depthsOutput.create();
-        depthsOutput.setFormat(InternalFormat.DEPTH_COMPONENT32);
-        depthsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        depthsOutput.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
-        // Create the vertex normals texture
-        vertexNormalsOutput = context.newTexture();
-        vertexNormalsOutput.create();
-        vertexNormalsOutput.setFormat(InternalFormat.RGBA8);
-        vertexNormalsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        // Create the materials texture
-        materialsOutput = context.newTexture();
-        materialsOutput.create();
-        materialsOutput.setFormat(InternalFormat.RGBA8);
-        materialsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        // Create the frame buffer
-        frameBuffer = context.newFrameBuffer();
+        // Create the frame buffer, the output textures are taken from the pool on each render
+        frameBuffer = graph.getContext().newFrameBuffer();
         frameBuffer.create();
-        frameBuffer.attach(AttachmentPoint.COLOR0, colorsOutput);
-        frameBuffer.attach(AttachmentPoint.COLOR1, normalsOutput);
-        frameBuffer.attach(AttachmentPoint.COLOR2, vertexNormalsOutput);
-        frameBuffer.attach(AttachmentPoint.COLOR3, materialsOutput);
-        frameBuffer.attach(AttachmentPoint.DEPTH, depthsOutput);
+        instancer = new InstancedRenderer(graph);
         // Create the pipeline
         pipeline = new PipelineBuilder().doAction(setCamera).useViewPort(outputSize).bindFrameBuffer(frameBuffer).clearBuffer().doAction(renderModels).unbindFrameBuffer(frameBuffer).build();
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public void update() {
-        updateCamera(this.<Camera>getAttribute("camera"));
-        updateOutputSize(this.<Vector2i>getAttribute("outputSize"));
-        updateModels(getAttribute("models",  (Collection<Model>) Collections.EMPTY_LIST));
+    protected void prepare() {
+        updateOutputSize(getAttribute(Attributes.OUTPUT_SIZE));
+        updateFormats(getAttribute(Attributes.GBUFFER_LAYOUT), getAttribute(DEPTH_FORMAT));
+        instancing = getAttribute(Attributes.INSTANCING);
     }
 
-    private void updateCamera(Camera camera) {
-        setCamera.setCamera(camera);
+    private void updateOutputSize(Vector2i size) {
+        outputSize.setSize(size);
     }
 
-    private void updateOutputSize(Vector2i size) {
-        if (size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
-            return;
+    private void updateFormats(GBufferLayout layout, InternalFormat depthFormat) {
+        if (depthFormat.getFormat() != Format.DEPTH) {
+            throw new IllegalArgumentException("Depth format must be a depth one");
         }
-        outputSize.setSize(size);
-        final int width = size.getX();
-        final int height = size.getY();
-        colorsOutput.setImageData(null, width, height);
-        normalsOutput.setImageData(null, width, height);
-        depthsOutput.setImageData(null, width, height);
-        vertexNormalsOutput.setImageData(null, width, height);
-        materialsOutput.setImageData(null, width, height);
+        this.layout = layout;
+        this.depthFormat = depthFormat;
+    }
+
+    @Override
+    protected Object prepareFrame(FrameAttributes attributes, Object previous) {
+        // Cull and order the models for every frame, so that the cameras, collections and bounds modified in place are taken into account
+        final FrameModels frame = previous != null ? (FrameModels) previous : new FrameModels();
+        final Camera camera = attributes.getAttribute(Attributes.CAMERA);
+        frame.camera = camera;
+        final Collection<Model> models = cullModels(attributes, camera, frame);
+        // Order the models to reduce the state changes, after culling and with the camera of this frame
+        frame.sortedModels = frame.drawList.build(models, camera);
+        return frame;
     }
 
-    private void updateModels(Collection<Model> models) {
-        renderModels.setModels(models);
+    private Collection<Model> cullModels(FrameAttributes attributes, Camera camera, FrameModels frame) {
+        final ModelCuller culler = attributes.getOptionalAttribute(Attributes.MODEL_CULLER);
+        if (culler == null) {
+            final Collection<Model> models = attributes.getAttribute(Attributes.MODELS);
+            frame.visibleModelCount = models.size();
+            frame.culledModelCount = 0;
+            frame.occludedModelCount = 0;
+            return models;
+        }
+        final OcclusionCuller occlusionCuller = attributes.getOptionalAttribute(Attributes.OCCLUSION_CULLER);
+        frame.visibleModelCount = culler.cull(camera, frame.visibleModels, occlusionCuller);
+        frame.culledModelCount = culler.getModelCount() - frame.visibleModelCount;
+        frame.occludedModelCount = culler.getOccludedCount();
+        return frame.visibleModels;
     }
 
     @Override
     protected void render() {
+        // The models were culled and sorted for the view when the frame was prepared
+        final FrameModels frame = getFrameData();
+        setCamera.setCamera(frame.camera);
+        drawList = frame.drawList;
+        visibleModelCount = frame.visibleModelCount;
+        culledModelCount = frame.culledModelCount;
+        occludedModelCount = frame.occludedModelCount;
+        renderModels.setModels(frame.sortedModels);
+        final Vector2i size = outputSize.getSize();
+        attachOutput(0, AttachmentPoint.COLOR0, acquireOutputTarget("colors", InternalFormat.RGBA8, size));
+        boolean layoutChanged = layout != attachedLayout;
+        if (layout == GBufferLayout.COMPACT) {
+            // The packed target stands for the three outputs, and mustn't be interpolated
+            if (attachOutput(1, AttachmentPoint.COLOR1, acquireOutputTarget("normals", InternalFormat.RGBA16, size, FilterMode.NEAREST))) {
+                layoutChanged = true;
+            }
+            detachOutput(2, AttachmentPoint.COLOR2);
+            detachOutput(3, AttachmentPoint.COLOR3);
+        } else {
+            attachOutput(1, AttachmentPoint.COLOR1, acquireOutputTarget("normals", InternalFormat.RGBA8, size));
+            attachOutput(2, AttachmentPoint.COLOR2, acquireOutputTarget("vertexNormals", InternalFormat.RGBA8, size));
+            attachOutput(3, AttachmentPoint.COLOR3, acquireOutputTarget("materials", InternalFormat.RGBA8, size));
+        }
+        attachOutput(4, AttachmentPoint.DEPTH, acquireOutputTarget("depths", depthFormat, size));
+        if (layoutChanged) {
+            // The dependents might still have the textures of the other layout
+            refreshOutput("vertexNormals");
+            refreshOutput("materials");
+            attachedLayout = layout;
+        }
         pipeline.run(graph.getContext());
     }
 
+    private boolean attachOutput(int index, AttachmentPoint point, RenderTarget target) {
+        // The pool hands out the same textures from one frame to the next, so this only changes with the size, the view or the layout
+        final Texture texture = target.getTexture();
+        if (attachedOutputs[index] == texture) {
+            return false;
+        }
+        frameBuffer.attach(point, texture);
+        attachedOutputs[index] = texture;
+        return true;
+    }
+
+    private void detachOutput(int index, AttachmentPoint point) {
+        // The texture went back to the pool, so it mustn't be written to anymore
+        if (attachedOutputs[index] != null) {
+            frameBuffer.detach(point);
+            attachedOutputs[index] = null;
+        }
+    }
+
+    /**
+     * Returns the draw list used to order the models, with the numbers of state changes of the last render. When the frames are prepared ahead, with a {@link
+     * com.flowpowered.render.FramePipeline}, it can already hold those of a later frame.
+     *
+     * @return The draw list
+     */
+    public DrawList getDrawList() {
+        return drawList;
+    }
+
+    /**
+     * Returns the number of models rendered during the last render.
+     *
+     * @return The number of visible models
+     */
+    public int getVisibleModelCount() {
+        return visibleModelCount;
+    }
+
+    /**
+     * Returns the number of models culled during the last render, zero when no culler is set.
+     *
+     * @return The number of culled models
+     */
+    public int getCulledModelCount() {
+        return culledModelCount;
+    }
+
+    /**
+     * Returns the number of culled models that were inside of the frustum but hidden by the occluders during the last render, zero when no occlusion culler
+     * is set.
+     *
+     * @return The number of occluded models
+     */
+    public int getOccludedModelCount() {
+        return occludedModelCount;
+    }
+
+    /**
+     * Returns the number of draw calls made for the models during the last render.
+     *
+     * @return The number of draw calls
+     */
+    public int getDrawCalls() {
+        return renderModels.drawCalls;
+    }
+
+    /**
+     * Returns the renderer for the instanced batches, with the numbers of instanced draws.
+     *
+     * @return The instanced renderer
+     */
+    public InstancedRenderer getInstancedRenderer() {
+        return instancer;
+    }
+
     @Override
     protected void destroy() {
         frameBuffer.destroy();
-        colorsOutput.destroy();
-        normalsOutput.destroy();
-        depthsOutput.destroy();
-        vertexNormalsOutput.destroy();
-        materialsOutput.destroy();
+        instancer.destroy();
     }
 
-    @Output("colors")
+    @Output(value = "colors", format = Format.RGBA)
     public Texture getColorsOutput() {
-        return colorsOutput;
+        return getOutputTargetTexture("colors");
     }
 
-    @Output("normals")
+    @Output(value = "normals", format = Format.RGBA)
     public Texture getNormalsOutput() {
-        return normalsOutput;
+        return getOutputTargetTexture("normals");
     }
 
-    @Output("depths")
+    @Output(value = "depths", format = Format.DEPTH)
     public Texture getDepthsOutput() {
-        return depthsOutput;
+        return getOutputTargetTexture("depths");
     }
 
-    @Output("vertexNormals")
+    @Output(value = "vertexNormals", format = Format.RGBA)
     public Texture getVertexNormalsOutput() {
-        return vertexNormalsOutput;
+        return getOutputTargetTexture(layout == GBufferLayout.COMPACT ? "normals" : "vertexNormals");
     }
 
-    @Output("materials")
+    @Output(value = "materials", format = Format.RGBA)
     public Texture getMaterialsOutput() {
-        return materialsOutput;
+        return getOutputTargetTexture(layout == GBufferLayout.COMPACT ? "normals" : "materials");
+    }
+
+    private static class FrameModels {
+        private final List<Model> visibleModels = new ArrayList<>();
+        // Each frame has its own list, as the sorted models are reused by the next build
+        private final DrawList drawList = new DrawList(Layout.OPAQUE);
+        private List<Model> sortedModels = Collections.emptyList();
+        private Camera camera;
+        private int visibleModelCount;
+        private int culledModelCount;
+        private int occludedModelCount;
+    }
+
+    private class RenderBatchedModelsAction extends Action {
+        // Draws the models that aren't instanced
+        private final RenderModelsAction renderModels = new RenderModelsAction(null);
+        private List<Model> models = Collections.emptyList();
+        private int drawCalls = 0;
+
+        private void setModels(List<Model> models) {
+            this.models = models;
+        }
+
+        @Override
+        public void execute(Context context) {
+            final Camera camera = context.getCamera();
+            final int size = models.size();
+            drawCalls = 0;
+            // The models are sorted, so those that share a vertex array and material are consecutive
+            int unbatched = 0;
+            for (int i = 0; i < size; ) {
+                final int end = instancer.findBatchEnd(models, i, true);
+                final Material material = models.get(i).getMaterial();
+                // A model with uniforms of its own is alone in its batch, and can't be instanced
+                final Program program = instancing && !InstancedRenderer.hasOwnUniforms(models.get(i)) ? instancer.getBatchProgram(material, end - i) : null;
+                if (program != null) {
+                    renderUnbatched(context, unbatched, i);
+                    instancer.render(models, i, end, material, program, camera);
+                    drawCalls++;
+                    unbatched = end;
+                }
+                i = end;
+            }
+            renderUnbatched(context, unbatched, size);
+        }
+
+        private void renderUnbatched(Context context, int from, int to) {
+            if (from < to) {
+                renderModels.setModels(models.subList(from, to));
+                renderModels.execute(context);
+                drawCalls += to - from;
+            }
+        }
     }
 }
@@ -24,12 +24,18 @@
 package com.flowpowered.render.impl;
 
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.render.FrameAttributes;
 import com.flowpowered.render.GraphNode;
+import com.flowpowered.render.ModelCuller;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.RenderTarget;
+import com.flowpowered.render.RenderTargetPool;
 
 import com.flowpowered.caustic.api.Action.RenderModelsAction;
 import com.flowpowered.caustic.api.Action.SetCameraAction;
@@ -44,7 +50,7 @@ import com.flowpowered.caustic.api.gl.FrameBuffer;
 import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
 import com.flowpowered.caustic.api.gl.Program;
 import com.flowpowered.caustic.api.gl.Texture;
-import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
 import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
 import com.flowpowered.caustic.api.model.Model;
 import com.flowpowered.caustic.api.util.Rectangle;
@@ -53,41 +59,28 @@ import com.flowpowered.caustic.api.util.Rectangle;
  *
  */
 public class RenderTransparentModelsNode extends GraphNode {
-    private final Texture weightedColors;
-    private final Texture layerCounts;
+    private final Material material;
     private final FrameBuffer weightedSumFrameBuffer;
     private final FrameBuffer frameBuffer;
     private Texture colors;
     private final RenderModelsAction renderModels = new RenderModelsAction(null);
     private final SetCameraAction setCamera = new SetCameraAction(null);
+    private int visibleModelCount = 0;
+    private int culledModelCount = 0;
     private final Rectangle outputSize = new Rectangle();
     private final Pipeline pipeline;
 
     public RenderTransparentModelsNode(RenderGraph graph, String name) {
         super(graph, name);
         final Context context = graph.getContext();
-        // Create the weighted colors texture
-        weightedColors = context.newTexture();
-        weightedColors.create();
-        weightedColors.setFormat(InternalFormat.RGBA16F);
-        weightedColors.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        // Create the layer counts texture
-        layerCounts = context.newTexture();
-        layerCounts.create();
-        layerCounts.setFormat(InternalFormat.R16F);
-        layerCounts.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        // Create the weighted sum frame buffer
+        // Create the weighted sum frame buffer, the weighted colors and layer counts are taken from the pool on each render
         weightedSumFrameBuffer = context.newFrameBuffer();
         weightedSumFrameBuffer.create();
-        weightedSumFrameBuffer.attach(AttachmentPoint.COLOR0, weightedColors);
-        weightedSumFrameBuffer.attach(AttachmentPoint.COLOR1, layerCounts);
         // Create the frame buffer
         frameBuffer = context.newFrameBuffer();
         frameBuffer.create();
         // Create the material
-        final Material material = new Material(graph.getProgram("transparencyBlending"));
-        material.addTexture(0, weightedColors);
-        material.addTexture(1, layerCounts);
+        material = new Material(graph.getProgram("transparencyBlending"));
         // Create the screen model
         final Model model = new Model(graph.getScreen(), material);
         // Create the pipeline
@@ -104,47 +97,81 @@ public class RenderTransparentModelsNode extends GraphNode {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public void update() {
-        updateCamera(this.<Camera>getAttribute("camera"));
-        updateModels(getAttribute("transparentModels", (Collection<Model>) Collections.EMPTY_LIST));
-    }
-
-    private void updateCamera(Camera camera) {
-        setCamera.setCamera(camera);
-    }
-
-    private void updateModels(Collection<Model> models) {
-        renderModels.setModels(models);
+    protected Object prepareFrame(FrameAttributes attributes, Object previous) {
+        // Cull the models for every frame, so that the cameras, collections and bounds modified in place are taken into account
+        final FrameModels frame = previous != null ? (FrameModels) previous : new FrameModels();
+        final Camera camera = attributes.getAttribute(Attributes.CAMERA);
+        frame.camera = camera;
+        final ModelCuller culler = attributes.getOptionalAttribute(Attributes.TRANSPARENT_MODEL_CULLER);
+        if (culler == null) {
+            frame.models = attributes.getAttribute(Attributes.TRANSPARENT_MODELS);
+            frame.visibleModelCount = frame.models.size();
+            frame.culledModelCount = 0;
+        } else {
+            frame.visibleModelCount = culler.cull(camera, frame.visibleModels);
+            frame.culledModelCount = culler.getModelCount() - frame.visibleModelCount;
+            frame.models = frame.visibleModels;
+        }
+        return frame;
     }
 
     @Override
     protected void render() {
-        // Update the size of the textures to match the input, if necessary
-        updateAuxTextureSizes();
+        // The models were culled for the view when the frame was prepared
+        final FrameModels frame = getFrameData();
+        setCamera.setCamera(frame.camera);
+        renderModels.setModels(frame.models);
+        visibleModelCount = frame.visibleModelCount;
+        culledModelCount = frame.culledModelCount;
+        // Update the size of the accumulation textures to match the input, if necessary
+        final Vector2i size = colors.getSize();
+        if (!size.equals(outputSize.getSize())) {
+            outputSize.setSize(size);
+        }
+        // The accumulation textures are only needed during this node's render
+        final RenderTargetPool pool = graph.getRenderTargetPool();
+        final RenderTarget weightedColors = pool.acquire(InternalFormat.RGBA16F, size.getX(), size.getY());
+        final RenderTarget layerCounts = pool.acquire(InternalFormat.R16F, size.getX(), size.getY());
+        attachAccumulationTexture(AttachmentPoint.COLOR0, 0, weightedColors.getTexture());
+        attachAccumulationTexture(AttachmentPoint.COLOR1, 1, layerCounts.getTexture());
         // Upload the light direction uniform
         final Program weightedSumProgram = graph.getProgram("weightedSum");
         weightedSumProgram.use();
-        weightedSumProgram.setUniform("lightDirection", getAttribute("lightDirection", LightingNode.DEFAULT_LIGHT_DIRECTION));
+        weightedSumProgram.setUniform("lightDirection", getAttribute(Attributes.LIGHT_DIRECTION));
         // Render
         pipeline.run(graph.getContext());
+        pool.release(weightedColors);
+        pool.release(layerCounts);
     }
 
-    private void updateAuxTextureSizes() {
-        final Vector2i size = colors.getSize();
-        if (!size.equals(outputSize.getSize())) {
-            outputSize.setSize(size);
-            final int width = size.getX();
-            final int height = size.getY();
-            weightedColors.setImageData(null, width, height);
-            layerCounts.setImageData(null, width, height);
+    private void attachAccumulationTexture(AttachmentPoint point, int unit, Texture texture) {
+        // The pool hands out the same textures from one frame to the next, so this rarely changes
+        if (material.getTexture(unit) != texture) {
+            weightedSumFrameBuffer.attach(point, texture);
+            material.addTexture(unit, texture);
         }
     }
 
+    /**
+     * Returns the number of models rendered during the last render.
+     *
+     * @return The number of visible models
+     */
+    public int getVisibleModelCount() {
+        return visibleModelCount;
+    }
+
+    /**
+     * Returns the number of models culled during the last render, zero when no culler is set.
+     *
+     * @return The number of culled models
+     */
+    public int getCulledModelCount() {
+        return culledModelCount;
+    }
+
     @Override
     protected void destroy() {
-        weightedColors.destroy();
-        layerCounts.destroy();
         weightedSumFrameBuffer.destroy();
         frameBuffer.destroy();
     }
@@ -154,10 +181,11 @@ public class RenderTransparentModelsNode extends GraphNode {
         texture.checkCreated();
         colors = texture;
         frameBuffer.attach(AttachmentPoint.COLOR0, texture);
-        updateAuxTextureSizes();
+        // The output is the input, drawn over
+        refreshOutput("colors");
     }
 
-    @Input("depths")
+    @Input(value = "depths", format = Format.DEPTH)
     public void setDepthsInput(Texture texture) {
         texture.checkCreated();
         weightedSumFrameBuffer.attach(AttachmentPoint.DEPTH, texture);
@@ -167,4 +195,12 @@ public class RenderTransparentModelsNode extends GraphNode {
     public Texture getColorsOutput() {
         return colors;
     }
+
+    private static class FrameModels {
+        private final List<Model> visibleModels = new ArrayList<>();
+        private Collection<Model> models = Collections.emptyList();
+        private Camera camera;
+        private int visibleModelCount;
+        private int culledModelCount;
+    }
 }
@@ -25,6 +25,9 @@ package com.flowpowered.render.impl;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 import com.flowpowered.math.GenericMath;
@@ -33,8 +36,13 @@ import com.flowpowered.math.matrix.Matrix4f;
 import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector2i;
 import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.render.AttributeKey;
 import com.flowpowered.render.GraphNode;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.RenderTarget;
+import com.flowpowered.render.RenderTarget.BindRenderTargetAction;
+import com.flowpowered.render.RenderTarget.UnbindRenderTargetAction;
+import com.flowpowered.render.RenderTargetPool;
 import com.flowpowered.render.RenderUtil;
 
 import com.flowpowered.caustic.api.Camera;
@@ -52,18 +60,45 @@ import com.flowpowered.caustic.api.gl.FrameBuffer;
 import com.flowpowered.caustic.api.gl.FrameBuffer.AttachmentPoint;
 import com.flowpowered.caustic.api.gl.Texture;
 import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
 import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
+import com.flowpowered.caustic.api.gl.Texture.WrapMode;
 import com.flowpowered.caustic.api.model.Model;
 import com.flowpowered.caustic.api.util.CausticUtil;
 import com.flowpowered.caustic.api.util.Rectangle;
 
 public class SSAONode extends GraphNode {
+    public static final AttributeKey<Integer> KERNEL_SIZE = AttributeKey.create("kernelSize", Integer.class, 8);
+    public static final AttributeKey<Float> THRESHOLD = AttributeKey.create("threshold", Float.class, 0.15f);
+    public static final AttributeKey<Float> RADIUS = AttributeKey.create("radius", Float.class, 0.5f);
+    public static final AttributeKey<Integer> NOISE_SIZE = AttributeKey.create("noiseSize", Integer.class, 2);
+    public static final AttributeKey<Float> POWER = AttributeKey.create("power", Float.class, 2f);
+    public static final AttributeKey<Integer> RESOLUTION_DIVISOR = AttributeKey.create("resolutionDivisor", Integer.class, 1);
+    public static final AttributeKey<Boolean> TEMPORAL = AttributeKey.create("temporal", Boolean.class, false);
+    public static final AttributeKey<Float> HISTORY_WEIGHT = AttributeKey.create("historyWeight", Float.class, 0.9f);
+    private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
     private final Texture noiseTexture;
-    private final FrameBuffer frameBuffer;
-    private final Texture occlusionsOutput;
+    // Generated by prepare(), uploaded by apply()
+    private ByteBuffer noiseTextureData;
+    private int noiseSize;
+    private final BindRenderTargetAction bindDownsampled = new BindRenderTargetAction(null);
+    private final BindRenderTargetAction bindOcclusions = new BindRenderTargetAction(null);
+    private final BindRenderTargetAction bindOutput = new BindRenderTargetAction(null);
+    private final UnbindRenderTargetAction unbindOutput = new UnbindRenderTargetAction(null);
     private final Material material;
+    private final Material downsampleMaterial;
+    private final Material upsampleMaterial;
     private final Pipeline pipeline;
+    private final Pipeline downsampledPipeline;
     private final Rectangle outputSize = new Rectangle();
+    private final Rectangle downsampledSize = new Rectangle();
+    private int resolutionDivisor = 0;
+    private Texture normals;
+    private final FrameBuffer temporalFrameBuffer;
+    private final Material temporalMaterial;
+    private final Pipeline temporalPipeline;
+    private boolean temporal = false;
+    private float historyWeight;
     private final Vector2Uniform projectionUniform = new Vector2Uniform("projection", Vector2f.ZERO);
     private final Matrix4Uniform projectionMatrixUniform = new Matrix4Uniform("projectionMatrix", Matrix4f.IDENTITY);
     private final FloatUniform aspectRatioUniform = new FloatUniform("aspectRatio", 1);
@@ -74,6 +109,18 @@ public class SSAONode extends GraphNode {
     private final FloatUniform thresholdUniform = new FloatUniform("threshold", 0.15f);
     private final Vector2Uniform noiseScaleUniform = new Vector2Uniform("noiseScale", Vector2f.ONE);
     private final FloatUniform powerUniform = new FloatUniform("power", 2);
+    private final Vector2Uniform resolutionUniform = new Vector2Uniform("resolution", Vector2f.ONE);
+    private final Vector2Uniform downsampledResolutionUniform = new Vector2Uniform("downsampledResolution", Vector2f.ONE);
+    private final Vector2Uniform noiseOffsetUniform = new Vector2Uniform("noiseOffset", Vector2f.ZERO);
+    private final Vector2Uniform kernelRotationUniform = new Vector2Uniform("kernelRotation", Vector2f.UNIT_X);
+    private final Matrix4Uniform reprojectionMatrixUniform = new Matrix4Uniform("reprojectionMatrix", Matrix4f.IDENTITY);
+    private final Matrix4Uniform previousProjectionMatrixUniform = new Matrix4Uniform("previousProjectionMatrix", Matrix4f.IDENTITY);
+    private final FloatUniform historyWeightUniform = new FloatUniform("historyWeight", 0);
+    // The far taps read coarser depths when a depth pyramid is connected, (dis)connecting the input invalidates the node
+    private boolean depthPyramid = false;
+    private GBufferLayout layout;
+    private Map<String, String> programDefines = Collections.emptyMap();
+    private GBufferLayout resamplingLayout = GBufferLayout.STANDARD;
 
     public SSAONode(RenderGraph graph, String name) {
         super(graph, name);
@@ -83,19 +130,10 @@ public class SSAONode extends GraphNode {
         noiseTexture.create();
         noiseTexture.setFormat(InternalFormat.RGB8);
         noiseTexture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
-        // Create the occlusions texture
-        occlusionsOutput = context.newTexture();
-        occlusionsOutput.create();
-        occlusionsOutput.setFormat(InternalFormat.R8);
-        occlusionsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
-        // Create the frame buffer
-        frameBuffer = context.newFrameBuffer();
-        frameBuffer.create();
-        frameBuffer.attach(AttachmentPoint.COLOR0, occlusionsOutput);
         // Create the material
         material = new Material(graph.getProgram("ssao"));
         material.addTexture(2, noiseTexture);
-        final UniformHolder uniforms = material.getUniforms();
+        UniformHolder uniforms = material.getUniforms();
         uniforms.add(projectionUniform);
         uniforms.add(projectionMatrixUniform);
         uniforms.add(tanHalfFOVUniform);
@@ -106,20 +144,64 @@ public class SSAONode extends GraphNode {
         uniforms.add(thresholdUniform);
         uniforms.add(noiseScaleUniform);
         uniforms.add(powerUniform);
-        // Create the screen model
+        uniforms.add(downsampledResolutionUniform);
+        uniforms.add(noiseOffsetUniform);
+        uniforms.add(kernelRotationUniform);
+        uniforms.add(resolutionUniform);
+        // Create the downsampling material, which packs the normals with the linear depths
+        downsampleMaterial = new Material(graph.getProgram("ssaoDownsample"));
+        uniforms = downsampleMaterial.getUniforms();
+        uniforms.add(projectionUniform);
+        uniforms.add(resolutionUniform);
+        // Create the upsampling material, a bilateral filter using the full resolution normals and depths
+        upsampleMaterial = new Material(graph.getProgram("ssaoUpsample"));
+        uniforms = upsampleMaterial.getUniforms();
+        uniforms.add(projectionUniform);
+        uniforms.add(downsampledResolutionUniform);
+        // Create the temporal frame buffer, which writes the output and the next history
+        temporalFrameBuffer = context.newFrameBuffer();
+        temporalFrameBuffer.create();
+        // Create the temporal material, which blends the reprojected history into the new occlusion
+        temporalMaterial = new Material(graph.getProgram("ssaoTemporal"));
+        uniforms = temporalMaterial.getUniforms();
+        uniforms.add(projectionUniform);
+        uniforms.add(tanHalfFOVUniform);
+        uniforms.add(aspectRatioUniform);
+        uniforms.add(reprojectionMatrixUniform);
+        uniforms.add(previousProjectionMatrixUniform);
+        uniforms.add(historyWeightUniform);
+        // Create the screen models
         final Model model = new Model(graph.getScreen(), material);
-        // Create the pipeline
-        pipeline = new PipelineBuilder().useViewPort(outputSize).bindFrameBuffer(frameBuffer).renderModels(Arrays.asList(model)).unbindFrameBuffer(frameBuffer).build();
+        final Model downsampleModel = new Model(graph.getScreen(), downsampleMaterial);
+        final Model upsampleModel = new Model(graph.getScreen(), upsampleMaterial);
+        final Model temporalModel = new Model(graph.getScreen(), temporalMaterial);
+        // Create the full resolution pipeline
+        pipeline = new PipelineBuilder().useViewPort(outputSize).doAction(bindOutput).renderModels(Arrays.asList(model)).doAction(unbindOutput).build();
+        // Create the reduced resolution pipeline, the intermediate targets are taken from the pool on each render
+        downsampledPipeline = new PipelineBuilder()
+                .useViewPort(downsampledSize)
+                .doAction(bindDownsampled).renderModels(Arrays.asList(downsampleModel))
+                .doAction(bindOcclusions).renderModels(Arrays.asList(model))
+                .useViewPort(outputSize)
+                .doAction(bindOutput).renderModels(Arrays.asList(upsampleModel))
+                .doAction(unbindOutput).build();
+        // Create the temporal pipeline, run after either of the above
+        temporalPipeline = new PipelineBuilder()
+                .useViewPort(outputSize)
+                .bindFrameBuffer(temporalFrameBuffer).renderModels(Arrays.asList(temporalModel)).unbindFrameBuffer(temporalFrameBuffer)
+                .build();
     }
 
     @Override
-    public void update() {
-        updateCamera(this.<Camera>getAttribute("camera"));
-        updateKernelSize(getAttribute("kernelSize", 8), getAttribute("threshold", 0.15f));
-        updateRadius(getAttribute("radius", 0.5f));
-        updateNoiseSize(getAttribute("noiseSize", 2));
-        updatePower(getAttribute("power", 2f));
-        updateOutputSize(this.<Vector2i>getAttribute("outputSize"));
+    protected void prepare() {
+        updateKernelSize(getAttribute(KERNEL_SIZE), getAttribute(THRESHOLD));
+        updateRadius(getAttribute(RADIUS));
+        updateNoiseSize(getAttribute(NOISE_SIZE));
+        updatePower(getAttribute(POWER));
+        updateOutputSize(getAttribute(Attributes.OUTPUT_SIZE), getAttribute(RESOLUTION_DIVISOR));
+        updateTemporal(getAttribute(TEMPORAL), getAttribute(HISTORY_WEIGHT));
+        depthPyramid = getConnectedInputs().containsKey("depthPyramid");
+        layout = getAttribute(Attributes.GBUFFER_LAYOUT);
     }
 
     private void updateCamera(Camera camera) {
@@ -154,9 +236,10 @@ public class SSAONode extends GraphNode {
     }
 
     private void updateNoiseSize(int noiseSize) {
-        if (noiseSize == noiseTexture.getWidth()) {
+        if (noiseSize == this.noiseSize) {
             return;
         }
+        this.noiseSize = noiseSize;
         // Generate the noise texture data
         final Random random = new Random();
         final int noiseTextureSize = noiseSize * noiseSize;
@@ -171,54 +254,247 @@ public class SSAONode extends GraphNode {
             noiseTextureBuffer.put((byte) (noise.getFloorZ() & 0xff));
         }
         // Update the uniform
-        noiseScaleUniform.set(outputSize.getSize().toFloat().div(noiseSize));
-        // Update the texture
+        noiseScaleUniform.set(downsampledSize.getSize().toFloat().div(noiseSize));
+        // Update the texture on apply
         noiseTextureBuffer.flip();
-        noiseTexture.setImageData(noiseTextureBuffer, noiseSize, noiseSize);
+        noiseTextureData = noiseTextureBuffer;
     }
 
     private void updatePower(float power) {
         powerUniform.set(power);
     }
 
-    private void updateOutputSize(Vector2i size) {
-        if (size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
+    private void updateOutputSize(Vector2i size, int resolutionDivisor) {
+        if (resolutionDivisor < 1) {
+            throw new IllegalArgumentException("Resolution divisor must be at least 1");
+        }
+        if (size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight() && resolutionDivisor == this.resolutionDivisor) {
             return;
         }
+        this.resolutionDivisor = resolutionDivisor;
         outputSize.setSize(size);
-        occlusionsOutput.setImageData(null, size.getX(), size.getY());
-        noiseScaleUniform.set(size.toFloat().div(noiseTexture.getWidth()));
+        // The occlusion is computed at the divided size, rounded up so that every output pixel is covered
+        downsampledSize.setSize(getDownsampledSize(size, resolutionDivisor));
+        resolutionUniform.set(size.toFloat());
+        downsampledResolutionUniform.set(downsampledSize.getSize().toFloat());
+        noiseScaleUniform.set(downsampledSize.getSize().toFloat().div(noiseSize));
+    }
+
+    private void updateTemporal(boolean temporal, float historyWeight) {
+        this.temporal = temporal;
+        this.historyWeight = historyWeight;
+    }
+
+    @Override
+    protected void apply() {
+        // Use the program variant with a constant kernel size, so that its loop can be unrolled, and the depth sources in use
+        final Map<String, String> defines = new HashMap<>();
+        defines.put("KERNEL_SIZE", Integer.toString(kernelSizeUniform.get()));
+        if (resolutionDivisor > 1) {
+            defines.put("DOWNSAMPLED", "1");
+        }
+        if (depthPyramid) {
+            defines.put("DEPTH_PYRAMID", "1");
+        }
+        if (resolutionDivisor <= 1) {
+            // The downsampled normals are already decoded
+            defines.putAll(layout.getDefines());
+        }
+        if (!defines.equals(programDefines)) {
+            material.setProgram(graph.getProgram("ssao", defines));
+            programDefines = defines;
+        }
+        // The resampling programs read the full resolution normals, so they also need the variant for the G-buffer layout
+        if (layout != resamplingLayout) {
+            downsampleMaterial.setProgram(graph.getProgram("ssaoDownsample", layout.getDefines()));
+            upsampleMaterial.setProgram(graph.getProgram("ssaoUpsample", layout.getDefines()));
+            resamplingLayout = layout;
+        }
+        if (noiseTextureData != null) {
+            noiseTexture.setImageData(noiseTextureData, noiseSize, noiseSize);
+            noiseTextureData = null;
+        }
+    }
+
+    @Override
+    protected Object createViewState() {
+        return new History();
+    }
+
+    @Override
+    protected void destroyViewState(Object state) {
+        ((History) state).destroy();
     }
 
     @Override
     protected void render() {
         final Texture depths = material.getTexture(1);
         aspectRatioUniform.set((float) depths.getWidth() / depths.getHeight());
-        projectionMatrixUniform.set(this.<Camera>getAttribute("camera").getProjectionMatrix());
-        pipeline.run(graph.getContext());
+        // The projection can be modified in place, so it is read on every render rather than when the camera is set
+        final Camera camera = getAttribute(Attributes.CAMERA);
+        updateCamera(camera);
+        final Matrix4f projectionMatrix = camera.getProjectionMatrix();
+        projectionMatrixUniform.set(projectionMatrix);
+        // The jitter and reprojection advance with each rendered frame of the view, not with each update
+        final History history = getViewState();
+        if (temporal) {
+            history.resize(outputSize.getSize());
+            history.advance(camera);
+        } else {
+            history.reset();
+            kernelRotationUniform.set(Vector2f.UNIT_X);
+            noiseOffsetUniform.set(Vector2f.ZERO);
+        }
+        final RenderTargetPool pool = graph.getRenderTargetPool();
+        final RenderTarget output = acquireOutputTarget("occlusions", InternalFormat.R8, outputSize.getSize());
+        // In temporal mode, the new occlusion is rendered to an intermediate target, then blended with the history into the output
+        final RenderTarget target = temporal ? pool.acquire(InternalFormat.R8, outputSize.getWidth(), outputSize.getHeight()) : output;
+        bindOutput.setTarget(target);
+        unbindOutput.setTarget(target);
+        if (resolutionDivisor <= 1) {
+            material.addTexture(0, normals);
+            pipeline.run(graph.getContext());
+        } else {
+            renderDownsampled(pool);
+        }
+        if (temporal) {
+            renderTemporal(history, target, output, projectionMatrix);
+            pool.release(target);
+        }
+    }
+
+    private void renderDownsampled(RenderTargetPool pool) {
+        // The downsampled normals and depths, and the occlusion before upsampling, are only needed during this node's render
+        final RenderTarget downsampled = pool.acquire(InternalFormat.RGBA16F, downsampledSize.getWidth(), downsampledSize.getHeight());
+        final RenderTarget occlusions = pool.acquire(InternalFormat.R8, downsampledSize.getWidth(), downsampledSize.getHeight());
+        material.addTexture(0, downsampled.getTexture());
+        upsampleMaterial.addTexture(0, occlusions.getTexture());
+        upsampleMaterial.addTexture(1, downsampled.getTexture());
+        bindDownsampled.setTarget(downsampled);
+        bindOcclusions.setTarget(occlusions);
+        downsampledPipeline.run(graph.getContext());
+        pool.release(downsampled);
+        pool.release(occlusions);
+    }
+
+    private void renderTemporal(History history, RenderTarget current, RenderTarget output, Matrix4f projectionMatrix) {
+        temporalFrameBuffer.attach(AttachmentPoint.COLOR0, output.getTexture());
+        temporalFrameBuffer.attach(AttachmentPoint.COLOR1, history.textures[history.index ^ 1]);
+        temporalMaterial.addTexture(0, current.getTexture());
+        temporalMaterial.addTexture(1, history.textures[history.index]);
+        // Without a valid history, the new occlusion is used as is
+        historyWeightUniform.set(history.valid ? historyWeight : 0);
+        previousProjectionMatrixUniform.set(history.previousProjectionMatrix);
+        temporalPipeline.run(graph.getContext());
+        // This frame's projection is the previous one for the next
+        history.previousProjectionMatrix = projectionMatrix;
+        history.index ^= 1;
+        history.valid = true;
+    }
+
+    /**
+     * Returns the size at which the occlusion is computed for the given output size and resolution divisor.
+     *
+     * @param size The output size
+     * @param resolutionDivisor The resolution divisor, 1 for full resolution
+     * @return The reduced size, rounded up
+     */
+    public static Vector2i getDownsampledSize(Vector2i size, int resolutionDivisor) {
+        return new Vector2i((size.getX() + resolutionDivisor - 1) / resolutionDivisor, (size.getY() + resolutionDivisor - 1) / resolutionDivisor);
     }
 
     @Override
     protected void destroy() {
         noiseTexture.destroy();
-        frameBuffer.destroy();
-        occlusionsOutput.destroy();
+        temporalFrameBuffer.destroy();
+    }
+
+    // The occlusion and linear depth of the last two frames of a view, alternately read and written, allocated on the first temporal render
+    private class History {
+        private final Texture[] textures = new Texture[2];
+        private final Rectangle size = new Rectangle();
+        private int index = 0;
+        private boolean valid = false;
+        private long frame = 0;
+        private Matrix4f previousViewMatrix;
+        private Matrix4f previousProjectionMatrix = Matrix4f.IDENTITY;
+
+        private void resize(Vector2i newSize) {
+            if (textures[0] != null && size.getWidth() == newSize.getX() && size.getHeight() == newSize.getY()) {
+                return;
+            }
+            for (int i = 0; i < textures.length; i++) {
+                if (textures[i] == null) {
+                    final Texture texture = graph.getContext().newTexture();
+                    texture.create();
+                    texture.setFormat(InternalFormat.RG16F);
+                    texture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+                    texture.setWraps(WrapMode.CLAMP_TO_EDGE, WrapMode.CLAMP_TO_EDGE);
+                    textures[i] = texture;
+                }
+                textures[i].setImageData(null, newSize.getX(), newSize.getY());
+            }
+            size.setSize(newSize);
+            // The previous history is no longer valid
+            valid = false;
+        }
+
+        private void advance(Camera camera) {
+            // Rotate the kernel by the golden angle and step through the noise texture, so that consecutive frames take different samples
+            final float angle = (float) (frame * GOLDEN_ANGLE % TrigMath.TWO_PI);
+            kernelRotationUniform.set(new Vector2f(TrigMath.cos(angle), TrigMath.sin(angle)));
+            noiseOffsetUniform.set(new Vector2f(frame % noiseSize, frame / noiseSize % noiseSize).div(noiseSize));
+            frame++;
+            // Find the transform from the current view space to the last one, so that the history can be reprojected
+            final Matrix4f viewMatrix = camera.getViewMatrix();
+            if (previousViewMatrix != null) {
+                reprojectionMatrixUniform.set(previousViewMatrix.mul(viewMatrix.invert()));
+            } else {
+                valid = false;
+            }
+            previousViewMatrix = viewMatrix;
+        }
+
+        private void reset() {
+            valid = false;
+            previousViewMatrix = null;
+        }
+
+        private void destroy() {
+            for (Texture texture : textures) {
+                if (texture != null) {
+                    texture.destroy();
+                }
+            }
+        }
     }
 
     @Input("normals")
     public void setNormalsInput(Texture texture) {
         texture.checkCreated();
+        normals = texture;
         material.addTexture(0, texture);
+        downsampleMaterial.addTexture(0, texture);
+        upsampleMaterial.addTexture(2, texture);
     }
 
-    @Input("depths")
+    @Input(value = "depths", format = Format.DEPTH)
     public void setDepthsInput(Texture texture) {
         texture.checkCreated();
         material.addTexture(1, texture);
+        downsampleMaterial.addTexture(1, texture);
+        upsampleMaterial.addTexture(3, texture);
+        temporalMaterial.addTexture(2, texture);
+    }
+
+    @Input(value = "depthPyramid", format = Format.RG)
+    public void setDepthPyramidInput(Texture texture) {
+        texture.checkCreated();
+        material.addTexture(3, texture);
     }
 
-    @Output("occlusions")
+    @Output(value = "occlusions", format = Format.RED)
     public Texture getOcclusionsOutput() {
-        return occlusionsOutput;
+        return getOutputTargetTexture("occlusions");
     }
 }
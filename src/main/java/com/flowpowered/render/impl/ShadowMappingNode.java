@@ -24,9 +24,13 @@
 package com.flowpowered.render.impl;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import com.flowpowered.commons.ViewFrustum;
@@ -37,8 +41,16 @@ import com.flowpowered.math.matrix.Matrix4f;
 import com.flowpowered.math.vector.Vector2f;
 import com.flowpowered.math.vector.Vector2i;
 import com.flowpowered.math.vector.Vector3f;
+import com.flowpowered.render.AttributeKey;
+import com.flowpowered.render.DrawList;
+import com.flowpowered.render.DrawList.Layout;
 import com.flowpowered.render.GraphNode;
+import com.flowpowered.render.InstancedRenderer;
+import com.flowpowered.render.ModelCuller;
 import com.flowpowered.render.RenderGraph;
+import com.flowpowered.render.RenderTarget;
+import com.flowpowered.render.RenderTarget.BindRenderTargetAction;
+import com.flowpowered.render.RenderTarget.UnbindRenderTargetAction;
 import com.flowpowered.render.RenderUtil;
 
 import com.flowpowered.caustic.api.Action;
@@ -60,6 +72,7 @@ import com.flowpowered.caustic.api.gl.Program;
 import com.flowpowered.caustic.api.gl.Texture;
 import com.flowpowered.caustic.api.gl.Texture.CompareMode;
 import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
 import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
 import com.flowpowered.caustic.api.gl.Texture.WrapMode;
 import com.flowpowered.caustic.api.model.Model;
@@ -67,12 +80,19 @@ import com.flowpowered.caustic.api.util.CausticUtil;
 import com.flowpowered.caustic.api.util.Rectangle;
 
 public class ShadowMappingNode extends GraphNode {
+    public static final AttributeKey<Vector2i> SHADOW_MAP_SIZE = AttributeKey.create("shadowMapSize", Vector2i.class, new Vector2i(1024, 1024));
+    public static final AttributeKey<Integer> KERNEL_SIZE = AttributeKey.create("kernelSize", Integer.class, 8);
+    public static final AttributeKey<Float> RADIUS = AttributeKey.create("radius", Float.class, 0.05f);
+    public static final AttributeKey<Float> BIAS = AttributeKey.create("bias", Float.class, 0.01f);
+    public static final AttributeKey<Integer> NOISE_SIZE = AttributeKey.create("noiseSize", Integer.class, 2);
+    // How far the light camera volume extends toward the light past the view frustum, so that casters outside of the view still cast shadows
+    public static final AttributeKey<Float> CASTER_DISTANCE = AttributeKey.create("casterDistance", Float.class, 50f);
     protected final Material material;
     protected final Texture lightDepthsTexture;
     protected final Texture noiseTexture;
     protected final FrameBuffer depthFrameBuffer;
-    protected final FrameBuffer frameBuffer;
-    private final Texture shadowsOutput;
+    protected final BindRenderTargetAction bindShadows = new BindRenderTargetAction(null);
+    protected final UnbindRenderTargetAction unbindShadows = new UnbindRenderTargetAction(null);
     private final Matrix4Uniform inverseViewMatrixUniform = new Matrix4Uniform("inverseViewMatrix", new Matrix4f());
     protected final Matrix4Uniform lightViewMatrixUniform = new Matrix4Uniform("lightViewMatrix", new Matrix4f());
     protected final Matrix4Uniform lightProjectionMatrixUniform = new Matrix4Uniform("lightProjectionMatrix", new Matrix4f());
@@ -92,6 +112,17 @@ public class ShadowMappingNode extends GraphNode {
     private final FloatUniform biasUniform = new FloatUniform("bias", 0.005f);
     private final FloatUniform radiusUniform = new FloatUniform("radius", 0.0004f);
     protected final ViewFrustum frustum = new ViewFrustum();
+    private final String programName;
+    private Map<String, String> programDefines = Collections.emptyMap();
+    protected float casterDistance;
+    protected ModelCuller casterCuller;
+    protected final InstancedRenderer instancer;
+    protected boolean instancing;
+    // Prepared by prepare(), applied by apply()
+    private Vector2i preparedShadowMapSize;
+    private GBufferLayout preparedLayout;
+    private ByteBuffer noiseTextureData;
+    private int noiseSize;
 
     public ShadowMappingNode(RenderGraph graph, String name) {
         // Initialize a normal shadow mapping node
@@ -101,14 +132,16 @@ public class ShadowMappingNode extends GraphNode {
         // Create the pipeline
         pipeline = new PipelineBuilder()
                 .useViewPort(shadowMapSize).useCamera(camera).bindFrameBuffer(depthFrameBuffer).clearBuffer().doAction(renderModelsAction)
-                .useViewPort(outputSize).bindFrameBuffer(frameBuffer).renderModels(Arrays.asList(model))
-                .unbindFrameBuffer(frameBuffer).build();
+                .useViewPort(outputSize).doAction(bindShadows).renderModels(Arrays.asList(model))
+                .doAction(unbindShadows).build();
     }
 
     protected ShadowMappingNode(RenderGraph graph, String name, String program) {
         // Initialize the base node
         super(graph, name);
         final Context context = graph.getContext();
+        instancer = new InstancedRenderer(graph);
+        programName = program;
         // Create the depth texture
         lightDepthsTexture = context.newTexture();
         lightDepthsTexture.create();
@@ -121,19 +154,10 @@ public class ShadowMappingNode extends GraphNode {
         noiseTexture.create();
         noiseTexture.setFormat(InternalFormat.RG8);
         noiseTexture.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
-        // Create the shadows texture
-        shadowsOutput = context.newTexture();
-        shadowsOutput.create();
-        shadowsOutput.setFormat(InternalFormat.R8);
-        shadowsOutput.setFilters(FilterMode.LINEAR, FilterMode.LINEAR);
         // Create the depth frame buffer
         depthFrameBuffer = context.newFrameBuffer();
         depthFrameBuffer.create();
         depthFrameBuffer.attach(AttachmentPoint.DEPTH, lightDepthsTexture);
-        // Create the frame buffer
-        frameBuffer = context.newFrameBuffer();
-        frameBuffer.create();
-        frameBuffer.attach(AttachmentPoint.COLOR0, shadowsOutput);
         // Create the material
         material = new Material(graph.getProgram(program));
         material.addTexture(2, lightDepthsTexture);
@@ -155,16 +179,21 @@ public class ShadowMappingNode extends GraphNode {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public void update() {
-        updateCamera(this.<Camera>getAttribute("camera"));
-        updateShadowMapSize(getAttribute("shadowMapSize", new Vector2i(1024, 1024)));
-        updateKernelSize(getAttribute("kernelSize", 8));
-        updateRadius(getAttribute("radius", 0.05f));
-        updateBias(getAttribute("bias", 0.01f));
-        updateNoiseSize(getAttribute("noiseSize", 2));
-        updateOutputSize(this.<Vector2i>getAttribute("outputSize"));
-        updateModels(getAttribute("models", (Collection<Model>) Collections.EMPTY_LIST));
+    protected void prepare() {
+        preparedShadowMapSize = getAttribute(SHADOW_MAP_SIZE);
+        preparedLayout = getAttribute(Attributes.GBUFFER_LAYOUT);
+        updateKernelSize(getAttribute(KERNEL_SIZE));
+        updateRadius(getAttribute(RADIUS));
+        updateBias(getAttribute(BIAS));
+        updateNoiseSize(getAttribute(NOISE_SIZE));
+        updateOutputSize(getAttribute(Attributes.OUTPUT_SIZE));
+        casterDistance = getAttribute(CASTER_DISTANCE);
+        instancing = getAttribute(Attributes.INSTANCING);
+        // With a culler, the casters are culled against the light camera on each render
+        casterCuller = getOptionalAttribute(Attributes.MODEL_CULLER);
+        if (casterCuller == null) {
+            updateModels(getAttribute(Attributes.MODELS));
+        }
     }
 
     private void updateCamera(Camera camera) {
@@ -174,6 +203,36 @@ public class ShadowMappingNode extends GraphNode {
         projectionUniform.set(RenderUtil.computeProjection(RenderUtil.getPlanes(camera)));
     }
 
+    @Override
+    protected void apply() {
+        updateShadowMapSize(preparedShadowMapSize);
+        // Use the program variant with a constant kernel size, so that its loop can be unrolled, and for the G-buffer layout
+        final Map<String, String> defines = new HashMap<>(preparedLayout.getDefines());
+        defines.put("KERNEL_SIZE", Integer.toString(kernelSizeUniform.get()));
+        putProgramDefines(defines);
+        if (!defines.equals(programDefines)) {
+            material.setProgram(graph.getProgram(programName, defines));
+            programDefines = defines;
+        }
+        if (noiseTextureData != null) {
+            noiseTexture.setImageData(noiseTextureData, noiseSize, noiseSize);
+            noiseTextureData = null;
+        }
+    }
+
+    /**
+     * Adds the defines of the program variant that are specific to this node, on the rendering thread.
+     *
+     * @param defines The defines to add to
+     */
+    protected void putProgramDefines(Map<String, String> defines) {
+    }
+
+    /**
+     * Resizes the light depth textures, on the rendering thread.
+     *
+     * @param size The new shadow map size
+     */
     protected void updateShadowMapSize(Vector2i size) {
         if (size.getX() == shadowMapSize.getWidth() && size.getY() == shadowMapSize.getHeight()) {
             return;
@@ -207,9 +266,10 @@ public class ShadowMappingNode extends GraphNode {
     }
 
     private void updateNoiseSize(int noiseSize) {
-        if (noiseSize == noiseTexture.getWidth()) {
+        if (noiseSize == this.noiseSize) {
             return;
         }
+        this.noiseSize = noiseSize;
         // Generate the noise texture data
         final Random random = new Random();
         final int noiseTextureSize = noiseSize * noiseSize;
@@ -224,33 +284,47 @@ public class ShadowMappingNode extends GraphNode {
         }
         // Update the uniform
         noiseScaleUniform.set(outputSize.getSize().toFloat().div(noiseSize));
-        // Update the texture
+        // Update the texture on apply
         noiseTextureBuffer.flip();
-        noiseTexture.setImageData(noiseTextureBuffer, noiseSize, noiseSize);
+        noiseTextureData = noiseTextureBuffer;
     }
 
     private void updateOutputSize(Vector2i size) {
         if (size.getX() == outputSize.getWidth() && size.getY() == outputSize.getHeight()) {
             return;
         }
-        shadowsOutput.setImageData(null, size.getX(), size.getY());
         outputSize.setSize(size);
-        noiseScaleUniform.set(size.toFloat().div(noiseTexture.getWidth()));
+        noiseScaleUniform.set(size.toFloat().div(noiseSize));
     }
 
-    private void updateModels(Collection<Model> models) {
+    protected void updateModels(Collection<Model> models) {
         renderModelsAction.setModels(models);
     }
 
+    /**
+     * Culls the shadow casters against the light camera, if a culler is set. Called after the light camera has been updated.
+     */
+    protected void cullCasters() {
+        if (casterCuller != null) {
+            renderModelsAction.cullModels(casterCuller, camera);
+        }
+    }
+
     @Override
     protected void render() {
         final Texture depths = material.getTexture(1);
         aspectRatioUniform.set((float) depths.getWidth() / depths.getHeight());
-        final Camera camera = getAttribute("camera");
-        updateLightDirection(getAttribute("lightDirection", LightingNode.DEFAULT_LIGHT_DIRECTION), camera);
+        // The projection can be modified in place, so it is read on every render rather than when the camera is set
+        final Camera camera = getAttribute(Attributes.CAMERA);
+        updateCamera(camera);
+        updateLightDirection(getAttribute(Attributes.LIGHT_DIRECTION), camera);
+        cullCasters();
         final Matrix4f viewMatrix = camera.getViewMatrix();
         viewMatrixUniform.set(viewMatrix);
         inverseViewMatrixUniform.set(viewMatrix.invert());
+        final RenderTarget shadows = acquireOutputTarget("shadows", InternalFormat.R8, outputSize.getSize());
+        bindShadows.setTarget(shadows);
+        unbindShadows.setTarget(shadows);
         pipeline.run(graph.getContext());
     }
 
@@ -293,8 +367,8 @@ public class ShadowMappingNode extends GraphNode {
         this.camera.setPosition(position);
         // Update the camera rotation
         this.camera.setRotation(rotation);
-        // Update the camera size
-        this.camera.setProjection(Matrix4f.createOrthographic(size.getX(), -size.getX(), size.getY(), -size.getY(), -size.getZ(), size.getZ()));
+        // Update the camera size, extending the near plane toward the light to include the casters outside of the view
+        this.camera.setProjection(Matrix4f.createOrthographic(size.getX(), -size.getX(), size.getY(), -size.getY(), -size.getZ() - casterDistance, size.getZ()));
         // Update the uniforms for the new light camera
         lightViewMatrixUniform.set(this.camera.getViewMatrix());
         lightProjectionMatrixUniform.set(this.camera.getProjectionMatrix());
@@ -305,8 +379,7 @@ public class ShadowMappingNode extends GraphNode {
         lightDepthsTexture.destroy();
         noiseTexture.destroy();
         depthFrameBuffer.destroy();
-        frameBuffer.destroy();
-        shadowsOutput.destroy();
+        instancer.destroy();
     }
 
     @Input("normals")
@@ -315,19 +388,21 @@ public class ShadowMappingNode extends GraphNode {
         material.addTexture(0, texture);
     }
 
-    @Input("depths")
+    @Input(value = "depths", format = Format.DEPTH)
     public void setDepthsInput(Texture texture) {
         texture.checkCreated();
         material.addTexture(1, texture);
     }
 
-    @Output("shadows")
+    @Output(value = "shadows", format = Format.RED)
     public Texture getShadowsOutput() {
-        return shadowsOutput;
+        return getOutputTargetTexture("shadows");
     }
 
     protected class RenderShadowModelsAction extends Action {
         private final Material material;
+        private final List<Model> casters = new ArrayList<>();
+        private final DrawList drawList = new DrawList(Layout.DEPTH_ONLY);
         private Collection<Model> models;
 
         protected RenderShadowModelsAction(Collection<Model> models) {
@@ -339,20 +414,78 @@ public class ShadowMappingNode extends GraphNode {
             this.models = models;
         }
 
+        /**
+         * Renders only the models in the volume of the light camera.
+         *
+         * @param culler The culler for the models
+         * @param lightCamera The light camera
+         */
+        public void cullModels(ModelCuller culler, Camera lightCamera) {
+            culler.cull(lightCamera, casters);
+            models = casters;
+        }
+
+        /**
+         * Returns the number of models rendered during the last execution.
+         *
+         * @return The number of models
+         */
+        public int getModelCount() {
+            return models != null ? models.size() : 0;
+        }
+
+        /**
+         * Returns the draw list used to order the models, with the numbers of state changes of the last execution.
+         *
+         * @return The draw list
+         */
+        public DrawList getDrawList() {
+            return drawList;
+        }
+
+        /**
+         * Returns the models to draw, front to back from the camera and grouped by vertex array.
+         *
+         * @param camera The camera to render with
+         * @return The sorted models
+         */
+        protected List<Model> sortModels(Camera camera) {
+            return drawList.build(models, camera);
+        }
+
         @Override
         public void execute(Context context) {
             final Program program = material.getProgram();
-            // Bind the material
-            material.bind();
-            // Upload the camera matrices
             final Camera camera = context.getCamera();
-            program.setUniform("projectionMatrix", camera.getProjectionMatrix());
-            program.setUniform("viewMatrix", camera.getViewMatrix());
-            for (Model model : models) {
-                // Upload the model matrix
-                program.setUniform("modelMatrix", model.getMatrix());
-                // Render the model
-                model.render();
+            // Draw front to back, grouped by vertex array
+            final List<Model> sortedModels = sortModels(camera);
+            final int size = sortedModels.size();
+            boolean bound = false;
+            for (int i = 0; i < size; ) {
+                // The material is the same for all models, so only the vertex array needs to be shared for instancing
+                final int end = instancer.findBatchEnd(sortedModels, i, false);
+                final Program instancedProgram = instancing ? instancer.getBatchProgram(material, end - i) : null;
+                if (instancedProgram != null) {
+                    instancer.render(sortedModels, i, end, material, instancedProgram, camera);
+                    bound = false;
+                } else {
+                    if (!bound) {
+                        // Bind the material
+                        material.bind();
+                        // Upload the camera matrices
+                        program.setUniform("projectionMatrix", camera.getProjectionMatrix());
+                        program.setUniform("viewMatrix", camera.getViewMatrix());
+                        bound = true;
+                    }
+                    for (int j = i; j < end; j++) {
+                        final Model model = sortedModels.get(j);
+                        // Upload the model matrix
+                        program.setUniform("modelMatrix", model.getMatrix());
+                        // Render the model
+                        model.render();
+                    }
+                }
+                i = end;
             }
         }
     }
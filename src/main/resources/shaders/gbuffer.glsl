@@ -0,0 +1,32 @@
+// Decodes the normals and materials of the geometry buffer for its layout, defined by the GBufferLayout of the graph
+// Included by the shaders reading them, for every GLSL version
+
+#ifdef COMPACT_GBUFFER
+vec3 decodeOctahedron(vec2 encoded) {
+    encoded = encoded * 2 - 1;
+    vec3 normal = vec3(encoded, 1 - abs(encoded.x) - abs(encoded.y));
+    if (normal.z < 0) {
+        normal.xy = (1 - abs(normal.yx)) * vec2(normal.x >= 0 ? 1 : -1, normal.y >= 0 ? 1 : -1);
+    }
+    return normalize(normal);
+}
+
+// Returns the normal of the compact layout as in the standard one, biased to [0, 1] with alpha set where there is geometry
+vec4 decodeNormal(vec4 encoded) {
+    return vec4((decodeOctahedron(encoded.rg) + 1) / 2, encoded.b >= 0.5 ? 1 : 0);
+}
+
+// Unpacks the four components of the material, stored at 4 bits each in the alpha of the compact normals
+vec4 decodeMaterial(vec4 encoded) {
+    float bits = floor(encoded.a * 65535 + 0.5);
+    return mod(floor(vec4(bits) / vec4(4096, 256, 16, 1)), 16) / 15;
+}
+#else
+vec4 decodeNormal(vec4 raw) {
+    return raw;
+}
+
+vec4 decodeMaterial(vec4 raw) {
+    return raw;
+}
+#endif
@@ -0,0 +1,15 @@
+// $shader_type: vertex
+
+// $attrib_layout: position = 0
+
+#version 120
+
+attribute vec3 position;
+
+uniform mat4 modelMatrix;
+uniform mat4 viewMatrix;
+uniform mat4 projectionMatrix;
+
+void main() {
+    gl_Position = projectionMatrix * viewMatrix * modelMatrix * vec4(position, 1);
+}
@@ -1,20 +1,77 @@
 // $shader_type: fragment
 
 // $texture_layout: colors = 0
+// $texture_layout: depths = 1
+// $texture_layout: normals = 2
 
 #version 120
 
+#ifdef KERNEL_SIZE
+// The kernel size is constant in this variant, so that the loops can be unrolled
+const int MAX_KERNEL_SIZE = KERNEL_SIZE;
+const int kernelSize = KERNEL_SIZE;
+#else
 const int MAX_KERNEL_SIZE = 51;
+uniform int kernelSize;
+#endif
 
 varying vec2 textureUV;
 
 uniform sampler2D colors;
 uniform float[MAX_KERNEL_SIZE] offsets;
-uniform int kernelSize;
 uniform float[MAX_KERNEL_SIZE] kernel;
 uniform vec2 resolution;
 uniform bool direction;
 
+#ifdef BILATERAL
+const float NORMAL_SHARPNESS = 8;
+
+uniform sampler2D depths;
+uniform vec2 projection;
+uniform float depthSharpness;
+#ifdef BILATERAL_NORMALS
+uniform sampler2D normals;
+#endif
+
+#include "gbuffer.glsl"
+
+float linearizeDepth(float depth) {
+    return projection.y / (depth - projection.x);
+}
+
+float getSimilarity(vec2 uv, float depth, vec3 normal) {
+    // Falls off with the relative depth difference, and with the angle between the normals
+    float similarity = exp(-depthSharpness * abs(linearizeDepth(texture2D(depths, uv).r) - depth) / depth);
+#ifdef BILATERAL_NORMALS
+    similarity *= pow(max(dot(normalize(decodeNormal(texture2D(normals, uv)).xyz * 2 - 1), normal), 0), NORMAL_SHARPNESS);
+#endif
+    return similarity;
+}
+
+void main() {
+    vec2 texelSize = direction ? vec2(0, 1 / resolution.y) : vec2(1 / resolution.x, 0);
+    float depth = linearizeDepth(texture2D(depths, textureUV).r);
+#ifdef BILATERAL_NORMALS
+    vec3 normal = normalize(decodeNormal(texture2D(normals, textureUV)).xyz * 2 - 1);
+#else
+    vec3 normal = vec3(0, 0, 1);
+#endif
+    // The taps are still placed between texel pairs, the depth and normal there are interpolated like the color
+    vec4 sum = texture2D(colors, textureUV) * kernel[0];
+    float weightSum = kernel[0];
+    for (int i = 1; i < kernelSize; i++) {
+        vec2 offset = texelSize * offsets[i];
+        float weight = kernel[i] * getSimilarity(textureUV + offset, depth, normal);
+        sum += texture2D(colors, textureUV + offset) * weight;
+        weightSum += weight;
+        weight = kernel[i] * getSimilarity(textureUV - offset, depth, normal);
+        sum += texture2D(colors, textureUV - offset) * weight;
+        weightSum += weight;
+    }
+    // Renormalize, as the rejected taps no longer contribute
+    gl_FragColor = sum / weightSum;
+}
+#else
 void main() {
     gl_FragColor = texture2D(colors, textureUV) * kernel[0];
     if (!direction) {
@@ -31,3 +88,4 @@ void main() {
         }
     }
 }
+#endif
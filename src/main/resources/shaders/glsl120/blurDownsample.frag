@@ -0,0 +1,20 @@
+// $shader_type: fragment
+
+// $texture_layout: colors = 0
+
+#version 120
+
+varying vec2 textureUV;
+
+uniform sampler2D colors;
+uniform vec2 halfTexelSize;
+
+void main() {
+    // The center and the four diagonal taps each average a 2x2 block of the input
+    vec4 sum = texture2D(colors, textureUV) * 4;
+    sum += texture2D(colors, textureUV - halfTexelSize);
+    sum += texture2D(colors, textureUV + halfTexelSize);
+    sum += texture2D(colors, textureUV + vec2(halfTexelSize.x, -halfTexelSize.y));
+    sum += texture2D(colors, textureUV - vec2(halfTexelSize.x, -halfTexelSize.y));
+    gl_FragColor = sum / 8;
+}
@@ -0,0 +1,23 @@
+// $shader_type: fragment
+
+// $texture_layout: colors = 0
+
+#version 120
+
+varying vec2 textureUV;
+
+uniform sampler2D colors;
+uniform vec2 halfTexelSize;
+
+void main() {
+    // A tent over the surrounding texels of the smaller input: four taps on the axes, and four on the diagonals with twice the weight
+    vec4 sum = texture2D(colors, textureUV + vec2(-halfTexelSize.x * 2, 0));
+    sum += texture2D(colors, textureUV + vec2(halfTexelSize.x * 2, 0));
+    sum += texture2D(colors, textureUV + vec2(0, -halfTexelSize.y * 2));
+    sum += texture2D(colors, textureUV + vec2(0, halfTexelSize.y * 2));
+    sum += texture2D(colors, textureUV + vec2(-halfTexelSize.x, halfTexelSize.y)) * 2;
+    sum += texture2D(colors, textureUV + vec2(halfTexelSize.x, halfTexelSize.y)) * 2;
+    sum += texture2D(colors, textureUV + vec2(halfTexelSize.x, -halfTexelSize.y)) * 2;
+    sum += texture2D(colors, textureUV + vec2(-halfTexelSize.x, -halfTexelSize.y)) * 2;
+    gl_FragColor = sum / 12;
+}
@@ -3,13 +3,27 @@
 // $texture_layout: normals = 0
 // $texture_layout: depths = 1
 // $texture_layout: lightDepths = 2
-// $texture_layout: lightDepths2 = 3
-// $texture_layout: lightDepths3 = 4
-// $texture_layout: noise = 5
+// $texture_layout: noise = 3
 
 #version 120
 
+#ifdef KERNEL_SIZE
+// The kernel size is constant in this variant, so that the loops can be unrolled
+const int MAX_KERNEL_SIZE = KERNEL_SIZE;
+const int kernelSize = KERNEL_SIZE;
+#else
 const int MAX_KERNEL_SIZE = 32;
+uniform int kernelSize;
+#endif
+
+#ifdef CASCADE_COUNT
+// The cascade count is constant in this variant, so that the loop can be unrolled
+const int MAX_CASCADES = CASCADE_COUNT;
+const int cascadeCount = CASCADE_COUNT;
+#else
+const int MAX_CASCADES = 8;
+uniform int cascadeCount;
+#endif
 
 varying vec2 textureUV;
 varying vec3 viewRay;
@@ -18,40 +32,28 @@ varying vec3 lightDirectionView;
 uniform sampler2D normals;
 uniform sampler2D depths;
 uniform sampler2DShadow lightDepths;
-uniform sampler2DShadow lightDepths2;
-uniform sampler2DShadow lightDepths3;
 uniform sampler2D noise;
 uniform mat4 inverseViewMatrix;
 uniform mat4 lightViewMatrix;
-uniform mat4 lightViewMatrix2;
-uniform mat4 lightViewMatrix3;
-uniform mat4 lightProjectionMatrix;
-uniform mat4 lightProjectionMatrix2;
-uniform mat4 lightProjectionMatrix3;
-uniform vec2 slices;
+uniform float[MAX_CASCADES] slices;
+uniform vec3[MAX_CASCADES] cascadeScales;
+uniform vec3[MAX_CASCADES] cascadeOffsets;
+uniform vec2[MAX_CASCADES] cascadeRegionScales;
+uniform vec2[MAX_CASCADES] cascadeRegionOffsets;
 uniform vec2 projection;
-uniform int kernelSize;
 uniform vec2[MAX_KERNEL_SIZE] kernel;
 uniform vec2 noiseScale;
 uniform float bias;
 uniform float radius;
 
+#include "gbuffer.glsl"
+
 float linearizeDepth(float depth) {
     return projection.y / (depth - projection.x);
 }
 
-float sampleCascade(float fragDepth, vec3 position, float bias) {
-    if (fragDepth < slices.x) {
-        return shadow2D(lightDepths, vec3(position.xy, position.z - bias)).r;
-    } else if (fragDepth < slices.y) {
-        return shadow2D(lightDepths2, vec3(position.xy, position.z - bias)).r;
-    } else {
-        return shadow2D(lightDepths3, vec3(position.xy, position.z - bias)).r;
-    }
-}
-
 void main() {
-    vec4 rawNormalView = texture2D(normals, textureUV);
+    vec4 rawNormalView = decodeNormal(texture2D(normals, textureUV));
     if (rawNormalView.a <= 0) {
         return;
     }
@@ -66,31 +68,31 @@ void main() {
     vec2 orthogonalVector = vec2(noiseVector.y, -noiseVector.x);
     mat2 basis = mat2(noiseVector, orthogonalVector);
 
-    mat4 sliceLightViewMatrix;
-    mat4 sliceLightProjectionMatrix;
+    // Use the first cascade that reaches the fragment
     float fragDepth = -positionView.z;
-    if (fragDepth < slices.x) {
-        sliceLightViewMatrix = lightViewMatrix;
-        sliceLightProjectionMatrix = lightProjectionMatrix;
-    } else if (fragDepth < slices.y) {
-        sliceLightViewMatrix = lightViewMatrix2;
-        sliceLightProjectionMatrix = lightProjectionMatrix2;
-    } else {
-        sliceLightViewMatrix = lightViewMatrix3;
-        sliceLightProjectionMatrix = lightProjectionMatrix3;
+    int cascade = 0;
+    for (int i = 0; i < cascadeCount - 1; i++) {
+        if (fragDepth >= slices[i]) {
+            cascade = i + 1;
+        }
     }
+    vec3 cascadeScale = cascadeScales[cascade];
+    vec3 cascadeOffset = cascadeOffsets[cascade];
+    vec2 regionScale = cascadeRegionScales[cascade];
+    vec2 regionOffset = cascadeRegionOffsets[cascade];
 
-    mat4 sliceLightProjectionViewMatrix = sliceLightProjectionMatrix * sliceLightViewMatrix;
     vec4 positionWorld = inverseViewMatrix * vec4(positionView, 1);
 
     for (int i = 0; i < kernelSize; i++) {
         vec4 offsetPositionWorld = vec4(positionWorld);
         offsetPositionWorld.xz += basis * kernel[i] * radius;
 
-        vec4 positionLightClip = sliceLightProjectionViewMatrix * offsetPositionWorld;
-        positionLightClip.xyz = positionLightClip.xyz / positionLightClip.w * 0.5 + 0.5;
+        vec3 positionCascade = (lightViewMatrix * offsetPositionWorld).xyz * cascadeScale + cascadeOffset;
+        positionCascade = positionCascade * 0.5 + 0.5;
+        // Stay in the region of the cascade in the shadow map
+        vec2 positionAtlas = clamp(positionCascade.xy, 0, 1) * regionScale + regionOffset;
 
-        gl_FragColor.r += sampleCascade(fragDepth, positionLightClip.xyz, slopedBias);
+        gl_FragColor.r += shadow2D(lightDepths, vec3(positionAtlas, positionCascade.z - slopedBias)).r;
     }
 
     gl_FragColor.r /= kernelSize;
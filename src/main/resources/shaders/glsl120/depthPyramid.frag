@@ -0,0 +1,50 @@
+// $shader_type: fragment
+
+// $texture_layout: depths = 0
+
+#version 120
+
+varying vec2 textureUV;
+
+uniform sampler2D depths;
+uniform vec2 previousSize;
+
+#ifdef FIRST_LEVEL
+void main() {
+    // The first level is a copy of the depths, as both the minimum and the maximum
+    float depth = texture2D(depths, textureUV).r;
+    gl_FragColor = vec4(depth, depth, 0, 1);
+}
+#else
+vec2 reduce(vec2 minMax, vec2 texel) {
+    // Only the previous level is sampled, as it's set as the base and max level of the texture
+    vec2 sampled = texture2D(depths, (texel + 0.5) / previousSize).rg;
+    return vec2(min(minMax.x, sampled.x), max(minMax.y, sampled.y));
+}
+
+void main() {
+    vec2 texel = floor(gl_FragCoord.xy) * 2;
+    vec2 minMax = vec2(1, 0);
+    minMax = reduce(minMax, texel);
+    minMax = reduce(minMax, texel + vec2(1, 0));
+    minMax = reduce(minMax, texel + vec2(0, 1));
+    minMax = reduce(minMax, texel + vec2(1, 1));
+
+    // Fold in the last column or row of an odd sized previous level, so that no texel is skipped, as in DepthPyramidNode.getFootprintSize
+    bool extraColumn = texel.x + 3 == previousSize.x;
+    bool extraRow = texel.y + 3 == previousSize.y;
+    if (extraColumn) {
+        minMax = reduce(minMax, texel + vec2(2, 0));
+        minMax = reduce(minMax, texel + vec2(2, 1));
+    }
+    if (extraRow) {
+        minMax = reduce(minMax, texel + vec2(0, 2));
+        minMax = reduce(minMax, texel + vec2(1, 2));
+    }
+    if (extraColumn && extraRow) {
+        minMax = reduce(minMax, texel + vec2(2, 2));
+    }
+
+    gl_FragColor = vec4(minMax, 0, 1);
+}
+#endif
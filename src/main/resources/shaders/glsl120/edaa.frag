@@ -29,6 +29,8 @@ uniform vec2 barriers; // x = normal, y = depth
 uniform vec2 weights; // x = normal, y = depth
 uniform float kernel; // 0 = no aa, 1 = full aa
 
+#include "gbuffer.glsl"
+
 float linearizeDepth(float depth) {
     return -projection.y / (depth - projection.x);
 }
@@ -46,12 +48,12 @@ void main() {
     vec2 tc8 = textureUV + B / resolution;
 
     // normal discontinuity filter
-    vec3 nc = texture2D(normals, tc0).xyz * 2 - 1;
+    vec3 nc = decodeNormal(texture2D(normals, tc0)).xyz * 2 - 1;
     vec4 nd;
-    nd.x = dot(nc, texture2D(normals, tc1).xyz * 2 - 1);
-    nd.y = dot(nc, texture2D(normals, tc2).xyz * 2 - 1);
-    nd.z = dot(nc, texture2D(normals, tc3).xyz * 2 - 1);
-    nd.w = dot(nc, texture2D(normals, tc4).xyz * 2 - 1);
+    nd.x = dot(nc, decodeNormal(texture2D(normals, tc1)).xyz * 2 - 1);
+    nd.y = dot(nc, decodeNormal(texture2D(normals, tc2)).xyz * 2 - 1);
+    nd.z = dot(nc, decodeNormal(texture2D(normals, tc3)).xyz * 2 - 1);
+    nd.w = dot(nc, decodeNormal(texture2D(normals, tc4)).xyz * 2 - 1);
     nd -= barriers.x;
     nd = step(vec4(0, 0, 0, 0), nd);
     float ne = clamp(dot(nd, vec4(weights.x, weights.x, weights.x, weights.x)), 0, 1);
@@ -23,17 +23,19 @@ uniform vec2 projection;
 uniform float lightAttenuation;
 uniform float spotCutoff;
 
+#include "gbuffer.glsl"
+
 void main() {
     gl_FragColor = texture2D(colors, textureUV);
 
-    vec4 rawNormalView = texture2D(normals, textureUV);
+    vec4 rawNormalView = decodeNormal(texture2D(normals, textureUV));
     if (rawNormalView.a <= 0) {
         return;
     }
 
     float occlusion = texture2D(occlusions, textureUV).r;
     float shadow = texture2D(shadows, textureUV).r;
-    vec4 material = texture2D(materials, textureUV);
+    vec4 material = decodeMaterial(texture2D(materials, textureUV));
 
     float ambientTerm = material.z * occlusion;
     float diffuseTerm = 0;
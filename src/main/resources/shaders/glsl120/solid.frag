@@ -10,12 +10,32 @@ uniform float specularIntensity;
 uniform float ambientIntensity;
 uniform float shininess;
 
+#ifdef COMPACT_GBUFFER
+vec2 encodeOctahedron(vec3 normal) {
+    normal /= abs(normal.x) + abs(normal.y) + abs(normal.z);
+    vec2 encoded = normal.z >= 0 ? normal.xy : (1 - abs(normal.yx)) * vec2(normal.x >= 0 ? 1 : -1, normal.y >= 0 ? 1 : -1);
+    return encoded / 2 + 0.5;
+}
+
+// Packs the normal at 16 bits per component in red and green, the vertex normal at 7 bits per component in blue under the geometry flag, and the material
+// at 4 bits per component in alpha, see GBufferLayout
+vec4 encodeGBuffer(vec3 normal, vec3 vertexNormal, vec4 material) {
+    vec2 vertex = floor(encodeOctahedron(normalize(vertexNormal)) * 127 + 0.5);
+    vec4 quantized = floor(clamp(material, 0, 1) * 15 + 0.5);
+    return vec4(encodeOctahedron(normalize(normal)), (32768 + vertex.x * 128 + vertex.y) / 65535, dot(quantized, vec4(4096, 256, 16, 1)) / 65535);
+}
+#endif
+
 void main() {
     gl_FragData[0] = modelColor;
 
+#ifdef COMPACT_GBUFFER
+    gl_FragData[1] = encodeGBuffer(normalView, normalView, vec4(diffuseIntensity, specularIntensity, ambientIntensity, shininess));
+#else
     gl_FragData[1] = vec4((normalView + 1) / 2, 1);
 
     gl_FragData[2] = gl_FragData[1];
 
     gl_FragData[3] = vec4(diffuseIntensity, specularIntensity, ambientIntensity, shininess);
+#endif
 }
@@ -0,0 +1,38 @@
+// $shader_type: fragment
+
+// $texture_layout: normals = 0
+// $texture_layout: depths = 1
+
+#version 120
+
+varying vec2 textureUV;
+
+uniform sampler2D normals;
+uniform sampler2D depths;
+uniform vec2 projection;
+uniform vec2 resolution;
+
+#include "gbuffer.glsl"
+
+float linearizeDepth(float depth) {
+    return projection.y / (depth - projection.x);
+}
+
+vec4 sampleNormalAndDepth(vec2 uv) {
+    // Pack the normal with the linear depth, negated where there is no geometry
+    vec4 rawNormal = decodeNormal(texture2D(normals, uv));
+    float depth = linearizeDepth(texture2D(depths, uv).r);
+    return vec4(rawNormal.xyz, rawNormal.a > 0 ? depth : -depth);
+}
+
+vec4 nearest(vec4 a, vec4 b) {
+    return abs(a.a) <= abs(b.a) ? a : b;
+}
+
+void main() {
+    // Keep the nearest of the four texels at the center of the footprint, so that silhouettes stay on the foreground
+    vec2 offset = 0.5 / resolution;
+    vec4 top = nearest(sampleNormalAndDepth(textureUV + vec2(-offset.x, offset.y)), sampleNormalAndDepth(textureUV + offset));
+    vec4 bottom = nearest(sampleNormalAndDepth(textureUV - offset), sampleNormalAndDepth(textureUV + vec2(offset.x, -offset.y)));
+    gl_FragColor = nearest(top, bottom);
+}
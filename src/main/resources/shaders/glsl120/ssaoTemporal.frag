@@ -0,0 +1,47 @@
+// $shader_type: fragment
+
+// $texture_layout: occlusions = 0
+// $texture_layout: history = 1
+// $texture_layout: depths = 2
+
+#version 120
+
+const float DEPTH_TOLERANCE = 0.05;
+
+varying vec2 textureUV;
+varying vec3 viewRay;
+
+uniform sampler2D occlusions;
+uniform sampler2D history;
+uniform sampler2D depths;
+uniform vec2 projection;
+uniform mat4 reprojectionMatrix;
+uniform mat4 previousProjectionMatrix;
+uniform float historyWeight;
+
+float linearizeDepth(float depth) {
+    return projection.y / (depth - projection.x);
+}
+
+void main() {
+    float occlusion = texture2D(occlusions, textureUV).r;
+    float depth = linearizeDepth(texture2D(depths, textureUV).r);
+
+    // Find where the fragment was during the last frame, from the camera movement
+    vec4 previousPosition = reprojectionMatrix * vec4(viewRay * depth, 1);
+    vec4 previousUV = previousProjectionMatrix * previousPosition;
+    previousUV.xy = previousUV.xy / previousUV.w * 0.5 + 0.5;
+
+    // Reject the history when the fragment was off screen, or hidden, which shows as a depth mismatch
+    if (previousUV.x >= 0 && previousUV.x <= 1 && previousUV.y >= 0 && previousUV.y <= 1) {
+        vec2 previous = texture2D(history, previousUV.xy).rg;
+        float previousDepth = -previousPosition.z;
+        if (abs(previous.g - previousDepth) <= DEPTH_TOLERANCE * previousDepth) {
+            occlusion = mix(occlusion, previous.r, historyWeight);
+        }
+    }
+
+    gl_FragData[0] = vec4(occlusion, occlusion, occlusion, 1);
+    // Keep the depth with the occlusion, for the next frame's rejection test
+    gl_FragData[1] = vec4(occlusion, depth, 0, 1);
+}
@@ -0,0 +1,67 @@
+// $shader_type: fragment
+
+// $texture_layout: occlusions = 0
+// $texture_layout: downsampledNormals = 1
+// $texture_layout: normals = 2
+// $texture_layout: depths = 3
+
+#version 120
+
+const float DEPTH_SHARPNESS = 32;
+const float NORMAL_SHARPNESS = 16;
+const float MIN_WEIGHT = 0.0001;
+
+varying vec2 textureUV;
+
+uniform sampler2D occlusions;
+uniform sampler2D downsampledNormals;
+uniform sampler2D normals;
+uniform sampler2D depths;
+uniform vec2 projection;
+uniform vec2 downsampledResolution;
+
+#include "gbuffer.glsl"
+
+float linearizeDepth(float depth) {
+    return projection.y / (depth - projection.x);
+}
+
+vec2 weightedSample(vec2 texel, float bilinearWeight, vec3 normal, float depth) {
+    vec2 uv = (texel + 0.5) / downsampledResolution;
+    vec4 normalAndDepth = texture2D(downsampledNormals, uv);
+    if (normalAndDepth.a <= 0) {
+        return vec2(0);
+    }
+    // Reject the samples that are on another surface, by relative depth difference and normal similarity
+    float depthWeight = 1 / (1 + DEPTH_SHARPNESS * abs(depth - normalAndDepth.a) / depth);
+    float normalWeight = pow(max(dot(normal, normalize(normalAndDepth.xyz * 2 - 1)), 0), NORMAL_SHARPNESS);
+    float weight = bilinearWeight * depthWeight * normalWeight;
+    return vec2(texture2D(occlusions, uv).r * weight, weight);
+}
+
+void main() {
+    // Get the fragment's normal and depth at full resolution
+    vec4 rawNormal = decodeNormal(texture2D(normals, textureUV));
+    if (rawNormal.a <= 0) {
+        gl_FragColor = vec4(1, 1, 1, 1);
+        return;
+    }
+    vec3 normal = normalize(rawNormal.xyz * 2 - 1);
+    float depth = linearizeDepth(texture2D(depths, textureUV).r);
+
+    // Find the four downsampled texels around the fragment, and the position between them
+    vec2 position = textureUV * downsampledResolution - 0.5;
+    vec2 texel = floor(position);
+    vec2 fraction = position - texel;
+
+    // Bilinear interpolation, weighted by the similarity of each texel to the fragment
+    vec2 sum = weightedSample(texel, (1 - fraction.x) * (1 - fraction.y), normal, depth)
+            + weightedSample(texel + vec2(1, 0), fraction.x * (1 - fraction.y), normal, depth)
+            + weightedSample(texel + vec2(0, 1), (1 - fraction.x) * fraction.y, normal, depth)
+            + weightedSample(texel + vec2(1, 1), fraction.x * fraction.y, normal, depth);
+
+    // Fall back to plain interpolation when none of the texels match
+    float occlusion = sum.y > MIN_WEIGHT ? sum.x / sum.y : texture2D(occlusions, textureUV).r;
+
+    gl_FragColor = vec4(occlusion, occlusion, occlusion, 1);
+}
@@ -0,0 +1,13 @@
+// $shader_type: vertex
+
+#version 330
+
+layout(location = 0) in vec3 position;
+layout(location = 4) in mat4 modelMatrix;
+
+uniform mat4 viewMatrix;
+uniform mat4 projectionMatrix;
+
+void main() {
+    gl_Position = projectionMatrix * viewMatrix * modelMatrix * vec4(position, 1);
+}
@@ -1,10 +1,19 @@
 // $shader_type: fragment
 
 // $texture_layout: colors = 0
+// $texture_layout: depths = 1
+// $texture_layout: normals = 2
 
 #version 330
 
+#ifdef KERNEL_SIZE
+// The kernel size is constant in this variant, so that the loops can be unrolled
+const int MAX_KERNEL_SIZE = KERNEL_SIZE;
+const int kernelSize = KERNEL_SIZE;
+#else
 const int MAX_KERNEL_SIZE = 51;
+uniform int kernelSize;
+#endif
 
 in vec2 textureUV;
 
@@ -12,11 +21,59 @@ layout(location = 0) out vec4 outputColor;
 
 uniform sampler2D colors;
 uniform float[MAX_KERNEL_SIZE] offsets;
-uniform int kernelSize;
 uniform float[MAX_KERNEL_SIZE] kernel;
 uniform vec2 resolution;
 uniform bool direction;
 
+#ifdef BILATERAL
+const float NORMAL_SHARPNESS = 8;
+
+uniform sampler2D depths;
+uniform vec2 projection;
+uniform float depthSharpness;
+#ifdef BILATERAL_NORMALS
+uniform sampler2D normals;
+#endif
+
+#include "gbuffer.glsl"
+
+float linearizeDepth(float depth) {
+    return projection.y / (depth - projection.x);
+}
+
+float getSimilarity(vec2 uv, float depth, vec3 normal) {
+    // Falls off with the relative depth difference, and with the angle between the normals
+    float similarity = exp(-depthSharpness * abs(linearizeDepth(texture(depths, uv).r) - depth) / depth);
+#ifdef BILATERAL_NORMALS
+    similarity *= pow(max(dot(normalize(decodeNormal(texture(normals, uv)).xyz * 2 - 1), normal), 0), NORMAL_SHARPNESS);
+#endif
+    return similarity;
+}
+
+void main() {
+    vec2 texelSize = direction ? vec2(0, 1 / resolution.y) : vec2(1 / resolution.x, 0);
+    float depth = linearizeDepth(texture(depths, textureUV).r);
+#ifdef BILATERAL_NORMALS
+    vec3 normal = normalize(decodeNormal(texture(normals, textureUV)).xyz * 2 - 1);
+#else
+    vec3 normal = vec3(0, 0, 1);
+#endif
+    // The taps are still placed between texel pairs, the depth and normal there are interpolated like the color
+    vec4 sum = texture(colors, textureUV) * kernel[0];
+    float weightSum = kernel[0];
+    for (int i = 1; i < kernelSize; i++) {
+        vec2 offset = texelSize * offsets[i];
+        float weight = kernel[i] * getSimilarity(textureUV + offset, depth, normal);
+        sum += texture(colors, textureUV + offset) * weight;
+        weightSum += weight;
+        weight = kernel[i] * getSimilarity(textureUV - offset, depth, normal);
+        sum += texture(colors, textureUV - offset) * weight;
+        weightSum += weight;
+    }
+    // Renormalize, as the rejected taps no longer contribute
+    outputColor = sum / weightSum;
+}
+#else
 void main() {
     outputColor = texture(colors, textureUV) * kernel[0];
     if (!direction) {
@@ -33,3 +90,4 @@ void main() {
         }
     }
 }
+#endif
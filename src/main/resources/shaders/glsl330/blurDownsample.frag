@@ -0,0 +1,22 @@
+// $shader_type: fragment
+
+// $texture_layout: colors = 0
+
+#version 330
+
+in vec2 textureUV;
+
+layout(location = 0) out vec4 outputColor;
+
+uniform sampler2D colors;
+uniform vec2 halfTexelSize;
+
+void main() {
+    // The center and the four diagonal taps each average a 2x2 block of the input
+    vec4 sum = texture(colors, textureUV) * 4;
+    sum += texture(colors, textureUV - halfTexelSize);
+    sum += texture(colors, textureUV + halfTexelSize);
+    sum += texture(colors, textureUV + vec2(halfTexelSize.x, -halfTexelSize.y));
+    sum += texture(colors, textureUV - vec2(halfTexelSize.x, -halfTexelSize.y));
+    outputColor = sum / 8;
+}
@@ -0,0 +1,25 @@
+// $shader_type: fragment
+
+// $texture_layout: colors = 0
+
+#version 330
+
+in vec2 textureUV;
+
+layout(location = 0) out vec4 outputColor;
+
+uniform sampler2D colors;
+uniform vec2 halfTexelSize;
+
+void main() {
+    // A tent over the surrounding texels of the smaller input: four taps on the axes, and four on the diagonals with twice the weight
+    vec4 sum = texture(colors, textureUV + vec2(-halfTexelSize.x * 2, 0));
+    sum += texture(colors, textureUV + vec2(halfTexelSize.x * 2, 0));
+    sum += texture(colors, textureUV + vec2(0, -halfTexelSize.y * 2));
+    sum += texture(colors, textureUV + vec2(0, halfTexelSize.y * 2));
+    sum += texture(colors, textureUV + vec2(-halfTexelSize.x, halfTexelSize.y)) * 2;
+    sum += texture(colors, textureUV + vec2(halfTexelSize.x, halfTexelSize.y)) * 2;
+    sum += texture(colors, textureUV + vec2(halfTexelSize.x, -halfTexelSize.y)) * 2;
+    sum += texture(colors, textureUV + vec2(-halfTexelSize.x, -halfTexelSize.y)) * 2;
+    outputColor = sum / 12;
+}
@@ -0,0 +1,6 @@
+// $shader_type: fragment
+
+#version 330
+
+void main() {
+}
@@ -0,0 +1,31 @@
+// $shader_type: vertex
+
+#version 330
+
+const int MAX_CASCADES = 8;
+
+layout(location = 0) in vec3 position;
+layout(location = 4) in mat4 modelMatrix;
+
+out float gl_ClipDistance[4];
+
+uniform mat4 lightViewMatrix;
+uniform int cascadeCount;
+uniform vec3[MAX_CASCADES] cascadeScales;
+uniform vec3[MAX_CASCADES] cascadeOffsets;
+uniform vec2[MAX_CASCADES] cascadeRegionScales;
+uniform vec2[MAX_CASCADES] cascadeRegionOffsets;
+
+void main() {
+    // Each model is instanced once per cascade
+    int cascade = gl_InstanceID % cascadeCount;
+    vec3 positionCascade = (lightViewMatrix * modelMatrix * vec4(position, 1)).xyz * cascadeScales[cascade] + cascadeOffsets[cascade];
+    // Clip to the bounds of the cascade, so that it doesn't draw over the others
+    gl_ClipDistance[0] = 1 + positionCascade.x;
+    gl_ClipDistance[1] = 1 - positionCascade.x;
+    gl_ClipDistance[2] = 1 + positionCascade.y;
+    gl_ClipDistance[3] = 1 - positionCascade.y;
+    // Move to the region of the cascade in the shadow map
+    vec2 positionAtlas = (positionCascade.xy * 0.5 + 0.5) * cascadeRegionScales[cascade] + cascadeRegionOffsets[cascade];
+    gl_Position = vec4(positionAtlas * 2 - 1, positionCascade.z, 1);
+}
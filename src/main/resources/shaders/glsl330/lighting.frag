@@ -6,6 +6,9 @@
 // $texture_layout: materials = 3
 // $texture_layout: occlusions = 4
 // $texture_layout: shadows = 5
+// $texture_layout: lights = 6
+// $texture_layout: clusters = 7
+// $texture_layout: lightIndices = 8
 
 #version 330
 
@@ -22,24 +25,85 @@ uniform sampler2D materials;
 uniform sampler2D occlusions;
 uniform sampler2D shadows;
 
+#include "gbuffer.glsl"
+
+#ifdef CLUSTERED
+// Three texels per light: the view position and radius, the color and cone cosine, then the view direction
+uniform samplerBuffer lights;
+// The offset and count of the range of light indices of each cluster
+uniform usamplerBuffer clusters;
+uniform usamplerBuffer lightIndices;
+uniform vec2 projection;
+uniform vec3 clusterCounts;
+uniform float sliceScale;
+uniform float sliceBias;
+
+float linearizeDepth(float depth) {
+    return projection.y / (depth - projection.x);
+}
+
+// The slices are exponential in depth, the same as for the binning on the CPU
+int getCluster(float depth) {
+    ivec3 counts = ivec3(clusterCounts);
+    ivec2 tile = min(ivec2(textureUV * clusterCounts.xy), counts.xy - 1);
+    int slice = clamp(int(floor(log(depth) * sliceScale + sliceBias)), 0, counts.z - 1);
+    return (slice * counts.y + tile.y) * counts.x + tile.x;
+}
+
+// Returns the diffuse and specular lighting of the lights in the cluster of the position, colored by each light
+vec3 computeClusteredLighting(vec3 positionView, vec3 normalView, vec4 material) {
+    vec3 lighting = vec3(0);
+    uvec2 range = texelFetch(clusters, getCluster(-positionView.z)).rg;
+    for (uint i = 0u; i < range.y; i++) {
+        int index = int(texelFetch(lightIndices, int(range.x + i)).r) * 3;
+        vec4 positionRadius = texelFetch(lights, index);
+        vec3 toLight = positionRadius.xyz - positionView;
+        float lightDistance = length(toLight);
+        if (lightDistance >= positionRadius.w) {
+            continue;
+        }
+        vec3 lightDirection = toLight / lightDistance;
+        float attenuation = 1 - lightDistance / positionRadius.w;
+        attenuation *= attenuation;
+
+        vec4 colorCone = texelFetch(lights, index + 1);
+        if (colorCone.w > -1) {
+            // Fade out over the outer tenth of the cone
+            vec3 spotDirection = texelFetch(lights, index + 2).xyz;
+            attenuation *= smoothstep(colorCone.w, mix(colorCone.w, 1, 0.1), dot(-lightDirection, spotDirection));
+        }
+
+        float normalDotLight = max(0, dot(normalView, lightDirection));
+        float diffuseTerm = material.x * normalDotLight;
+        float specularTerm = 0;
+        if (normalDotLight > 0) {
+            specularTerm = material.y * pow(max(0, dot(reflect(lightDirection, normalView), normalize(viewRay))), material.w * 100);
+        }
+
+        lighting += colorCone.rgb * attenuation * (diffuseTerm + specularTerm);
+    }
+    return lighting;
+}
+#endif
+
 void main() {
     outputColor = texture(colors, textureUV);
 
-    vec4 rawNormalView = texture(normals, textureUV);
+    vec4 rawNormalView = decodeNormal(texture(normals, textureUV));
     if (rawNormalView.a <= 0) {
         return;
     }
 
     float occlusion = texture(occlusions, textureUV).r;
     float shadow = texture(shadows, textureUV).r;
-    vec4 material = texture(materials, textureUV);
+    vec4 material = decodeMaterial(texture(materials, textureUV));
 
     float ambientTerm = material.z * occlusion;
     float diffuseTerm = 0;
     float specularTerm = 0;
+    vec3 normalView = normalize(rawNormalView.xyz * 2 - 1);
 
     if (shadow > 0) {
-        vec3 normalView = normalize(rawNormalView.xyz * 2 - 1);
         float normalDotLight = max(0, dot(normalView, -lightDirectionView));
 
         diffuseTerm = material.x * shadow * normalDotLight;
@@ -49,5 +113,10 @@ void main() {
         }
     }
 
+#ifdef CLUSTERED
+    vec3 positionView = viewRay * linearizeDepth(texture(depths, textureUV).r);
+    outputColor.rgb *= vec3(diffuseTerm + specularTerm + ambientTerm) + computeClusteredLighting(positionView, normalView, material);
+#else
     outputColor.rgb *= (diffuseTerm + specularTerm + ambientTerm);
+#endif
 }
@@ -7,7 +7,14 @@
 
 #version 330
 
+#ifdef KERNEL_SIZE
+// The kernel size is constant in this variant, so that the loops can be unrolled
+const int MAX_KERNEL_SIZE = KERNEL_SIZE;
+const int kernelSize = KERNEL_SIZE;
+#else
 const int MAX_KERNEL_SIZE = 32;
+uniform int kernelSize;
+#endif
 
 in vec2 textureUV;
 noperspective in vec3 viewRay;
@@ -23,18 +30,19 @@ uniform mat4 inverseViewMatrix;
 uniform mat4 lightViewMatrix;
 uniform mat4 lightProjectionMatrix;
 uniform vec2 projection;
-uniform int kernelSize;
 uniform vec2[MAX_KERNEL_SIZE] kernel;
 uniform vec2 noiseScale;
 uniform float bias;
 uniform float radius;
 
+#include "gbuffer.glsl"
+
 float linearizeDepth(float depth) {
     return projection.y / (depth - projection.x);
 }
 
 void main() {
-    vec4 rawNormalView = texture(normals, textureUV);
+    vec4 rawNormalView = decodeNormal(texture(normals, textureUV));
     if (rawNormalView.a <= 0) {
         return;
     }
@@ -0,0 +1,21 @@
+// $shader_type: vertex
+
+#version 330
+
+layout(location = 0) in vec3 position;
+layout(location = 1) in vec3 normal;
+layout(location = 4) in mat4 modelMatrix;
+
+out vec3 normalView;
+
+uniform mat4 viewMatrix;
+uniform mat4 projectionMatrix;
+
+void main() {
+    mat4 modelViewMatrix = viewMatrix * modelMatrix;
+    mat3 normalMatrix = transpose(inverse(mat3(modelViewMatrix)));
+
+    normalView = normalMatrix * normal;
+
+    gl_Position = projectionMatrix * modelViewMatrix * vec4(position, 1);
+}
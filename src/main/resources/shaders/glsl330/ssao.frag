@@ -3,10 +3,18 @@
 // $texture_layout: normals = 0
 // $texture_layout: depths = 1
 // $texture_layout: noise = 2
+// $texture_layout: depthPyramid = 3
 
 #version 330
 
+#ifdef KERNEL_SIZE
+// The kernel size is constant in this variant, so that the loops can be unrolled
+const int MAX_KERNEL_SIZE = KERNEL_SIZE;
+const int kernelSize = KERNEL_SIZE;
+#else
 const int MAX_KERNEL_SIZE = 32;
+uniform int kernelSize;
+#endif
 
 in vec2 textureUV;
 noperspective in vec3 viewRay;
@@ -18,20 +26,56 @@ uniform sampler2D depths;
 uniform sampler2D noise;
 uniform vec2 projection;
 uniform mat4 projectionMatrix;
-uniform int kernelSize;
 uniform vec3[MAX_KERNEL_SIZE] kernel;
 uniform float radius;
 uniform float threshold;
 uniform vec2 noiseScale;
+uniform vec2 noiseOffset;
+uniform vec2 kernelRotation;
 uniform float power;
 
+#include "gbuffer.glsl"
+
 float linearizeDepth(float depth) {
     return projection.y / (depth - projection.x);
 }
 
+#ifdef DOWNSAMPLED
+uniform vec2 downsampledResolution;
+
+// The downsampled normals hold the linear depth in alpha, negated where there is no geometry
+// They're read at the texel centers, as interpolating depths across edges would be meaningless
+float getLinearDepth(vec2 uv) {
+    uv = (floor(uv * downsampledResolution) + 0.5) / downsampledResolution;
+    return abs(texture(normals, uv).a);
+}
+#else
+float getLinearDepth(vec2 uv) {
+    return linearizeDepth(texture(depths, uv).r);
+}
+#endif
+
+#ifdef DEPTH_PYRAMID
+// Taps closer than 2^LOG_MAX_OFFSET pixels read the first level
+const float LOG_MAX_OFFSET = 3;
+
+uniform sampler2D depthPyramid;
+uniform vec2 resolution;
+
+// Far taps read coarser levels of the depth pyramid, which keeps them in the texture cache
+float getSampleDepth(vec2 uv) {
+    float level = max(log2(length((uv - textureUV) * resolution)) - LOG_MAX_OFFSET, 0);
+    return linearizeDepth(textureLod(depthPyramid, uv, level).r);
+}
+#else
+float getSampleDepth(vec2 uv) {
+    return getLinearDepth(uv);
+}
+#endif
+
 void main() {
     // Get the fragment's normal
-    vec4 rawNormal = texture(normals, textureUV);
+    vec4 rawNormal = decodeNormal(texture(normals, textureUV));
     if (rawNormal.a <= 0) {
         outputOcclusion = 1;
         return;
@@ -39,12 +83,14 @@ void main() {
     vec3 normal = normalize(rawNormal.xyz * 2 - 1);
 
     // Reconstruct the position of the fragment from the depth
-    float depth = linearizeDepth(texture(depths, textureUV).r);
+    float depth = getLinearDepth(textureUV);
     vec3 origin = viewRay * depth;
 
     // Construct a change of basis matrix to reorient our sample kernel along the object's normal
     // Extract the random vector from the noise texture
-    vec3 noiseVector = texture(noise, textureUV * noiseScale).xyz * 2 - 1;
+    vec3 noiseVector = texture(noise, textureUV * noiseScale + noiseOffset).xyz * 2 - 1;
+    // Rotating the noise around the z axis rotates the kernel around the normal, which varies the samples from frame to frame
+    noiseVector.xy = vec2(noiseVector.x * kernelRotation.x - noiseVector.y * kernelRotation.y, noiseVector.x * kernelRotation.y + noiseVector.y * kernelRotation.x);
 
     // Calculate the tangent and bi-tangent using Gram-Schmidt
     vec3 tangent = normalize(noiseVector - normal * dot(noiseVector, normal));
@@ -65,7 +111,7 @@ void main() {
         offset.xy = offset.xy * 0.5 + 0.5;
 
         // Get the sample depth
-        float sampleDepth = -linearizeDepth(texture(depths, offset.xy).r);
+        float sampleDepth = -getSampleDepth(offset.xy);
 
         // Range check and accumulate
         float rangeCheck = smoothstep(0, 1, radius / abs(origin.z - sampleDepth));
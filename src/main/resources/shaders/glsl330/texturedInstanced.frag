@@ -0,0 +1,56 @@
+// $shader_type: fragment
+
+// $texture_layout: diffuse = 0
+// $texture_layout: normals = 1
+// $texture_layout: specular = 2
+
+#version 330
+
+in vec3 normalView;
+in vec2 textureUV;
+in mat3 tangentMatrix;
+
+layout(location = 0) out vec4 outputColor;
+layout(location = 1) out vec4 outputNormal;
+layout(location = 2) out vec4 outputVertexNormal;
+layout(location = 3) out vec4 outputMaterial;
+
+uniform sampler2D diffuse;
+uniform sampler2D normals;
+uniform sampler2D specular;
+uniform float diffuseIntensity;
+uniform float ambientIntensity;
+uniform float shininess;
+
+#ifdef COMPACT_GBUFFER
+vec2 encodeOctahedron(vec3 normal) {
+    normal /= abs(normal.x) + abs(normal.y) + abs(normal.z);
+    vec2 encoded = normal.z >= 0 ? normal.xy : (1 - abs(normal.yx)) * vec2(normal.x >= 0 ? 1 : -1, normal.y >= 0 ? 1 : -1);
+    return encoded / 2 + 0.5;
+}
+
+// Packs the normal at 16 bits per component in red and green, the vertex normal at 7 bits per component in blue under the geometry flag, and the material
+// at 4 bits per component in alpha, see GBufferLayout
+vec4 encodeGBuffer(vec3 normal, vec3 vertexNormal, vec4 material) {
+    vec2 vertex = floor(encodeOctahedron(normalize(vertexNormal)) * 127 + 0.5);
+    vec4 quantized = floor(clamp(material, 0, 1) * 15 + 0.5);
+    return vec4(encodeOctahedron(normalize(normal)), (32768 + vertex.x * 128 + vertex.y) / 65535, dot(quantized, vec4(4096, 256, 16, 1)) / 65535);
+}
+#endif
+
+void main() {
+    outputColor = texture(diffuse, textureUV);
+
+    vec3 textureNormalView = tangentMatrix * (texture(normals, textureUV).xyz * 2 - 1);
+    float specularIntensity = texture(specular, textureUV).r;
+
+#ifdef COMPACT_GBUFFER
+    outputNormal = encodeGBuffer(textureNormalView, normalView, vec4(diffuseIntensity, specularIntensity, ambientIntensity, shininess));
+#else
+    outputNormal = vec4((textureNormalView + 1) / 2, 1);
+
+    outputVertexNormal = vec4((normalView + 1) / 2, 1);
+
+    outputMaterial = vec4(diffuseIntensity, specularIntensity, ambientIntensity, shininess);
+#endif
+}
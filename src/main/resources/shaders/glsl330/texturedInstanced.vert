@@ -0,0 +1,30 @@
+// $shader_type: vertex
+
+#version 330
+
+layout(location = 0) in vec3 position;
+layout(location = 1) in vec3 normal;
+layout(location = 2) in vec2 textureCoords;
+layout(location = 3) in vec4 tangent;
+layout(location = 4) in mat4 modelMatrix;
+
+out vec3 normalView;
+out vec2 textureUV;
+out mat3 tangentMatrix;
+
+uniform mat4 viewMatrix;
+uniform mat4 projectionMatrix;
+
+void main() {
+    textureUV = textureCoords;
+
+    mat4 modelViewMatrix = viewMatrix * modelMatrix;
+    mat3 normalMatrix = transpose(inverse(mat3(modelViewMatrix)));
+
+    normalView = normalMatrix * normal;
+    vec3 tangentView = normalMatrix * tangent.xyz;
+    vec3 biTangentView = cross(normalView, tangentView) * tangent.w;
+    tangentMatrix = mat3(tangentView, biTangentView, normalView);
+
+    gl_Position = projectionMatrix * modelViewMatrix * vec4(position, 1);
+}
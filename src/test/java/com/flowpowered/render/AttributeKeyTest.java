@@ -0,0 +1,128 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class AttributeKeyTest {
+    @Test
+    public void testSlotStability() {
+        final AttributeKey<String> first = AttributeKey.create("test.slot.stability", String.class);
+        final AttributeKey<String> second = AttributeKey.create("test.slot.stability", String.class, "default");
+        final AttributeKey<String> other = AttributeKey.create("test.slot.stability.other", String.class);
+        Assert.assertEquals(first.getSlot(), second.getSlot());
+        Assert.assertEquals(first.getSlot(), AttributeKey.getSlot("test.slot.stability"));
+        Assert.assertNotEquals(first.getSlot(), other.getSlot());
+        // String names share the slots of the keys
+        final TestHolder holder = new TestHolder();
+        holder.setAttribute("test.slot.stability", "value");
+        Assert.assertEquals("value", holder.getAttribute(first));
+        Assert.assertEquals("value", holder.getAttribute(second));
+    }
+
+    @Test
+    public void testConcurrentSlots() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<int[]>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<int[]>() {
+                    @Override
+                    public int[] call() {
+                        final int[] slots = new int[200];
+                        for (int j = 0; j < slots.length; j++) {
+                            slots[j] = AttributeKey.getSlot("test.concurrent." + j);
+                        }
+                        return slots;
+                    }
+                }));
+            }
+            final int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                Assert.assertArrayEquals(expected, result.get());
+            }
+            for (int j = 0; j < expected.length; j++) {
+                for (int k = j + 1; k < expected.length; k++) {
+                    Assert.assertNotEquals(expected[j], expected[k]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        AttributeKey.create("test.type.conflict", String.class);
+        AttributeKey.create("test.type.conflict", Integer.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    @SuppressWarnings("unchecked")
+    public void testDefaultOfWrongType() {
+        // Only reachable through raw types
+        final Class type = Integer.class;
+        AttributeKey.create("test.default.type", type, "not an integer");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStringSetOfWrongType() {
+        AttributeKey.create("test.string.type", Integer.class);
+        new TestHolder().setAttribute("test.string.type", "not an integer");
+    }
+
+    @Test
+    public void testDefaultValues() {
+        final AttributeKey<Integer> withDefault = AttributeKey.create("test.default", Integer.class, 4);
+        final AttributeKey<Integer> withoutDefault = AttributeKey.create("test.default", Integer.class);
+        final TestHolder holder = new TestHolder();
+        Assert.assertEquals(4, (int) holder.getAttribute(withDefault));
+        Assert.assertNull(holder.getOptionalAttribute(withoutDefault));
+        try {
+            holder.getAttribute(withoutDefault);
+            Assert.fail("A missing attribute without default should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        holder.setAttribute(withoutDefault, 8);
+        Assert.assertEquals(8, (int) holder.getAttribute(withDefault));
+        holder.removeAttribute(withDefault);
+        Assert.assertEquals(4, (int) holder.getAttribute(withDefault));
+        Assert.assertEquals(2, (int) holder.getAttribute("test.default", 2));
+    }
+
+    private static class TestHolder extends AbstractAttributeHolder {
+    }
+}
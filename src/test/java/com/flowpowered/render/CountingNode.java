@@ -0,0 +1,103 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.flowpowered.caustic.api.gl.Texture;
+
+/**
+ * A node that doesn't use OpenGL, for testing the updates of a graph without a context. It reads {@link #VALUE} when prepared, and counts its updates and
+ * renders.
+ */
+class CountingNode extends GraphNode {
+    static final AttributeKey<Integer> VALUE = AttributeKey.create("test.counting.value", Integer.class, 0);
+    int prepareCount;
+    int applyCount;
+    int renderCount;
+    int preparedValue;
+    // The prepared value seen by each render
+    final List<Integer> renderedValues = new ArrayList<>();
+    volatile Thread prepareThread;
+    Thread applyThread;
+    // The nodes in the order they were applied, if set
+    List<CountingNode> applyOrder;
+    int createdStates;
+    int destroyedStates;
+    Texture input;
+
+    CountingNode(RenderGraph graph, String name) {
+        super(graph, name);
+    }
+
+    @Override
+    protected void prepare() {
+        prepareCount++;
+        prepareThread = Thread.currentThread();
+        preparedValue = getAttribute(VALUE);
+    }
+
+    @Override
+    protected void apply() {
+        applyCount++;
+        applyThread = Thread.currentThread();
+        if (applyOrder != null) {
+            applyOrder.add(this);
+        }
+    }
+
+    @Override
+    protected void render() {
+        renderCount++;
+        renderedValues.add(preparedValue);
+        // Creates the state of the view on first use
+        getViewState();
+    }
+
+    @Override
+    protected Object createViewState() {
+        createdStates++;
+        return new Object();
+    }
+
+    @Override
+    protected void destroyViewState(Object state) {
+        destroyedStates++;
+    }
+
+    @Override
+    protected void destroy() {
+    }
+
+    @Input("input")
+    public void setInput(Texture texture) {
+        input = texture;
+    }
+
+    @Output("output")
+    public Texture getOutput() {
+        return null;
+    }
+}
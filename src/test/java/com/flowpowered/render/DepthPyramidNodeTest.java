@@ -0,0 +1,114 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.render.impl.DepthPyramidNode;
+
+/**
+ *
+ */
+public class DepthPyramidNodeTest {
+    @Test
+    public void testLevelCount() {
+        Assert.assertEquals(1, DepthPyramidNode.getLevelCount(1, 1));
+        Assert.assertEquals(2, DepthPyramidNode.getLevelCount(2, 1));
+        Assert.assertEquals(11, DepthPyramidNode.getLevelCount(1024, 768));
+        Assert.assertEquals(11, DepthPyramidNode.getLevelCount(1920, 1080));
+        Assert.assertEquals(12, DepthPyramidNode.getLevelCount(2048, 1));
+    }
+
+    @Test
+    public void testFootprints() {
+        // Each texel of a level must be reduced into exactly one texel of the next, including the last ones of odd sized levels
+        for (int size = 1; size <= 67; size++) {
+            final Vector2i first = new Vector2i(size, 1);
+            final int levels = DepthPyramidNode.getLevelCount(size, 1);
+            for (int level = 1; level < levels; level++) {
+                final int previousSize = DepthPyramidNode.getLevelSize(first, level - 1).getX();
+                final int levelSize = DepthPyramidNode.getLevelSize(first, level).getX();
+                int covered = 0;
+                for (int texel = 0; texel < levelSize; texel++) {
+                    Assert.assertEquals(texel * 2, covered);
+                    covered += DepthPyramidNode.getFootprintSize(texel, previousSize);
+                }
+                Assert.assertEquals("Size " + size + ", level " + level, previousSize, covered);
+            }
+        }
+    }
+
+    @Test
+    public void testReduction() {
+        // Reduce odd sized depths down to a single texel, which must hold the minimum and maximum of all of them
+        final Vector2i size = new Vector2i(45, 23);
+        final Random random = new Random(4);
+        float[][] minimums = new float[size.getX()][size.getY()];
+        float[][] maximums = new float[size.getX()][size.getY()];
+        float minimum = 1;
+        float maximum = 0;
+        for (int x = 0; x < size.getX(); x++) {
+            for (int y = 0; y < size.getY(); y++) {
+                final float depth = random.nextFloat();
+                minimums[x][y] = depth;
+                maximums[x][y] = depth;
+                minimum = Math.min(minimum, depth);
+                maximum = Math.max(maximum, depth);
+            }
+        }
+        final int levels = DepthPyramidNode.getLevelCount(size.getX(), size.getY());
+        for (int level = 1; level < levels; level++) {
+            final Vector2i previousSize = DepthPyramidNode.getLevelSize(size, level - 1);
+            final Vector2i levelSize = DepthPyramidNode.getLevelSize(size, level);
+            final float[][] levelMinimums = new float[levelSize.getX()][levelSize.getY()];
+            final float[][] levelMaximums = new float[levelSize.getX()][levelSize.getY()];
+            for (int x = 0; x < levelSize.getX(); x++) {
+                for (int y = 0; y < levelSize.getY(); y++) {
+                    float levelMinimum = 1;
+                    float levelMaximum = 0;
+                    final int width = DepthPyramidNode.getFootprintSize(x, previousSize.getX());
+                    final int height = DepthPyramidNode.getFootprintSize(y, previousSize.getY());
+                    for (int xx = x * 2; xx < x * 2 + width; xx++) {
+                        for (int yy = y * 2; yy < y * 2 + height; yy++) {
+                            levelMinimum = Math.min(levelMinimum, minimums[xx][yy]);
+                            levelMaximum = Math.max(levelMaximum, maximums[xx][yy]);
+                        }
+                    }
+                    levelMinimums[x][y] = levelMinimum;
+                    levelMaximums[x][y] = levelMaximum;
+                }
+            }
+            minimums = levelMinimums;
+            maximums = levelMaximums;
+        }
+        Assert.assertEquals(1, minimums.length);
+        Assert.assertEquals(1, minimums[0].length);
+        Assert.assertEquals(minimum, minimums[0][0], 0);
+        Assert.assertEquals(maximum, maximums[0][0], 0);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DrawListTest {
+    @Test
+    public void testRadixSort() {
+        final Random random = new Random(0);
+        for (int count : new int[]{0, 1, 2, 100, 10000}) {
+            final long[] keys = new long[count];
+            final int[] indices = new int[count];
+            for (int i = 0; i < count; i++) {
+                // Include keys with the sign bit set, which must sort after the others
+                keys[i] = random.nextLong();
+                indices[i] = i;
+            }
+            final long[] original = keys.clone();
+            DrawList.sort(keys, indices, new long[count], new int[count], count);
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(original[indices[i]], keys[i]);
+                if (i > 0) {
+                    Assert.assertTrue(keys[i - 1] + Long.MIN_VALUE <= keys[i] + Long.MIN_VALUE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSortIsStable() {
+        final long[] keys = {3, 1, 3, 2, 1, 3};
+        final int[] indices = {0, 1, 2, 3, 4, 5};
+        DrawList.sort(keys, indices, new long[6], new int[6], 6);
+        Assert.assertArrayEquals(new long[]{1, 1, 2, 3, 3, 3}, keys);
+        Assert.assertArrayEquals(new int[]{1, 4, 3, 0, 2, 5}, indices);
+    }
+
+    @Test
+    public void testSkippedDigits() {
+        // Only the third byte differs, so a single pass is made, which leaves the result in the buffer before copying back
+        final long[] keys = {0x30000, 0x10000, 0x20000};
+        final int[] indices = {0, 1, 2};
+        DrawList.sort(keys, indices, new long[3], new int[3], 3);
+        Assert.assertArrayEquals(new long[]{0x10000, 0x20000, 0x30000}, keys);
+        Assert.assertArrayEquals(new int[]{1, 2, 0}, indices);
+    }
+
+    @Test
+    public void testDepthQuantization() {
+        final float[] depths = {-5, 0, 0.001f, 0.5f, 1, 1.01f, 10, 1000, 100000};
+        for (int i = 1; i < depths.length; i++) {
+            Assert.assertTrue(DrawList.quantizeDepth(depths[i - 1], 20) <= DrawList.quantizeDepth(depths[i], 20));
+        }
+        Assert.assertEquals(0, DrawList.quantizeDepth(-5, 20));
+        Assert.assertTrue(DrawList.quantizeDepth(1, 20) < DrawList.quantizeDepth(1.01f, 20));
+        Assert.assertTrue(DrawList.quantizeDepth(100000, 20) < 1 << 20);
+    }
+
+    @Test
+    public void testOpaqueKeyOrder() {
+        // Program first, then material, then vertex array, then front to back
+        final long[] keys = {
+                DrawList.opaqueKey(1, 0, 0, 1),
+                DrawList.opaqueKey(0, 1, 0, 1),
+                DrawList.opaqueKey(0, 0, 1, 1),
+                DrawList.opaqueKey(0, 0, 0, 100),
+                DrawList.opaqueKey(0, 0, 0, 1),
+                DrawList.opaqueKey(1023, 65535, 262143, 100000)
+        };
+        // The keys use all 64 bits, so they compare as unsigned
+        final long[] sorted = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = keys[i] + Long.MIN_VALUE;
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] -= Long.MIN_VALUE;
+        }
+        Assert.assertArrayEquals(new long[]{keys[4], keys[3], keys[2], keys[1], keys[0], keys[5]}, sorted);
+    }
+
+    @Test
+    public void testDepthOnlyKeyOrder() {
+        // Front to back, grouped by vertex array only for close depths
+        final long near = DrawList.depthOnlyKey(5, 1);
+        final long nearOtherArray = DrawList.depthOnlyKey(0, 1.01f);
+        final long far = DrawList.depthOnlyKey(0, 50);
+        Assert.assertTrue(nearOtherArray < near);
+        Assert.assertTrue(near < far);
+    }
+}
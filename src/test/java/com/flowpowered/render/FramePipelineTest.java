@@ -0,0 +1,241 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector3f;
+
+import com.flowpowered.caustic.api.Camera;
+
+/**
+ *
+ */
+public class FramePipelineTest {
+    @SuppressWarnings("unchecked")
+    private static final AttributeKey<List<Integer>> VALUES = AttributeKey.create("test.frame.values", (Class<List<Integer>>) (Class<?>) List.class,
+            Collections.<Integer>emptyList());
+    private static final AttributeKey<Camera> CAMERA = AttributeKey.create("test.frame.camera", Camera.class);
+
+    @Test
+    public void testFramesRenderedInOrder() throws InterruptedException {
+        final RenderGraph graph = new RenderGraph();
+        final FrameNode node = new FrameNode(graph, "node");
+        graph.addNode(node);
+        graph.build();
+        final FramePipeline pipeline = new FramePipeline(graph, 2);
+        for (int i = 1; i <= 2; i++) {
+            final FramePipeline.Frame frame = pipeline.beginFrame();
+            frame.setAttribute(CountingNode.VALUE, i);
+            pipeline.submit(frame);
+        }
+        Assert.assertEquals(2, pipeline.getPendingFrames());
+        pipeline.renderNext();
+        pipeline.renderNext();
+        Assert.assertEquals(0, pipeline.getPendingFrames());
+        Assert.assertEquals(Arrays.asList(1, 2), node.renderedValues);
+        // The frames start from the last submitted one
+        pipeline.submit(pipeline.beginFrame());
+        pipeline.renderNext();
+        Assert.assertEquals(Arrays.asList(1, 2, 2), node.renderedValues);
+        // Only the frames with a new value update the node
+        Assert.assertEquals(2, node.prepareCount);
+    }
+
+    @Test
+    public void testNextFramePreparedWhileRendering() throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final RenderGraph graph = new RenderGraph();
+            graph.setPreparePool(pool);
+            final FrameNode node = new FrameNode(graph, "node");
+            graph.addNode(node);
+            graph.build();
+            final FramePipeline pipeline = new FramePipeline(graph, 1);
+            // The first frame finds the active nodes
+            submit(pipeline, 1);
+            pipeline.renderNext();
+            submit(pipeline, 2);
+            // The render of the second frame waits until the third one is prepared
+            node.awaitedValue = 3;
+            node.prepared = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread renderer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        pipeline.renderNext();
+                        pipeline.renderNext();
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            renderer.start();
+            submit(pipeline, 3);
+            renderer.join(TimeUnit.SECONDS.toMillis(10));
+            Assert.assertFalse(renderer.isAlive());
+            Assert.assertNull(failure.get());
+            Assert.assertTrue(node.preparedWhileRendering);
+            Assert.assertEquals(Arrays.asList(1, 2, 3), node.renderedValues);
+            // Prepared on the pool, from the values of each frame, and not again when rendered
+            Assert.assertNotSame(renderer, node.prepareFrameThread);
+            Assert.assertEquals(3, node.prepareFrameCount.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubmittedValuesCopied() throws InterruptedException {
+        final RenderGraph graph = new RenderGraph();
+        final FrameNode node = new FrameNode(graph, "node");
+        graph.addNode(node);
+        graph.build();
+        final FramePipeline pipeline = new FramePipeline(graph, 1);
+        final List<Integer> values = new ArrayList<>(Arrays.asList(1, 2));
+        final Camera camera = new Camera(Matrix4f.IDENTITY);
+        camera.setPosition(Vector3f.ZERO);
+        final FramePipeline.Frame frame = pipeline.beginFrame();
+        frame.setAttribute(VALUES, values);
+        frame.setAttribute(CAMERA, camera);
+        pipeline.submit(frame);
+        // Modified in place by the simulation after submission
+        values.add(3);
+        camera.setPosition(Vector3f.ONE);
+        pipeline.renderNext();
+        Assert.assertEquals(Arrays.asList(1, 2), node.renderedLists.get(0));
+        Assert.assertEquals(Vector3f.ZERO, node.renderedPositions.get(0));
+        // Touching the values copies them again
+        final FramePipeline.Frame next = pipeline.beginFrame();
+        Assert.assertSame(values, next.getAttribute(VALUES));
+        next.touchAttribute(VALUES);
+        pipeline.submit(next);
+        pipeline.renderNext();
+        Assert.assertEquals(Arrays.asList(1, 2, 3), node.renderedLists.get(1));
+        Assert.assertEquals(Vector3f.ZERO, node.renderedPositions.get(1));
+    }
+
+    @Test
+    public void testViewAttributes() throws InterruptedException {
+        final RenderGraph graph = new RenderGraph();
+        final FrameNode node = new FrameNode(graph, "node");
+        graph.addNode(node);
+        graph.build();
+        final View left = new View(graph, "left");
+        final View right = new View(graph, "right");
+        graph.addView(left);
+        graph.addView(right);
+        final FramePipeline pipeline = new FramePipeline(graph, 1);
+        FramePipeline.Frame frame = pipeline.beginFrame();
+        frame.setAttribute(CountingNode.VALUE, 1);
+        frame.setViewAttribute(right, CountingNode.VALUE, 2);
+        pipeline.submit(frame);
+        pipeline.renderNext();
+        Assert.assertEquals(Arrays.asList(1, 2), node.renderedValues);
+        // Removed views aren't set by the next frames, whichever frames are recycled
+        frame = pipeline.beginFrame();
+        Assert.assertEquals(2, (int) frame.getViewAttribute(right, CountingNode.VALUE));
+        frame.removeView(right);
+        pipeline.submit(frame);
+        pipeline.renderNext();
+        for (int i = 0; i < 4; i++) {
+            frame = pipeline.beginFrame();
+            Assert.assertNull(frame.getViewAttribute(right, CountingNode.VALUE));
+            pipeline.submit(frame);
+            pipeline.renderNext();
+        }
+    }
+
+    private static void submit(FramePipeline pipeline, int value) throws InterruptedException {
+        final FramePipeline.Frame frame = pipeline.beginFrame();
+        frame.setAttribute(CountingNode.VALUE, value);
+        pipeline.submit(frame);
+    }
+
+    private static class FrameNode extends CountingNode {
+        final List<List<Integer>> renderedLists = new ArrayList<>();
+        final List<Vector3f> renderedPositions = new ArrayList<>();
+        final AtomicInteger prepareFrameCount = new AtomicInteger();
+        volatile Thread prepareFrameThread;
+        // Released once the frame with the value is prepared, while the render waits for it
+        volatile CountDownLatch prepared;
+        volatile int awaitedValue;
+        boolean preparedWhileRendering;
+
+        private FrameNode(RenderGraph graph, String name) {
+            super(graph, name);
+        }
+
+        @Override
+        protected Object prepareFrame(FrameAttributes attributes, Object previous) {
+            prepareFrameCount.incrementAndGet();
+            prepareFrameThread = Thread.currentThread();
+            final FrameData data = previous != null ? (FrameData) previous : new FrameData();
+            data.value = attributes.getAttribute(CountingNode.VALUE);
+            data.values = attributes.getAttribute(VALUES);
+            data.camera = attributes.getOptionalAttribute(CAMERA);
+            final CountDownLatch latch = prepared;
+            if (latch != null && data.value == awaitedValue) {
+                latch.countDown();
+            }
+            return data;
+        }
+
+        @Override
+        protected void render() {
+            super.render();
+            final FrameData data = getFrameData();
+            renderedValues.set(renderedValues.size() - 1, data.value);
+            renderedLists.add(new ArrayList<>(data.values));
+            renderedPositions.add(data.camera != null ? data.camera.getPosition() : null);
+            final CountDownLatch latch = prepared;
+            if (latch != null && data.value < awaitedValue) {
+                try {
+                    preparedWhileRendering = latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static class FrameData {
+        private int value;
+        private List<Integer> values;
+        private Camera camera;
+    }
+}
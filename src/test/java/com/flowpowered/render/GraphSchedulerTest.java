@@ -0,0 +1,302 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.flowpowered.caustic.api.gl.Texture;
+
+/**
+ *
+ */
+public class GraphSchedulerTest {
+    @Test
+    public void testStages() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 5);
+        // 0 -> 1 -> 3 -> 4, 0 -> 2 -> 3, 2 -> 4
+        scheduler.connect(nodes.get(1), "first", "output", nodes.get(0));
+        scheduler.connect(nodes.get(2), "first", "output", nodes.get(0));
+        scheduler.connect(nodes.get(3), "first", "output", nodes.get(1));
+        scheduler.connect(nodes.get(3), "second", "output", nodes.get(2));
+        scheduler.connect(nodes.get(4), "first", "output", nodes.get(3));
+        scheduler.connect(nodes.get(4), "second", "output", nodes.get(2));
+        scheduler.build();
+        assertStages(scheduler, nodes, 0, 1, 1, 2, 3);
+        Assert.assertEquals(4, scheduler.getStages().size());
+    }
+
+    @Test
+    public void testIncrementalChanges() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 4);
+        scheduler.connect(nodes.get(1), "first", "output", nodes.get(0));
+        scheduler.build();
+        assertStages(scheduler, nodes, 0, 1, 0, 0);
+        // Lengthen the chain
+        scheduler.connect(nodes.get(2), "first", "output", nodes.get(1));
+        scheduler.connect(nodes.get(3), "first", "output", nodes.get(2));
+        assertStages(scheduler, nodes, 0, 1, 2, 3);
+        // Shortcut the chain
+        scheduler.disconnect(nodes.get(2), "first");
+        assertStages(scheduler, nodes, 0, 1, 0, 1);
+        Assert.assertEquals(2, scheduler.getStages().size());
+        // Reconnect and remove the middle node
+        scheduler.connect(nodes.get(2), "first", "output", nodes.get(1));
+        scheduler.removeNode(nodes.get(1));
+        Assert.assertFalse(scheduler.contains(nodes.get(1)));
+        Assert.assertTrue(nodes.get(2).getConnectedInputs().isEmpty());
+        Assert.assertEquals(0, scheduler.getStage(nodes.get(2)));
+        Assert.assertEquals(1, scheduler.getStage(nodes.get(3)));
+        // Add a new node in front
+        final TestNode node = new TestNode("new");
+        scheduler.connect(node, "first", "output", nodes.get(3));
+        scheduler.addNode(node);
+        Assert.assertEquals(2, scheduler.getStage(node));
+    }
+
+    @Test
+    public void testCycleOnBuild() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 4);
+        scheduler.connect(nodes.get(1), "first", "output", nodes.get(0));
+        scheduler.connect(nodes.get(2), "first", "output", nodes.get(1));
+        scheduler.connect(nodes.get(3), "first", "output", nodes.get(2));
+        scheduler.connect(nodes.get(1), "second", "output", nodes.get(3));
+        try {
+            scheduler.build();
+            Assert.fail("Expected the cycle to be reported");
+        } catch (IllegalStateException ex) {
+            // The cycle can be reported starting from any of its nodes
+            final String message = ex.getMessage();
+            Assert.assertTrue(message, message.contains("\"1\" -> \"2\" -> \"3\"") || message.contains("\"2\" -> \"3\" -> \"1\"")
+                    || message.contains("\"3\" -> \"1\" -> \"2\""));
+        }
+        Assert.assertFalse(scheduler.isBuilt());
+        Assert.assertTrue(scheduler.getStages().isEmpty());
+    }
+
+    @Test
+    public void testCycleOnConnect() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 3);
+        scheduler.connect(nodes.get(1), "first", "output", nodes.get(0));
+        scheduler.connect(nodes.get(2), "first", "output", nodes.get(1));
+        scheduler.build();
+        try {
+            scheduler.connect(nodes.get(0), "first", "output", nodes.get(2));
+            Assert.fail("Expected the cycle to be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("\"0\" -> \"1\" -> \"2\" -> \"0\""));
+        }
+        // The rejected connection must not have been made
+        Assert.assertTrue(nodes.get(0).getConnectedInputs().isEmpty());
+        assertStages(scheduler, nodes, 0, 1, 2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingInput() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 1);
+        scheduler.connect(nodes.get(0), "first", "output", new TestNode("missing"));
+        scheduler.build();
+    }
+
+    @Test
+    public void testMissingDependent() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 1);
+        scheduler.connect(new TestNode("missing"), "first", "output", nodes.get(0));
+        try {
+            scheduler.build();
+            Assert.fail("Expected the missing dependent to be reported");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("\"missing\""));
+        }
+        Assert.assertFalse(scheduler.isBuilt());
+    }
+
+    @Test
+    public void testSinks() {
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 5);
+        // 0 -> 1 -> 2, 0 -> 3 -> 4
+        scheduler.connect(nodes.get(1), "first", "output", nodes.get(0));
+        scheduler.connect(nodes.get(2), "first", "output", nodes.get(1));
+        scheduler.connect(nodes.get(3), "first", "output", nodes.get(0));
+        scheduler.connect(nodes.get(4), "first", "output", nodes.get(3));
+        scheduler.build();
+        // Without sinks, everything is active
+        Assert.assertEquals(5, scheduler.getActiveNodes().size());
+        scheduler.addSink(nodes.get(2));
+        assertActive(scheduler, nodes, 0, 1, 2);
+        Assert.assertEquals(1, scheduler.getStages().get(1).getActiveNodes().size());
+        // Rewiring the sink changes what is reachable
+        scheduler.connect(nodes.get(2), "second", "output", nodes.get(3));
+        assertActive(scheduler, nodes, 0, 1, 2, 3);
+        scheduler.disconnect(nodes.get(2), "first");
+        assertActive(scheduler, nodes, 0, 2, 3);
+        scheduler.addSink(nodes.get(4));
+        assertActive(scheduler, nodes, 0, 2, 3, 4);
+        scheduler.removeNode(nodes.get(4));
+        assertActive(scheduler, nodes, 0, 2, 3);
+    }
+
+    @Test
+    public void testIncrementalMatchesBuild() {
+        final Random random = new Random(42);
+        final GraphScheduler scheduler = new GraphScheduler();
+        final List<TestNode> nodes = createNodes(scheduler, 500);
+        connectRandomly(scheduler, nodes, random);
+        scheduler.build();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                final TestNode node = nodes.get(1 + random.nextInt(nodes.size() - 1));
+                final String input = random.nextBoolean() ? "first" : "second";
+                if (random.nextBoolean()) {
+                    scheduler.disconnect(node, input);
+                } else {
+                    // Only connect to earlier nodes to keep the graph acyclic
+                    scheduler.connect(node, input, "output", nodes.get(random.nextInt(nodes.indexOf(node))));
+                }
+            }
+            final Map<GraphNode, Integer> incremental = new HashMap<>();
+            for (TestNode node : nodes) {
+                incremental.put(node, scheduler.getStage(node));
+            }
+            final int stageCount = scheduler.getStages().size();
+            scheduler.build();
+            for (TestNode node : nodes) {
+                Assert.assertEquals((int) incremental.get(node), scheduler.getStage(node));
+            }
+            Assert.assertEquals(stageCount, scheduler.getStages().size());
+        }
+    }
+
+    @Test
+    public void testBuildScalesLinearly() {
+        // Opt-in, as wall-clock ratios are unreliable on a loaded machine: -Dflow.render.benchmark=true
+        Assume.assumeTrue(Boolean.getBoolean("flow.render.benchmark"));
+        // Warm up the JIT before timing
+        timeBuild(32000);
+        // Both sizes are large enough to not fit in the CPU caches, which would skew the comparison
+        final long small = timeBuild(8000);
+        final long large = timeBuild(32000);
+        // Four times the nodes, quadratic scheduling would take about sixteen times longer
+        Assert.assertTrue("Building 32000 nodes took " + large + "ns, against " + small + "ns for 8000", large < small * 12);
+    }
+
+    private static long timeBuild(int nodeCount) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 7; i++) {
+            final GraphScheduler scheduler = new GraphScheduler();
+            final List<TestNode> nodes = createNodes(scheduler, nodeCount);
+            connectRandomly(scheduler, nodes, new Random(i));
+            // Avoid timing a collection of the garbage from the previous runs
+            System.gc();
+            final long start = System.nanoTime();
+            scheduler.build();
+            best = Math.min(best, System.nanoTime() - start);
+            Assert.assertEquals(nodeCount, scheduler.getStages().size());
+        }
+        return best;
+    }
+
+    private static List<TestNode> createNodes(GraphScheduler scheduler, int count) {
+        final List<TestNode> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final TestNode node = new TestNode(Integer.toString(i));
+            scheduler.addNode(node);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private static void connectRandomly(GraphScheduler scheduler, List<TestNode> nodes, Random random) {
+        // Each node follows the previous one, so there are as many stages as nodes, and also takes a random earlier one
+        for (int i = 1; i < nodes.size(); i++) {
+            final TestNode node = nodes.get(i);
+            scheduler.connect(node, "first", "output", nodes.get(i - 1));
+            scheduler.connect(node, "second", "output", nodes.get(random.nextInt(i)));
+        }
+    }
+
+    private static void assertActive(GraphScheduler scheduler, List<TestNode> nodes, int... active) {
+        final List<GraphNode> activeNodes = scheduler.getActiveNodes();
+        Assert.assertEquals(active.length, activeNodes.size());
+        int stageActiveCount = 0;
+        for (GraphScheduler.Stage stage : scheduler.getStages()) {
+            stageActiveCount += stage.getActiveNodes().size();
+        }
+        Assert.assertEquals(active.length, stageActiveCount);
+        for (int index : active) {
+            Assert.assertTrue("Node " + index + " should be active", activeNodes.contains(nodes.get(index)));
+        }
+    }
+
+    private static void assertStages(GraphScheduler scheduler, List<TestNode> nodes, int... stages) {
+        for (int i = 0; i < stages.length; i++) {
+            Assert.assertEquals("Stage of node " + i, stages[i], scheduler.getStage(nodes.get(i)));
+        }
+    }
+
+    private static class TestNode extends GraphNode {
+        private TestNode(String name) {
+            super(null, name);
+        }
+
+        @Override
+        public void update() {
+        }
+
+        @Override
+        protected void render() {
+        }
+
+        @Override
+        protected void destroy() {
+        }
+
+        @Input("first")
+        public void setFirstInput(Texture texture) {
+        }
+
+        @Input("second")
+        public void setSecondInput(Texture texture) {
+        }
+
+        @Output("output")
+        public Texture getOutput() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector3f;
+
+/**
+ *
+ */
+public class LightClustererTest {
+    private static final Matrix4f PROJECTION = Matrix4f.createPerspective(60, 2, 0.1f, 100);
+
+    @Test
+    public void testPointLight() {
+        final LightClusterer clusterer = new LightClusterer();
+        clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, Arrays.asList(Light.createPoint(new Vector3f(0, 0, -10), Vector3f.ONE, 1)));
+        Assert.assertEquals(1, clusterer.getLightCount());
+        Assert.assertTrue(getLights(clusterer, 0, 0, 10).contains(0));
+        Assert.assertTrue(getLights(clusterer, 0, 0, 9.5f).contains(0));
+        // Beside and behind the light
+        Assert.assertTrue(getLights(clusterer, 0.9f, 0.9f, 10).isEmpty());
+        Assert.assertTrue(getLights(clusterer, 0, 0, 50).isEmpty());
+    }
+
+    @Test
+    public void testCulledLights() {
+        final LightClusterer clusterer = new LightClusterer();
+        // Behind the camera, past the far plane, and off to the side
+        clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, Arrays.asList(
+                Light.createPoint(new Vector3f(0, 0, 10), Vector3f.ONE, 1),
+                Light.createPoint(new Vector3f(0, 0, -200), Vector3f.ONE, 1),
+                Light.createPoint(new Vector3f(1000, 0, -10), Vector3f.ONE, 1)));
+        Assert.assertEquals(3, clusterer.getLightCount());
+        Assert.assertEquals(0, clusterer.getLightIndexCount());
+    }
+
+    @Test
+    public void testSpotLight() {
+        final LightClusterer clusterer = new LightClusterer();
+        final Vector3f position = new Vector3f(0, 0, -5);
+        clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, Arrays.asList(Light.createPoint(position, Vector3f.ONE, 10)));
+        final int pointIndexCount = clusterer.getLightIndexCount();
+        // A narrow cone pointing away from the camera only reaches the clusters behind it
+        clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, Arrays.asList(Light.createSpot(position, new Vector3f(0, 0, -1), Vector3f.ONE, 10, 10)));
+        Assert.assertTrue(clusterer.getLightIndexCount() < pointIndexCount);
+        Assert.assertTrue(getLights(clusterer, 0, 0, 10).contains(0));
+        Assert.assertTrue(getLights(clusterer, 0, 0, 1).isEmpty());
+    }
+
+    @Test
+    public void testConservative() {
+        final LightClusterer clusterer = new LightClusterer();
+        final Random random = new Random(0);
+        final List<Light> lights = new ArrayList<>();
+        addRandomLights(lights, 1000, random);
+        clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, lights);
+        // The cluster of any lit point in the frustum must list the light
+        for (int i = 0; i < 100000; i++) {
+            final int index = random.nextInt(lights.size());
+            final Light light = lights.get(index);
+            final Vector3f direction = new Vector3f(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1).normalize();
+            if (direction.dot(light.getDirection()) < light.getConeCosine()) {
+                continue;
+            }
+            final Vector3f point = light.getPosition().add(direction.mul(random.nextFloat() * light.getRadius()));
+            final float depth = -point.getZ();
+            final int cluster = clusterer.getClusterIndex(PROJECTION.get(0, 0) * point.getX() / depth, PROJECTION.get(1, 1) * point.getY() / depth, depth);
+            if (cluster >= 0) {
+                Assert.assertTrue(getLights(clusterer, cluster).contains(index));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelBinning() {
+        final List<Light> lights = new ArrayList<>();
+        addRandomLights(lights, 10000, new Random(0));
+        final LightClusterer sequential = new LightClusterer();
+        sequential.cluster(Matrix4f.IDENTITY, PROJECTION, lights);
+        final LightClusterer parallel = new LightClusterer();
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.setPool(pool);
+            parallel.cluster(Matrix4f.IDENTITY, PROJECTION, lights);
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertArrayEquals(sequential.getClusters(), parallel.getClusters());
+        Assert.assertEquals(sequential.getLightIndexCount(), parallel.getLightIndexCount());
+        final int indexCount = sequential.getLightIndexCount();
+        Assert.assertArrayEquals(Arrays.copyOf(sequential.getLightIndices(), indexCount), Arrays.copyOf(parallel.getLightIndices(), indexCount));
+        Assert.assertArrayEquals(Arrays.copyOf(sequential.getLightData(), lights.size() * LightClusterer.LIGHT_SIZE),
+                Arrays.copyOf(parallel.getLightData(), lights.size() * LightClusterer.LIGHT_SIZE), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSlices() {
+        new LightClusterer(16, 8, 0);
+    }
+
+    @Test
+    public void benchmark() {
+        // Opt-in: -Dflow.render.benchmark=true
+        Assume.assumeTrue(Boolean.getBoolean("flow.render.benchmark"));
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (int count : new int[]{1000, 10000, 100000}) {
+                final List<Light> lights = new ArrayList<>();
+                addRandomLights(lights, count, new Random(count));
+                final LightClusterer clusterer = new LightClusterer();
+                final long sequential = timeCluster(clusterer, lights);
+                clusterer.setPool(pool);
+                final long parallel = timeCluster(clusterer, lights);
+                System.out.println(String.format("Binned %d lights to %d indices: %.3fms sequential, %.3fms on %d threads",
+                        count, clusterer.getLightIndexCount(), sequential / 1e6, parallel / 1e6, pool.getParallelism()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long timeCluster(LightClusterer clusterer, List<Light> lights) {
+        // Warm up the JIT before timing
+        for (int i = 0; i < 5; i++) {
+            clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, lights);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            final long start = System.nanoTime();
+            clusterer.cluster(Matrix4f.IDENTITY, PROJECTION, lights);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static List<Integer> getLights(LightClusterer clusterer, float ndcX, float ndcY, float depth) {
+        return getLights(clusterer, clusterer.getClusterIndex(ndcX, ndcY, depth));
+    }
+
+    private static List<Integer> getLights(LightClusterer clusterer, int cluster) {
+        final int[] clusters = clusterer.getClusters();
+        final int offset = clusters[cluster * 2];
+        final List<Integer> lights = new ArrayList<>();
+        for (int i = 0; i < clusters[cluster * 2 + 1]; i++) {
+            lights.add(clusterer.getLightIndices()[offset + i]);
+        }
+        return lights;
+    }
+
+    private static void addRandomLights(List<Light> lights, int count, Random random) {
+        // Small lights in front of the camera, a third of them spot lights, some past the sides and far plane
+        for (int i = 0; i < count; i++) {
+            final Vector3f position = new Vector3f(random.nextFloat() * 200 - 100, random.nextFloat() * 100 - 50, -random.nextFloat() * 110);
+            final float radius = random.nextFloat() * 4 + 1;
+            if (i % 3 == 0) {
+                final Vector3f direction = new Vector3f(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1);
+                lights.add(Light.createSpot(position, direction, Vector3f.ONE, radius, random.nextFloat() * 80 + 5));
+            } else {
+                lights.add(Light.createPoint(position, Vector3f.ONE, radius));
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.flowpowered.math.vector.Vector3f;
+
+import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.model.Model;
+
+/**
+ *
+ */
+public class ModelCullerTest {
+    private static final Vector3f HALF_SIZE = new Vector3f(0.5f, 0.5f, 0.5f);
+
+    @Test
+    public void testCulling() {
+        final ModelCuller culler = new ModelCuller();
+        // One of the two near models is in front of the camera, the far ones are past the far plane
+        final Model front = addModel(culler, new Vector3f(0, 0, -10));
+        final Model back = addModel(culler, new Vector3f(0, 0, 10));
+        addModel(culler, new Vector3f(0, 0, -1000));
+        addModel(culler, new Vector3f(0, 0, 1000));
+        final List<Model> visible = new ArrayList<>();
+        Assert.assertEquals(1, culler.cull(createCamera(), visible));
+        Assert.assertEquals(1, visible.size());
+        Assert.assertTrue(visible.get(0) == front || visible.get(0) == back);
+        Assert.assertEquals(1, culler.getVisibleCount());
+        Assert.assertEquals(3, culler.getCulledCount());
+    }
+
+    @Test
+    public void testBoundsUpdates() {
+        final ModelCuller culler = new ModelCuller();
+        final Camera camera = createCamera();
+        final Model model = new Model();
+        culler.add(model, HALF_SIZE.negate(), HALF_SIZE);
+        final List<Model> visible = new ArrayList<>();
+        culler.cull(camera, visible);
+        Assert.assertEquals(1, visible.size());
+        // Move the model outside of the frustum on all sides
+        culler.setBounds(model, new Vector3f(1000, 1000, 1000), new Vector3f(1001, 1001, 1001));
+        culler.cull(camera, visible);
+        Assert.assertTrue(visible.isEmpty());
+        Assert.assertEquals(1, culler.getModelCount());
+        Assert.assertTrue(culler.remove(model));
+        Assert.assertFalse(culler.remove(model));
+        Assert.assertEquals(0, culler.getModelCount());
+    }
+
+    @Test
+    public void testRemoveKeepsOtherBounds() {
+        final ModelCuller culler = new ModelCuller();
+        final Model first = addModel(culler, Vector3f.ZERO);
+        final Model second = addModel(culler, new Vector3f(1000, 1000, 1000));
+        final Model third = addModel(culler, Vector3f.ZERO);
+        // The last model takes the place of the removed one
+        culler.remove(first);
+        final List<Model> visible = new ArrayList<>();
+        culler.cull(createCamera(), visible);
+        Assert.assertEquals(1, visible.size());
+        Assert.assertSame(third, visible.get(0));
+        Assert.assertEquals(1, culler.getCulledCount());
+        culler.remove(third);
+        culler.cull(createCamera(), visible);
+        Assert.assertTrue(visible.isEmpty());
+        Assert.assertEquals(1, culler.getModelCount());
+        culler.setBounds(second, HALF_SIZE.negate(), HALF_SIZE);
+        culler.cull(createCamera(), visible);
+        Assert.assertSame(second, visible.get(0));
+    }
+
+    @Test
+    public void testOcclusionCulling() {
+        final ModelCuller culler = new ModelCuller();
+        final Model front = addModel(culler, new Vector3f(0, 0, -5));
+        final Model back = addModel(culler, new Vector3f(0, 0, 5));
+        addModel(culler, new Vector3f(0, 0, -20));
+        addModel(culler, new Vector3f(0, 0, 20));
+        // Walls on both sides, in case the camera looks down the other axis, hide the far models but not the near ones
+        final OcclusionCuller occlusionCuller = new OcclusionCuller(256, 192);
+        for (float z : new float[]{-10, 10}) {
+            occlusionCuller.addOccluder(new float[]{-100, -100, z, 100, -100, z, 100, 100, z, -100, 100, z}, new int[]{0, 1, 2, 0, 2, 3});
+        }
+        final List<Model> visible = new ArrayList<>();
+        Assert.assertEquals(1, culler.cull(createCamera(), visible, occlusionCuller));
+        Assert.assertTrue(visible.get(0) == front || visible.get(0) == back);
+        Assert.assertEquals(1, culler.getOccludedCount());
+        Assert.assertEquals(3, culler.getCulledCount());
+        // Without the occlusion culler, only the frustum counts
+        culler.cull(createCamera(), visible);
+        Assert.assertEquals(2, visible.size());
+        Assert.assertEquals(0, culler.getOccludedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetBoundsOfMissingModel() {
+        new ModelCuller().setBounds(new Model(), Vector3f.ZERO, Vector3f.ONE);
+    }
+
+    @Test
+    public void testParallelCulling() {
+        final ModelCuller culler = new ModelCuller();
+        addRandomModels(culler, 100000, new Random(0));
+        final Camera camera = createCamera();
+        final List<Model> sequential = new ArrayList<>();
+        culler.cull(camera, sequential);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            culler.setPool(pool);
+            final List<Model> parallel = new ArrayList<>();
+            culler.cull(camera, parallel);
+            Assert.assertEquals(sequential, parallel);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        // Opt-in, as the largest run needs a lot of memory: -Dflow.render.benchmark=true
+        Assume.assumeTrue(Boolean.getBoolean("flow.render.benchmark"));
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (int count : new int[]{10000, 100000, 1000000}) {
+                final ModelCuller culler = new ModelCuller();
+                addRandomModels(culler, count, new Random(count));
+                final long sequential = timeCull(culler);
+                culler.setPool(pool);
+                final long parallel = timeCull(culler);
+                System.out.println(String.format("Culled %d models to %d visible: %.3fms sequential, %.3fms on %d threads",
+                        count, culler.getVisibleCount(), sequential / 1e6, parallel / 1e6, pool.getParallelism()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long timeCull(ModelCuller culler) {
+        final Camera camera = createCamera();
+        final List<Model> visible = new ArrayList<>();
+        // Warm up the JIT before timing
+        for (int i = 0; i < 5; i++) {
+            culler.cull(camera, visible);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            final long start = System.nanoTime();
+            culler.cull(camera, visible);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static Camera createCamera() {
+        return Camera.createPerspective(60, 800, 600, 0.1f, 100);
+    }
+
+    private static Model addModel(ModelCuller culler, Vector3f position) {
+        final Model model = new Model();
+        culler.add(model, position.sub(HALF_SIZE), position.add(HALF_SIZE));
+        return model;
+    }
+
+    private static void addRandomModels(ModelCuller culler, int count, Random random) {
+        // Spread around the camera, past the far plane, so that a fair part is culled
+        for (int i = 0; i < count; i++) {
+            addModel(culler, new Vector3f(random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200, random.nextFloat() * 400 - 200));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.Texture.Format;
+
+/**
+ *
+ */
+public class NodePortsTest {
+    @Test
+    public void testPortsCachedPerClass() {
+        final NodePorts ports = NodePorts.get(DepthNode.class);
+        Assert.assertSame(ports, NodePorts.get(DepthNode.class));
+        Assert.assertNotSame(ports, NodePorts.get(ColorNode.class));
+        // The ports of the superclass are found too
+        Assert.assertEquals(new HashSet<>(Arrays.asList("input", "depths")), ports.getInputs().keySet());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("output", "depths")), ports.getOutputs().keySet());
+        Assert.assertEquals(Collections.singleton(Format.DEPTH), ports.getInput("depths").getFormats());
+        // Subclasses have their own entry
+        final NodePorts subclassPorts = NodePorts.get(SubclassNode.class);
+        Assert.assertNotSame(ports, subclassPorts);
+        Assert.assertEquals(ports.getInputs().keySet(), subclassPorts.getInputs().keySet());
+        // Instances share the ports of their class
+        final RenderGraph graph = new RenderGraph();
+        Assert.assertSame(new DepthNode(graph, "first").getInputPort("depths"), new DepthNode(graph, "second").getInputPort("depths"));
+    }
+
+    @Test
+    public void testConnectAndDisconnect() {
+        final RenderGraph graph = new RenderGraph();
+        final DepthNode parent = new DepthNode(graph, "parent");
+        final DepthNode node = new DepthNode(graph, "node");
+        graph.addNode(parent);
+        graph.addNode(node);
+        graph.build();
+        node.connect("depths", "depths", parent);
+        // The input is set through its method handle, from the output's
+        Assert.assertEquals(1, parent.outputGets);
+        Assert.assertEquals(1, node.inputSets);
+        Assert.assertSame(parent, node.getConnectedInputs().get("depths"));
+        Assert.assertEquals(Collections.singletonList(node), parent.getDependents());
+        Assert.assertEquals(1, graph.getNode("node").stage);
+        node.disconnect("depths");
+        Assert.assertTrue(node.getConnectedInputs().isEmpty());
+        Assert.assertTrue(parent.getDependents().isEmpty());
+        Assert.assertEquals(0, graph.getNode("node").stage);
+        // Disconnecting doesn't set the input again
+        Assert.assertEquals(1, node.inputSets);
+    }
+
+    @Test
+    public void testFormatMismatch() {
+        final RenderGraph graph = new RenderGraph();
+        final DepthNode depths = new DepthNode(graph, "depths");
+        final ColorNode colors = new ColorNode(graph, "colors");
+        final AnyNode any = new AnyNode(graph, "any");
+        graph.addNode(depths);
+        graph.addNode(colors);
+        graph.addNode(any);
+        try {
+            colors.connect("colors", "depths", depths);
+            Assert.fail("A depth output should not be accepted by a color input");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("expects [RGBA]"));
+        }
+        Assert.assertTrue(colors.getConnectedInputs().isEmpty());
+        Assert.assertTrue(depths.getDependents().isEmpty());
+        // Ports without formats accept and are accepted by any other
+        any.connect("any", "depths", depths);
+        colors.connect("colors", "any", any);
+        Assert.assertSame(any, colors.getConnectedInputs().get("colors"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingPort() {
+        final RenderGraph graph = new RenderGraph();
+        final DepthNode parent = new DepthNode(graph, "parent");
+        new DepthNode(graph, "node").connect("missing", "depths", parent);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidInputMethod() {
+        NodePorts.get(InvalidNode.class);
+    }
+
+    private static class DepthNode extends CountingNode {
+        private int inputSets;
+        private int outputGets;
+
+        private DepthNode(RenderGraph graph, String name) {
+            super(graph, name);
+        }
+
+        @Input(value = "depths", format = Format.DEPTH)
+        public void setDepthsInput(Texture texture) {
+            inputSets++;
+        }
+
+        @Output(value = "depths", format = Format.DEPTH)
+        public Texture getDepthsOutput() {
+            outputGets++;
+            return null;
+        }
+    }
+
+    private static class SubclassNode extends DepthNode {
+        private SubclassNode(RenderGraph graph, String name) {
+            super(graph, name);
+        }
+    }
+
+    private static class ColorNode extends CountingNode {
+        private ColorNode(RenderGraph graph, String name) {
+            super(graph, name);
+        }
+
+        @Input(value = "colors", format = Format.RGBA)
+        public void setColorsInput(Texture texture) {
+        }
+    }
+
+    private static class AnyNode extends CountingNode {
+        private AnyNode(RenderGraph graph, String name) {
+            super(graph, name);
+        }
+
+        @Input("any")
+        public void setAnyInput(Texture texture) {
+        }
+
+        @Output("any")
+        public Texture getAnyOutput() {
+            return null;
+        }
+    }
+
+    private static class InvalidNode extends CountingNode {
+        private InvalidNode(RenderGraph graph, String name) {
+            super(graph, name);
+        }
+
+        @Input("invalid")
+        public void setInvalidInput(Texture texture, int extra) {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.flowpowered.math.matrix.Matrix4f;
+
+/**
+ *
+ */
+public class OcclusionCullerTest {
+    private static final Matrix4f PROJECTION = Matrix4f.createPerspective(60, 2, 0.1f, 100);
+
+    @Test
+    public void testWall() {
+        final OcclusionCuller culler = new OcclusionCuller(256, 128);
+        // Nothing is occluded before the first render
+        Assert.assertTrue(culler.isVisible(-1, -1, -21, 1, 1, -19));
+        culler.addOccluder(createQuad(100, -10), QUAD_INDICES);
+        culler.render(PROJECTION);
+        Assert.assertFalse(culler.isVisible(-1, -1, -21, 1, 1, -19));
+        Assert.assertTrue(culler.isVisible(-1, -1, -6, 1, 1, -4));
+        // Boxes that cross the wall or the camera plane are visible
+        Assert.assertTrue(culler.isVisible(-1, -1, -11, 1, 1, -9));
+        Assert.assertTrue(culler.isVisible(-1, -1, -1, 1, 1, 1));
+        culler.clearOccluders();
+        culler.render(PROJECTION);
+        Assert.assertTrue(culler.isVisible(-1, -1, -21, 1, 1, -19));
+    }
+
+    @Test
+    public void testPartialOcclusion() {
+        final OcclusionCuller culler = new OcclusionCuller(256, 128);
+        culler.addOccluder(createQuad(1, -10), QUAD_INDICES);
+        culler.render(PROJECTION);
+        // Smaller than the wall on screen, then larger
+        Assert.assertFalse(culler.isVisible(-0.5f, -0.5f, -20.5f, 0.5f, 0.5f, -19.5f));
+        Assert.assertTrue(culler.isVisible(-5, -5, -20.5f, 5, 5, -19.5f));
+        // Beside the wall
+        Assert.assertTrue(culler.isVisible(3, -0.5f, -20.5f, 4, 0.5f, -19.5f));
+    }
+
+    @Test
+    public void testWinding() {
+        final OcclusionCuller culler = new OcclusionCuller(256, 128);
+        // Both faces of the occluders are drawn
+        culler.addOccluder(createQuad(100, -10), new int[]{0, 2, 1, 0, 3, 2});
+        culler.render(PROJECTION);
+        Assert.assertFalse(culler.isVisible(-1, -1, -21, 1, 1, -19));
+    }
+
+    @Test
+    public void testTrianglesBehindCamera() {
+        final OcclusionCuller culler = new OcclusionCuller(256, 128);
+        // Crosses the camera plane, so it's skipped rather than clipped
+        culler.addOccluder(new float[]{-100, -100, 10, 100, -100, 10, 0, 100, -10}, new int[]{0, 1, 2});
+        culler.render(PROJECTION);
+        Assert.assertTrue(culler.isVisible(-1, -1, -21, 1, 1, -19));
+    }
+
+    @Test
+    public void testParallelRendering() {
+        final OcclusionCuller sequential = new OcclusionCuller(300, 150);
+        final OcclusionCuller parallel = new OcclusionCuller(300, 150);
+        addRandomOccluders(sequential, 200, new Random(0));
+        addRandomOccluders(parallel, 200, new Random(0));
+        sequential.render(PROJECTION);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.setPool(pool);
+            parallel.render(PROJECTION);
+        } finally {
+            pool.shutdown();
+        }
+        final Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            final float x = random.nextFloat() * 60 - 30, y = random.nextFloat() * 30 - 15, z = -random.nextFloat() * 90 - 5;
+            Assert.assertEquals(sequential.isVisible(x, y, z, x + 1, y + 1, z + 1), parallel.isVisible(x, y, z, x + 1, y + 1, z + 1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIndexOutOfBounds() {
+        new OcclusionCuller(16, 16).addOccluder(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, new int[]{0, 1, 3});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncompleteTriangle() {
+        new OcclusionCuller(16, 16).addOccluder(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, new int[]{0, 1});
+    }
+
+    @Test
+    public void benchmark() {
+        // Opt-in: -Dflow.render.benchmark=true
+        Assume.assumeTrue(Boolean.getBoolean("flow.render.benchmark"));
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (int occluders : new int[]{100, 1000, 10000}) {
+                final OcclusionCuller culler = new OcclusionCuller(512, 256);
+                addRandomOccluders(culler, occluders, new Random(occluders));
+                final long sequential = timeRender(culler);
+                culler.setPool(pool);
+                final long parallel = timeRender(culler);
+                // Test boxes spread through the view volume
+                final Random random = new Random(0);
+                final int boxes = 100000;
+                int visible = 0;
+                final long start = System.nanoTime();
+                for (int i = 0; i < boxes; i++) {
+                    final float x = random.nextFloat() * 60 - 30, y = random.nextFloat() * 30 - 15, z = -random.nextFloat() * 90 - 5;
+                    if (culler.isVisible(x, y, z, x + 1, y + 1, z + 1)) {
+                        visible++;
+                    }
+                }
+                final long testing = System.nanoTime() - start;
+                System.out.println(String.format("Rendered %d occluders: %.3fms sequential, %.3fms on %d threads; tested %d boxes in %.3fms, %d rejected",
+                        occluders, sequential / 1e6, parallel / 1e6, pool.getParallelism(), boxes, testing / 1e6, boxes - visible));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long timeRender(OcclusionCuller culler) {
+        // Warm up the JIT before timing
+        for (int i = 0; i < 5; i++) {
+            culler.render(PROJECTION);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            final long start = System.nanoTime();
+            culler.render(PROJECTION);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static final int[] QUAD_INDICES = {0, 1, 2, 0, 2, 3};
+
+    private static float[] createQuad(float halfSize, float z) {
+        return new float[]{
+                -halfSize, -halfSize, z,
+                halfSize, -halfSize, z,
+                halfSize, halfSize, z,
+                -halfSize, halfSize, z
+        };
+    }
+
+    private static void addRandomOccluders(OcclusionCuller culler, int count, Random random) {
+        // Walls facing the camera, of various sizes and depths
+        for (int i = 0; i < count; i++) {
+            final float x = random.nextFloat() * 60 - 30, y = random.nextFloat() * 30 - 15, z = -random.nextFloat() * 90 - 5;
+            final float halfWidth = random.nextFloat() * 3 + 0.5f, halfHeight = random.nextFloat() * 3 + 0.5f;
+            culler.addOccluder(new float[]{
+                    x - halfWidth, y - halfHeight, z,
+                    x + halfWidth, y - halfHeight, z,
+                    x + halfWidth, y + halfHeight, z,
+                    x - halfWidth, y + halfHeight, z
+            }, QUAD_INDICES);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.flowpowered.render.ProgramCache.Entry;
+
+/**
+ *
+ */
+public class ProgramCacheTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKeys() {
+        final String key = ProgramCache.computeKey("driver", "vertex", "fragment");
+        Assert.assertEquals(key, ProgramCache.computeKey("driver", "vertex", "fragment"));
+        Assert.assertEquals(40, key.length());
+        Assert.assertTrue(key.matches("[0-9a-f]+"));
+        Assert.assertNotEquals(key, ProgramCache.computeKey("other driver", "vertex", "fragment"));
+        Assert.assertNotEquals(key, ProgramCache.computeKey("driver", "vertex2", "fragment"));
+        Assert.assertNotEquals(key, ProgramCache.computeKey("driver", "vertex", "fragment2"));
+        // Moving text between the sources must change the key
+        Assert.assertNotEquals(key, ProgramCache.computeKey("driver", "vertexf", "ragment"));
+    }
+
+    @Test
+    public void testEntries() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ProgramCache.writeEntry(output, new Entry(0x1234, new byte[]{1, 2, 3, 4, 5}, 42000000));
+        final Entry entry = ProgramCache.readEntry(new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals(0x1234, entry.format);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, entry.binary);
+        Assert.assertEquals(42000000, entry.compileTime);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedEntry() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ProgramCache.writeEntry(output, new Entry(0x1234, new byte[]{1, 2, 3, 4, 5}, 42000000));
+        final byte[] bytes = output.toByteArray();
+        ProgramCache.readEntry(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidEntry() throws IOException {
+        ProgramCache.readEntry(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+    }
+
+    @Test
+    public void testEntryFile() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final Path file = directory.resolve("entry.bin");
+        ProgramCache.writeEntryFile(directory, file, new Entry(0x1234, new byte[]{1, 2, 3}, 42000000));
+        try (InputStream input = Files.newInputStream(file)) {
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, ProgramCache.readEntry(input).binary);
+        }
+        assertNoTemporaryFiles(directory);
+    }
+
+    @Test
+    public void testFailedEntryFile() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        // A non empty directory can't be replaced, so the move fails
+        final Path file = Files.createDirectory(directory.resolve("entry.bin"));
+        Files.createFile(file.resolve("child"));
+        ProgramCache.writeEntryFile(directory, file, new Entry(0x1234, new byte[]{1, 2, 3}, 42000000));
+        Assert.assertTrue(Files.isDirectory(file));
+        assertNoTemporaryFiles(directory);
+    }
+
+    private static void assertNoTemporaryFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> temporaries = Files.newDirectoryStream(directory, "*.tmp")) {
+            Assert.assertFalse(temporaries.iterator().hasNext());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.render.impl.GBufferLayout;
+
+/**
+ *
+ */
+public class RenderGraphTest {
+    @Test
+    public void testPermutationNames() {
+        Assert.assertEquals("blur", RenderGraph.getPermutationName("blur", Collections.<String, String>emptyMap()));
+        final Map<String, String> defines = new HashMap<>();
+        defines.put("KERNEL_SIZE", "6");
+        defines.put("BILATERAL", "1");
+        // Sorted by define name, whatever the map order
+        Assert.assertEquals("blur[BILATERAL=1,KERNEL_SIZE=6]", RenderGraph.getPermutationName("blur", defines));
+    }
+
+    @Test
+    public void testDefinesAfterVersion() {
+        final String source = "// $shader_type: fragment\n\n#version 330\n\nvoid main() {\n}\n";
+        final String defined = RenderGraph.insertDefines(source, Collections.singletonMap("KERNEL_SIZE", "8"));
+        Assert.assertEquals("// $shader_type: fragment\n\n#version 330\n#define KERNEL_SIZE 8\n\nvoid main() {\n}\n", defined);
+        Assert.assertSame(source, RenderGraph.insertDefines(source, Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void testDefinesWithoutVersion() {
+        Assert.assertEquals("#define A 1\nvoid main() {}", RenderGraph.insertDefines("void main() {}", Collections.singletonMap("A", "1")));
+        Assert.assertEquals("#version 120\n#define A 1\n", RenderGraph.insertDefines("#version 120", Collections.singletonMap("A", "1")));
+    }
+
+    @Test
+    public void testIncludes() throws IOException {
+        final String snippet = readResource("/shaders/gbuffer.glsl");
+        final String source = "#version 330\n\n#include \"gbuffer.glsl\"\n\nvoid main() {\n}\n";
+        // Shared by all versions, so found in the parent of the shader directory
+        Assert.assertEquals("#version 330\n\n" + snippet + "\n\nvoid main() {\n}\n", RenderGraph.insertIncludes(source, "/shaders/glsl330"));
+        final String plain = "#version 330\n\nvoid main() {\n}\n";
+        Assert.assertSame(plain, RenderGraph.insertIncludes(plain, "/shaders/glsl330"));
+        // The defines are inserted before the snippets, so they select the decoding for the layout
+        final String defined = RenderGraph.insertDefines(RenderGraph.insertIncludes(source, "/shaders/glsl330"), GBufferLayout.COMPACT.getDefines());
+        Assert.assertTrue(defined.indexOf("#define COMPACT_GBUFFER 1") < defined.indexOf("#ifdef COMPACT_GBUFFER"));
+        // The octahedral decoding is only in the snippet
+        for (String version : new String[]{"glsl120", "glsl330"}) {
+            for (String shader : new String[]{"lighting", "ssao", "ssaoDownsample", "ssaoUpsample", "blur", "shadow", "cascadedShadow", "edaa"}) {
+                final String path = "/shaders/" + version + '/' + shader + ".frag";
+                Assert.assertFalse(path, readResource(path).contains("decodeOctahedron"));
+                Assert.assertTrue(path, RenderGraph.insertIncludes(readResource(path), "/shaders/" + version).contains("vec3 decodeOctahedron("));
+            }
+        }
+    }
+
+    @Test
+    public void testCompactGBufferShaders() throws IOException {
+        Assert.assertTrue(GBufferLayout.STANDARD.getDefines().isEmpty());
+        Assert.assertEquals(Collections.singletonMap("COMPACT_GBUFFER", "1"), GBufferLayout.COMPACT.getDefines());
+        // Every shader writing or reading the normals must have the compact variant
+        final String[] shaders = {"solid", "textured", "lighting", "ssao", "ssaoDownsample", "ssaoUpsample", "blur", "shadow", "cascadedShadow", "edaa"};
+        for (String version : new String[]{"glsl120", "glsl330"}) {
+            for (String shader : shaders) {
+                final String source = RenderGraph.insertIncludes(readResource("/shaders/" + version + '/' + shader + ".frag"), "/shaders/" + version);
+                Assert.assertTrue(version + '/' + shader, source.contains("#ifdef COMPACT_GBUFFER") || source.contains("defined(COMPACT_GBUFFER)"));
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateSkipping() {
+        final RenderGraph graph = new RenderGraph();
+        final CountingNode first = new CountingNode(graph, "first");
+        final CountingNode second = new CountingNode(graph, "second");
+        graph.addNode(first);
+        graph.addNode(second);
+        graph.build();
+        graph.updateAll();
+        Assert.assertEquals(2, graph.getUpdatedNodeCount());
+        // Nothing read by the nodes changed
+        graph.setAttribute("test.unread", 1);
+        graph.updateAll();
+        Assert.assertEquals(0, graph.getUpdatedNodeCount());
+        graph.setAttribute(CountingNode.VALUE, 3);
+        graph.updateAll();
+        Assert.assertEquals(2, graph.getUpdatedNodeCount());
+        Assert.assertEquals(3, first.preparedValue);
+        // Only the node with the override changes
+        second.setAttribute(CountingNode.VALUE, 5);
+        graph.updateAll();
+        Assert.assertEquals(1, graph.getUpdatedNodeCount());
+        Assert.assertEquals(5, second.preparedValue);
+        Assert.assertEquals(2, first.prepareCount);
+        // A value modified in place is only seen once touched
+        graph.touchAttribute(CountingNode.VALUE);
+        graph.updateAll();
+        Assert.assertEquals(2, graph.getUpdatedNodeCount());
+        graph.updateAll();
+        Assert.assertEquals(0, graph.getUpdatedNodeCount());
+        first.invalidate();
+        graph.updateAll();
+        Assert.assertEquals(1, graph.getUpdatedNodeCount());
+    }
+
+    @Test
+    public void testPrepareOffThread() {
+        final RenderGraph graph = new RenderGraph();
+        final List<CountingNode> applyOrder = new ArrayList<>();
+        final List<CountingNode> nodes = new ArrayList<>();
+        // Two chains of four nodes, in stages 0 to 3
+        for (int i = 0; i < 8; i++) {
+            final CountingNode node = new CountingNode(graph, Integer.toString(i));
+            node.applyOrder = applyOrder;
+            graph.addNode(node);
+            if (i % 4 != 0) {
+                node.connect("input", "output", nodes.get(i - 1));
+            }
+            nodes.add(node);
+        }
+        graph.build();
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            graph.setPreparePool(pool);
+            graph.updateAll();
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(8, graph.getUpdatedNodeCount());
+        Assert.assertEquals(8, applyOrder.size());
+        int lastStage = 0;
+        for (CountingNode node : applyOrder) {
+            Assert.assertNotSame(Thread.currentThread(), node.prepareThread);
+            Assert.assertSame(Thread.currentThread(), node.applyThread);
+            Assert.assertTrue("Node " + node + " applied out of stage order", node.stage >= lastStage);
+            lastStage = node.stage;
+        }
+        Assert.assertEquals(3, lastStage);
+    }
+
+    @Test
+    public void testLinkingInvalidates() {
+        final RenderGraph graph = new RenderGraph();
+        final CountingNode parent = new CountingNode(graph, "parent");
+        final CountingNode node = new CountingNode(graph, "node");
+        graph.addNode(parent);
+        graph.addNode(node);
+        graph.build();
+        graph.updateAll();
+        Assert.assertEquals(2, graph.getUpdatedNodeCount());
+        graph.updateAll();
+        Assert.assertEquals(0, graph.getUpdatedNodeCount());
+        // The update can depend on which inputs are connected, so connecting and disconnecting force the node to update again
+        node.connect("input", "output", parent);
+        graph.updateAll();
+        Assert.assertEquals(1, graph.getUpdatedNodeCount());
+        Assert.assertEquals(2, node.prepareCount);
+        graph.updateAll();
+        Assert.assertEquals(0, graph.getUpdatedNodeCount());
+        node.disconnect("input");
+        graph.updateAll();
+        Assert.assertEquals(1, graph.getUpdatedNodeCount());
+        Assert.assertEquals(3, node.prepareCount);
+        Assert.assertEquals(1, parent.prepareCount);
+    }
+
+    private static String readResource(String path) throws IOException {
+        try (InputStream input = RenderGraphTest.class.getResourceAsStream(path)) {
+            Assert.assertNotNull(path, input);
+            return new Scanner(input, "UTF-8").useDelimiter("\\A").next();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.render.RenderProfiler.Snapshot;
+import com.flowpowered.render.RenderProfiler.Timing;
+
+/**
+ *
+ */
+public class RenderProfilerTest {
+    @Test
+    public void testNodeAndStageTimes() {
+        final TestTimer timer = new TestTimer(0);
+        final RenderProfiler profiler = new RenderProfiler(timer, 10);
+        profiler.setPublishInterval(1);
+        // Stage 0 has nodes 0 and 1, stage 1 has node 2
+        renderFrame(profiler, timer, new long[]{2, 3}, new long[]{5});
+        final Snapshot snapshot = profiler.getSnapshot();
+        Assert.assertEquals(1, snapshot.getSampledFrames());
+        Assert.assertEquals(2, snapshot.getNodeTiming("0-0").getMax());
+        Assert.assertEquals(3, snapshot.getNodeTiming("0-1").getMax());
+        Assert.assertEquals(5, snapshot.getNodeTiming("1-0").getMax());
+        Assert.assertEquals(5, snapshot.getStageTiming(0).getMax());
+        Assert.assertEquals(5, snapshot.getStageTiming(1).getMax());
+        Assert.assertEquals(10, snapshot.getFrameTiming().getMax());
+    }
+
+    @Test
+    public void testDelayedResults() {
+        final TestTimer timer = new TestTimer(2);
+        final RenderProfiler profiler = new RenderProfiler(timer, 10);
+        profiler.setPublishInterval(1);
+        final List<Snapshot> published = new ArrayList<>();
+        profiler.addListener(new RenderProfiler.Listener() {
+            @Override
+            public void onSnapshot(Snapshot snapshot) {
+                published.add(snapshot);
+            }
+        });
+        renderFrame(profiler, timer, new long[]{1});
+        renderFrame(profiler, timer, new long[]{2});
+        Assert.assertEquals(0, profiler.getSampledFrames());
+        Assert.assertTrue(published.isEmpty());
+        // The timestamps of the first frame are now two frames old
+        renderFrame(profiler, timer, new long[]{3});
+        Assert.assertEquals(1, profiler.getSampledFrames());
+        Assert.assertEquals(1, published.size());
+        Assert.assertEquals(1, published.get(0).getNodeTiming("0-0").getMax());
+        Assert.assertSame(published.get(0), profiler.getSnapshot());
+        Assert.assertEquals(0, profiler.getDroppedFrames());
+    }
+
+    @Test
+    public void testDroppedFrames() {
+        final TestTimer timer = new TestTimer(Integer.MAX_VALUE);
+        final RenderProfiler profiler = new RenderProfiler(timer, 10);
+        profiler.setMaxPendingFrames(3);
+        for (int i = 0; i < 10; i++) {
+            renderFrame(profiler, timer, new long[]{1});
+        }
+        Assert.assertEquals(0, profiler.getSampledFrames());
+        Assert.assertEquals(7, profiler.getDroppedFrames());
+        // Each frame has a timestamp for the stage start and one for the node end
+        Assert.assertEquals(14, timer.released);
+    }
+
+    @Test
+    public void testRollingPercentiles() {
+        final TestTimer timer = new TestTimer(0);
+        final RenderProfiler profiler = new RenderProfiler(timer, 100);
+        profiler.setPublishInterval(150);
+        // Only the last 100 samples, 51 to 150, are kept
+        for (int i = 1; i <= 150; i++) {
+            renderFrame(profiler, timer, new long[]{i});
+        }
+        final Timing timing = profiler.getSnapshot().getNodeTiming("0-0");
+        Assert.assertEquals(100, timing.getSampleCount());
+        Assert.assertEquals(51, timing.getMin());
+        Assert.assertEquals(150, timing.getMax());
+        Assert.assertEquals(100, timing.getMedian());
+        Assert.assertEquals(145, timing.getPercentile(95));
+        Assert.assertEquals(100.5, timing.getAverage(), 0);
+    }
+
+    @Test
+    public void testCPUTimer() {
+        final RenderProfiler.CPUTimer timer = new RenderProfiler.CPUTimer();
+        final int first = timer.timestamp();
+        final int second = timer.timestamp();
+        Assert.assertTrue(timer.isAvailable(second));
+        Assert.assertTrue(timer.getTime(second) >= timer.getTime(first));
+        timer.release(first);
+        // Released handles are reused
+        Assert.assertEquals(first, timer.timestamp());
+    }
+
+    private static void renderFrame(RenderProfiler profiler, TestTimer timer, long[]... stages) {
+        profiler.beginFrame();
+        for (int stage = 0; stage < stages.length; stage++) {
+            profiler.beginStage(stage);
+            for (int node = 0; node < stages[stage].length; node++) {
+                timer.time += stages[stage][node];
+                profiler.endNode(stage + "-" + node);
+            }
+            profiler.endStage();
+        }
+        profiler.endFrame();
+        timer.frame++;
+    }
+
+    // Stands in for GPU timer queries, which become available some frames after being issued
+    private static class TestTimer implements RenderProfiler.Timer {
+        private final int latency;
+        private final List<Long> times = new ArrayList<>();
+        private final List<Integer> frames = new ArrayList<>();
+        private long time = 0;
+        private int frame = 0;
+        private int released = 0;
+
+        private TestTimer(int latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public int timestamp() {
+            times.add(time);
+            frames.add(frame);
+            return times.size() - 1;
+        }
+
+        @Override
+        public boolean isAvailable(int handle) {
+            return frame - frames.get(handle) >= latency;
+        }
+
+        @Override
+        public long getTime(int handle) {
+            return times.get(handle);
+        }
+
+        @Override
+        public void release(int handle) {
+            released++;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
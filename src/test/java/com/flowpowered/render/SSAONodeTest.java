@@ -0,0 +1,181 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.flowpowered.math.matrix.Matrix4f;
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.render.RenderProfiler.Timing;
+import com.flowpowered.render.impl.Attributes;
+import com.flowpowered.render.impl.SSAONode;
+
+import com.flowpowered.caustic.api.Camera;
+import com.flowpowered.caustic.api.gl.Context;
+import com.flowpowered.caustic.api.gl.Texture;
+import com.flowpowered.caustic.api.gl.Texture.FilterMode;
+import com.flowpowered.caustic.api.gl.Texture.Format;
+import com.flowpowered.caustic.api.gl.Texture.InternalFormat;
+import com.flowpowered.caustic.api.util.CausticUtil;
+import com.flowpowered.caustic.lwjgl.gl30.GL30Context;
+
+/**
+ *
+ */
+public class SSAONodeTest {
+    private static final Vector2i BENCHMARK_SIZE = new Vector2i(2560, 1440);
+
+    @Test
+    public void testDownsampledSize() {
+        Assert.assertEquals(new Vector2i(1920, 1080), SSAONode.getDownsampledSize(new Vector2i(1920, 1080), 1));
+        Assert.assertEquals(new Vector2i(960, 540), SSAONode.getDownsampledSize(new Vector2i(1920, 1080), 2));
+        Assert.assertEquals(new Vector2i(480, 270), SSAONode.getDownsampledSize(new Vector2i(1920, 1080), 4));
+        // Rounded up, so that the last column and row of odd sizes are covered
+        Assert.assertEquals(new Vector2i(961, 541), SSAONode.getDownsampledSize(new Vector2i(1921, 1081), 2));
+        Assert.assertEquals(new Vector2i(481, 271), SSAONode.getDownsampledSize(new Vector2i(1921, 1081), 4));
+        Assert.assertEquals(new Vector2i(1, 1), SSAONode.getDownsampledSize(new Vector2i(1, 1), 4));
+        // Every output pixel is covered by a reduced one, and no reduced pixel is entirely outside of the output
+        for (int size = 1; size <= 67; size++) {
+            for (int divisor = 1; divisor <= 4; divisor++) {
+                final int reduced = SSAONode.getDownsampledSize(new Vector2i(size, 1), divisor).getX();
+                Assert.assertTrue("Size " + size + ", divisor " + divisor, reduced * divisor >= size);
+                Assert.assertTrue("Size " + size + ", divisor " + divisor, (reduced - 1) * divisor < size);
+            }
+        }
+    }
+
+    @Test
+    public void testFrameTimeBenchmark() {
+        // Opt-in, as it needs a display and an OpenGL 3 context, and GPU times vary between drivers: -Dflow.render.benchmark=true
+        Assume.assumeTrue(Boolean.getBoolean("flow.render.benchmark"));
+        final Context context = new GL30Context();
+        context.setWindowTitle("SSAO benchmark");
+        context.setWindowSize(BENCHMARK_SIZE);
+        context.create();
+        try {
+            final RenderGraph graph = new RenderGraph(context, "/shaders/glsl330");
+            graph.create();
+            final GBufferNode gBuffer = new GBufferNode(graph, "gBuffer");
+            final SSAONode ssao = new SSAONode(graph, "ssao");
+            ssao.connect("normals", "normals", gBuffer);
+            ssao.connect("depths", "depths", gBuffer);
+            graph.addNode(gBuffer);
+            graph.addNode(ssao);
+            graph.build();
+            graph.setAttribute(Attributes.OUTPUT_SIZE, BENCHMARK_SIZE);
+            graph.setAttribute(Attributes.CAMERA, new Camera(Matrix4f.createPerspective(60, BENCHMARK_SIZE.getX() / (float) BENCHMARK_SIZE.getY(), 0.1f, 100)));
+            // The same kernel and threshold for each resolution, only the number of pixels it's evaluated at changes
+            ssao.setAttribute(SSAONode.KERNEL_SIZE, 16);
+            final RenderProfiler profiler = RenderProfiler.create();
+            profiler.setPublishInterval(1);
+            graph.setProfiler(profiler);
+            final Timing full = timeOcclusion(graph, ssao, profiler, 1);
+            final Timing half = timeOcclusion(graph, ssao, profiler, 2);
+            final Timing quarter = timeOcclusion(graph, ssao, profiler, 4);
+            System.out.println("SSAO at " + BENCHMARK_SIZE.getX() + "x" + BENCHMARK_SIZE.getY() + ", using " + profiler.getTimer().getClass().getSimpleName()
+                    + ":\n  full resolution: " + full + "\n  half resolution: " + half + "\n  quarter resolution: " + quarter);
+            // The downsampling and upsampling passes cost less than the kernel evaluations they save
+            Assert.assertTrue("Half resolution took " + half.getMedian() + "ns, against " + full.getMedian() + "ns at full", half.getMedian() < full.getMedian());
+            Assert.assertTrue("Quarter resolution took " + quarter.getMedian() + "ns, against " + half.getMedian() + "ns at half",
+                    quarter.getMedian() < half.getMedian());
+            profiler.destroy();
+            graph.destroy();
+        } finally {
+            context.destroy();
+        }
+    }
+
+    private static Timing timeOcclusion(RenderGraph graph, SSAONode ssao, RenderProfiler profiler, int resolutionDivisor) {
+        ssao.setAttribute(SSAONode.RESOLUTION_DIVISOR, resolutionDivisor);
+        // Warm up the driver, which may compile the new program variant and allocate the targets lazily
+        for (int i = 0; i < 30; i++) {
+            graph.updateAll();
+            graph.render();
+        }
+        profiler.reset();
+        while (profiler.getSampledFrames() < profiler.getSampleCount()) {
+            graph.updateAll();
+            graph.render();
+        }
+        return profiler.getSnapshot().getNodeTiming("ssao");
+    }
+
+    // Stands in for the geometry buffer: a surface facing the camera, with varying depths so that the kernel taps aren't all coherent
+    private static class GBufferNode extends GraphNode {
+        private final Texture normals;
+        private final Texture depths;
+
+        private GBufferNode(RenderGraph graph, String name) {
+            super(graph, name);
+            final int width = BENCHMARK_SIZE.getX();
+            final int height = BENCHMARK_SIZE.getY();
+            final Context context = graph.getContext();
+            final ByteBuffer normalData = CausticUtil.createByteBuffer(width * height * 4);
+            final ByteBuffer depthData = CausticUtil.createByteBuffer(width * height * 4);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    // Biased to [0, 1], with alpha set where there is geometry
+                    normalData.put((byte) 0x80).put((byte) 0x80).put((byte) 0xFF).put((byte) 0xFF);
+                    depthData.putFloat(0.9f + 0.09f * ((x * 7 + y * 13) % 64) / 64);
+                }
+            }
+            normalData.flip();
+            depthData.flip();
+            normals = context.newTexture();
+            normals.create();
+            normals.setFormat(InternalFormat.RGBA8);
+            normals.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+            normals.setImageData(normalData, width, height);
+            depths = context.newTexture();
+            depths.create();
+            depths.setFormat(InternalFormat.DEPTH_COMPONENT32F);
+            depths.setFilters(FilterMode.NEAREST, FilterMode.NEAREST);
+            depths.setImageData(depthData, width, height);
+        }
+
+        @Override
+        protected void render() {
+        }
+
+        @Override
+        protected void destroy() {
+            normals.destroy();
+            depths.destroy();
+        }
+
+        @Output("normals")
+        public Texture getNormalsOutput() {
+            return normals;
+        }
+
+        @Output(value = "depths", format = Format.DEPTH)
+        public Texture getDepthsOutput() {
+            return depths;
+        }
+    }
+}
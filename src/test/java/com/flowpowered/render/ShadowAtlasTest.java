@@ -0,0 +1,86 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.flowpowered.math.vector.Vector2i;
+
+import com.flowpowered.caustic.api.util.Rectangle;
+
+/**
+ *
+ */
+public class ShadowAtlasTest {
+    @Test
+    public void testEqualSizes() {
+        final ShadowAtlas atlas = new ShadowAtlas();
+        // Three equal regions fit best in a single row
+        atlas.pack(Collections.nCopies(3, new Vector2i(1024, 1024)), 8192);
+        Assert.assertEquals(3, atlas.getRegionCount());
+        Assert.assertEquals(new Vector2i(3 * 1024 + 2, 1024), atlas.getSize());
+        checkRegions(atlas, Collections.nCopies(3, new Vector2i(1024, 1024)));
+        // Unless the row doesn't fit
+        atlas.pack(Collections.nCopies(3, new Vector2i(1024, 1024)), 2049);
+        Assert.assertEquals(new Vector2i(2049, 2049), atlas.getSize());
+        checkRegions(atlas, Collections.nCopies(3, new Vector2i(1024, 1024)));
+    }
+
+    @Test
+    public void testDifferentSizes() {
+        final ShadowAtlas atlas = new ShadowAtlas();
+        final List<Vector2i> sizes = Arrays.asList(new Vector2i(2048, 2048), new Vector2i(1024, 1024), new Vector2i(1024, 512), new Vector2i(512, 512),
+                new Vector2i(512, 256), new Vector2i(256, 256));
+        atlas.pack(sizes, 4096);
+        checkRegions(atlas, sizes);
+        final Vector2i size = atlas.getSize();
+        Assert.assertTrue(size.getX() <= 4096 && size.getY() <= 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLarge() {
+        new ShadowAtlas().pack(Collections.nCopies(8, new Vector2i(2048, 2048)), 4096);
+    }
+
+    private static void checkRegions(ShadowAtlas atlas, List<Vector2i> sizes) {
+        final Vector2i size = atlas.getSize();
+        for (int i = 0; i < sizes.size(); i++) {
+            final Rectangle region = atlas.getRegion(i);
+            Assert.assertEquals(sizes.get(i), region.getSize());
+            Assert.assertTrue(region.getX() >= 0 && region.getX() + region.getWidth() <= size.getX());
+            Assert.assertTrue(region.getY() >= 0 && region.getY() + region.getHeight() <= size.getY());
+            // The regions are separated by a gutter
+            for (int j = 0; j < i; j++) {
+                final Rectangle other = atlas.getRegion(j);
+                Assert.assertTrue(region.getX() > other.getX() + other.getWidth() || other.getX() > region.getX() + region.getWidth()
+                        || region.getY() > other.getY() + other.getHeight() || other.getY() > region.getY() + region.getHeight());
+            }
+        }
+    }
+}
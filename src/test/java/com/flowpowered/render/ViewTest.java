@@ -0,0 +1,163 @@
+/*
+ * This file is part of Flow Render, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2014 Spout LLC <http://www.spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.render;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ViewTest {
+    @Test
+    public void testAttributeOverrides() {
+        final RenderGraph graph = new RenderGraph();
+        final CountingNode node = new CountingNode(graph, "node");
+        graph.addNode(node);
+        graph.build();
+        graph.setAttribute(CountingNode.VALUE, 1);
+        final View first = new View(graph, "first");
+        final View second = new View(graph, "second");
+        second.setAttribute(CountingNode.VALUE, 2);
+        graph.addView(first);
+        graph.addView(second);
+        graph.render();
+        // The first view sees the graph's value, the second its own
+        Assert.assertEquals(Arrays.asList(1, 2), node.renderedValues);
+        Assert.assertEquals(1, (int) first.getAttribute(CountingNode.VALUE));
+        Assert.assertEquals(2, (int) second.getAttribute(CountingNode.VALUE));
+        // Attributes set on the node take precedence over the views
+        node.setAttribute(CountingNode.VALUE, 3);
+        graph.render();
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 3), node.renderedValues);
+        node.removeAttribute(CountingNode.VALUE);
+        second.removeAttribute(CountingNode.VALUE);
+        graph.render();
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 3, 1, 1), node.renderedValues);
+    }
+
+    @Test
+    public void testUpdatedNodeCountSummed() {
+        final RenderGraph graph = new RenderGraph();
+        graph.addNode(new CountingNode(graph, "first"));
+        graph.addNode(new CountingNode(graph, "second"));
+        graph.build();
+        final View left = new View(graph, "left");
+        final View right = new View(graph, "right");
+        graph.addView(left);
+        graph.addView(right);
+        graph.render();
+        // Both nodes are updated for the first view, the second sees the same values
+        Assert.assertEquals(2, graph.getUpdatedNodeCount());
+        graph.render();
+        Assert.assertEquals(0, graph.getUpdatedNodeCount());
+        // A value that differs between the views updates the nodes for each of them
+        left.setAttribute(CountingNode.VALUE, 1);
+        right.setAttribute(CountingNode.VALUE, 2);
+        graph.render();
+        Assert.assertEquals(4, graph.getUpdatedNodeCount());
+        graph.render();
+        Assert.assertEquals(4, graph.getUpdatedNodeCount());
+        // Both views update again: the nodes were last updated with the old value, then once the values agree, neither does
+        right.setAttribute(CountingNode.VALUE, 1);
+        graph.render();
+        Assert.assertEquals(4, graph.getUpdatedNodeCount());
+        graph.render();
+        Assert.assertEquals(0, graph.getUpdatedNodeCount());
+    }
+
+    @Test
+    public void testViewStates() {
+        final RenderGraph graph = new RenderGraph();
+        final CountingNode node = new CountingNode(graph, "node");
+        final CountingNode removed = new CountingNode(graph, "removed");
+        graph.addNode(node);
+        graph.addNode(removed);
+        graph.build();
+        graph.addView(new View(graph, "first"));
+        graph.addView(new View(graph, "second"));
+        graph.render();
+        graph.render();
+        // One state per view, created on first use
+        Assert.assertEquals(2, node.createdStates);
+        Assert.assertEquals(0, node.destroyedStates);
+        graph.removeView("first");
+        Assert.assertEquals(1, node.destroyedStates);
+        graph.render();
+        Assert.assertEquals(2, node.createdStates);
+        // Removing a node destroys the states it kept for the remaining views
+        graph.removeNode("removed");
+        Assert.assertEquals(2, removed.createdStates);
+        Assert.assertEquals(2, removed.destroyedStates);
+    }
+
+    @Test
+    public void testViewSinks() {
+        final RenderGraph graph = new RenderGraph();
+        // scene -> lighting -> screen, scene -> minimap
+        final CountingNode scene = new CountingNode(graph, "scene");
+        final CountingNode lighting = new CountingNode(graph, "lighting");
+        final CountingNode screen = new CountingNode(graph, "screen");
+        final CountingNode minimap = new CountingNode(graph, "minimap");
+        graph.addNode(scene);
+        graph.addNode(lighting);
+        graph.addNode(screen);
+        graph.addNode(minimap);
+        lighting.connect("input", "output", scene);
+        screen.connect("input", "output", lighting);
+        minimap.connect("input", "output", scene);
+        graph.build();
+        graph.addSink("screen");
+        final View map = new View(graph, "map");
+        map.addSink("minimap");
+        final View main = new View(graph, "main");
+        graph.addView(map);
+        graph.addView(main);
+        graph.render();
+        // The map view only renders what its sink needs, the main view the sinks of the graph
+        Assert.assertEquals(2, scene.renderCount);
+        Assert.assertEquals(1, minimap.renderCount);
+        Assert.assertEquals(1, lighting.renderCount);
+        Assert.assertEquals(1, screen.renderCount);
+        Assert.assertEquals(Collections.singleton("minimap"), map.getSinks());
+        // The sinks of a view follow the changes to the graph
+        map.addSink("lighting");
+        graph.render();
+        Assert.assertEquals(2, minimap.renderCount);
+        Assert.assertEquals(3, lighting.renderCount);
+        Assert.assertEquals(2, screen.renderCount);
+        graph.removeNode("minimap");
+        Assert.assertEquals(Collections.singleton("lighting"), map.getSinks());
+        graph.render();
+        Assert.assertEquals(6, scene.renderCount);
+        Assert.assertEquals(5, lighting.renderCount);
+        Assert.assertEquals(3, screen.renderCount);
+        map.removeSink("lighting");
+        graph.render();
+        Assert.assertEquals(5, screen.renderCount);
+    }
+}